@@ -0,0 +1,541 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.joran.spi.JoranException;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.spi.LifeCycle;
+import ch.qos.logback.core.status.Status;
+import com.spotify.logging.ConfigurationSnapshot.LoggerSpec;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+
+/**
+ * Watches a logback configuration file and applies changes to it without resetting the logger
+ * context, so that reloading doesn't close connections, drop queued events or leave loggers without
+ * appenders for a while, like {@link LoggingConfigurator#configure(File)} does.
+ *
+ * <p>The file is checked for changes every 10 seconds by a background thread, which also does all
+ * the work of a reload. The new file is compared with the one that is running:
+ *
+ * <ul>
+ *   <li>Changes to the levels and additivity of loggers are applied directly.
+ *   <li>Appenders that were added or changed, and those that refer to them, are built and started
+ *       by logback from a configuration that only contains them. They are then attached to their
+ *       loggers before the old ones are detached, so every event reaches either the old or the new
+ *       appender (or, for an instant, both). A logging thread may still hold the appenders a logger
+ *       had before the swap, so the old ones are only stopped a grace period (1 second) after they
+ *       were detached from every logger, which flushes what they have queued. Appenders that didn't
+ *       change keep running untouched.
+ *   <li>If the turbo filters changed, they are all built again and swapped.
+ *   <li>Changes to anything else, like properties, conversion rules or status listeners, and files
+ *       with {@code <include>} or {@code <if>}, are applied like {@link
+ *       LoggingConfigurator#configure(File)} does, by resetting the context. The file is first
+ *       tried on a scratch context, whose appenders are started and stopped again, and the context
+ *       is only reset if that didn't report any errors.
+ * </ul>
+ *
+ * <p>If the file can't be parsed or an appender can't be built, the running configuration is kept.
+ */
+public final class ConfigurationReloader extends ContextAwareBase implements LifeCycle {
+
+  static final long DEFAULT_POLL_INTERVAL_MILLIS = 10_000;
+  static final long DEFAULT_STOP_GRACE_MILLIS = 1000;
+  static final String STAGING_LOGGER = ConfigurationReloader.class.getName() + ".staging";
+
+  private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+  private final LoggerContext loggerContext;
+  private final File file;
+  private final String defaultIdent;
+  private final long pollIntervalMillis;
+  private final long stopGraceNanos;
+  private final ReentrantLock reloadLock = new ReentrantLock();
+  private final LongAdder fullReloads = new LongAdder();
+  private final LongAdder incrementalReloads = new LongAdder();
+
+  // Guarded by reloadLock
+  private @Nullable ConfigurationSnapshot current;
+  private byte[] lastRead = new byte[0];
+  private List<TurboFilter> fileTurboFilters = Collections.emptyList();
+  private boolean readFailed;
+  // Detached appenders waiting for their grace period to pass, in the order they were detached
+  private final Deque<Retired> retired = new ArrayDeque<>();
+
+  private volatile @Nullable FileTime lastModified;
+  // When the watcher should stop the oldest retired appenders; far ahead if there are none
+  private volatile long nextRetiredDeadline = System.nanoTime() + Long.MAX_VALUE / 2;
+  private volatile boolean running;
+  private volatile @Nullable Thread watcher;
+
+  ConfigurationReloader(
+      final LoggerContext context,
+      final File file,
+      final String defaultIdent,
+      final long pollIntervalMillis,
+      final long stopGraceMillis) {
+    setContext(context);
+    this.loggerContext = context;
+    this.file = file;
+    this.defaultIdent = defaultIdent;
+    this.pollIntervalMillis = pollIntervalMillis;
+    this.stopGraceNanos = TimeUnit.MILLISECONDS.toNanos(stopGraceMillis);
+  }
+
+  /** Configure the logger context from the file, and start watching it. */
+  @Override
+  public void start() {
+    if (running) {
+      return;
+    }
+    reloadLock.lock();
+    try {
+      lastModified = modifiedTime();
+      byte[] bytes;
+      try {
+        bytes = Files.readAllBytes(file.toPath());
+      } catch (IOException e) {
+        // Joran reports the missing file
+        bytes = new byte[0];
+      }
+      fullReload(bytes, null);
+    } finally {
+      reloadLock.unlock();
+    }
+
+    running = true;
+    final Thread watcher =
+        new Thread(this::runWatcher, "ConfigurationReloader-Watcher-" + file.getName());
+    watcher.setDaemon(true);
+    this.watcher = watcher;
+    watcher.start();
+  }
+
+  /**
+   * Stop watching the file. The configuration is left as it is, but appenders that were replaced
+   * and are still in their grace period are stopped right away.
+   */
+  @Override
+  public void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    final Thread watcher = this.watcher;
+    if (watcher != null) {
+      LockSupport.unpark(watcher);
+      try {
+        watcher.join(CLOSE_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.watcher = null;
+    }
+    reloadLock.lock();
+    try {
+      stopRetired(true);
+    } finally {
+      reloadLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isStarted() {
+    return running;
+  }
+
+  /**
+   * Read the file and apply it if it changed since it was last read. This is done by the watcher
+   * thread when the modification time of the file changes, but can also be called directly, from a
+   * signal handler, say.
+   */
+  public void reload() {
+    reloadLock.lock();
+    try {
+      lastModified = modifiedTime();
+      final byte[] bytes;
+      try {
+        bytes = Files.readAllBytes(file.toPath());
+      } catch (IOException e) {
+        if (!readFailed) {
+          readFailed = true;
+          addWarn("Failed to read " + file + ", keeping the current configuration.", e);
+        }
+        return;
+      }
+      if (readFailed) {
+        readFailed = false;
+        addInfo("Reading " + file + " again.");
+      }
+      if (Arrays.equals(bytes, lastRead)) {
+        return;
+      }
+      lastRead = bytes;
+
+      final ConfigurationSnapshot next;
+      try {
+        next = ConfigurationSnapshot.parse(bytes);
+      } catch (IOException e) {
+        addError("Failed to parse " + file + ", keeping the current configuration.", e);
+        return;
+      }
+      final ConfigurationSnapshot current = this.current;
+      if (current == null
+          || current.requiresFullReload
+          || next.requiresFullReload
+          || !current.global.equals(next.global)) {
+        if (!configuresWithoutErrors()) {
+          addError("Failed to configure from " + file + ", keeping the current configuration.");
+          return;
+        }
+        addInfo("Reloading " + file + " by resetting the logger context.");
+        fullReload(bytes, next);
+        return;
+      }
+      if (apply(current, next)) {
+        this.current = next;
+        incrementalReloads.increment();
+      }
+      stopRetired(false);
+    } finally {
+      reloadLock.unlock();
+    }
+  }
+
+  /** @return the number of times the context was reset to apply the file. */
+  long getFullReloadCount() {
+    return fullReloads.sum();
+  }
+
+  /** @return the number of times changes were applied without resetting the context. */
+  long getIncrementalReloadCount() {
+    return incrementalReloads.sum();
+  }
+
+  private void runWatcher() {
+    final long pollNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, pollIntervalMillis));
+    long nextPoll = System.nanoTime() + pollNanos;
+    while (running) {
+      final long retiredDeadline = nextRetiredDeadline;
+      final long wakeUp = retiredDeadline - nextPoll < 0 ? retiredDeadline : nextPoll;
+      LockSupport.parkNanos(this, Math.max(1, wakeUp - System.nanoTime()));
+      if (!running) {
+        break;
+      }
+      if (System.nanoTime() - nextPoll >= 0) {
+        nextPoll = System.nanoTime() + pollNanos;
+        if (!Objects.equals(modifiedTime(), lastModified)) {
+          reload();
+        }
+      }
+      if (System.nanoTime() - nextRetiredDeadline >= 0) {
+        reloadLock.lock();
+        try {
+          stopRetired(false);
+        } finally {
+          reloadLock.unlock();
+        }
+      }
+    }
+  }
+
+  private @Nullable FileTime modifiedTime() {
+    try {
+      return Files.getLastModifiedTime(file.toPath());
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      return lastModified;
+    }
+  }
+
+  // Joran reports most errors as status messages and carries on, so the file is tried on a scratch
+  // context first. Its errors are copied to the running context.
+  private boolean configuresWithoutErrors() {
+    final LoggerContext scratch = new LoggerContext();
+    final List<Status> errors = new ArrayList<>();
+    try {
+      final JoranConfigurator configurator = new JoranConfigurator();
+      configurator.setContext(scratch);
+      configurator.doConfigure(file);
+    } catch (JoranException e) {
+      // Joran adds a status for this too
+    } finally {
+      for (final Status status : scratch.getStatusManager().getCopyOfStatusList()) {
+        if (status.getEffectiveLevel() >= Status.ERROR) {
+          errors.add(status);
+        }
+      }
+      scratch.stop();
+    }
+    errors.forEach(loggerContext.getStatusManager()::add);
+    return errors.isEmpty();
+  }
+
+  private void fullReload(final byte[] bytes, final @Nullable ConfigurationSnapshot parsed) {
+    // Retired appenders aren't attached to any logger, so the reset wouldn't stop them
+    stopRetired(true);
+    fileTurboFilters = LoggingConfigurator.configure(loggerContext, file, defaultIdent);
+    lastRead = bytes;
+    ConfigurationSnapshot snapshot = parsed;
+    if (snapshot == null && bytes.length > 0) {
+      try {
+        snapshot = ConfigurationSnapshot.parse(bytes);
+      } catch (IOException e) {
+        // Joran reports this too, and the next change is applied by resetting the context again
+      }
+    }
+    current = snapshot;
+    fullReloads.increment();
+  }
+
+  // Returns false if the new configuration couldn't be applied
+  private boolean apply(final ConfigurationSnapshot current, final ConfigurationSnapshot next) {
+    final Set<String> rebuild = appendersToBuild(current, next);
+    final boolean turboFiltersChanged = !current.turboFilterForm.equals(next.turboFilterForm);
+
+    final Map<String, Appender<ILoggingEvent>> running = new HashMap<>();
+    for (final String name : current.loggers.keySet()) {
+      final Iterator<Appender<ILoggingEvent>> it =
+          loggerContext.getLogger(name).iteratorForAppenders();
+      while (it.hasNext()) {
+        final Appender<ILoggingEvent> appender = it.next();
+        if (current.appenders.containsKey(appender.getName())) {
+          running.putIfAbsent(appender.getName(), appender);
+        }
+      }
+    }
+
+    // Build the new appenders and turbo filters next to the running ones
+    final Map<String, Appender<ILoggingEvent>> built = new HashMap<>();
+    List<TurboFilter> builtFilters = Collections.emptyList();
+    if (!rebuild.isEmpty() || turboFiltersChanged) {
+      final List<TurboFilter> before = new ArrayList<>(loggerContext.getTurboFilterList());
+      try {
+        final JoranConfigurator configurator = new JoranConfigurator();
+        configurator.setContext(loggerContext);
+        configurator.doConfigure(
+            new ByteArrayInputStream(
+                next.partialConfiguration(rebuild, turboFiltersChanged, STAGING_LOGGER)));
+      } catch (JoranException | IOException e) {
+        addError("Failed to build the changed parts of " + file + ".", e);
+      }
+      final Logger staging = loggerContext.getLogger(STAGING_LOGGER);
+      for (final String name : rebuild) {
+        final Appender<ILoggingEvent> appender = staging.getAppender(name);
+        if (appender != null) {
+          staging.detachAppender(appender);
+          built.put(name, appender);
+        }
+      }
+      // Logback keeps every logger it has created, so the staging logger can't be removed from the
+      // context; leave it as if it had never been configured instead
+      staging.setLevel(null);
+      staging.setAdditive(true);
+      builtFilters = new ArrayList<>(loggerContext.getTurboFilterList());
+      builtFilters.removeAll(before);
+
+      final Set<String> failed = new LinkedHashSet<>(rebuild);
+      built.forEach(
+          (name, appender) -> {
+            if (appender.isStarted()) {
+              failed.remove(name);
+            }
+          });
+      if (!failed.isEmpty()) {
+        addError(
+            "Failed to start appenders "
+                + failed
+                + " from "
+                + file
+                + ", keeping the current configuration.");
+        built.values().forEach(Appender::stop);
+        loggerContext.getTurboFilterList().removeAll(builtFilters);
+        builtFilters.forEach(TurboFilter::stop);
+        return false;
+      }
+    }
+
+    // Swap logger by logger, attaching new appenders before detaching the old ones
+    final Set<Appender<ILoggingEvent>> attached =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+    final Set<String> loggerNames = new LinkedHashSet<>(current.loggers.keySet());
+    loggerNames.addAll(next.loggers.keySet());
+    for (final String name : loggerNames) {
+      final Logger logger = loggerContext.getLogger(name);
+      final LoggerSpec spec = next.loggers.get(name);
+      final List<Appender<ILoggingEvent>> wanted = new ArrayList<>();
+      if (spec != null) {
+        for (final String ref : spec.appenderRefs) {
+          final Appender<ILoggingEvent> appender =
+              built.containsKey(ref) ? built.get(ref) : running.get(ref);
+          if (appender != null && !wanted.contains(appender)) {
+            wanted.add(appender);
+          }
+        }
+      }
+      for (final Appender<ILoggingEvent> appender : wanted) {
+        if (!logger.isAttached(appender)) {
+          logger.addAppender(appender);
+        }
+      }
+      logger.setLevel(level(logger, spec));
+      logger.setAdditive(spec == null || spec.additive == null || spec.additive);
+      for (final Appender<ILoggingEvent> appender : running.values()) {
+        if (!wanted.contains(appender)) {
+          logger.detachAppender(appender);
+        }
+      }
+      attached.addAll(wanted);
+    }
+
+    // Stop the replaced appenders, and those that are no longer used, once logging threads that
+    // picked up the appenders of a logger just before the swap are done with them
+    final Set<String> referencedByKept = new HashSet<>();
+    for (final String name : next.appenders.keySet()) {
+      if (!built.containsKey(name)) {
+        referencedByKept.addAll(next.appenderRefs(name));
+      }
+    }
+    final List<Appender<ILoggingEvent>> unused = new ArrayList<>();
+    for (final Appender<ILoggingEvent> appender : running.values()) {
+      if (!attached.contains(appender)
+          && (built.containsKey(appender.getName())
+              || !referencedByKept.contains(appender.getName()))) {
+        unused.add(appender);
+      }
+    }
+    if (!unused.isEmpty()) {
+      retired.add(new Retired(unused, System.nanoTime() + stopGraceNanos));
+      nextRetiredDeadline = retired.peekFirst().deadline;
+      final Thread watcher = this.watcher;
+      if (watcher != null) {
+        LockSupport.unpark(watcher);
+      }
+    }
+
+    if (turboFiltersChanged) {
+      loggerContext.getTurboFilterList().removeAll(fileTurboFilters);
+      fileTurboFilters.forEach(TurboFilter::stop);
+      fileTurboFilters = builtFilters;
+    }
+
+    addInfo(
+        "Applied changes to "
+            + file
+            + (built.isEmpty() ? "" : ", replacing appenders " + built.keySet())
+            + (turboFiltersChanged ? ", replacing turbo filters" : "")
+            + ".");
+    return true;
+  }
+
+  // Stops the retired appenders whose grace period is over, or all of them
+  private void stopRetired(final boolean all) {
+    final long now = System.nanoTime();
+    while (!retired.isEmpty() && (all || now - retired.peekFirst().deadline >= 0)) {
+      retired.pollFirst().appenders.forEach(Appender::stop);
+    }
+    nextRetiredDeadline =
+        retired.isEmpty() ? now + Long.MAX_VALUE / 2 : retired.peekFirst().deadline;
+  }
+
+  /**
+   * Get the appenders that were added or changed. An appender that refers to one of them is built
+   * again too, and so are the appenders that a rebuilt appender refers to, since logback builds
+   * them along with it.
+   */
+  private static Set<String> appendersToBuild(
+      final ConfigurationSnapshot current, final ConfigurationSnapshot next) {
+    final Set<String> rebuild = new LinkedHashSet<>();
+    next.appenderForms.forEach(
+        (name, form) -> {
+          if (!form.equals(current.appenderForms.get(name))) {
+            rebuild.add(name);
+          }
+        });
+    boolean grown = !rebuild.isEmpty();
+    while (grown) {
+      grown = false;
+      for (final String name : next.appenders.keySet()) {
+        final List<String> refs = next.appenderRefs(name);
+        if (rebuild.contains(name)) {
+          for (final String ref : refs) {
+            grown |= next.appenders.containsKey(ref) && rebuild.add(ref);
+          }
+        } else if (!Collections.disjoint(refs, rebuild)) {
+          grown |= rebuild.add(name);
+        }
+      }
+    }
+    return rebuild;
+  }
+
+  // The level logback would give the logger after a reset and configuring it from the spec
+  private static @Nullable Level level(final Logger logger, final @Nullable LoggerSpec spec) {
+    final boolean root = Logger.ROOT_LOGGER_NAME.equalsIgnoreCase(logger.getName());
+    final String value = spec == null ? null : spec.level;
+    if (value == null
+        || (!root && ("INHERITED".equalsIgnoreCase(value) || "NULL".equalsIgnoreCase(value)))) {
+      return root ? Level.DEBUG : null;
+    }
+    return Level.toLevel(value.trim(), Level.DEBUG);
+  }
+
+  private static final class Retired {
+    final List<Appender<ILoggingEvent>> appenders;
+    final long deadline;
+
+    Retired(final List<Appender<ILoggingEvent>> appenders, final long deadline) {
+      this.appenders = appenders;
+      this.deadline = deadline;
+    }
+  }
+}
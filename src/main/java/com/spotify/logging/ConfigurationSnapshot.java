@@ -0,0 +1,308 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging;
+
+import ch.qos.logback.classic.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * A logback configuration file, split up into the parts that {@link ConfigurationReloader} can swap
+ * one at a time: appenders, the levels, additivity and appender references of loggers, and turbo
+ * filters. Everything else, like properties and conversion rules, is compared as a whole.
+ *
+ * <p>Parts are compared in a canonical form, in which attributes are sorted, whitespace around text
+ * is trimmed and comments are left out, so reformatting the file doesn't change anything.
+ */
+final class ConfigurationSnapshot {
+
+  // Elements that are copied into partial configurations, so that appenders and turbo filters
+  // built from them see the same variables, conversion rules and imports
+  private static final List<String> SHARED_ELEMENTS =
+      List.of("property", "variable", "define", "timestamp", "conversionrule", "import");
+
+  // Fail on errors instead of printing them to stderr; warnings don't stop logback either
+  private static final ErrorHandler THROWING_ERROR_HANDLER =
+      new ErrorHandler() {
+        @Override
+        public void warning(final SAXParseException exception) {}
+
+        @Override
+        public void error(final SAXParseException exception) throws SAXException {
+          throw exception;
+        }
+
+        @Override
+        public void fatalError(final SAXParseException exception) throws SAXException {
+          throw exception;
+        }
+      };
+
+  final String global;
+  final boolean requiresFullReload;
+  final List<Element> sharedElements = new ArrayList<>();
+  final Map<String, Element> appenders = new LinkedHashMap<>();
+  final Map<String, String> appenderForms = new LinkedHashMap<>();
+  final Map<String, LoggerSpec> loggers = new LinkedHashMap<>();
+  final List<Element> turboFilters = new ArrayList<>();
+  final String turboFilterForm;
+
+  private ConfigurationSnapshot(final Document document) {
+    final Element configuration = document.getDocumentElement();
+    final StringBuilder global = new StringBuilder();
+    final StringBuilder turboFilterForm = new StringBuilder();
+    boolean requiresFullReload = !"configuration".equals(name(configuration));
+    appendAttributes(configuration, global);
+    for (final Element element : children(configuration)) {
+      switch (name(element)) {
+        case "appender":
+          final String appenderName = element.getAttribute("name");
+          appenders.put(appenderName, element);
+          appenderForms.put(appenderName, canonical(element));
+          break;
+        case "logger":
+          requiresFullReload |= addLogger(element.getAttribute("name"), element);
+          break;
+        case "root":
+          requiresFullReload |= addLogger(Logger.ROOT_LOGGER_NAME, element);
+          break;
+        case "turbofilter":
+          turboFilters.add(element);
+          turboFilterForm.append(canonical(element));
+          break;
+        default:
+          if (SHARED_ELEMENTS.contains(name(element))) {
+            sharedElements.add(element);
+          }
+          global.append(canonical(element));
+      }
+    }
+    // Conditions and includes make the effective configuration depend on more than this file
+    requiresFullReload |=
+        configuration.getElementsByTagName("include").getLength() > 0
+            || configuration.getElementsByTagName("if").getLength() > 0;
+    this.global = global.toString();
+    this.turboFilterForm = turboFilterForm.toString();
+    this.requiresFullReload = requiresFullReload;
+  }
+
+  /**
+   * Parse a configuration file.
+   *
+   * @param bytes the contents of the file
+   * @throws IOException if it is not well-formed XML
+   */
+  static ConfigurationSnapshot parse(final byte[] bytes) throws IOException {
+    try {
+      final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      factory.setExpandEntityReferences(false);
+      final DocumentBuilder builder = factory.newDocumentBuilder();
+      builder.setErrorHandler(THROWING_ERROR_HANDLER);
+      return new ConfigurationSnapshot(builder.parse(new ByteArrayInputStream(bytes)));
+    } catch (ParserConfigurationException | SAXException e) {
+      throw new IOException("Failed to parse logging configuration", e);
+    }
+  }
+
+  /**
+   * Write a configuration with the shared elements of this file and the given appenders and turbo
+   * filters, with the appenders attached to the given logger so that logback builds them.
+   */
+  byte[] partialConfiguration(
+      final Iterable<String> appenderNames,
+      final boolean includeTurboFilters,
+      final String stagingLogger)
+      throws IOException {
+    try {
+      final Document partial =
+          DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+      final Element configuration = partial.createElement("configuration");
+      partial.appendChild(configuration);
+      for (final Element element : sharedElements) {
+        configuration.appendChild(partial.importNode(element, true));
+      }
+      final Element logger = partial.createElement("logger");
+      logger.setAttribute("name", stagingLogger);
+      logger.setAttribute("level", "OFF");
+      logger.setAttribute("additivity", "false");
+      for (final String name : appenderNames) {
+        configuration.appendChild(partial.importNode(appenders.get(name), true));
+        final Element ref = partial.createElement("appender-ref");
+        ref.setAttribute("ref", name);
+        logger.appendChild(ref);
+      }
+      if (includeTurboFilters) {
+        for (final Element element : turboFilters) {
+          configuration.appendChild(partial.importNode(element, true));
+        }
+      }
+      configuration.appendChild(logger);
+
+      final Transformer transformer = TransformerFactory.newInstance().newTransformer();
+      transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      transformer.transform(new DOMSource(partial), new StreamResult(out));
+      return out.toByteArray();
+    } catch (ParserConfigurationException | TransformerException e) {
+      throw new IOException("Failed to write partial logging configuration", e);
+    }
+  }
+
+  /** @return the names of the appenders that the given appender refers to. */
+  List<String> appenderRefs(final String appenderName) {
+    final Element appender = appenders.get(appenderName);
+    if (appender == null) {
+      return Collections.emptyList();
+    }
+    final List<String> refs = new ArrayList<>();
+    final NodeList nodes = appender.getElementsByTagName("appender-ref");
+    for (int i = 0; i < nodes.getLength(); i++) {
+      refs.add(((Element) nodes.item(i)).getAttribute("ref"));
+    }
+    return refs;
+  }
+
+  // Returns true if the logger uses variables, which are only known to logback's own parser
+  private boolean addLogger(final String name, final Element element) {
+    @Nullable String level = element.hasAttribute("level") ? element.getAttribute("level") : null;
+    @Nullable Boolean additive = null;
+    if (element.hasAttribute("additivity")) {
+      additive = Boolean.valueOf(element.getAttribute("additivity").trim());
+    }
+    final List<String> refs = new ArrayList<>();
+    for (final Element child : children(element)) {
+      if ("level".equals(name(child))) {
+        level = child.getAttribute("value");
+      } else if ("appender-ref".equals(name(child))) {
+        refs.add(child.getAttribute("ref"));
+      }
+    }
+    loggers.put(name, new LoggerSpec(level, additive, refs));
+    return canonical(element).contains("${");
+  }
+
+  private static String name(final Element element) {
+    return element.getTagName().toLowerCase(Locale.ROOT);
+  }
+
+  private static List<Element> children(final Element element) {
+    final List<Element> children = new ArrayList<>();
+    for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child.getNodeType() == Node.ELEMENT_NODE) {
+        children.add((Element) child);
+      }
+    }
+    return children;
+  }
+
+  static String canonical(final Element element) {
+    final StringBuilder sb = new StringBuilder();
+    appendCanonical(element, sb);
+    return sb.toString();
+  }
+
+  private static void appendCanonical(final Node node, final StringBuilder sb) {
+    switch (node.getNodeType()) {
+      case Node.ELEMENT_NODE:
+        final Element element = (Element) node;
+        sb.append('<').append(name(element));
+        appendAttributes(element, sb);
+        sb.append('>');
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+          appendCanonical(child, sb);
+        }
+        sb.append("</").append(name(element)).append('>');
+        break;
+      case Node.TEXT_NODE:
+      case Node.CDATA_SECTION_NODE:
+        final String text = node.getNodeValue().trim();
+        if (!text.isEmpty()) {
+          sb.append('"').append(text.replace("\"", "\\\"")).append('"');
+        }
+        break;
+      default:
+        // Comments and processing instructions don't change the configuration
+    }
+  }
+
+  private static void appendAttributes(final Element element, final StringBuilder sb) {
+    final NamedNodeMap attributes = element.getAttributes();
+    final Map<String, String> sorted = new TreeMap<>();
+    for (int i = 0; i < attributes.getLength(); i++) {
+      final Attr attribute = (Attr) attributes.item(i);
+      sorted.put(attribute.getName(), attribute.getValue());
+    }
+    sorted.forEach(
+        (name, value) ->
+            sb.append(' ')
+                .append(name)
+                .append("=\"")
+                .append(value.replace("\"", "\\\""))
+                .append('"'));
+  }
+
+  /** The level, additivity and appender references of a {@code <logger>} or {@code <root>}. */
+  static final class LoggerSpec {
+
+    final @Nullable String level;
+    final @Nullable Boolean additive;
+    final List<String> appenderRefs;
+
+    LoggerSpec(
+        final @Nullable String level,
+        final @Nullable Boolean additive,
+        final List<String> appenderRefs) {
+      this.level = level;
+      this.additive = additive;
+      this.appenderRefs = Collections.unmodifiableList(appenderRefs);
+    }
+  }
+}
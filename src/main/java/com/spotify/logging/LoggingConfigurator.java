@@ -39,26 +39,44 @@ package com.spotify.logging;
 import static ch.qos.logback.classic.Level.OFF;
 import static java.lang.System.getenv;
 
+import ch.qos.logback.classic.AsyncAppender;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
-import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.filter.ThresholdFilter;
 import ch.qos.logback.classic.joran.JoranConfigurator;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.turbo.TurboFilter;
 import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.AsyncAppenderBase;
 import ch.qos.logback.core.ConsoleAppender;
 import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
 import ch.qos.logback.core.joran.spi.JoranException;
 import ch.qos.logback.core.util.StatusPrinter;
 import com.spotify.logging.logback.CustomLogstashEncoder;
+import com.spotify.logging.logback.FileChannelConsoleAppender;
+import com.spotify.logging.logback.LogBudgetTurboFilter;
+import com.spotify.logging.logback.LogVolumeAppender;
+import com.spotify.logging.logback.MappedFileAppender;
+import com.spotify.logging.logback.MdcDebugTurboFilter;
 import com.spotify.logging.logback.MillisecondPrecisionSyslogAppender;
+import com.spotify.logging.logback.NewLineStrippingMessageConverter;
+import com.spotify.logging.logback.PrioritizedAsyncAppender;
+import com.spotify.logging.logback.StderrLayout;
+import com.spotify.logging.logback.StreamingConsoleAppender;
 import io.sentry.SentryOptions;
 import io.sentry.logback.SentryAppender;
 import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 import net.logstash.logback.composite.loggingevent.ArgumentsJsonProvider;
+import org.slf4j.ILoggerFactory;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -70,6 +88,10 @@ import org.slf4j.LoggerFactory;
  * <p>One aspect of the logging is that we setup a general uncaught exception handler to log
  * uncaught exceptions at info level, if syslog is chosen as logging backend.
  *
+ * <p>If the USE_ASYNC_LOGGING environment variable is set to {@code true}, the appenders are
+ * wrapped in an {@link AsyncAppender}, so that slow consumers of stderr, stdout or syslog don't
+ * block the threads doing the logging. See {@link AsyncOptions} for the other settings.
+ *
  * @see JewelCliLoggingConfigurator For some integration with JewelCLI
  */
 public class LoggingConfigurator {
@@ -82,6 +104,14 @@ public class LoggingConfigurator {
     OFF,
     ON;
 
+    /**
+     * Get the pattern for the message, which works in any layout. The layouts created by this class
+     * remove line breaks with a {@link NewLineStrippingMessageConverter} instead, see {@link
+     * NewLineStrippingMessageConverter#msgPattern(ReplaceNewLines)}.
+     *
+     * @param replaceNewLines whether to remove line breaks
+     * @return the pattern
+     */
     public static String getMsgPattern(final ReplaceNewLines replaceNewLines) {
       return replaceNewLines == ReplaceNewLines.ON ? "%replace(%msg){'[\\r\\n]', ''}" : "%msg";
     }
@@ -92,6 +122,21 @@ public class LoggingConfigurator {
   public static final String SPOTIFY_SYSLOG_HOST = "SPOTIFY_SYSLOG_HOST";
   public static final String SPOTIFY_SYSLOG_PORT = "SPOTIFY_SYSLOG_PORT";
   private static final String USE_JSON_LOGGING = "USE_JSON_LOGGING";
+  public static final String USE_ASYNC_LOGGING = "USE_ASYNC_LOGGING";
+  public static final String ASYNC_LOGGING_QUEUE_SIZE = "ASYNC_LOGGING_QUEUE_SIZE";
+  public static final String ASYNC_LOGGING_NEVER_BLOCK = "ASYNC_LOGGING_NEVER_BLOCK";
+  public static final String ASYNC_LOGGING_DISCARD_BELOW_WARN = "ASYNC_LOGGING_DISCARD_BELOW_WARN";
+  public static final String ASYNC_LOGGING_SHUTDOWN_DEADLINE_MS =
+      "ASYNC_LOGGING_SHUTDOWN_DEADLINE_MS";
+  public static final String ASYNC_LOGGING_PRIORITIZED = "ASYNC_LOGGING_PRIORITIZED";
+  public static final String USE_DIRECT_CONSOLE_OUTPUT = "USE_DIRECT_CONSOLE_OUTPUT";
+  public static final String LOG_VOLUME_ACCOUNTING = "LOG_VOLUME_ACCOUNTING";
+  public static final String LOG_BUDGET_EVENTS_PER_MINUTE = "LOG_BUDGET_EVENTS_PER_MINUTE";
+  public static final String LOG_BUDGET_CHARS_PER_MINUTE = "LOG_BUDGET_CHARS_PER_MINUTE";
+  public static final String DEBUG_MDC_KEY = "DEBUG_MDC_KEY";
+  public static final String DEBUG_MDC_VALUES_FILE = "DEBUG_MDC_VALUES_FILE";
+
+  private static final AtomicBoolean shutdownHookInstalled = new AtomicBoolean();
 
   @SuppressWarnings("unused")
   public enum Level {
@@ -110,6 +155,200 @@ public class LoggingConfigurator {
     }
   }
 
+  /**
+   * Settings for logging asynchronously. Events are put on a bounded queue and written to the
+   * actual appender by a background thread. By default {@link #fromEnvironment()} is used, which
+   * logs synchronously unless the USE_ASYNC_LOGGING environment variable is set to {@code true}.
+   */
+  public static final class AsyncOptions {
+
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+    public static final int DEFAULT_SHUTDOWN_DEADLINE_MILLIS =
+        AsyncAppenderBase.DEFAULT_MAX_FLUSH_TIME;
+
+    private static final AsyncOptions SYNC =
+        new AsyncOptions(
+            false, DEFAULT_QUEUE_SIZE, false, true, DEFAULT_SHUTDOWN_DEADLINE_MILLIS, false);
+
+    private final boolean enabled;
+    private final int queueSize;
+    private final boolean neverBlock;
+    private final boolean discardBelowWarn;
+    private final int shutdownDeadlineMillis;
+    private final boolean prioritized;
+
+    private AsyncOptions(
+        final boolean enabled,
+        final int queueSize,
+        final boolean neverBlock,
+        final boolean discardBelowWarn,
+        final int shutdownDeadlineMillis,
+        final boolean prioritized) {
+      this.enabled = enabled;
+      this.queueSize = queueSize;
+      this.neverBlock = neverBlock;
+      this.discardBelowWarn = discardBelowWarn;
+      this.shutdownDeadlineMillis = shutdownDeadlineMillis;
+      this.prioritized = prioritized;
+    }
+
+    /** @return options for logging synchronously, from the calling thread. */
+    public static AsyncOptions sync() {
+      return SYNC;
+    }
+
+    /**
+     * @return options for logging asynchronously with the default settings: a queue of {@link
+     *     #DEFAULT_QUEUE_SIZE} events, blocking when the queue is full, and discarding events below
+     *     WARN when the queue is 80% full.
+     */
+    public static AsyncOptions async() {
+      return new AsyncOptions(
+          true, DEFAULT_QUEUE_SIZE, false, true, DEFAULT_SHUTDOWN_DEADLINE_MILLIS, false);
+    }
+
+    /**
+     * Read the options from the environment.
+     *
+     * <ul>
+     *   <li>USE_ASYNC_LOGGING: {@code true} to log asynchronously.
+     *   <li>ASYNC_LOGGING_QUEUE_SIZE: the maximum number of queued events.
+     *   <li>ASYNC_LOGGING_NEVER_BLOCK: {@code true} to drop events instead of blocking when the
+     *       queue is full.
+     *   <li>ASYNC_LOGGING_DISCARD_BELOW_WARN: {@code false} to keep TRACE, DEBUG and INFO events
+     *       when the queue is almost full.
+     *   <li>ASYNC_LOGGING_SHUTDOWN_DEADLINE_MS: how long to wait for queued events to be written
+     *       when the JVM shuts down.
+     *   <li>ASYNC_LOGGING_PRIORITIZED: {@code true} to shed events by level and let ERROR events
+     *       skip the queue, see {@link #withPrioritized(boolean)}.
+     * </ul>
+     *
+     * @return the options
+     */
+    public static AsyncOptions fromEnvironment() {
+      if (!Boolean.parseBoolean(getenv(USE_ASYNC_LOGGING))) {
+        return sync();
+      }
+      AsyncOptions options = async();
+      final String queueSize = getenv(ASYNC_LOGGING_QUEUE_SIZE);
+      if (queueSize != null && !queueSize.isEmpty()) {
+        options = options.withQueueSize(Integer.parseInt(queueSize));
+      }
+      final String neverBlock = getenv(ASYNC_LOGGING_NEVER_BLOCK);
+      if (neverBlock != null && !neverBlock.isEmpty()) {
+        options = options.withNeverBlock(Boolean.parseBoolean(neverBlock));
+      }
+      final String discardBelowWarn = getenv(ASYNC_LOGGING_DISCARD_BELOW_WARN);
+      if (discardBelowWarn != null && !discardBelowWarn.isEmpty()) {
+        options = options.withDiscardBelowWarn(Boolean.parseBoolean(discardBelowWarn));
+      }
+      final String deadline = getenv(ASYNC_LOGGING_SHUTDOWN_DEADLINE_MS);
+      if (deadline != null && !deadline.isEmpty()) {
+        options = options.withShutdownDeadlineMillis(Integer.parseInt(deadline));
+      }
+      final String prioritized = getenv(ASYNC_LOGGING_PRIORITIZED);
+      if (prioritized != null && !prioritized.isEmpty()) {
+        options = options.withPrioritized(Boolean.parseBoolean(prioritized));
+      }
+      return options;
+    }
+
+    /**
+     * @param queueSize the maximum number of queued events
+     * @return a copy of these options with the queue size set
+     */
+    public AsyncOptions withQueueSize(final int queueSize) {
+      if (queueSize <= 0) {
+        throw new IllegalArgumentException("queueSize must be positive: " + queueSize);
+      }
+      return new AsyncOptions(
+          enabled, queueSize, neverBlock, discardBelowWarn, shutdownDeadlineMillis, prioritized);
+    }
+
+    /**
+     * @param neverBlock true to drop events instead of blocking when the queue is full
+     * @return a copy of these options with never block set
+     */
+    public AsyncOptions withNeverBlock(final boolean neverBlock) {
+      return new AsyncOptions(
+          enabled, queueSize, neverBlock, discardBelowWarn, shutdownDeadlineMillis, prioritized);
+    }
+
+    /**
+     * @param discardBelowWarn true to discard TRACE, DEBUG and INFO events when the queue is 80%
+     *     full
+     * @return a copy of these options with discard below warn set
+     */
+    public AsyncOptions withDiscardBelowWarn(final boolean discardBelowWarn) {
+      return new AsyncOptions(
+          enabled, queueSize, neverBlock, discardBelowWarn, shutdownDeadlineMillis, prioritized);
+    }
+
+    /**
+     * @param shutdownDeadlineMillis how long to wait for queued events to be written when the JVM
+     *     shuts down
+     * @return a copy of these options with the shutdown deadline set
+     */
+    public AsyncOptions withShutdownDeadlineMillis(final int shutdownDeadlineMillis) {
+      return new AsyncOptions(
+          enabled, queueSize, neverBlock, discardBelowWarn, shutdownDeadlineMillis, prioritized);
+    }
+
+    /**
+     * @param prioritized true to use a {@link PrioritizedAsyncAppender}, which drops DEBUG events
+     *     when the queue is 50% full and INFO events when it is 80% full, queues ERROR events
+     *     separately so they are written first, and regularly logs how many events were dropped. If
+     *     discard below warn is disabled, events are only dropped when neverBlock is set.
+     * @return a copy of these options with prioritized set
+     */
+    public AsyncOptions withPrioritized(final boolean prioritized) {
+      return new AsyncOptions(
+          enabled, queueSize, neverBlock, discardBelowWarn, shutdownDeadlineMillis, prioritized);
+    }
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public int getQueueSize() {
+      return queueSize;
+    }
+
+    public boolean isNeverBlock() {
+      return neverBlock;
+    }
+
+    public boolean isDiscardBelowWarn() {
+      return discardBelowWarn;
+    }
+
+    public int getShutdownDeadlineMillis() {
+      return shutdownDeadlineMillis;
+    }
+
+    public boolean isPrioritized() {
+      return prioritized;
+    }
+
+    @Override
+    public String toString() {
+      return "AsyncOptions{"
+          + "enabled="
+          + enabled
+          + ", queueSize="
+          + queueSize
+          + ", neverBlock="
+          + neverBlock
+          + ", discardBelowWarn="
+          + discardBelowWarn
+          + ", shutdownDeadlineMillis="
+          + shutdownDeadlineMillis
+          + ", prioritized="
+          + prioritized
+          + '}';
+    }
+  }
+
   /** Mute all logging. */
   public static void configureNoLogging() {
     final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
@@ -133,16 +372,34 @@ public class LoggingConfigurator {
    * <p>Uses INFO logging level. If the USE_JSON_LOGGING environment variable is set to {@code
    * true}, the LogstashEncoder will be used. Otherwise, if the SPOTIFY_SYSLOG_HOST or
    * SPOTIFY_SYSLOG_PORT environment variable is defined, the syslog appender will be used.
-   * Otherwise console appender will be used.
+   * Otherwise console appender will be used. Logs asynchronously if the USE_ASYNC_LOGGING
+   * environment variable is set to {@code true}, see {@link AsyncOptions#fromEnvironment()}.
+   *
+   * <p>DEBUG can be turned on for single requests through an {@link MdcDebugTurboFilter}: events
+   * whose MDC value of DEBUG_MDC_KEY (default {@code request-id}) is listed over JMX, or in the
+   * file named by DEBUG_MDC_VALUES_FILE, are logged down to DEBUG.
    *
    * @param serviceName name of the service
    */
   public static void configureService(final String serviceName) {
+    configureService(serviceName, AsyncOptions.fromEnvironment());
+  }
+
+  /**
+   * Configure logging with default behaviour for a service, like {@link #configureService(String)},
+   * with explicit async settings.
+   *
+   * @param serviceName name of the service
+   * @param async settings for logging asynchronously
+   */
+  public static void configureService(final String serviceName, final AsyncOptions async) {
     if (getenv(USE_JSON_LOGGING) != null && Boolean.parseBoolean(getenv(USE_JSON_LOGGING))) {
-      configureLogstashEncoderDefaults(Level.INFO);
+      configureLogstashEncoderDefaults(Level.INFO, async);
     } else {
-      configureDefaults(serviceName);
+      configureDefaults(serviceName, Level.INFO, ReplaceNewLines.OFF, async);
     }
+    addMdcDebugFilter(
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).getLoggerContext());
   }
 
   /**
@@ -189,13 +446,32 @@ public class LoggingConfigurator {
    */
   public static void configureDefaults(
       final String ident, final Level level, final ReplaceNewLines replaceNewLines) {
+    configureDefaults(ident, level, replaceNewLines, AsyncOptions.fromEnvironment());
+  }
+
+  /**
+   * Configure logging with default behaviour and log to stderr. If the SPOTIFY_SYSLOG_HOST or
+   * SPOTIFY_SYSLOG_PORT environment variable is defined, the syslog appender will be used,
+   * otherwise console appender will be.
+   *
+   * @param ident The logging identity.
+   * @param level logging level to use.
+   * @param replaceNewLines configures new lines replacement in the messages
+   * @param async settings for logging asynchronously
+   */
+  public static void configureDefaults(
+      final String ident,
+      final Level level,
+      final ReplaceNewLines replaceNewLines,
+      final AsyncOptions async) {
     // Call configureSyslogDefaults if the SPOTIFY_SYSLOG_HOST or SPOTIFY_SYSLOG_PORT env var is
     // set. If this causes a problem, we could introduce a configureConsoleDefaults method which
     // users could call instead to avoid this behavior.
     final @Nullable String syslogHost = getSyslogHost();
     final int syslogPort = getSyslogPort();
     if (syslogHost != null || syslogPort != -1) {
-      configureSyslogDefaults(ident, level, syslogHost, syslogPort, replaceNewLines);
+      configureSyslogDefaults(
+          ident, level, syslogHost, syslogPort, Logger.ROOT_LOGGER_NAME, replaceNewLines, async);
       return;
     }
 
@@ -205,7 +481,8 @@ public class LoggingConfigurator {
     final LoggerContext context = setupLoggerContext(rootLogger, ident);
 
     // Setup stderr output
-    rootLogger.addAppender(getStdErrAppender(context, replaceNewLines));
+    rootLogger.addAppender(wrapAsync(context, getStdErrAppender(context, replaceNewLines), async));
+    addLogVolumeAppender(context, rootLogger);
 
     // Setup logging level
     rootLogger.setLevel(level.logbackLevel);
@@ -219,27 +496,39 @@ public class LoggingConfigurator {
    * (https://github.com/logstash/logstash-logback-encoder)
    *
    * <p>An appender is configured to send the log messages to stdout. It is expected something like
-   * a Docker container will capture these logs for further processing.
+   * a Docker container will capture these logs for further processing. Events are encoded into a
+   * reusable buffer and written to stdout from there, see {@link StreamingConsoleAppender}. Logs
+   * asynchronously if the USE_ASYNC_LOGGING environment variable is set to {@code true}, see {@link
+   * AsyncOptions#fromEnvironment()}.
    */
   public static void configureLogstashEncoderDefaults(final Level level) {
+    configureLogstashEncoderDefaults(level, AsyncOptions.fromEnvironment());
+  }
+
+  /**
+   * Configure logging with the LogstashEncoder library, like {@link
+   * #configureLogstashEncoderDefaults(Level)}, with explicit async settings.
+   *
+   * @param level logging level to use.
+   * @param async settings for logging asynchronously
+   */
+  public static void configureLogstashEncoderDefaults(final Level level, final AsyncOptions async) {
     final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
     final LoggerContext context = rootLogger.getLoggerContext();
 
     context.reset();
+    addLogBudgetFilter(context);
 
     final CustomLogstashEncoder encoder = new CustomLogstashEncoder().setupStackdriver();
     encoder.setContext(context);
     encoder.addProvider(new ArgumentsJsonProvider());
     encoder.start();
 
-    final ConsoleAppender<ILoggingEvent> appender = new ConsoleAppender<>();
-    appender.setTarget("System.out");
-    appender.setName("stdout");
-    appender.setEncoder(encoder);
-    appender.setContext(context);
-    appender.start();
+    final Appender<ILoggingEvent> appender =
+        getConsoleAppender(context, "System.out", "stdout", encoder);
 
-    rootLogger.addAppender(appender);
+    rootLogger.addAppender(wrapAsync(context, appender, async));
+    addLogVolumeAppender(context, rootLogger);
     rootLogger.setLevel(level.logbackLevel);
 
     UncaughtExceptionLogger.setDefaultUncaughtExceptionHandler();
@@ -304,13 +593,38 @@ public class LoggingConfigurator {
       final int port,
       final String loggerName,
       final ReplaceNewLines replaceNewLines) {
+    configureSyslogDefaults(
+        ident, level, host, port, loggerName, replaceNewLines, AsyncOptions.fromEnvironment());
+  }
+
+  /**
+   * Configure logging with default behavior and log to syslog.
+   *
+   * @param ident Syslog ident to use.
+   * @param level logging level to use.
+   * @param host Hostname or IP address of syslog host.
+   * @param port Port to connect to syslog on.
+   * @param loggerName Name of the logger to which the syslog appender will be added
+   * @param replaceNewLines configures new lines replacement in the messages
+   * @param async settings for logging asynchronously
+   */
+  public static void configureSyslogDefaults(
+      final String ident,
+      final Level level,
+      final @Nullable String host,
+      final int port,
+      final String loggerName,
+      final ReplaceNewLines replaceNewLines,
+      final AsyncOptions async) {
     final Logger logger = (Logger) LoggerFactory.getLogger(loggerName);
 
     // Setup context
     final LoggerContext context = setupLoggerContext(logger, ident);
 
     // Setup syslog output
-    logger.addAppender(getSyslogAppender(context, host, port, replaceNewLines));
+    logger.addAppender(
+        wrapAsync(context, getSyslogAppender(context, host, port, replaceNewLines), async));
+    addLogVolumeAppender(context, logger);
 
     // Setup logging level
     logger.setLevel(level.logbackLevel);
@@ -319,6 +633,69 @@ public class LoggingConfigurator {
     UncaughtExceptionLogger.setDefaultUncaughtExceptionHandler();
   }
 
+  /**
+   * Configure logging with default behavior and log to files using INFO logging level. Events are
+   * written to memory-mapped segment files that roll by size, see {@link MappedFileAppender}, for
+   * jobs that log more than stderr or syslog can keep up with. A shutdown hook is installed to
+   * truncate the current segment to its events when the JVM shuts down.
+   *
+   * @param ident The logging identity.
+   * @param file The path that segment files are named after, with a sequence number appended.
+   */
+  public static void configureFileDefaults(final String ident, final File file) {
+    configureFileDefaults(ident, file, Level.INFO, ReplaceNewLines.OFF);
+  }
+
+  /**
+   * Configure logging with default behavior and log to memory-mapped segment files.
+   *
+   * @param ident The logging identity.
+   * @param file The path that segment files are named after, with a sequence number appended.
+   * @param level logging level to use.
+   * @param replaceNewLines configures new lines replacement in the messages
+   */
+  public static void configureFileDefaults(
+      final String ident,
+      final File file,
+      final Level level,
+      final ReplaceNewLines replaceNewLines) {
+    configureFileDefaults(ident, file, level, replaceNewLines, AsyncOptions.fromEnvironment());
+  }
+
+  /**
+   * Configure logging with default behavior and log to memory-mapped segment files.
+   *
+   * @param ident The logging identity.
+   * @param file The path that segment files are named after, with a sequence number appended.
+   * @param level logging level to use.
+   * @param replaceNewLines configures new lines replacement in the messages
+   * @param async settings for logging asynchronously
+   */
+  public static void configureFileDefaults(
+      final String ident,
+      final File file,
+      final Level level,
+      final ReplaceNewLines replaceNewLines,
+      final AsyncOptions async) {
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+
+    // Setup context
+    final LoggerContext context = setupLoggerContext(rootLogger, ident);
+
+    // Setup file output. The segment is only truncated to its events when the appender is stopped,
+    // so stop it on exit even if not logging asynchronously.
+    rootLogger.addAppender(
+        wrapAsync(context, getFileAppender(context, file, replaceNewLines), async));
+    installShutdownHook();
+    addLogVolumeAppender(context, rootLogger);
+
+    // Setup logging level
+    rootLogger.setLevel(level.logbackLevel);
+
+    // Log uncaught exceptions
+    UncaughtExceptionLogger.setDefaultUncaughtExceptionHandler();
+  }
+
   /**
    * Add a sentry appender for error log event.
    *
@@ -385,20 +762,88 @@ public class LoggingConfigurator {
   private static Appender<ILoggingEvent> getStdErrAppender(
       final LoggerContext context, final ReplaceNewLines replaceNewLines) {
 
-    // Setup format
-    final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+    // Setup format, the pattern StderrLayout.PATTERN without going through PatternLayout
+    final StderrLayout layout = new StderrLayout();
+    layout.setContext(context);
+    layout.setReplaceNewLines(replaceNewLines == ReplaceNewLines.ON);
+    layout.start();
+
+    final LayoutWrappingEncoder<ILoggingEvent> encoder = new LayoutWrappingEncoder<>();
     encoder.setContext(context);
-    encoder.setPattern(
-        "%date{HH:mm:ss.SSS} %property{ident}[%property{pid}]: %-5level [%thread] %logger{0}: "
-            + ReplaceNewLines.getMsgPattern(replaceNewLines)
+    encoder.setLayout(layout);
+    encoder.setCharset(StandardCharsets.UTF_8);
+    encoder.start();
+
+    return getConsoleAppender(context, "System.err", "stderr", encoder);
+  }
+
+  /**
+   * Create a console appender. If the USE_DIRECT_CONSOLE_OUTPUT environment variable is set to
+   * {@code true}, events are buffered and written straight to the file descriptor, see {@link
+   * FileChannelConsoleAppender}. Otherwise they are written through {@code System.out} or {@code
+   * System.err}, from a reusable buffer if the encoder supports it, see {@link
+   * StreamingConsoleAppender}.
+   *
+   * @param context The logger context to use.
+   * @param target {@code System.out} or {@code System.err}.
+   * @param name The name of the appender.
+   * @param encoder The started encoder.
+   * @return A started appender writing to the console.
+   */
+  static Appender<ILoggingEvent> getConsoleAppender(
+      final LoggerContext context,
+      final String target,
+      final String name,
+      final Encoder<ILoggingEvent> encoder) {
+    if (Boolean.parseBoolean(getenv(USE_DIRECT_CONSOLE_OUTPUT))) {
+      final FileChannelConsoleAppender appender = new FileChannelConsoleAppender();
+      appender.setTarget(target);
+      appender.setName(name);
+      appender.setEncoder(encoder);
+      appender.setContext(context);
+      appender.start();
+      return appender;
+    }
+
+    final ConsoleAppender<ILoggingEvent> appender = new StreamingConsoleAppender();
+    appender.setTarget(target);
+    appender.setName(name);
+    appender.setEncoder(encoder);
+    appender.setContext(context);
+    appender.start();
+    return appender;
+  }
+
+  /**
+   * Create a memory-mapped file appender.
+   *
+   * @param context The logger context to use.
+   * @param file The path that segment files are named after.
+   * @return An appender writing to memory-mapped segment files.
+   */
+  static Appender<ILoggingEvent> getFileAppender(
+      final LoggerContext context, final File file, final ReplaceNewLines replaceNewLines) {
+
+    // Setup format
+    final PatternLayout layout = new PatternLayout();
+    layout.setContext(context);
+    NewLineStrippingMessageConverter.register(layout);
+    layout.setPattern(
+        "%date{ISO8601} %property{ident}[%property{pid}]: %-5level [%thread] %logger{0}: "
+            + NewLineStrippingMessageConverter.msgPattern(replaceNewLines)
             + "%n");
+    layout.start();
+
+    final LayoutWrappingEncoder<ILoggingEvent> encoder = new LayoutWrappingEncoder<>();
+    encoder.setContext(context);
+    encoder.setLayout(layout);
     encoder.setCharset(StandardCharsets.UTF_8);
     encoder.start();
 
-    // Setup stderr appender
-    final ConsoleAppender<ILoggingEvent> appender = new ConsoleAppender<>();
-    appender.setTarget("System.err");
-    appender.setName("stderr");
+    // Setup file appender
+    final MappedFileAppender appender = new MappedFileAppender();
+    appender.setFile(file.getPath());
+    appender.setName("file");
     appender.setEncoder(encoder);
     appender.setContext(context);
     appender.start();
@@ -406,6 +851,142 @@ public class LoggingConfigurator {
     return appender;
   }
 
+  /**
+   * If async logging is enabled, wrap an appender in an {@link AsyncAppender}, or a {@link
+   * PrioritizedAsyncAppender} if prioritized, named after it. A shutdown hook is installed to write
+   * the queued events when the JVM shuts down.
+   *
+   * @param context The logger context to use.
+   * @param appender The started appender to wrap.
+   * @param async settings for logging asynchronously
+   * @return the async appender, or the appender itself if async logging is disabled
+   */
+  static Appender<ILoggingEvent> wrapAsync(
+      final LoggerContext context,
+      final Appender<ILoggingEvent> appender,
+      final AsyncOptions async) {
+    if (!async.isEnabled()) {
+      return appender;
+    }
+
+    if (async.isPrioritized()) {
+      final PrioritizedAsyncAppender prioritized = new PrioritizedAsyncAppender();
+      prioritized.setName(appender.getName() + "-async");
+      prioritized.setContext(context);
+      prioritized.setQueueSize(async.getQueueSize());
+      prioritized.setNeverBlock(async.isNeverBlock());
+      if (!async.isDiscardBelowWarn()) {
+        prioritized.setDebugSheddingPercent(0);
+        prioritized.setInfoSheddingPercent(0);
+      }
+      prioritized.setMaxFlushTime(async.getShutdownDeadlineMillis());
+      prioritized.addAppender(appender);
+      prioritized.start();
+
+      installShutdownHook();
+      return prioritized;
+    }
+
+    final AsyncAppender asyncAppender = new AsyncAppender();
+    asyncAppender.setName(appender.getName() + "-async");
+    asyncAppender.setContext(context);
+    asyncAppender.setQueueSize(async.getQueueSize());
+    asyncAppender.setNeverBlock(async.isNeverBlock());
+    if (!async.isDiscardBelowWarn()) {
+      asyncAppender.setDiscardingThreshold(0);
+    }
+    asyncAppender.setMaxFlushTime(async.getShutdownDeadlineMillis());
+    asyncAppender.addAppender(appender);
+    asyncAppender.start();
+
+    installShutdownHook();
+    return asyncAppender;
+  }
+
+  /**
+   * Count events and bytes per logger and level if the LOG_VOLUME_ACCOUNTING environment variable
+   * is set to {@code true}, see {@link LogVolumeAppender}. Its counts are available through JMX,
+   * and a summary of the busiest loggers is logged every minute.
+   *
+   * @param context The logger context to use.
+   * @param logger The logger that the other appenders are attached to.
+   */
+  static void addLogVolumeAppender(final LoggerContext context, final Logger logger) {
+    if (!Boolean.parseBoolean(getenv(LOG_VOLUME_ACCOUNTING))) {
+      return;
+    }
+    final LogVolumeAppender appender = new LogVolumeAppender();
+    appender.setName("volume");
+    appender.setContext(context);
+    appender.start();
+    logger.addAppender(appender);
+  }
+
+  /**
+   * Demote loggers that log more than LOG_BUDGET_EVENTS_PER_MINUTE events or
+   * LOG_BUDGET_CHARS_PER_MINUTE message characters per minute, see {@link LogBudgetTurboFilter}.
+   * Nothing is added if neither environment variable is set.
+   *
+   * @param context The logger context to use.
+   */
+  static void addLogBudgetFilter(final LoggerContext context) {
+    final String events = getenv(LOG_BUDGET_EVENTS_PER_MINUTE);
+    final String chars = getenv(LOG_BUDGET_CHARS_PER_MINUTE);
+    final boolean hasEvents = events != null && !events.isEmpty();
+    final boolean hasChars = chars != null && !chars.isEmpty();
+    if (!hasEvents && !hasChars) {
+      return;
+    }
+    final LogBudgetTurboFilter filter = new LogBudgetTurboFilter();
+    filter.setName("budget");
+    filter.setContext(context);
+    if (hasEvents) {
+      filter.setMaxEventsPerMinute(Long.parseLong(events));
+    }
+    if (hasChars) {
+      filter.setMaxCharsPerMinute(Long.parseLong(chars));
+    }
+    filter.start();
+    context.addTurboFilter(filter);
+  }
+
+  /**
+   * Log DEBUG for requests whose MDC value of DEBUG_MDC_KEY is listed through JMX or in the
+   * DEBUG_MDC_VALUES_FILE file, see {@link MdcDebugTurboFilter}. Until a value is listed, this
+   * costs a volatile read per log statement.
+   *
+   * @param context The logger context to use.
+   */
+  static void addMdcDebugFilter(final LoggerContext context) {
+    final MdcDebugTurboFilter filter = new MdcDebugTurboFilter();
+    filter.setName("debug");
+    filter.setContext(context);
+    final String key = getenv(DEBUG_MDC_KEY);
+    if (key != null && !key.isEmpty()) {
+      filter.setMdcKey(key);
+    }
+    filter.setFile(getenv(DEBUG_MDC_VALUES_FILE));
+    filter.start();
+    context.addTurboFilter(filter);
+  }
+
+  // Stopping the context stops the async appenders, which write out their queues until the
+  // shutdown deadline has passed, and the file appender, which truncates its current segment
+  private static void installShutdownHook() {
+    if (shutdownHookInstalled.compareAndSet(false, true)) {
+      Runtime.getRuntime()
+          .addShutdownHook(
+              new Thread(
+                  () -> {
+                    final ILoggerFactory loggerFactory = LoggerFactory.getILoggerFactory();
+                    if (loggerFactory instanceof LoggerContext) {
+                      ((LoggerContext) loggerFactory).stop();
+                    }
+                  },
+                  "logging-shutdown"));
+    }
+  }
+
   /**
    * Create a syslog appender. The appender will use the facility local0. If host is null or an
    * empty string, default to "localhost". If port is less than 0, default to 514.
@@ -432,7 +1013,8 @@ public class LoggingConfigurator {
     appender.setCharset(StandardCharsets.UTF_8);
     appender.setContext(context);
     appender.setSuffixPattern(
-        "%property{ident}[%property{pid}]: " + ReplaceNewLines.getMsgPattern(replaceNewLines));
+        "%property{ident}[%property{pid}]: "
+            + NewLineStrippingMessageConverter.msgPattern(replaceNewLines));
     appender.setStackTracePattern("%property{ident}[%property{pid}]: " + CoreConstants.TAB);
     appender.start();
 
@@ -528,10 +1110,54 @@ public class LoggingConfigurator {
    */
   public static void configure(final File file, final String defaultIdent) {
     final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    configure(rootLogger.getLoggerContext(), file, defaultIdent);
+  }
 
-    // Setup context
-    final LoggerContext context = rootLogger.getLoggerContext();
+  /**
+   * Configure logging using a logback configuration file, and keep watching the file for changes.
+   * Unlike {@link #configure(File)}, changes are applied without resetting the logger context: see
+   * {@link ConfigurationReloader}.
+   *
+   * @param file A logback configuration file.
+   * @return The reloader, which can be closed to stop watching the file.
+   */
+  public static ConfigurationReloader configureAndWatch(final File file) {
+    return configureAndWatch(file, DEFAULT_IDENT);
+  }
+
+  /**
+   * Configure logging using a logback configuration file, and keep watching the file for changes.
+   * Unlike {@link #configure(File, String)}, changes are applied without resetting the logger
+   * context: see {@link ConfigurationReloader}.
+   *
+   * @param file A logback configuration file.
+   * @param defaultIdent Fallback logging identity, used if not specified in config file.
+   * @return The reloader, which can be closed to stop watching the file.
+   */
+  public static ConfigurationReloader configureAndWatch(
+      final File file, final String defaultIdent) {
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final ConfigurationReloader reloader =
+        new ConfigurationReloader(
+            rootLogger.getLoggerContext(),
+            file,
+            defaultIdent,
+            ConfigurationReloader.DEFAULT_POLL_INTERVAL_MILLIS,
+            ConfigurationReloader.DEFAULT_STOP_GRACE_MILLIS);
+    reloader.start();
+    return reloader;
+  }
+
+  /**
+   * Reset the context and configure it from a logback configuration file.
+   *
+   * @return the turbo filters that were created from the file
+   */
+  static List<TurboFilter> configure(
+      final LoggerContext context, final File file, final String defaultIdent) {
     context.reset();
+    addLogBudgetFilter(context);
+    final List<TurboFilter> added = new ArrayList<>(context.getTurboFilterList());
 
     // Log uncaught exceptions
     UncaughtExceptionLogger.setDefaultUncaughtExceptionHandler();
@@ -557,6 +1183,10 @@ public class LoggingConfigurator {
     }
 
     StatusPrinter.printInCaseOfErrorsOrWarnings(context);
+
+    final List<TurboFilter> fromFile = new ArrayList<>(context.getTurboFilterList());
+    fromFile.removeAll(added);
+    return fromFile;
   }
 
   private static LoggerContext setupLoggerContext(Logger rootLogger, String ident) {
@@ -565,6 +1195,7 @@ public class LoggingConfigurator {
     context.putProperty("ident", ident);
     context.putProperty("pid", getMyPid());
     context.putProperty("hostname", getSpotifyHostname());
+    addLogBudgetFilter(context);
     return context;
   }
 
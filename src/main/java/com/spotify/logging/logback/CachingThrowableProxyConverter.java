@@ -0,0 +1,252 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.pattern.ExtendedThrowableProxyConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.util.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link ExtendedThrowableProxyConverter} that keeps the rendered frames of recently seen
+ * throwables in a {@link ThrowableRenderingCache}, so that only the message lines are formatted for
+ * exceptions that are thrown repeatedly from the same place. The output is the same as that of
+ * {@link ExtendedThrowableProxyConverter}.
+ *
+ * <p>Optionally, stack traces can be deduplicated with a {@link StackTraceDeduplicator}: within a
+ * {@link #setDeduplicationWindow(Duration) window}, only the first occurrence of a stack trace is
+ * rendered in full and later ones are reduced to their exception line. The stack trace hash is not
+ * part of the output, encoders write it in a field of its own.
+ *
+ * <p>Frames of framework packages can be {@link #addFoldedFramePrefix(String) folded}, and the
+ * number of frames per throwable {@link #setMaxFramesPerThrowable(int) capped}, see {@link
+ * StackFrameFolder}. The {@code length} option and ignored stack trace lines of the regular
+ * converter don't apply when doing so.
+ */
+public class CachingThrowableProxyConverter extends ExtendedThrowableProxyConverter {
+
+  static final int DEFAULT_CACHE_SIZE = 256;
+
+  private final ThrowableRenderingCache.Renderer<String> renderer = this::renderFrames;
+
+  private int cacheSize = DEFAULT_CACHE_SIZE;
+  private @Nullable ThrowableRenderingCache<String> cache;
+
+  private @Nullable Duration deduplicationWindow;
+  private @Nullable StackTraceDeduplicator deduplicator;
+  // The throwable that was last deduplicated on each thread, and its fingerprint, until the encoder
+  // takes the fingerprint for the stack hash field
+  private final ThreadLocal<LastFingerprint> lastFingerprint =
+      ThreadLocal.withInitial(LastFingerprint::new);
+
+  private final List<String> foldedFramePrefixes = new ArrayList<>();
+  private int maxFramesPerThrowable;
+  private @Nullable StackFrameFolder folder;
+
+  @Override
+  public void start() {
+    final StackFrameFolder folder =
+        new StackFrameFolder(foldedFramePrefixes, maxFramesPerThrowable);
+    this.folder = folder.isFolding() ? folder : null;
+    if (cacheSize > 0) {
+      cache = new ThrowableRenderingCache<>(cacheSize, s -> 40 + 2L * s.length());
+    }
+    if (deduplicationWindow != null && deduplicationWindow.getMilliseconds() > 0) {
+      deduplicator =
+          new StackTraceDeduplicator(
+              StackTraceDeduplicator.DEFAULT_TABLE_SIZE, deduplicationWindow.getMilliseconds());
+    }
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    cache = null;
+    deduplicator = null;
+    folder = null;
+  }
+
+  @Override
+  public String convert(final ILoggingEvent event) {
+    final IThrowableProxy tp = event.getThrowableProxy();
+    if (tp == null) {
+      return super.convert(event);
+    }
+    final Object recording = FlightRecorderEvents.beginThrowableRender();
+    final String rendered = render(event, tp);
+    FlightRecorderEvents.endThrowableRender(recording, tp, rendered.length());
+    return rendered;
+  }
+
+  private String render(final ILoggingEvent event, final IThrowableProxy tp) {
+    final StackTraceDeduplicator deduplicator = this.deduplicator;
+    if (deduplicator == null) {
+      return super.convert(event);
+    }
+    final long fingerprint = StackTraceDeduplicator.fingerprint(tp);
+    final LastFingerprint last = lastFingerprint.get();
+    last.tp = tp;
+    last.fingerprint = fingerprint;
+    if (deduplicator.isFirstInWindow(fingerprint, event.getTimeStamp())) {
+      return super.convert(event);
+    }
+    final StringBuilder sb = new StringBuilder();
+    ThrowableProxyUtil.subjoinFirstLine(sb, tp);
+    return sb.append(CoreConstants.LINE_SEPARATOR).toString();
+  }
+
+  @Override
+  protected void subjoinSTEPArray(
+      final StringBuilder buf, final int indent, final IThrowableProxy tp) {
+    final ThrowableRenderingCache<String> cache = this.cache;
+    if (cache == null) {
+      renderFrames(buf, indent, tp);
+    } else {
+      buf.append(cache.get(tp, indent, renderer));
+    }
+  }
+
+  private String renderFrames(final IThrowableProxy tp, final int indent) {
+    final StringBuilder sb = new StringBuilder(BUILDER_CAPACITY);
+    renderFrames(sb, indent, tp);
+    return sb.toString();
+  }
+
+  private void renderFrames(final StringBuilder buf, final int indent, final IThrowableProxy tp) {
+    final StackFrameFolder folder = this.folder;
+    if (folder == null) {
+      super.subjoinSTEPArray(buf, indent, tp);
+      return;
+    }
+    folder.fold(
+        tp,
+        new StackFrameFolder.Visitor() {
+          @Override
+          public void frame(final StackTraceElementProxy step) {
+            ThrowableProxyUtil.indent(buf, indent);
+            buf.append(step);
+            extraData(buf, step);
+            buf.append(CoreConstants.LINE_SEPARATOR);
+          }
+
+          @Override
+          public void omitted(final String line) {
+            ThrowableProxyUtil.indent(buf, indent);
+            buf.append(line).append(CoreConstants.LINE_SEPARATOR);
+          }
+        });
+  }
+
+  /**
+   * Get the fingerprint of a throwable for its stack hash. If the throwable is the last one this
+   * thread deduplicated, the fingerprint computed then is returned instead of computing it again.
+   *
+   * @param tp the throwable
+   * @return the fingerprint, see {@link StackTraceDeduplicator#fingerprint(IThrowableProxy)}
+   */
+  public long takeFingerprint(final IThrowableProxy tp) {
+    final LastFingerprint last = lastFingerprint.get();
+    if (last.tp == tp) {
+      last.tp = null;
+      return last.fingerprint;
+    }
+    return StackTraceDeduplicator.fingerprint(tp);
+  }
+
+  /** @return the frame cache, or null if caching is disabled or the converter isn't started. */
+  public @Nullable ThrowableRenderingCache<String> getCache() {
+    return cache;
+  }
+
+  /**
+   * @return the stack trace deduplicator, or null if deduplication is disabled or the converter
+   *     isn't started.
+   */
+  public @Nullable StackTraceDeduplicator getDeduplicator() {
+    return deduplicator;
+  }
+
+  public @Nullable Duration getDeduplicationWindow() {
+    return deduplicationWindow;
+  }
+
+  /**
+   * Only render the first occurrence of a stack trace within this window in full. Disabled by
+   * default.
+   *
+   * @param deduplicationWindow the window, or null to disable deduplication
+   */
+  public void setDeduplicationWindow(final @Nullable Duration deduplicationWindow) {
+    this.deduplicationWindow = deduplicationWindow;
+  }
+
+  public List<String> getFoldedFramePrefixes() {
+    return foldedFramePrefixes;
+  }
+
+  /**
+   * Fold runs of frames whose class name starts with this prefix, e.g. {@code io.netty.}.
+   *
+   * @param prefix the class name prefix
+   */
+  public void addFoldedFramePrefix(final String prefix) {
+    foldedFramePrefixes.add(prefix);
+  }
+
+  public int getMaxFramesPerThrowable() {
+    return maxFramesPerThrowable;
+  }
+
+  /**
+   * The maximum number of frame lines to write for each throwable in a cause chain. Defaults to 0,
+   * meaning no limit.
+   *
+   * @param maxFramesPerThrowable the maximum number of lines
+   */
+  public void setMaxFramesPerThrowable(final int maxFramesPerThrowable) {
+    this.maxFramesPerThrowable = maxFramesPerThrowable;
+  }
+
+  public int getCacheSize() {
+    return cacheSize;
+  }
+
+  /**
+   * The maximum number of throwables to keep rendered frames for. Set to 0 to disable caching.
+   *
+   * @param cacheSize the number of cache entries
+   */
+  public void setCacheSize(final int cacheSize) {
+    this.cacheSize = cacheSize;
+  }
+
+  private static final class LastFingerprint {
+    @Nullable IThrowableProxy tp;
+    long fingerprint;
+  }
+}
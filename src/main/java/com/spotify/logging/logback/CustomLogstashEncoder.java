@@ -20,16 +20,27 @@
 
 package com.spotify.logging.logback;
 
+import ch.qos.logback.core.util.Duration;
+import javax.annotation.Nullable;
 import net.logstash.logback.encoder.LogstashEncoder;
 import net.logstash.logback.fieldnames.LogstashFieldNames;
 
 public class CustomLogstashEncoder extends LogstashEncoder {
   private final LogstashFieldNames logstashFieldNames = new LogstashFieldNames();
+  private @Nullable StaticContextJsonProvider contextProvider;
+  private @Nullable StackTraceHashJsonProvider stackTraceHashProvider;
 
   {
     // These are fields we want ignored for all LogstashEncoders
     logstashFieldNames.setLevelValue("[ignore]");
     logstashFieldNames.setVersion("[ignore]");
+
+    // Context properties never change, so render them once instead of per event
+    super.setIncludeContext(false);
+    setIncludeContext(true);
+
+    // Only format the message lines of exceptions that are thrown repeatedly
+    setThrowableConverter(new CachingThrowableProxyConverter());
   }
 
   public CustomLogstashEncoder() {
@@ -43,4 +54,106 @@ public class CustomLogstashEncoder extends LogstashEncoder {
     this.setFieldNames(logstashFieldNames);
     return this;
   }
+
+  /**
+   * Get the frame cache of the stack trace converter, for monitoring its hit rate and memory use.
+   *
+   * @return the cache, or null if the encoder isn't started or uses another throwable converter
+   */
+  public @Nullable ThrowableRenderingCache<String> getThrowableRenderingCache() {
+    final CachingThrowableProxyConverter converter = cachingThrowableConverter();
+    return converter == null ? null : converter.getCache();
+  }
+
+  /**
+   * Get the stack trace deduplicator of the stack trace converter, for monitoring.
+   *
+   * @return the deduplicator, or null if deduplication is disabled or the encoder isn't started
+   */
+  public @Nullable StackTraceDeduplicator getStackTraceDeduplicator() {
+    final CachingThrowableProxyConverter converter = cachingThrowableConverter();
+    return converter == null ? null : converter.getDeduplicator();
+  }
+
+  /**
+   * Only write the first occurrence of a stack trace within this window in full, and only the
+   * exception line for later occurrences. A {@code stack_hash} field is added to all events with a
+   * stack trace, to match them up. Disabled by default.
+   *
+   * @param window the window, or null to disable deduplication
+   */
+  public void setStackTraceDeduplicationWindow(final @Nullable Duration window) {
+    final CachingThrowableProxyConverter converter = cachingThrowableConverter();
+    if (converter == null) {
+      addWarn("Stack trace deduplication requires a CachingThrowableProxyConverter");
+      return;
+    }
+    converter.setDeduplicationWindow(window);
+
+    final boolean enabled = window != null && window.getMilliseconds() > 0;
+    if (enabled && stackTraceHashProvider == null) {
+      stackTraceHashProvider = new StackTraceHashJsonProvider();
+      stackTraceHashProvider.setThrowableConverter(converter);
+      // Keep the context fields last
+      final boolean includeContext = isIncludeContext();
+      setIncludeContext(false);
+      getProviders().addProvider(stackTraceHashProvider);
+      setIncludeContext(includeContext);
+    } else if (!enabled && stackTraceHashProvider != null) {
+      getProviders().removeProvider(stackTraceHashProvider);
+      stackTraceHashProvider = null;
+    }
+  }
+
+  /**
+   * Fold runs of stack trace frames whose class name starts with this prefix, e.g. {@code
+   * io.netty.}, into a single line.
+   *
+   * @param prefix the class name prefix
+   */
+  public void addFoldedFramePrefix(final String prefix) {
+    final CachingThrowableProxyConverter converter = cachingThrowableConverter();
+    if (converter == null) {
+      addWarn("Frame folding requires a CachingThrowableProxyConverter");
+      return;
+    }
+    converter.addFoldedFramePrefix(prefix);
+  }
+
+  /**
+   * The maximum number of frame lines to write for each throwable in a cause chain. Defaults to 0,
+   * meaning no limit.
+   *
+   * @param maxFramesPerThrowable the maximum number of lines
+   */
+  public void setMaxFramesPerThrowable(final int maxFramesPerThrowable) {
+    final CachingThrowableProxyConverter converter = cachingThrowableConverter();
+    if (converter == null) {
+      addWarn("Limiting frames requires a CachingThrowableProxyConverter");
+      return;
+    }
+    converter.setMaxFramesPerThrowable(maxFramesPerThrowable);
+  }
+
+  private @Nullable CachingThrowableProxyConverter cachingThrowableConverter() {
+    return getThrowableConverter() instanceof CachingThrowableProxyConverter
+        ? (CachingThrowableProxyConverter) getThrowableConverter()
+        : null;
+  }
+
+  @Override
+  public boolean isIncludeContext() {
+    return contextProvider != null;
+  }
+
+  @Override
+  public void setIncludeContext(boolean includeContext) {
+    if (includeContext && contextProvider == null) {
+      contextProvider = new StaticContextJsonProvider();
+      getProviders().addProvider(contextProvider);
+    } else if (!includeContext && contextProvider != null) {
+      getProviders().removeProvider(contextProvider);
+      contextProvider = null;
+    }
+  }
 }
@@ -0,0 +1,344 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.util.Duration;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import net.logstash.logback.encoder.StreamingEncoder;
+
+/**
+ * Writes to stdout or stderr through a {@link java.nio.channels.FileChannel} on file descriptor 1
+ * or 2, instead of through {@link System#out} or {@link System#err} like a {@link
+ * ch.qos.logback.core.ConsoleAppender}. Those print streams take a monitor and flush for every
+ * event, which makes them the most contended lock in services that log a lot to the console.
+ *
+ * <p>Events are encoded on the logging threads, {@link StreamingEncoder}s into a reusable
+ * per-thread buffer, and then copied into a direct buffer shared by all threads. The shared buffer
+ * is written out in one {@code write} call when it is full, when it has been waiting for {@link
+ * #setMaxFlushDelay(Duration) maxFlushDelay}, and when the appender stops or the JVM shuts down.
+ * Events larger than the buffer are written on their own. Output written with {@link
+ * System#setOut(java.io.PrintStream)} redirected is not captured, as it never goes through {@link
+ * System#out}, and buffered events are lost if the JVM is halted or crashes.
+ */
+public class FileChannelConsoleAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  public static final long DEFAULT_MAX_FLUSH_DELAY_MILLIS = 100;
+
+  private static final int INITIAL_EVENT_BUFFER_SIZE = 1024;
+  private static final int MAX_RETAINED_EVENT_BUFFER_SIZE = 64 * 1024;
+  private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+  private @Nullable Encoder<ILoggingEvent> encoder;
+  private String target = "System.out";
+  private int bufferSize = DEFAULT_BUFFER_SIZE;
+  private Duration maxFlushDelay = Duration.buildByMilliseconds(DEFAULT_MAX_FLUSH_DELAY_MILLIS);
+
+  private final ThreadLocal<JsonByteBuffer> eventBuffers =
+      ThreadLocal.withInitial(() -> new JsonByteBuffer(INITIAL_EVENT_BUFFER_SIZE));
+  // Guards the buffer and the channel; not a monitor, so virtual threads aren't pinned
+  private final ReentrantLock lock = new ReentrantLock();
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+  private @Nullable WritableByteChannel channel;
+  private boolean writeFailed;
+
+  private volatile boolean running;
+  private volatile @Nullable Thread flusher;
+  private @Nullable Thread shutdownHook;
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    if (encoder == null) {
+      addError("No encoder set for the appender named [" + name + "].");
+      return;
+    }
+    if (!"System.out".equals(target) && !"System.err".equals(target)) {
+      addError("Invalid target [" + target + "], expected System.out or System.err");
+      return;
+    }
+    if (bufferSize < 1) {
+      addError("Invalid buffer size [" + bufferSize + "]");
+      return;
+    }
+
+    final WritableByteChannel channel = openChannel();
+    lock.lock();
+    try {
+      this.channel = channel;
+      buffer = ByteBuffer.allocateDirect(bufferSize);
+      writeFailed = false;
+      write(encoder.headerBytes());
+    } finally {
+      lock.unlock();
+    }
+
+    running = true;
+    final Thread flusher =
+        new Thread(this::runFlusher, "FileChannelConsoleAppender-Flusher-" + getName());
+    flusher.setDaemon(true);
+    this.flusher = flusher;
+    flusher.start();
+
+    // Stopping the context flushes too, but nothing stops it on System.exit unless asked to
+    final Thread shutdownHook =
+        new Thread(this::flush, "FileChannelConsoleAppender-Shutdown-" + getName());
+    try {
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+      this.shutdownHook = shutdownHook;
+    } catch (IllegalStateException e) {
+      // Already shutting down
+    }
+    super.start();
+  }
+
+  /**
+   * @return the channel to write to; the channel of file descriptor 1 or 2, which is never closed
+   */
+  WritableByteChannel openChannel() {
+    final FileDescriptor fd = "System.err".equals(target) ? FileDescriptor.err : FileDescriptor.out;
+    return new FileOutputStream(fd).getChannel();
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+
+    running = false;
+    final Thread flusher = this.flusher;
+    if (flusher != null) {
+      LockSupport.unpark(flusher);
+      try {
+        flusher.join(CLOSE_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.flusher = null;
+    }
+    final Thread shutdownHook = this.shutdownHook;
+    if (shutdownHook != null) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        // Already shutting down, and the hook may be what is stopping us
+      }
+      this.shutdownHook = null;
+    }
+
+    lock.lock();
+    try {
+      final Encoder<ILoggingEvent> encoder = this.encoder;
+      if (encoder != null) {
+        write(encoder.footerBytes());
+      }
+      writeBuffer();
+      channel = null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected void append(final ILoggingEvent event) {
+    final Object recording = FlightRecorderEvents.beginAppend();
+    try {
+      final Encoder<ILoggingEvent> encoder = this.encoder;
+      if (encoder == null) {
+        return;
+      }
+      if (!(encoder instanceof StreamingEncoder)) {
+        final byte[] bytes = encoder.encode(event);
+        lock.lock();
+        try {
+          write(bytes);
+        } finally {
+          lock.unlock();
+        }
+        return;
+      }
+
+      @SuppressWarnings("unchecked")
+      final StreamingEncoder<ILoggingEvent> streamingEncoder =
+          (StreamingEncoder<ILoggingEvent>) encoder;
+      final JsonByteBuffer eventBuffer = eventBuffers.get();
+      try {
+        try {
+          streamingEncoder.encode(event, eventBuffer);
+        } catch (IOException e) {
+          addWarn("Error encountered while encoding log event. Event: " + event, e);
+          return;
+        }
+        lock.lock();
+        try {
+          write(eventBuffer.asByteBuffer());
+        } finally {
+          lock.unlock();
+        }
+      } finally {
+        eventBuffer.reset(MAX_RETAINED_EVENT_BUFFER_SIZE);
+      }
+    } finally {
+      FlightRecorderEvents.endAppend(recording, this, event);
+    }
+  }
+
+  /** Write out the buffered events now. */
+  public void flush() {
+    lock.lock();
+    try {
+      writeBuffer();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void runFlusher() {
+    final long parkNanos =
+        TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxFlushDelay.getMilliseconds()));
+    while (running) {
+      // parkNanos can return early, so wait out the whole delay unless stopped
+      final long deadline = System.nanoTime() + parkNanos;
+      long remaining = parkNanos;
+      while (running && remaining > 0) {
+        LockSupport.parkNanos(this, remaining);
+        remaining = deadline - System.nanoTime();
+      }
+      flush();
+    }
+  }
+
+  // Called with the lock held
+  private void write(final @Nullable byte[] bytes) {
+    if (bytes != null && bytes.length > 0) {
+      write(ByteBuffer.wrap(bytes));
+    }
+  }
+
+  // Called with the lock held
+  private void write(final ByteBuffer bytes) {
+    if (bytes.remaining() > buffer.remaining()) {
+      writeBuffer();
+    }
+    if (bytes.remaining() > buffer.remaining()) {
+      writeFully(bytes);
+    } else {
+      buffer.put(bytes);
+    }
+  }
+
+  // Called with the lock held
+  private void writeBuffer() {
+    if (buffer.position() > 0) {
+      buffer.flip();
+      writeFully(buffer);
+      buffer.clear();
+    }
+  }
+
+  // Called with the lock held
+  private void writeFully(final ByteBuffer bytes) {
+    final WritableByteChannel channel = this.channel;
+    if (channel == null) {
+      return;
+    }
+    try {
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      if (writeFailed) {
+        writeFailed = false;
+        addInfo("Writing to " + target + " again.");
+      }
+    } catch (IOException e) {
+      // Like a print stream, keep going and drop what couldn't be written
+      bytes.position(bytes.limit());
+      if (!writeFailed) {
+        writeFailed = true;
+        addWarn("Failed to write to " + target + ".", e);
+      }
+    }
+  }
+
+  public @Nullable Encoder<ILoggingEvent> getEncoder() {
+    return encoder;
+  }
+
+  public void setEncoder(final Encoder<ILoggingEvent> encoder) {
+    this.encoder = encoder;
+  }
+
+  public String getTarget() {
+    return target;
+  }
+
+  /**
+   * Where to write, {@code System.out} (the default) or {@code System.err}, named like for a {@link
+   * ch.qos.logback.core.ConsoleAppender}.
+   *
+   * @param target the target
+   */
+  public void setTarget(final String target) {
+    this.target = target;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * The size of the shared buffer, in bytes. Defaults to {@value #DEFAULT_BUFFER_SIZE}.
+   *
+   * @param bufferSize the size
+   */
+  public void setBufferSize(final int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  public Duration getMaxFlushDelay() {
+    return maxFlushDelay;
+  }
+
+  /**
+   * How long events may wait in the buffer before they are written. Defaults to {@value
+   * #DEFAULT_MAX_FLUSH_DELAY_MILLIS} milliseconds.
+   *
+   * @param maxFlushDelay the delay
+   */
+  public void setMaxFlushDelay(final Duration maxFlushDelay) {
+    this.maxFlushDelay = maxFlushDelay;
+  }
+}
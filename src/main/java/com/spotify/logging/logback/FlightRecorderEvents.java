@@ -0,0 +1,151 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.core.Appender;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+
+/**
+ * Emits Java Flight Recorder events from the appenders and encoders of this library, see {@link
+ * FlightRecorderSupport} for the event types. All of them are disabled unless a recording enables
+ * them, for instance with the {@code com/spotify/logging/logging.jfc} settings in this jar.
+ *
+ * <p>The {@code jdk.jfr} module is not referenced from here, so that logging keeps working on a
+ * runtime without it. The {@code begin} methods return an opaque recording, or {@code null} when
+ * the event is disabled or JFR is not available, which is then passed to the matching {@code end}
+ * method. While an event is disabled, that is all the cost there is.
+ *
+ * <p>Nothing is registered with the flight recorder until it is initialized, which happens when the
+ * first recording is started. Until then, the {@code begin} methods only read a volatile field.
+ */
+final class FlightRecorderEvents {
+
+  private static final Map<Appender<?>, Statistics> STATISTICS = new ConcurrentHashMap<>();
+
+  // Set once the flight recorder is initialized and the events are registered
+  private static volatile boolean registered;
+
+  private static final boolean AVAILABLE = isAvailable();
+
+  private FlightRecorderEvents() {}
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder", false, FlightRecorderEvents.class.getClassLoader());
+      FlightRecorderSupport.registerWhenInitialized(() -> registered = true);
+      return true;
+    } catch (ClassNotFoundException | LinkageError | RuntimeException e) {
+      return false;
+    }
+  }
+
+  /** @return a recording of the time spent appending an event, or {@code null}. */
+  static @Nullable Object beginAppend() {
+    return registered ? FlightRecorderSupport.beginAppend() : null;
+  }
+
+  static void endAppend(
+      final @Nullable Object recording, final Appender<?> appender, final ILoggingEvent event) {
+    if (recording != null) {
+      FlightRecorderSupport.endAppend(recording, appender.getName(), event);
+    }
+  }
+
+  /** @return a recording of the time spent sending datagrams, or {@code null}. */
+  static @Nullable Object beginSend() {
+    return registered ? FlightRecorderSupport.beginSend() : null;
+  }
+
+  static void endSend(
+      final @Nullable Object recording,
+      final String appenderName,
+      final int datagrams,
+      final long bytes) {
+    if (recording != null) {
+      FlightRecorderSupport.endSend(recording, appenderName, datagrams, bytes);
+    }
+  }
+
+  /** @return a recording of the time spent rendering a stack trace, or {@code null}. */
+  static @Nullable Object beginThrowableRender() {
+    return registered ? FlightRecorderSupport.beginThrowableRender() : null;
+  }
+
+  static void endThrowableRender(
+      final @Nullable Object recording, final IThrowableProxy tp, final int length) {
+    if (recording != null) {
+      FlightRecorderSupport.endThrowableRender(recording, tp.getClassName(), length);
+    }
+  }
+
+  /**
+   * Report the event count, queue depth and drop count of an appender in the periodic statistics
+   * event, until {@link #removeStatistics(Appender)} is called.
+   *
+   * @param appender the appender, whose name is reported
+   * @param appended the number of events given to the appender since it was started
+   * @param queued the number of events waiting to be written
+   * @param dropped the number of events dropped since the appender was started
+   */
+  static void addStatistics(
+      final Appender<?> appender,
+      final LongSupplier appended,
+      final IntSupplier queued,
+      final LongSupplier dropped) {
+    if (AVAILABLE) {
+      STATISTICS.put(appender, new Statistics(appender, appended, queued, dropped));
+    }
+  }
+
+  static void removeStatistics(final Appender<?> appender) {
+    STATISTICS.remove(appender);
+  }
+
+  static Collection<Statistics> statistics() {
+    return STATISTICS.values();
+  }
+
+  static final class Statistics {
+
+    final Appender<?> appender;
+    final LongSupplier appended;
+    final IntSupplier queued;
+    final LongSupplier dropped;
+
+    Statistics(
+        final Appender<?> appender,
+        final LongSupplier appended,
+        final IntSupplier queued,
+        final LongSupplier dropped) {
+      this.appender = appender;
+      this.appended = appended;
+      this.queued = queued;
+      this.dropped = dropped;
+    }
+  }
+}
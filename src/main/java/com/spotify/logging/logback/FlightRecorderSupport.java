@@ -0,0 +1,318 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.Nullable;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.SettingControl;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Java Flight Recorder events of this library. Only {@link FlightRecorderEvents} uses this
+ * class, and only once it knows that the {@code jdk.jfr} module is there.
+ *
+ * <ul>
+ *   <li>{@code com.spotify.logging.Append}: the time a logging thread spent in an appender,
+ *       including waiting for locks and free queue slots.
+ *   <li>{@code com.spotify.logging.DatagramSend}: the time spent sending datagrams to syslog or
+ *       journald.
+ *   <li>{@code com.spotify.logging.ThrowableRender}: the time spent rendering a stack trace.
+ *   <li>{@code com.spotify.logging.AppenderStatistics}: the number of appended events, queue depth
+ *       and number of dropped events of each appender that has a queue or drops events, emitted
+ *       periodically. Unlike the duration events, it shows the throughput of the appenders under
+ *       normal traffic.
+ * </ul>
+ *
+ * <p>Besides the usual threshold, the duration events have a {@code sample} setting: with a value
+ * of {@code n}, about one in {@code n} of the events that pass the threshold is recorded. Together
+ * they keep the overhead of a recording bounded when everything is logging at full speed.
+ */
+final class FlightRecorderSupport {
+
+  private FlightRecorderSupport() {}
+
+  /**
+   * Register the events once the flight recorder is initialized, right away if it already is.
+   *
+   * @param registered called after the events are registered
+   */
+  static void registerWhenInitialized(final Runnable registered) {
+    FlightRecorder.addListener(
+        new FlightRecorderListener() {
+          @Override
+          public void recorderInitialized(final FlightRecorder recorder) {
+            FlightRecorder.addPeriodicEvent(
+                AppenderStatisticsEvent.class, FlightRecorderSupport::emitStatistics);
+            EventTypes.register();
+            registered.run();
+          }
+        });
+  }
+
+  // The event types are registered when this class is initialized
+  private static final class EventTypes {
+
+    static final EventType APPEND = EventType.getEventType(AppendEvent.class);
+    static final EventType DATAGRAM_SEND = EventType.getEventType(DatagramSendEvent.class);
+    static final EventType THROWABLE_RENDER = EventType.getEventType(ThrowableRenderEvent.class);
+
+    static void register() {}
+  }
+
+  static @Nullable Object beginAppend() {
+    if (!EventTypes.APPEND.isEnabled()) {
+      return null;
+    }
+    final AppendEvent event = new AppendEvent();
+    event.begin();
+    return event;
+  }
+
+  static void endAppend(final Object recording, final String appender, final ILoggingEvent e) {
+    final AppendEvent event = (AppendEvent) recording;
+    event.end();
+    if (event.shouldCommit()) {
+      event.appender = appender;
+      event.logger = e.getLoggerName();
+      event.level = e.getLevel().toString();
+      event.commit();
+    }
+  }
+
+  static @Nullable Object beginSend() {
+    if (!EventTypes.DATAGRAM_SEND.isEnabled()) {
+      return null;
+    }
+    final DatagramSendEvent event = new DatagramSendEvent();
+    event.begin();
+    return event;
+  }
+
+  static void endSend(
+      final Object recording, final String appender, final int datagrams, final long bytes) {
+    final DatagramSendEvent event = (DatagramSendEvent) recording;
+    event.end();
+    if (event.shouldCommit()) {
+      event.appender = appender;
+      event.datagrams = datagrams;
+      event.bytes = bytes;
+      event.commit();
+    }
+  }
+
+  static @Nullable Object beginThrowableRender() {
+    if (!EventTypes.THROWABLE_RENDER.isEnabled()) {
+      return null;
+    }
+    final ThrowableRenderEvent event = new ThrowableRenderEvent();
+    event.begin();
+    return event;
+  }
+
+  static void endThrowableRender(
+      final Object recording, final String throwableClass, final int length) {
+    final ThrowableRenderEvent event = (ThrowableRenderEvent) recording;
+    event.end();
+    if (event.shouldCommit()) {
+      event.throwableClass = throwableClass;
+      event.length = length;
+      event.commit();
+    }
+  }
+
+  private static void emitStatistics() {
+    for (final FlightRecorderEvents.Statistics statistics : FlightRecorderEvents.statistics()) {
+      final AppenderStatisticsEvent event = new AppenderStatisticsEvent();
+      event.appender = statistics.appender.getName();
+      event.appended = statistics.appended.getAsLong();
+      event.queued = statistics.queued.getAsInt();
+      event.dropped = statistics.dropped.getAsLong();
+      event.commit();
+    }
+  }
+
+  /** Records about one in {@code n} events, choosing the most frequent of all recordings. */
+  public static final class SampleSetting extends SettingControl {
+
+    private volatile int n = 1;
+
+    @Override
+    public String combine(final Set<String> values) {
+      int min = Integer.MAX_VALUE;
+      for (final String value : values) {
+        final int n = parse(value);
+        if (n > 0) {
+          min = Math.min(min, n);
+        }
+      }
+      return Integer.toString(min == Integer.MAX_VALUE ? 1 : min);
+    }
+
+    @Override
+    public void setValue(final String value) {
+      n = Math.max(1, parse(value));
+    }
+
+    @Override
+    public String getValue() {
+      return Integer.toString(n);
+    }
+
+    boolean sample() {
+      final int n = this.n;
+      return n <= 1 || ThreadLocalRandom.current().nextInt(n) == 0;
+    }
+
+    // Returns 0 for values that aren't a positive number
+    private static int parse(final String value) {
+      try {
+        return Math.max(0, Integer.parseInt(value.trim()));
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+  }
+
+  @Name("com.spotify.logging.Append")
+  @Label("Log Event Append")
+  @Description("Time a logging thread spent in an appender")
+  @Category({"Logging"})
+  @Enabled(false)
+  @StackTrace(false)
+  @Threshold("1 ms")
+  static final class AppendEvent extends Event {
+
+    @Label("Appender")
+    @Nullable
+    String appender;
+
+    @Label("Logger")
+    @Nullable
+    String logger;
+
+    @Label("Level")
+    @Nullable
+    String level;
+
+    @SettingDefinition
+    @Name("sample")
+    @Label("Sample")
+    @Description("Record about one in this many events")
+    boolean sample(final SampleSetting setting) {
+      return setting.sample();
+    }
+  }
+
+  @Name("com.spotify.logging.DatagramSend")
+  @Label("Log Datagram Send")
+  @Description("Time spent sending the datagrams of an event to syslog or journald")
+  @Category({"Logging"})
+  @Enabled(false)
+  @StackTrace(false)
+  @Threshold("1 ms")
+  static final class DatagramSendEvent extends Event {
+
+    @Label("Appender")
+    @Nullable
+    String appender;
+
+    @Label("Datagrams")
+    int datagrams;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @SettingDefinition
+    @Name("sample")
+    @Label("Sample")
+    @Description("Record about one in this many events")
+    boolean sample(final SampleSetting setting) {
+      return setting.sample();
+    }
+  }
+
+  @Name("com.spotify.logging.ThrowableRender")
+  @Label("Stack Trace Render")
+  @Description("Time spent rendering the stack trace of a log event")
+  @Category({"Logging"})
+  @Enabled(false)
+  @StackTrace(false)
+  @Threshold("1 ms")
+  static final class ThrowableRenderEvent extends Event {
+
+    @Label("Throwable Class")
+    @Nullable
+    String throwableClass;
+
+    @Label("Length")
+    @Description("Number of characters rendered")
+    int length;
+
+    @SettingDefinition
+    @Name("sample")
+    @Label("Sample")
+    @Description("Record about one in this many events")
+    boolean sample(final SampleSetting setting) {
+      return setting.sample();
+    }
+  }
+
+  @Name("com.spotify.logging.AppenderStatistics")
+  @Label("Appender Statistics")
+  @Description("Appended events, queue depth and dropped events of an appender")
+  @Category({"Logging"})
+  @Enabled(false)
+  @StackTrace(false)
+  @Period("10 s")
+  static final class AppenderStatisticsEvent extends Event {
+
+    @Label("Appender")
+    @Nullable
+    String appender;
+
+    @Label("Appended Events")
+    @Description("Events given to the appender since it was started")
+    long appended;
+
+    @Label("Queued Events")
+    int queued;
+
+    @Label("Dropped Events")
+    @Description("Events dropped since the appender was started")
+    long dropped;
+  }
+}
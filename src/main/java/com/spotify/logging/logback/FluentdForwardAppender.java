@@ -0,0 +1,407 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.util.Duration;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * Sends events straight to Fluentd, or Fluent Bit, over TCP with the Forward protocol, instead of
+ * writing JSON to stdout for the container runtime to store and Fluentd to parse again.
+ *
+ * <p>Records have the same fields as the JSON written by a {@link CustomLogstashEncoder}: the
+ * encoder's JSON providers write them in MessagePack instead of JSON text. Events are encoded on
+ * the logging threads and queued, and a worker thread sends everything that is queued as one
+ * PackedForward message of up to {@link #setMaxBatchSize(int) maxBatchSize} events. Events are
+ * dropped when the queue is full. If the connection fails, the worker reconnects after the {@link
+ * #setReconnectionDelay(Duration) reconnection delay} and sends the batch again, so events may be
+ * sent twice but are not lost while they fit in the queue.
+ *
+ * <p>Only TCP is supported. Unix domain socket channels need Java 16, and the project is compiled
+ * for Java 11.
+ *
+ * @see <a href="https://github.com/fluent/fluentd/wiki/Forward-Protocol-Specification-v1">Forward
+ *     Protocol Specification v1</a>
+ */
+public class FluentdForwardAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+  public static final int DEFAULT_PORT = 24224;
+  public static final int DEFAULT_QUEUE_SIZE = 8192;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+  private static final int INITIAL_BUFFER_CAPACITY = 512;
+  private static final int MAX_RETAINED_BUFFER_CAPACITY = 16 * 1024;
+  private static final long POLL_MILLIS = 100;
+
+  private @Nullable CustomLogstashEncoder encoder;
+  private String host = "localhost";
+  private int port = DEFAULT_PORT;
+  private String tag = "java";
+  private int queueSize = DEFAULT_QUEUE_SIZE;
+  private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+  private Duration reconnectionDelay = Duration.buildBySeconds(1);
+  private int connectTimeout = 5000;
+  private int maxFlushTime = RingBufferAppender.DEFAULT_MAX_FLUSH_TIME;
+
+  private BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(1);
+  private final ThreadLocal<MessagePackBuffer> buffers =
+      ThreadLocal.withInitial(() -> new MessagePackBuffer(INITIAL_BUFFER_CAPACITY));
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder appended = new LongAdder();
+
+  private volatile boolean running;
+  private volatile @Nullable Thread worker;
+  // Used by the worker thread, and closed by stop() if the worker doesn't finish in time
+  private volatile @Nullable Socket socket;
+  // Only used by the worker thread
+  private boolean connectionFailed;
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    if (queueSize < 1) {
+      addError("Invalid queue size [" + queueSize + "]");
+      return;
+    }
+    if (maxBatchSize < 1) {
+      addError("Invalid max batch size [" + maxBatchSize + "]");
+      return;
+    }
+
+    CustomLogstashEncoder encoder = this.encoder;
+    if (encoder == null) {
+      encoder = new CustomLogstashEncoder().setupStackdriver();
+      encoder.setContext(getContext());
+      this.encoder = encoder;
+    }
+    // Restarted, as a configured encoder has already been started with a JSON factory
+    encoder.stop();
+    encoder.setJsonFactoryDecorator(new MessagePackGenerator.FactoryDecorator());
+    encoder.setLineSeparator("");
+    encoder.start();
+
+    queue = new ArrayBlockingQueue<>(queueSize);
+    running = true;
+    final Thread worker = new Thread(this::runWorker, "FluentdForwardAppender-Worker-" + getName());
+    worker.setDaemon(true);
+    this.worker = worker;
+    appended.reset();
+    FlightRecorderEvents.addStatistics(
+        this, appended::sum, this::getNumberOfElementsInQueue, this::getDroppedCount);
+    super.start();
+    worker.start();
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+    FlightRecorderEvents.removeStatistics(this);
+
+    // Let the worker send what is already queued
+    running = false;
+    final Thread worker = this.worker;
+    if (worker != null) {
+      try {
+        worker.join(maxFlushTime);
+        if (worker.isAlive()) {
+          addWarn(
+              "Max flush time ("
+                  + maxFlushTime
+                  + " ms) exceeded, "
+                  + queue.size()
+                  + " queued events were possibly discarded.");
+          worker.interrupt();
+          // Interrupting doesn't unblock a socket connect or write, closing the socket does
+          disconnect();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        addError("Failed to join worker thread.", e);
+      }
+      this.worker = null;
+    }
+    final CustomLogstashEncoder encoder = this.encoder;
+    if (encoder != null) {
+      encoder.stop();
+    }
+  }
+
+  @Override
+  protected void append(final ILoggingEvent event) {
+    appended.increment();
+    final CustomLogstashEncoder encoder = this.encoder;
+    if (encoder == null) {
+      return;
+    }
+    final MessagePackBuffer entry = buffers.get();
+    entry.reset(MAX_RETAINED_BUFFER_CAPACITY);
+    // An entry is [time, record]
+    entry.writeArrayHeader(2);
+    final Instant instant = event.getInstant();
+    if (instant != null) {
+      entry.writeEventTime(instant.getEpochSecond(), instant.getNano());
+    } else {
+      final long timeStamp = event.getTimeStamp();
+      entry.writeEventTime(
+          Math.floorDiv(timeStamp, 1000), Math.floorMod(timeStamp, 1000) * 1_000_000);
+    }
+    try {
+      encoder.encode(event, entry);
+    } catch (IOException | RuntimeException e) {
+      addError("Failed to encode event.", e);
+      return;
+    }
+    if (!queue.offer(entry.toByteArray())) {
+      dropped.increment();
+    }
+  }
+
+  private void runWorker() {
+    final List<byte[]> batch = new ArrayList<>();
+    final MessagePackBuffer message = new MessagePackBuffer(INITIAL_BUFFER_CAPACITY);
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        final byte[] first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          if (!running) {
+            break;
+          }
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, maxBatchSize - 1);
+        pack(batch, message);
+        while (!send(message)) {
+          Thread.sleep(reconnectionDelay.getMilliseconds());
+        }
+        sent.add(batch.size());
+        batch.clear();
+        message.reset(MAX_RETAINED_BUFFER_CAPACITY);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      dropped.add(batch.size());
+      disconnect();
+    }
+  }
+
+  // [tag, entries, option], with the entries concatenated in a bin
+  private void pack(final List<byte[]> batch, final MessagePackBuffer message) {
+    int length = 0;
+    for (final byte[] entry : batch) {
+      length += entry.length;
+    }
+    message.writeArrayHeader(3);
+    message.writeString(tag);
+    message.writeBinaryHeader(length);
+    for (final byte[] entry : batch) {
+      message.write(entry, 0, entry.length);
+    }
+    message.writeMapHeader(1);
+    message.writeString("size");
+    message.writeInt(batch.size());
+  }
+
+  private boolean send(final MessagePackBuffer message) {
+    try {
+      Socket socket = this.socket;
+      if (socket == null) {
+        socket = new Socket();
+        // Set before connecting, so that stop() can close it while the connect is blocked
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        if (connectionFailed) {
+          addInfo("Connected to " + host + ":" + port + " again.");
+          connectionFailed = false;
+        }
+      }
+      final OutputStream out = socket.getOutputStream();
+      message.writeTo(out);
+      out.flush();
+      return true;
+    } catch (IOException e) {
+      if (!connectionFailed) {
+        addWarn("Failed to send events to " + host + ":" + port + ", retrying.", e);
+        connectionFailed = true;
+      }
+      disconnect();
+      return false;
+    }
+  }
+
+  private void disconnect() {
+    final Socket socket = this.socket;
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to do about it
+      }
+      this.socket = null;
+    }
+  }
+
+  /** @return the number of events that were dropped because the queue was full. */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /** @return the number of events that were sent. */
+  public long getSentCount() {
+    return sent.sum();
+  }
+
+  /** @return the number of events waiting to be sent. */
+  public int getNumberOfElementsInQueue() {
+    return queue.size();
+  }
+
+  public @Nullable CustomLogstashEncoder getEncoder() {
+    return encoder;
+  }
+
+  /**
+   * The encoder whose fields are written, by default one {@link
+   * CustomLogstashEncoder#setupStackdriver() set up for Stackdriver}. It is restarted with a
+   * MessagePack generator and no line separator when the appender starts.
+   *
+   * @param encoder the encoder
+   */
+  public void setEncoder(final CustomLogstashEncoder encoder) {
+    this.encoder = encoder;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public void setHost(final String host) {
+    this.host = host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * The port of the forward input. Defaults to {@value #DEFAULT_PORT}.
+   *
+   * @param port the port
+   */
+  public void setPort(final int port) {
+    this.port = port;
+  }
+
+  public String getTag() {
+    return tag;
+  }
+
+  /**
+   * The Fluentd tag of the events, used for routing them. Defaults to {@code java}.
+   *
+   * @param tag the tag
+   */
+  public void setTag(final String tag) {
+    this.tag = tag;
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  public void setQueueSize(final int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * The maximum number of events in one PackedForward message. Defaults to {@value
+   * #DEFAULT_MAX_BATCH_SIZE}.
+   *
+   * @param maxBatchSize the number of events
+   */
+  public void setMaxBatchSize(final int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  public Duration getReconnectionDelay() {
+    return reconnectionDelay;
+  }
+
+  /**
+   * How long to wait before connecting again after the connection failed. Defaults to 1 second.
+   *
+   * @param reconnectionDelay the delay
+   */
+  public void setReconnectionDelay(final Duration reconnectionDelay) {
+    this.reconnectionDelay = reconnectionDelay;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * How long to wait for a connection to be established, in milliseconds. Defaults to 5000.
+   *
+   * @param connectTimeout the timeout
+   */
+  public void setConnectTimeout(final int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public int getMaxFlushTime() {
+    return maxFlushTime;
+  }
+
+  /**
+   * How long to keep sending queued events when the appender is stopped, in milliseconds.
+   *
+   * @param maxFlushTime the time
+   */
+  public void setMaxFlushTime(final int maxFlushTime) {
+    this.maxFlushTime = maxFlushTime;
+  }
+}
@@ -0,0 +1,380 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.classic.util.LevelToSyslogSeverity;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * Writes events to the systemd journal with journald's native protocol, so that MDC values and the
+ * other fields of an event end up as journal fields instead of being formatted into a syslog line
+ * that has to be parsed again.
+ *
+ * <p>Each event becomes one entry with the fields {@code MESSAGE}, {@code PRIORITY}, {@code
+ * SYSLOG_IDENTIFIER} (the {@code ident} property by default), {@code LOGGER_NAME}, {@code
+ * THREAD_NAME}, {@code STACK_TRACE} if there is an exception, and one field per MDC value. MDC keys
+ * are turned into field names by upper casing them and replacing anything but letters, digits and
+ * underscores with underscores; the encoded names are cached. Entries are encoded into a buffer per
+ * thread and sent from the logging thread, as one datagram each. Entries larger than {@link
+ * #setMaxDatagramSize(int) maxDatagramSize} are written to a deleted file in {@code /dev/shm} whose
+ * descriptor is passed to journald instead, like {@code sd_journal_send} does.
+ *
+ * <p>The JDK can't send to Unix datagram sockets, so the datagrams go through a {@link
+ * JournaldTransport}. Unless one is set, <a href="https://kohlschutter.github.io/junixsocket/">
+ * junixsocket</a> is used if it is on the classpath.
+ *
+ * @see <a href="https://systemd.io/JOURNAL_NATIVE_PROTOCOL/">Native Journal Protocol</a>
+ */
+public class JournaldAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+  public static final String DEFAULT_SOCKET = "/run/systemd/journal/socket";
+  public static final int DEFAULT_MAX_DATAGRAM_SIZE = 128 * 1024;
+
+  private static final int INITIAL_BUFFER_CAPACITY = 512;
+  private static final int MAX_RETAINED_BUFFER_CAPACITY = 64 * 1024;
+  private static final int MAX_CACHED_KEYS = 1024;
+
+  private static final byte[] MESSAGE = key("MESSAGE");
+  private static final byte[] PRIORITY = key("PRIORITY");
+  private static final byte[] SYSLOG_IDENTIFIER = key("SYSLOG_IDENTIFIER");
+  private static final byte[] LOGGER_NAME = key("LOGGER_NAME");
+  private static final byte[] THREAD_NAME = key("THREAD_NAME");
+  private static final byte[] STACK_TRACE = key("STACK_TRACE");
+  private static final String[] PRIORITIES = {"0", "1", "2", "3", "4", "5", "6", "7"};
+
+  private String socket = DEFAULT_SOCKET;
+  private @Nullable JournaldTransport transport;
+  private @Nullable String syslogIdentifier;
+  private String mdcKeyPrefix = "MDC_";
+  private int maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+  private String largeEntryDirectory = "/dev/shm";
+
+  private final ThreadLocal<JournaldEntryBuffer> buffers =
+      ThreadLocal.withInitial(() -> new JournaldEntryBuffer(INITIAL_BUFFER_CAPACITY));
+  private final Map<String, byte[]> mdcKeys = new ConcurrentHashMap<>();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder appended = new LongAdder();
+  private volatile boolean sendFailed;
+  private boolean ownsTransport;
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    if (maxDatagramSize < 1) {
+      addError("Invalid max datagram size [" + maxDatagramSize + "]");
+      return;
+    }
+    if (transport == null) {
+      try {
+        transport = new JunixsocketTransport(new File(socket));
+        ownsTransport = true;
+      } catch (ReflectiveOperationException | RuntimeException | IOException e) {
+        addError(
+            "No transport set for appender ["
+                + getName()
+                + "], and junixsocket couldn't be used to connect to "
+                + socket,
+            e);
+        return;
+      }
+    }
+    if (syslogIdentifier == null && getContext() != null) {
+      syslogIdentifier = getContext().getProperty("ident");
+    }
+    appended.reset();
+    FlightRecorderEvents.addStatistics(this, appended::sum, () -> 0, this::getDroppedCount);
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+    FlightRecorderEvents.removeStatistics(this);
+    final JournaldTransport transport = this.transport;
+    if (transport != null && ownsTransport) {
+      try {
+        transport.close();
+      } catch (IOException e) {
+        addWarn("Failed to close transport.", e);
+      }
+      this.transport = null;
+      ownsTransport = false;
+    }
+  }
+
+  @Override
+  protected void append(final ILoggingEvent event) {
+    appended.increment();
+    final Object recording = FlightRecorderEvents.beginAppend();
+    try {
+      final JournaldTransport transport = this.transport;
+      if (transport == null) {
+        return;
+      }
+      final JournaldEntryBuffer entry = buffers.get();
+      entry.reset(MAX_RETAINED_BUFFER_CAPACITY);
+      encode(event, entry);
+      try {
+        final Object sending = FlightRecorderEvents.beginSend();
+        if (entry.size() <= maxDatagramSize) {
+          transport.send(entry.asByteBuffer());
+        } else {
+          sendLarge(transport, entry);
+        }
+        FlightRecorderEvents.endSend(sending, getName(), 1, entry.size());
+        if (sendFailed) {
+          sendFailed = false;
+          addInfo("Sending to journald again.");
+        }
+      } catch (IOException | RuntimeException e) {
+        dropped.increment();
+        if (!sendFailed) {
+          sendFailed = true;
+          addWarn("Failed to send event to journald, dropping events until it succeeds.", e);
+        }
+      }
+    } finally {
+      FlightRecorderEvents.endAppend(recording, this, event);
+    }
+  }
+
+  private void encode(final ILoggingEvent event, final JournaldEntryBuffer entry) {
+    entry.field(MESSAGE, event.getFormattedMessage());
+    entry.field(PRIORITY, PRIORITIES[LevelToSyslogSeverity.convert(event)]);
+    final String syslogIdentifier = this.syslogIdentifier;
+    if (syslogIdentifier != null) {
+      entry.field(SYSLOG_IDENTIFIER, syslogIdentifier);
+    }
+    entry.field(LOGGER_NAME, event.getLoggerName());
+    entry.field(THREAD_NAME, event.getThreadName());
+    final IThrowableProxy throwable = event.getThrowableProxy();
+    if (throwable != null) {
+      entry.field(STACK_TRACE, ThrowableProxyUtil.asString(throwable));
+    }
+    final Map<String, String> mdc = event.getMDCPropertyMap();
+    if (mdc != null) {
+      for (final Map.Entry<String, String> field : mdc.entrySet()) {
+        if (field.getValue() != null) {
+          entry.field(mdcKey(field.getKey()), field.getValue());
+        }
+      }
+    }
+  }
+
+  private byte[] mdcKey(final String name) {
+    final byte[] key = mdcKeys.get(name);
+    if (key != null) {
+      return key;
+    }
+    final byte[] encoded = JournaldEntryBuffer.encodeKey(name, mdcKeyPrefix);
+    // MDC keys are normally a handful of constants, but don't let generated ones grow the cache
+    if (mdcKeys.size() < MAX_CACHED_KEYS) {
+      mdcKeys.put(name, encoded);
+    }
+    return encoded;
+  }
+
+  private void sendLarge(final JournaldTransport transport, final JournaldEntryBuffer entry)
+      throws IOException {
+    final Path path = Files.createTempFile(Paths.get(largeEntryDirectory), "journald-", ".entry");
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      // Journald only needs the descriptor, so the file is gone once it has been read
+      Files.delete(path);
+      final FileChannel channel = file.getChannel();
+      final ByteBuffer bytes = entry.asByteBuffer();
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      transport.send(file.getFD());
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  private static byte[] key(final String name) {
+    return name.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /** @return the number of events that were dropped because they couldn't be sent. */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  public String getSocket() {
+    return socket;
+  }
+
+  /**
+   * The journald socket to send to when no transport is set. Defaults to {@value #DEFAULT_SOCKET}.
+   *
+   * @param socket the path of the socket
+   */
+  public void setSocket(final String socket) {
+    this.socket = socket;
+  }
+
+  public @Nullable JournaldTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * How entries are sent to journald. It is not closed when the appender stops.
+   *
+   * @param transport the transport
+   */
+  public void setTransport(final JournaldTransport transport) {
+    this.transport = transport;
+  }
+
+  public @Nullable String getSyslogIdentifier() {
+    return syslogIdentifier;
+  }
+
+  /**
+   * The {@code SYSLOG_IDENTIFIER} field of the entries. Defaults to the {@code ident} property of
+   * the context, and the field is left out if that isn't set either.
+   *
+   * @param syslogIdentifier the identifier
+   */
+  public void setSyslogIdentifier(final String syslogIdentifier) {
+    this.syslogIdentifier = syslogIdentifier;
+  }
+
+  public String getMdcKeyPrefix() {
+    return mdcKeyPrefix;
+  }
+
+  /**
+   * Prepended to MDC keys that would otherwise start with an underscore or a digit, or be empty,
+   * which journald doesn't allow. Defaults to {@code MDC_}.
+   *
+   * @param mdcKeyPrefix the prefix, made of upper case letters, digits and underscores
+   */
+  public void setMdcKeyPrefix(final String mdcKeyPrefix) {
+    this.mdcKeyPrefix = mdcKeyPrefix;
+    mdcKeys.clear();
+  }
+
+  public int getMaxDatagramSize() {
+    return maxDatagramSize;
+  }
+
+  /**
+   * Entries larger than this are passed to journald in a file instead of a datagram. Defaults to
+   * {@value #DEFAULT_MAX_DATAGRAM_SIZE}, which fits within the default socket send buffer size.
+   *
+   * @param maxDatagramSize the size in bytes
+   */
+  public void setMaxDatagramSize(final int maxDatagramSize) {
+    this.maxDatagramSize = maxDatagramSize;
+  }
+
+  public String getLargeEntryDirectory() {
+    return largeEntryDirectory;
+  }
+
+  /**
+   * Where files for large entries are created. Journald only accepts files in {@code /dev/shm},
+   * {@code /tmp} and {@code /var/tmp}. Defaults to {@code /dev/shm}.
+   *
+   * @param largeEntryDirectory the directory
+   */
+  public void setLargeEntryDirectory(final String largeEntryDirectory) {
+    this.largeEntryDirectory = largeEntryDirectory;
+  }
+
+  /**
+   * Sends with junixsocket's {@code AFUNIXDatagramSocket}, through reflection so that it is an
+   * optional dependency.
+   */
+  private static class JunixsocketTransport implements JournaldTransport {
+
+    private final SocketAddress address;
+    private final Method setOutboundFileDescriptors;
+    private final DatagramSocket socket;
+    // Descriptors go out with the next datagram, so they get a socket of their own
+    private final DatagramSocket fileSocket;
+
+    JunixsocketTransport(final File path) throws ReflectiveOperationException, IOException {
+      final Class<?> addressClass = Class.forName("org.newsclub.net.unix.AFUNIXSocketAddress");
+      final Class<?> socketClass = Class.forName("org.newsclub.net.unix.AFUNIXDatagramSocket");
+      final Method newInstance = socketClass.getMethod("newInstance");
+      this.address = (SocketAddress) addressClass.getMethod("of", File.class).invoke(null, path);
+      this.setOutboundFileDescriptors =
+          socketClass.getMethod("setOutboundFileDescriptors", FileDescriptor[].class);
+      this.socket = (DatagramSocket) newInstance.invoke(null);
+      this.fileSocket = (DatagramSocket) newInstance.invoke(null);
+    }
+
+    @Override
+    public void send(final ByteBuffer entry) throws IOException {
+      socket.send(
+          new DatagramPacket(
+              entry.array(), entry.arrayOffset() + entry.position(), entry.remaining(), address));
+    }
+
+    @Override
+    public void send(final FileDescriptor entry) throws IOException {
+      synchronized (fileSocket) {
+        try {
+          setOutboundFileDescriptors.invoke(
+              fileSocket, new Object[] {new FileDescriptor[] {entry}});
+        } catch (IllegalAccessException | InvocationTargetException e) {
+          throw new IOException("Failed to pass file descriptor", e);
+        }
+        fileSocket.send(new DatagramPacket(new byte[0], 0, address));
+      }
+    }
+
+    @Override
+    public void close() {
+      socket.close();
+      fileSocket.close();
+    }
+  }
+}
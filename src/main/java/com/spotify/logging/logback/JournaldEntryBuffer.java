@@ -0,0 +1,171 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable buffer that the fields of a journal entry are written into, in the format of the
+ * journald native protocol: {@code KEY=value\n} for values without newlines, and otherwise the key,
+ * a newline, the length of the value as a 64-bit little-endian integer, the value and a newline.
+ * Keys are passed already encoded, so they are only validated and converted to bytes once. Not
+ * thread safe.
+ */
+final class JournaldEntryBuffer {
+
+  private final int initialCapacity;
+  private byte[] buf;
+  private int size;
+
+  JournaldEntryBuffer(final int initialCapacity) {
+    this.initialCapacity = initialCapacity;
+    this.buf = new byte[initialCapacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Empties the buffer, shrinking it back if it has grown past {@code maxRetainedCapacity}, so a
+   * single huge event doesn't pin memory for the lifetime of the buffer.
+   */
+  void reset(final int maxRetainedCapacity) {
+    size = 0;
+    if (buf.length > maxRetainedCapacity) {
+      buf = new byte[initialCapacity];
+    }
+  }
+
+  /** @return a view of the entry, valid until the buffer is written to or reset. */
+  ByteBuffer asByteBuffer() {
+    return ByteBuffer.wrap(buf, 0, size);
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buf, size);
+  }
+
+  /**
+   * Add a field.
+   *
+   * @param key the encoded key, from {@link #encodeKey(String, String)}
+   * @param value the value, which is encoded as UTF-8
+   */
+  void field(final byte[] key, final CharSequence value) {
+    final int length = value.length();
+    boolean multiline = false;
+    for (int i = 0; i < length; i++) {
+      if (value.charAt(i) == '\n') {
+        multiline = true;
+        break;
+      }
+    }
+    // Room for the key, the separators, the length and the longest encoding of the chars
+    ensureCapacity(key.length + 10 + (int) Math.min(3L * length, Integer.MAX_VALUE - 64));
+    System.arraycopy(key, 0, buf, size, key.length);
+    size += key.length;
+    if (!multiline) {
+      buf[size++] = '=';
+      writeUtf8(value);
+    } else {
+      buf[size++] = '\n';
+      final int lengthPosition = size;
+      size += 8;
+      writeUtf8(value);
+      putLongLE(lengthPosition, size - lengthPosition - 8);
+    }
+    buf[size++] = '\n';
+  }
+
+  private void writeUtf8(final CharSequence value) {
+    final int length = value.length();
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        buf[size++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[size++] = (byte) (0xc0 | (c >> 6));
+        buf[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buf[size++] = (byte) (0xf0 | (codePoint >> 18));
+        buf[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buf[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buf[size++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        buf[size++] = (byte) '?';
+      } else {
+        buf[size++] = (byte) (0xe0 | (c >> 12));
+        buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  private void putLongLE(final int position, final long value) {
+    for (int i = 0; i < 8; i++) {
+      buf[position + i] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  private void ensureCapacity(final int extra) {
+    final int required = size + extra;
+    if (required > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+    }
+  }
+
+  /**
+   * Turn a name into a valid journal field name: upper case ASCII letters, digits and underscores,
+   * not starting with an underscore, which journald reserves for trusted fields, or a digit, and at
+   * most 64 characters long. Other characters are replaced with underscores.
+   *
+   * @param name the name, for instance an MDC key
+   * @param prefix prepended when the name would start with an underscore or digit, or be empty
+   * @return the field name as ASCII bytes
+   */
+  static byte[] encodeKey(final String name, final String prefix) {
+    final StringBuilder key = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      if (c >= 'a' && c <= 'z') {
+        key.append((char) (c - 'a' + 'A'));
+      } else if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+        key.append(c);
+      } else {
+        key.append('_');
+      }
+    }
+    if (key.length() == 0 || key.charAt(0) == '_' || Character.isDigit(key.charAt(0))) {
+      key.insert(0, prefix);
+    }
+    final int length = Math.min(key.length(), 64);
+    final byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) key.charAt(i);
+    }
+    return bytes;
+  }
+}
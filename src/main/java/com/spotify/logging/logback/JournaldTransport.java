@@ -0,0 +1,51 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends entries to journald for a {@link JournaldAppender}. Journald listens on a Unix datagram
+ * socket, which the JDK has no support for, so this is the point where a socket implementation is
+ * plugged in. Implementations must be thread safe.
+ */
+public interface JournaldTransport extends Closeable {
+
+  /**
+   * Send an entry in a single datagram.
+   *
+   * @param entry the entry in the native protocol format, only valid during the call
+   * @throws IOException if the datagram could not be sent
+   */
+  void send(ByteBuffer entry) throws IOException;
+
+  /**
+   * Send an entry that is too large for a datagram, by passing journald a file that contains it in
+   * an empty datagram. The file is closed by the caller once this returns.
+   *
+   * @param entry a deleted file in {@code /dev/shm} holding the entry in the native protocol format
+   * @throws IOException if the file could not be passed
+   */
+  void send(FileDescriptor entry) throws IOException;
+}
@@ -0,0 +1,179 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable, reusable byte buffer that JSON is written into as UTF-8. Strings are escaped the same
+ * way Jackson's UTF-8 generator escapes them with default settings, so output can be compared byte
+ * by byte with what logstash-logback-encoder produces. Unlike {@link java.io.ByteArrayOutputStream}
+ * it is not synchronized, as it is only ever used by one thread.
+ */
+final class JsonByteBuffer extends OutputStream {
+
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+  // 0 = write as is, > 0 = short escape character, < 0 = \\u00XX escape
+  private static final int[] ESCAPES = new int[128];
+
+  static {
+    for (int i = 0; i < 0x20; i++) {
+      ESCAPES[i] = -1;
+    }
+    ESCAPES['"'] = '"';
+    ESCAPES['\\'] = '\\';
+    ESCAPES['\b'] = 'b';
+    ESCAPES['\t'] = 't';
+    ESCAPES['\f'] = 'f';
+    ESCAPES['\n'] = 'n';
+    ESCAPES['\r'] = 'r';
+  }
+
+  private final int initialCapacity;
+  private byte[] buf;
+  private int size;
+
+  JsonByteBuffer(final int initialCapacity) {
+    this.initialCapacity = initialCapacity;
+    this.buf = new byte[initialCapacity];
+  }
+
+  /**
+   * Empties the buffer. If it has grown past {@code maxRetainedCapacity} it is shrunk back, so a
+   * single huge event doesn't pin memory for the lifetime of the thread.
+   */
+  void reset(final int maxRetainedCapacity) {
+    size = 0;
+    if (buf.length > maxRetainedCapacity) {
+      buf = new byte[initialCapacity];
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buf, size);
+  }
+
+  void writeTo(final OutputStream out) throws IOException {
+    out.write(buf, 0, size);
+  }
+
+  /** @return a view of the contents, valid until the buffer is written to or reset. */
+  ByteBuffer asByteBuffer() {
+    return ByteBuffer.wrap(buf, 0, size);
+  }
+
+  @Override
+  public void write(final int b) {
+    writeRaw((byte) b);
+  }
+
+  @Override
+  public void write(final byte[] bytes, final int off, final int len) {
+    ensureCapacity(len);
+    System.arraycopy(bytes, off, buf, size, len);
+    size += len;
+  }
+
+  void writeRaw(final byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buf, size, bytes.length);
+    size += bytes.length;
+  }
+
+  void writeRaw(final byte b) {
+    ensureCapacity(1);
+    buf[size++] = b;
+  }
+
+  /** Writes an ASCII string that needs no escaping, without quotes. */
+  void writeAscii(final String s) {
+    final int len = s.length();
+    ensureCapacity(len);
+    final byte[] buf = this.buf;
+    int pos = size;
+    for (int i = 0; i < len; i++) {
+      buf[pos++] = (byte) s.charAt(i);
+    }
+    size = pos;
+  }
+
+  /** Writes a quoted and escaped JSON string value. */
+  void writeString(final String s) {
+    final int len = s.length();
+    // Worst case is a \\uXXXX escape for every char, plus the quotes
+    ensureCapacity(len * 6 + 2);
+    final byte[] buf = this.buf;
+    int pos = size;
+    buf[pos++] = '"';
+    for (int i = 0; i < len; i++) {
+      final char c = s.charAt(i);
+      if (c < 0x80) {
+        final int escape = ESCAPES[c];
+        if (escape == 0) {
+          buf[pos++] = (byte) c;
+        } else if (escape > 0) {
+          buf[pos++] = '\\';
+          buf[pos++] = (byte) escape;
+        } else {
+          pos = writeUnicodeEscape(buf, pos, c);
+        }
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // Jackson (before 2.17) escapes each half of a surrogate pair instead of combining them
+        pos = writeUnicodeEscape(buf, pos, c);
+      } else {
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    buf[pos++] = '"';
+    size = pos;
+  }
+
+  private static int writeUnicodeEscape(final byte[] buf, int pos, final char c) {
+    buf[pos++] = '\\';
+    buf[pos++] = 'u';
+    buf[pos++] = HEX[(c >> 12) & 0xf];
+    buf[pos++] = HEX[(c >> 8) & 0xf];
+    buf[pos++] = HEX[(c >> 4) & 0xf];
+    buf[pos++] = HEX[c & 0xf];
+    return pos;
+  }
+
+  private void ensureCapacity(final int extra) {
+    final int required = size + extra;
+    if (required > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+    }
+  }
+}
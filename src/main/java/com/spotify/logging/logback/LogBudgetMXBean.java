@@ -0,0 +1,39 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.util.List;
+
+/**
+ * The loggers a {@link LogBudgetTurboFilter} has demoted, registered as {@code
+ * com.spotify.logging:type=LogBudget,name=<filter name>}.
+ */
+public interface LogBudgetMXBean {
+
+  /** @return the loggers that are currently demoted */
+  List<LogBudgetTurboFilter.DemotedLogger> getDemotedLoggers();
+
+  /** @return the number of times a logger was demoted since the filter started */
+  long getDemotionCount();
+
+  /** Restore the level of all demoted loggers now, instead of when their cool-down ends. */
+  void restoreAll();
+}
@@ -0,0 +1,415 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import ch.qos.logback.core.util.Duration;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Marker;
+
+/**
+ * Gives every logger a budget of events or message characters per minute. A logger that goes over
+ * it is demoted: its effective level is raised one step, e.g. from INFO to WARN, for a {@link
+ * #setCooldown(Duration) cool-down period}, after which it logs at its configured level again. Both
+ * the demotion and the restore are logged by the logger of this class.
+ *
+ * <ul>
+ *   <li>Only events at or above the logger's effective level count, and the counts are kept in
+ *       {@link AtomicLong}s per logger without locking. A new minute starts when an event arrives
+ *       after the previous one has ended, so a few events at the boundary may be counted in either.
+ *   <li>Characters are counted in the message pattern, not in the encoded event, since the
+ *       arguments are not formatted yet when turbo filters run.
+ *   <li>ERROR is never demoted, so an error still gets through however noisy its logger is.
+ *   <li>The demoted loggers are available through JMX as {@code
+ *       com.spotify.logging:type=LogBudget,name=<filter name>}, see {@link LogBudgetMXBean}.
+ * </ul>
+ */
+public class LogBudgetTurboFilter extends TurboFilter implements LogBudgetMXBean {
+
+  public static final Duration DEFAULT_COOLDOWN = Duration.buildByMinutes(5);
+
+  private static final long WINDOW_MILLIS = 60_000;
+
+  private long maxEventsPerMinute;
+  private long maxCharsPerMinute;
+  private Duration cooldown = DEFAULT_COOLDOWN;
+  private boolean registerMBean = true;
+
+  private final Map<String, Budget> budgets = new ConcurrentHashMap<>();
+  private final LongAdder demotions = new LongAdder();
+  private @Nullable ObjectName objectName;
+
+  // For tests
+  LongSupplier clock = System::currentTimeMillis;
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    if (maxEventsPerMinute <= 0 && maxCharsPerMinute <= 0) {
+      addError("Neither maxEventsPerMinute nor maxCharsPerMinute is set.");
+      return;
+    }
+    budgets.clear();
+    if (registerMBean) {
+      registerMBean();
+    }
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+    unregisterMBean();
+  }
+
+  @Override
+  public FilterReply decide(
+      final @Nullable Marker marker,
+      final Logger logger,
+      final Level level,
+      final @Nullable String format,
+      final @Nullable Object[] params,
+      final @Nullable Throwable t) {
+    if (!isStarted() || !level.isGreaterOrEqual(logger.getEffectiveLevel())) {
+      return FilterReply.NEUTRAL;
+    }
+    final String name = logger.getName();
+    if (name.equals(LogBudgetTurboFilter.class.getName())) {
+      // Don't demote the demotion messages
+      return FilterReply.NEUTRAL;
+    }
+    Budget budget = budgets.get(name);
+    if (budget == null) {
+      budget = budgets.computeIfAbsent(name, n -> new Budget(clock.getAsLong()));
+    }
+
+    // The isXxxEnabled() methods also ask the turbo filters, without a message
+    final boolean enabledCheck = format == null && params == null && t == null;
+    final long now = clock.getAsLong();
+    final Demotion demotion = budget.demotion.get();
+    if (demotion != null) {
+      if (now < demotion.until) {
+        if (level.isGreaterOrEqual(demotion.level)) {
+          return FilterReply.NEUTRAL;
+        }
+        if (!enabledCheck) {
+          demotion.dropped.increment();
+        }
+        return FilterReply.DENY;
+      }
+      restore(name, budget, demotion, now);
+    }
+    if (enabledCheck) {
+      return FilterReply.NEUTRAL;
+    }
+
+    final long windowStart = budget.windowStart.get();
+    if (now - windowStart >= WINDOW_MILLIS && budget.windowStart.compareAndSet(windowStart, now)) {
+      budget.events.set(0);
+      budget.chars.set(0);
+    }
+    final long events = budget.events.incrementAndGet();
+    final long chars =
+        format == null ? budget.chars.get() : budget.chars.addAndGet(format.length());
+    if ((maxEventsPerMinute > 0 && events > maxEventsPerMinute)
+        || (maxCharsPerMinute > 0 && chars > maxCharsPerMinute)) {
+      return demote(logger, budget, level, now, events, chars);
+    }
+    return FilterReply.NEUTRAL;
+  }
+
+  private FilterReply demote(
+      final Logger logger,
+      final Budget budget,
+      final Level level,
+      final long now,
+      final long events,
+      final long chars) {
+    final Level demotedLevel = raise(logger.getEffectiveLevel());
+    if (demotedLevel == null) {
+      return FilterReply.NEUTRAL;
+    }
+    final Demotion demotion =
+        new Demotion(logger.getName(), demotedLevel, now + cooldown.getMilliseconds());
+    if (!budget.demotion.compareAndSet(null, demotion)) {
+      // Another thread got there first
+      return FilterReply.NEUTRAL;
+    }
+    demotions.increment();
+    if (getContext() instanceof LoggerContext) {
+      ((LoggerContext) getContext())
+          .getLogger(LogBudgetTurboFilter.class)
+          .warn(
+              "Logger {} logged {} events ({} message characters) within a minute, over its"
+                  + " budget; only logging {} and above for the next {}",
+              logger.getName(),
+              events,
+              chars,
+              demotedLevel,
+              cooldown);
+    }
+    if (level.isGreaterOrEqual(demotedLevel)) {
+      return FilterReply.NEUTRAL;
+    }
+    demotion.dropped.increment();
+    return FilterReply.DENY;
+  }
+
+  private void restore(
+      final String name, final Budget budget, final Demotion demotion, final long now) {
+    if (!budget.demotion.compareAndSet(demotion, null)) {
+      return;
+    }
+    // Start counting afresh
+    budget.windowStart.set(now);
+    budget.events.set(0);
+    budget.chars.set(0);
+    if (getContext() instanceof LoggerContext) {
+      ((LoggerContext) getContext())
+          .getLogger(LogBudgetTurboFilter.class)
+          .info(
+              "Logger {} is logging at its configured level again, {} events were dropped while"
+                  + " it was demoted",
+              name,
+              demotion.dropped.sum());
+    }
+  }
+
+  // One step up, or null when there is nothing above to demote to
+  private static @Nullable Level raise(final Level level) {
+    switch (level.toInt()) {
+      case Level.TRACE_INT:
+        return Level.DEBUG;
+      case Level.DEBUG_INT:
+        return Level.INFO;
+      case Level.INFO_INT:
+        return Level.WARN;
+      case Level.WARN_INT:
+        return Level.ERROR;
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public List<DemotedLogger> getDemotedLoggers() {
+    final long now = clock.getAsLong();
+    final List<DemotedLogger> demoted = new ArrayList<>();
+    for (final Budget budget : budgets.values()) {
+      final Demotion demotion = budget.demotion.get();
+      if (demotion != null && now < demotion.until) {
+        demoted.add(
+            new DemotedLogger(
+                demotion.loggerName,
+                demotion.level.toString(),
+                demotion.until,
+                demotion.dropped.sum()));
+      }
+    }
+    return demoted;
+  }
+
+  @Override
+  public long getDemotionCount() {
+    return demotions.sum();
+  }
+
+  @Override
+  public void restoreAll() {
+    final long now = clock.getAsLong();
+    budgets.forEach(
+        (name, budget) -> {
+          final Demotion demotion = budget.demotion.get();
+          if (demotion != null) {
+            restore(name, budget, demotion, now);
+          }
+        });
+  }
+
+  private void registerMBean() {
+    try {
+      final ObjectName objectName =
+          ObjectName.getInstance("com.spotify.logging:type=LogBudget,name=" + getName());
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      // Replace the filter of an earlier configuration
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(this, objectName);
+      this.objectName = objectName;
+    } catch (JMException e) {
+      addWarn("Failed to register log budget MBean.", e);
+    }
+  }
+
+  private void unregisterMBean() {
+    final ObjectName objectName = this.objectName;
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      addWarn("Failed to unregister log budget MBean.", e);
+    }
+    this.objectName = null;
+  }
+
+  public long getMaxEventsPerMinute() {
+    return maxEventsPerMinute;
+  }
+
+  /**
+   * The number of events a logger may log per minute before it is demoted. 0, the default, means no
+   * limit.
+   *
+   * @param maxEventsPerMinute the number of events
+   */
+  public void setMaxEventsPerMinute(final long maxEventsPerMinute) {
+    this.maxEventsPerMinute = maxEventsPerMinute;
+  }
+
+  public long getMaxCharsPerMinute() {
+    return maxCharsPerMinute;
+  }
+
+  /**
+   * The number of message pattern characters a logger may log per minute before it is demoted. 0,
+   * the default, means no limit.
+   *
+   * @param maxCharsPerMinute the number of characters
+   */
+  public void setMaxCharsPerMinute(final long maxCharsPerMinute) {
+    this.maxCharsPerMinute = maxCharsPerMinute;
+  }
+
+  public Duration getCooldown() {
+    return cooldown;
+  }
+
+  /**
+   * How long a logger stays demoted. Defaults to five minutes.
+   *
+   * @param cooldown the cool-down period
+   */
+  public void setCooldown(final Duration cooldown) {
+    this.cooldown = cooldown;
+  }
+
+  public boolean isRegisterMBean() {
+    return registerMBean;
+  }
+
+  /**
+   * Whether to register with the platform MBean server. Defaults to true.
+   *
+   * @param registerMBean false to not register
+   */
+  public void setRegisterMBean(final boolean registerMBean) {
+    this.registerMBean = registerMBean;
+  }
+
+  /** A logger that is currently demoted, as shown through JMX. */
+  public static final class DemotedLogger {
+
+    private final String loggerName;
+    private final String level;
+    private final long until;
+    private final long droppedCount;
+
+    DemotedLogger(
+        final String loggerName, final String level, final long until, final long droppedCount) {
+      this.loggerName = loggerName;
+      this.level = level;
+      this.until = until;
+      this.droppedCount = droppedCount;
+    }
+
+    public String getLoggerName() {
+      return loggerName;
+    }
+
+    /** @return the level the logger was raised to */
+    public String getLevel() {
+      return level;
+    }
+
+    /** @return when the logger will be restored, in milliseconds since the epoch */
+    public long getUntil() {
+      return until;
+    }
+
+    /** @return the number of events dropped since the logger was demoted */
+    public long getDroppedCount() {
+      return droppedCount;
+    }
+
+    @Override
+    public String toString() {
+      return loggerName + "=" + level;
+    }
+  }
+
+  private static final class Budget {
+    final AtomicLong windowStart;
+    final AtomicLong events = new AtomicLong();
+    final AtomicLong chars = new AtomicLong();
+    final AtomicReference<Demotion> demotion = new AtomicReference<>();
+
+    Budget(final long now) {
+      this.windowStart = new AtomicLong(now);
+    }
+  }
+
+  private static final class Demotion {
+    final String loggerName;
+    final Level level;
+    final long until;
+    final LongAdder dropped = new LongAdder();
+
+    Demotion(final String loggerName, final Level level, final long until) {
+      this.loggerName = loggerName;
+      this.level = level;
+      this.until = until;
+    }
+  }
+}
@@ -0,0 +1,536 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.util.Duration;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts events and message bytes per logger and level, to find out which logger is flooding the
+ * logs. It doesn't write the events anywhere; attach it next to the appenders that do.
+ *
+ * <ul>
+ *   <li>Counts are kept in {@link LongAdder}s, which are striped so logging threads don't contend
+ *       on them. Bytes are the UTF-8 length of the formatted message, without what the encoder
+ *       adds. The event caches its formatted message, so the appenders that write the event don't
+ *       format it again.
+ *   <li>The most frequent message templates, the messages before their arguments are filled in, are
+ *       tracked with a {@link SpaceSavingSketch} per stripe of threads. A thread that finds its
+ *       stripe busy skips the sketch for that event, so the template counts are a sample under
+ *       contention.
+ *   <li>The counts are available through JMX as {@code
+ *       com.spotify.logging:type=LogVolume,name=<appender name>}, see {@link LogVolumeMXBean}.
+ *   <li>Every {@link #setSummaryInterval(Duration) minute}, the busiest loggers of that interval
+ *       and the most frequent templates are logged at INFO, by the logger of this class.
+ * </ul>
+ */
+public class LogVolumeAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+    implements LogVolumeMXBean {
+
+  public static final Duration DEFAULT_SUMMARY_INTERVAL = Duration.buildByMinutes(1);
+  public static final int DEFAULT_TOP_SIZE = 10;
+  public static final int DEFAULT_SKETCH_CAPACITY = 256;
+  public static final int DEFAULT_MAX_LOGGERS = 10_000;
+  public static final String OTHER_LOGGERS = "<other>";
+
+  private static final Level[] LEVELS = {
+    Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR
+  };
+  private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+  private Duration summaryInterval = DEFAULT_SUMMARY_INTERVAL;
+  private int topSize = DEFAULT_TOP_SIZE;
+  private int sketchCapacity = DEFAULT_SKETCH_CAPACITY;
+  private int maxLoggers = DEFAULT_MAX_LOGGERS;
+  private boolean registerMBean = true;
+
+  private final Map<String, LoggerVolume> loggers = new ConcurrentHashMap<>();
+  private SpaceSavingSketch[] sketches = new SpaceSavingSketch[0];
+  private ReentrantLock[] sketchLocks = new ReentrantLock[0];
+  private int stripeMask;
+
+  // The event counts by logger in the last summary, only used by the summary thread
+  private final Map<String, Long> summarized = new HashMap<>();
+  private volatile boolean running;
+  private volatile @Nullable Thread summarizer;
+  private @Nullable ObjectName objectName;
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    if (sketchCapacity < 1 || topSize < 1 || maxLoggers < 1) {
+      addError(
+          "Invalid sketch capacity, top size or max loggers ["
+              + sketchCapacity
+              + ", "
+              + topSize
+              + ", "
+              + maxLoggers
+              + "]");
+      return;
+    }
+
+    final int stripes =
+        Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 16) * 2 - 1);
+    sketches = new SpaceSavingSketch[stripes];
+    sketchLocks = new ReentrantLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      sketches[i] = new SpaceSavingSketch(sketchCapacity);
+      sketchLocks[i] = new ReentrantLock();
+    }
+    stripeMask = stripes - 1;
+    loggers.clear();
+    summarized.clear();
+
+    if (registerMBean) {
+      registerMBean();
+    }
+    running = true;
+    if (summaryInterval.getMilliseconds() > 0) {
+      final Thread summarizer =
+          new Thread(this::runSummarizer, "LogVolumeAppender-Summary-" + getName());
+      summarizer.setDaemon(true);
+      this.summarizer = summarizer;
+      summarizer.start();
+    }
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+
+    running = false;
+    final Thread summarizer = this.summarizer;
+    if (summarizer != null) {
+      LockSupport.unpark(summarizer);
+      try {
+        summarizer.join(CLOSE_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.summarizer = null;
+    }
+    unregisterMBean();
+  }
+
+  @Override
+  protected void append(final ILoggingEvent event) {
+    final String loggerName = event.getLoggerName();
+    final LoggerVolume volume = volume(loggerName);
+    final int level = levelIndex(event.getLevel());
+    final String message = event.getFormattedMessage();
+    volume.events[level].increment();
+    if (message != null) {
+      volume.bytes[level].add(utf8Length(message));
+    }
+
+    final String template = event.getMessage();
+    if (template != null) {
+      final int stripe = (int) Thread.currentThread().getId() & stripeMask;
+      final ReentrantLock lock = sketchLocks[stripe];
+      if (lock.tryLock()) {
+        try {
+          sketches[stripe].offer(template, loggerName);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  // The length of the string encoded as UTF-8, without encoding it
+  static long utf8Length(final String s) {
+    final int length = s.length();
+    long bytes = length;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          bytes += 1;
+        } else if (Character.isHighSurrogate(c)
+            && i + 1 < length
+            && Character.isLowSurrogate(s.charAt(i + 1))) {
+          // Four bytes for the two chars of the pair
+          bytes += 2;
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          // Three bytes, while a lone surrogate is encoded as a single '?'
+          bytes += 2;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private LoggerVolume volume(final String loggerName) {
+    final LoggerVolume volume = loggers.get(loggerName);
+    if (volume != null) {
+      return volume;
+    }
+    final String key = loggers.size() < maxLoggers ? loggerName : OTHER_LOGGERS;
+    return loggers.computeIfAbsent(key, name -> new LoggerVolume());
+  }
+
+  private static int levelIndex(final Level level) {
+    switch (level.levelInt) {
+      case Level.TRACE_INT:
+        return 0;
+      case Level.DEBUG_INT:
+        return 1;
+      case Level.INFO_INT:
+        return 2;
+      case Level.WARN_INT:
+        return 3;
+      default:
+        return 4;
+    }
+  }
+
+  private void runSummarizer() {
+    final long parkNanos = TimeUnit.MILLISECONDS.toNanos(summaryInterval.getMilliseconds());
+    long nextSummary = System.nanoTime() + parkNanos;
+    while (running) {
+      LockSupport.parkNanos(this, Math.max(0, nextSummary - System.nanoTime()));
+      if (running && System.nanoTime() - nextSummary >= 0) {
+        writeSummary();
+        nextSummary += parkNanos;
+      }
+    }
+  }
+
+  /** Log the busiest loggers since the last summary, and the most frequent templates. */
+  void writeSummary() {
+    final Map<String, Long> counts = getEventCountsByLogger();
+    final List<Map.Entry<String, Long>> deltas = new ArrayList<>();
+    long total = 0;
+    for (final Map.Entry<String, Long> entry : counts.entrySet()) {
+      final Long previous = summarized.put(entry.getKey(), entry.getValue());
+      final long delta = entry.getValue() - (previous == null ? 0 : previous);
+      if (delta > 0) {
+        deltas.add(new SimpleImmutableEntry<>(entry.getKey(), delta));
+        total += delta;
+      }
+    }
+    if (total == 0 || !(getContext() instanceof LoggerContext)) {
+      return;
+    }
+    deltas.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+    final StringBuilder busiest = new StringBuilder();
+    for (int i = 0; i < Math.min(topSize, deltas.size()); i++) {
+      if (i > 0) {
+        busiest.append(", ");
+      }
+      busiest.append(deltas.get(i).getKey()).append('=').append(deltas.get(i).getValue());
+    }
+    final StringBuilder templates = new StringBuilder();
+    for (final HeavyHitter hitter : getTopMessageTemplates()) {
+      if (templates.length() > 0) {
+        templates.append(", ");
+      }
+      templates.append('"').append(hitter.getTemplate()).append("\"=").append(hitter.getCount());
+    }
+    ((LoggerContext) getContext())
+        .getLogger(LogVolumeAppender.class)
+        .info(
+            "Logged {} events in the last {}, busiest loggers: {}; most frequent messages: {}",
+            total,
+            summaryInterval,
+            busiest,
+            templates);
+  }
+
+  private void registerMBean() {
+    try {
+      final ObjectName objectName =
+          ObjectName.getInstance("com.spotify.logging:type=LogVolume,name=" + getName());
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      // Replace the appender of an earlier configuration
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(this, objectName);
+      this.objectName = objectName;
+    } catch (JMException e) {
+      addWarn("Failed to register log volume MBean.", e);
+    }
+  }
+
+  private void unregisterMBean() {
+    final ObjectName objectName = this.objectName;
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      addWarn("Failed to unregister log volume MBean.", e);
+    }
+    this.objectName = null;
+  }
+
+  @Override
+  public long getEventCount() {
+    long total = 0;
+    for (final LoggerVolume volume : loggers.values()) {
+      total += sum(volume.events);
+    }
+    return total;
+  }
+
+  @Override
+  public long getByteCount() {
+    long total = 0;
+    for (final LoggerVolume volume : loggers.values()) {
+      total += sum(volume.bytes);
+    }
+    return total;
+  }
+
+  @Override
+  public Map<String, Long> getEventCountsByLevel() {
+    final long[] counts = new long[LEVELS.length];
+    for (final LoggerVolume volume : loggers.values()) {
+      for (int i = 0; i < LEVELS.length; i++) {
+        counts[i] += volume.events[i].sum();
+      }
+    }
+    final Map<String, Long> byLevel = new LinkedHashMap<>();
+    for (int i = 0; i < LEVELS.length; i++) {
+      byLevel.put(LEVELS[i].toString(), counts[i]);
+    }
+    return byLevel;
+  }
+
+  @Override
+  public Map<String, Long> getEventCountsByLogger() {
+    final Map<String, Long> byLogger = new HashMap<>();
+    loggers.forEach((name, volume) -> byLogger.put(name, sum(volume.events)));
+    return byLogger;
+  }
+
+  @Override
+  public Map<String, Long> getByteCountsByLogger() {
+    final Map<String, Long> byLogger = new HashMap<>();
+    loggers.forEach((name, volume) -> byLogger.put(name, sum(volume.bytes)));
+    return byLogger;
+  }
+
+  /**
+   * Get the most frequent message templates. The counts of the sketches of all stripes are added
+   * up, so a count may be overestimated by at most the sum of their errors.
+   *
+   * @return up to {@link #setTopSize(int) topSize} templates, most frequent first
+   */
+  @Override
+  public List<HeavyHitter> getTopMessageTemplates() {
+    final Map<String, HeavyHitter> merged = new HashMap<>();
+    for (int i = 0; i < sketches.length; i++) {
+      final List<SpaceSavingSketch.Counter> counters;
+      final ReentrantLock lock = sketchLocks[i];
+      lock.lock();
+      try {
+        counters = sketches[i].counters();
+      } finally {
+        lock.unlock();
+      }
+      for (final SpaceSavingSketch.Counter counter : counters) {
+        merged.merge(
+            counter.key,
+            new HeavyHitter(counter.key, counter.label, counter.count, counter.error),
+            (a, b) ->
+                new HeavyHitter(
+                    a.template, a.loggerName, a.count + b.count, a.maxError + b.maxError));
+      }
+    }
+    final List<HeavyHitter> top = new ArrayList<>(merged.values());
+    top.sort(Comparator.comparingLong(HeavyHitter::getCount).reversed());
+    return new ArrayList<>(top.subList(0, Math.min(topSize, top.size())));
+  }
+
+  @Override
+  public void reset() {
+    loggers.clear();
+    for (int i = 0; i < sketches.length; i++) {
+      final ReentrantLock lock = sketchLocks[i];
+      lock.lock();
+      try {
+        sketches[i].clear();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private static long sum(final LongAdder[] adders) {
+    long total = 0;
+    for (final LongAdder adder : adders) {
+      total += adder.sum();
+    }
+    return total;
+  }
+
+  public Duration getSummaryInterval() {
+    return summaryInterval;
+  }
+
+  /**
+   * How often to log a summary. Defaults to one minute; 0 disables the summary.
+   *
+   * @param summaryInterval the interval
+   */
+  public void setSummaryInterval(final Duration summaryInterval) {
+    this.summaryInterval = summaryInterval;
+  }
+
+  public int getTopSize() {
+    return topSize;
+  }
+
+  /**
+   * The number of loggers and templates to list in summaries and through JMX. Defaults to {@value
+   * #DEFAULT_TOP_SIZE}.
+   *
+   * @param topSize the number of entries
+   */
+  public void setTopSize(final int topSize) {
+    this.topSize = topSize;
+  }
+
+  public int getSketchCapacity() {
+    return sketchCapacity;
+  }
+
+  /**
+   * The number of templates each stripe keeps counters for. Templates that make up more than 1 /
+   * capacity of the events of a stripe are guaranteed to be counted. Defaults to {@value
+   * #DEFAULT_SKETCH_CAPACITY}.
+   *
+   * @param sketchCapacity the number of counters
+   */
+  public void setSketchCapacity(final int sketchCapacity) {
+    this.sketchCapacity = sketchCapacity;
+  }
+
+  public int getMaxLoggers() {
+    return maxLoggers;
+  }
+
+  /**
+   * The number of loggers to count separately. Events of loggers beyond that are counted under
+   * {@value #OTHER_LOGGERS}. Defaults to {@value #DEFAULT_MAX_LOGGERS}.
+   *
+   * @param maxLoggers the number of loggers
+   */
+  public void setMaxLoggers(final int maxLoggers) {
+    this.maxLoggers = maxLoggers;
+  }
+
+  public boolean isRegisterMBean() {
+    return registerMBean;
+  }
+
+  /**
+   * Whether to register with the platform MBean server. Defaults to true.
+   *
+   * @param registerMBean false to not register
+   */
+  public void setRegisterMBean(final boolean registerMBean) {
+    this.registerMBean = registerMBean;
+  }
+
+  private static final class LoggerVolume {
+    final LongAdder[] events = new LongAdder[LEVELS.length];
+    final LongAdder[] bytes = new LongAdder[LEVELS.length];
+
+    LoggerVolume() {
+      for (int i = 0; i < LEVELS.length; i++) {
+        events[i] = new LongAdder();
+        bytes[i] = new LongAdder();
+      }
+    }
+  }
+
+  /** A frequent message template, as reported through JMX. */
+  public static final class HeavyHitter {
+    private final String template;
+    private final String loggerName;
+    private final long count;
+    private final long maxError;
+
+    HeavyHitter(
+        final String template, final String loggerName, final long count, final long maxError) {
+      this.template = template;
+      this.loggerName = loggerName;
+      this.count = count;
+      this.maxError = maxError;
+    }
+
+    /** @return the message before its arguments are filled in */
+    public String getTemplate() {
+      return template;
+    }
+
+    /** @return a logger that logged the template */
+    public String getLoggerName() {
+      return loggerName;
+    }
+
+    /** @return the number of events, possibly overestimated by up to {@link #getMaxError()} */
+    public long getCount() {
+      return count;
+    }
+
+    public long getMaxError() {
+      return maxError;
+    }
+
+    @Override
+    public String toString() {
+      return count + " " + loggerName + ": " + template;
+    }
+  }
+}
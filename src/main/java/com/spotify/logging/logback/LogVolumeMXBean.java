@@ -0,0 +1,51 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Log volume counts of a {@link LogVolumeAppender}, registered as {@code
+ * com.spotify.logging:type=LogVolume,name=<appender name>}. Counts are totals since the appender
+ * started or was {@link #reset()}.
+ */
+public interface LogVolumeMXBean {
+
+  long getEventCount();
+
+  /** @return the number of formatted message bytes, encoded as UTF-8 */
+  long getByteCount();
+
+  /** @return the number of events by level name */
+  Map<String, Long> getEventCountsByLevel();
+
+  /** @return the number of events by logger name */
+  Map<String, Long> getEventCountsByLogger();
+
+  /** @return the number of formatted message bytes by logger name */
+  Map<String, Long> getByteCountsByLogger();
+
+  /** @return the most frequent message templates, most frequent first */
+  List<LogVolumeAppender.HeavyHitter> getTopMessageTemplates();
+
+  void reset();
+}
@@ -0,0 +1,488 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.util.Duration;
+import ch.qos.logback.core.util.FileSize;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+
+/**
+ * Writes encoded events to memory-mapped segment files, for processes that log more than a stream
+ * can keep up with. The segments are named after the {@link #setFile(String) file}, with a sequence
+ * number appended: {@code app.log.1}, {@code app.log.2} and so on.
+ *
+ * <p>Logging threads encode the event themselves and reserve room for it in the current segment
+ * with a single atomic add, then copy it into the mapped memory. No lock is taken, and nothing is
+ * written through a stream: the operating system writes the pages back to the file. The thread
+ * whose event doesn't fit in the segment any more rolls to a new one, while any others that don't
+ * fit wait for it. Rolled segments are truncated to the events in them once the threads still
+ * copying into them are done, and the oldest ones are deleted when there are more than {@link
+ * #setMaxSegments(int) maxSegments}.
+ *
+ * <p>A background thread forces the current segment to disk every {@link
+ * #setForceInterval(Duration) forceInterval}, which bounds what is lost if the host crashes. Events
+ * are not lost if only the process crashes, but the last segment is then left at its full size,
+ * padded with zeros, until it is trimmed on the next start.
+ */
+public class MappedFileAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+  private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+  private @Nullable Encoder<ILoggingEvent> encoder;
+  private @Nullable String file;
+  private FileSize segmentSize = new FileSize(64 * FileSize.MB_COEFFICIENT);
+  private int maxSegments = 10;
+  private Duration forceInterval = Duration.buildBySeconds(1);
+
+  private volatile @Nullable Segment current;
+  // Rolled segments, in order, waiting for the threads copying into them
+  private final ConcurrentLinkedQueue<Segment> rolled = new ConcurrentLinkedQueue<>();
+  // Closed segment files, oldest first; only used by the flusher thread, and by start and stop
+  private final Deque<Path> history = new ArrayDeque<>();
+
+  private volatile boolean running;
+  private volatile @Nullable Thread flusher;
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    final String file = this.file;
+    if (encoder == null) {
+      addError("No encoder set for the appender named [" + name + "].");
+      return;
+    }
+    if (file == null || file.isEmpty()) {
+      addError("No file set for the appender named [" + name + "].");
+      return;
+    }
+    if (segmentSize.getSize() <= 0 || segmentSize.getSize() > Integer.MAX_VALUE) {
+      addError("Invalid segment size [" + segmentSize + "]");
+      return;
+    }
+
+    final Path path = Paths.get(file).toAbsolutePath();
+    final Segment segment;
+    try {
+      final Path directory = path.getParent();
+      if (directory != null) {
+        Files.createDirectories(directory);
+      }
+      history.clear();
+      history.addAll(existingSegments(path));
+      final Path newest = history.peekLast();
+      if (newest != null) {
+        trimZeros(newest);
+      }
+      final long index = newest == null ? 1 : index(newest, path) + 1;
+      segment = Segment.open(path, index, (int) segmentSize.getSize());
+    } catch (IOException e) {
+      addError("Failed to open segment of " + file + ".", e);
+      return;
+    }
+    current = segment;
+    deleteOldSegments();
+
+    running = true;
+    final Thread flusher = new Thread(this::runFlusher, "MappedFileAppender-Flusher-" + getName());
+    flusher.setDaemon(true);
+    this.flusher = flusher;
+    flusher.start();
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+
+    running = false;
+    final Thread flusher = this.flusher;
+    if (flusher != null) {
+      LockSupport.unpark(flusher);
+      try {
+        flusher.join(CLOSE_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.flusher = null;
+    }
+
+    // Roll to no segment, so that late events are dropped instead of written after the close
+    while (true) {
+      final Segment segment = current;
+      if (segment == null) {
+        break;
+      }
+      final long position = segment.reserved.getAndAdd(segment.capacity + 1L);
+      if (position <= segment.capacity) {
+        segment.limit = position;
+        rolled.add(segment);
+        current = null;
+        break;
+      }
+      awaitRoll(segment);
+    }
+
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+    Segment segment;
+    while ((segment = rolled.poll()) != null) {
+      while (!segment.isComplete() && System.nanoTime() < deadline) {
+        Thread.yield();
+      }
+      if (!segment.isComplete()) {
+        addWarn("Closing " + segment.path + " while events are still being written to it.");
+      }
+      close(segment);
+    }
+    deleteOldSegments();
+  }
+
+  @Override
+  protected void append(final ILoggingEvent event) {
+    final Object recording = FlightRecorderEvents.beginAppend();
+    try {
+      final Encoder<ILoggingEvent> encoder = this.encoder;
+      if (encoder == null) {
+        return;
+      }
+      final byte[] bytes = encoder.encode(event);
+      if (bytes == null || bytes.length == 0) {
+        return;
+      }
+      while (true) {
+        final Segment segment = current;
+        if (segment == null) {
+          // Stopped, or failed to roll
+          return;
+        }
+        final long position = segment.reserved.getAndAdd(bytes.length);
+        if (position + bytes.length <= segment.capacity) {
+          segment.write(position, bytes);
+          return;
+        }
+        if (position <= segment.capacity) {
+          // This event is the first that doesn't fit, so it is up to this thread to roll
+          roll(segment, position, bytes);
+          return;
+        }
+        awaitRoll(segment);
+      }
+    } finally {
+      FlightRecorderEvents.endAppend(recording, this, event);
+    }
+  }
+
+  private void roll(final Segment segment, final long limit, final byte[] bytes) {
+    final long index = segment.index + 1;
+    final Segment next;
+    try {
+      next = Segment.open(segment.file, index, (int) Math.max(segmentSize.getSize(), bytes.length));
+    } catch (IOException e) {
+      addError("Failed to roll to a new segment of " + file + ", dropping events.", e);
+      segment.limit = limit;
+      rolled.add(segment);
+      current = null;
+      return;
+    }
+    next.reserved.set(bytes.length);
+    segment.limit = limit;
+    rolled.add(segment);
+    current = next;
+    next.write(0, bytes);
+  }
+
+  private void awaitRoll(final Segment segment) {
+    while (current == segment) {
+      Thread.yield();
+    }
+  }
+
+  private void runFlusher() {
+    final long interval = forceInterval.getMilliseconds();
+    final long parkNanos = TimeUnit.MILLISECONDS.toNanos(interval > 0 ? interval : 1000);
+    while (running) {
+      LockSupport.parkNanos(this, parkNanos);
+      Segment segment;
+      while ((segment = rolled.peek()) != null && segment.isComplete()) {
+        rolled.poll();
+        close(segment);
+      }
+      deleteOldSegments();
+      final Segment active = current;
+      if (interval > 0 && active != null) {
+        active.force();
+      }
+    }
+  }
+
+  private void close(final Segment segment) {
+    try {
+      segment.close();
+      if (segment.limit == 0) {
+        Files.deleteIfExists(segment.path);
+      } else {
+        history.addLast(segment.path);
+      }
+    } catch (IOException e) {
+      addWarn("Failed to close " + segment.path + ".", e);
+    }
+  }
+
+  private void deleteOldSegments() {
+    // The segment being written counts too
+    final int keep = current == null ? maxSegments : maxSegments - 1;
+    while (maxSegments > 0 && history.size() > keep) {
+      final Path oldest = history.removeFirst();
+      try {
+        Files.deleteIfExists(oldest);
+      } catch (IOException e) {
+        addWarn("Failed to delete " + oldest + ".", e);
+      }
+    }
+  }
+
+  private static List<Path> existingSegments(final Path path) throws IOException {
+    final List<Path> segments = new ArrayList<>();
+    final Path directory = path.getParent();
+    if (directory == null) {
+      return segments;
+    }
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, path.getFileName() + ".*")) {
+      for (final Path segment : stream) {
+        if (index(segment, path) > 0) {
+          segments.add(segment);
+        }
+      }
+    }
+    segments.sort((a, b) -> Long.compare(index(a, path), index(b, path)));
+    return segments;
+  }
+
+  private static long index(final Path segment, final Path path) {
+    final String name = String.valueOf(segment.getFileName());
+    try {
+      return Long.parseLong(name.substring(String.valueOf(path.getFileName()).length() + 1));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // A segment that was being written when the process died is still at its full size
+  private static void trimZeros(final Path segment) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final long size = channel.size();
+      if (size == 0 || size > Integer.MAX_VALUE) {
+        return;
+      }
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      int end = (int) size;
+      while (end > 0 && buffer.get(end - 1) == 0) {
+        end--;
+      }
+      if (end < size) {
+        channel.truncate(end);
+      }
+    }
+  }
+
+  public @Nullable Encoder<ILoggingEvent> getEncoder() {
+    return encoder;
+  }
+
+  /**
+   * The encoder is called on the logging threads, concurrently, so it must be thread safe. The
+   * pattern and logstash encoders are.
+   *
+   * @param encoder the encoder
+   */
+  public void setEncoder(final Encoder<ILoggingEvent> encoder) {
+    this.encoder = encoder;
+  }
+
+  public @Nullable String getFile() {
+    return file;
+  }
+
+  /**
+   * The path that segment files are named after, with a sequence number appended. Writing continues
+   * after the newest existing segment.
+   *
+   * @param file the path
+   */
+  public void setFile(final String file) {
+    this.file = file;
+  }
+
+  public FileSize getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * The size of each segment file. A segment is mapped at this size while it is written, and
+   * truncated to the events in it when rolled. An event larger than this gets a segment of its own.
+   * Defaults to 64 MB.
+   *
+   * @param segmentSize the segment size, at most 2 GB
+   */
+  public void setSegmentSize(final FileSize segmentSize) {
+    this.segmentSize = segmentSize;
+  }
+
+  public int getMaxSegments() {
+    return maxSegments;
+  }
+
+  /**
+   * The number of segment files to keep, including the one being written. When a segment is rolled,
+   * the oldest ones are deleted. Defaults to 10; 0 keeps all of them.
+   *
+   * @param maxSegments the number of segments
+   */
+  public void setMaxSegments(final int maxSegments) {
+    this.maxSegments = maxSegments;
+  }
+
+  public Duration getForceInterval() {
+    return forceInterval;
+  }
+
+  /**
+   * How often to force the segment being written to disk, if anything was written to it. Rolled
+   * segments are forced when they are closed. Defaults to 1 second; 0 leaves the current segment to
+   * the operating system.
+   *
+   * @param forceInterval the interval
+   */
+  public void setForceInterval(final Duration forceInterval) {
+    this.forceInterval = forceInterval;
+  }
+
+  private static final class Segment {
+
+    // The path the segment is named after
+    final Path file;
+    final long index;
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    final int capacity;
+
+    // The bytes reserved by logging threads; may run past the capacity
+    final AtomicLong reserved = new AtomicLong();
+    // The bytes copied into the buffer
+    final AtomicLong written = new AtomicLong();
+    // The end of the events in the segment, set when it is rolled
+    volatile long limit = -1;
+    // Only used by the flusher thread
+    private long forced;
+
+    private Segment(
+        final Path file,
+        final long index,
+        final Path path,
+        final FileChannel channel,
+        final MappedByteBuffer buffer,
+        final int capacity) {
+      this.file = file;
+      this.index = index;
+      this.path = path;
+      this.channel = channel;
+      this.buffer = buffer;
+      this.capacity = capacity;
+    }
+
+    static Segment open(final Path file, final long index, final int capacity) throws IOException {
+      final Path path = file.resolveSibling(file.getFileName() + "." + index);
+      final FileChannel channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      try {
+        return new Segment(
+            file,
+            index,
+            path,
+            channel,
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity),
+            capacity);
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    void write(final long position, final byte[] bytes) {
+      final ByteBuffer target = buffer.duplicate();
+      target.position((int) position);
+      target.put(bytes);
+      written.addAndGet(bytes.length);
+    }
+
+    boolean isComplete() {
+      final long limit = this.limit;
+      return limit >= 0 && written.get() >= limit;
+    }
+
+    void force() {
+      final long written = this.written.get();
+      if (written != forced) {
+        buffer.force();
+        forced = written;
+      }
+    }
+
+    void close() throws IOException {
+      buffer.force();
+      // The mapping itself is released when the buffer is garbage collected
+      channel.truncate(limit);
+      channel.close();
+    }
+  }
+}
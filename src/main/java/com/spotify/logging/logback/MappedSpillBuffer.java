@@ -0,0 +1,388 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded, disk-backed FIFO queue of byte records, stored in memory-mapped segment files of a
+ * fixed size in a directory. Used to hold encoded syslog datagrams while the syslog host can't be
+ * reached, see {@link SpillingSyslogOutputStream}.
+ *
+ * <ul>
+ *   <li>Each segment starts with a header holding a magic number, its sequence number and how far
+ *       it has been read, protected by a CRC32. A header that fails its check is treated as unread,
+ *       so records may be replayed twice after a crash, but are not lost.
+ *   <li>Each record is its length, the CRC32 of its bytes, and the bytes. The length is written
+ *       last, and reading a segment stops at the first record that is incomplete or fails its
+ *       check, so a record torn by a crash is discarded together with anything after it.
+ *   <li>When a new segment would exceed the maximum size, the oldest segment is deleted together
+ *       with its unread records.
+ * </ul>
+ *
+ * <p>Records survive a crash of the process once appended, as they are in the page cache. Segments
+ * are only forced to disk when a new segment is started and when the buffer is closed, so a power
+ * loss can lose the most recent records.
+ *
+ * <p>Not thread safe. Mapped segments are unmapped when they are garbage collected.
+ */
+final class MappedSpillBuffer implements AutoCloseable {
+
+  static final int HEADER_SIZE = 32;
+  private static final int MAGIC = 0x53504c4c;
+  private static final int VERSION = 1;
+  private static final int READ_OFFSET_POSITION = 16;
+  private static final int HEADER_CRC_POSITION = 20;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final String PREFIX = "spill-";
+  private static final String SUFFIX = ".seg";
+  private static final byte[] NO_RECORD = new byte[0];
+
+  private final Path directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private long dropped;
+
+  /**
+   * Open a spill buffer, recovering the unread records of segments already in the directory.
+   *
+   * @param directory the directory to keep segment files in, created if missing
+   * @param segmentSize the size of each segment file
+   * @param maxSize the maximum total size of the segment files, at least one segment is kept
+   * @throws IOException if the directory or a segment file can't be created or read
+   */
+  MappedSpillBuffer(final Path directory, final long segmentSize, final long maxSize)
+      throws IOException {
+    if (segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE || segmentSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+    }
+    this.directory = directory;
+    this.segmentSize = (int) segmentSize;
+    this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+
+    Files.createDirectories(directory);
+    for (final Path path : segmentFiles()) {
+      final Segment segment = Segment.recover(path);
+      if (segment == null) {
+        Files.deleteIfExists(path);
+      } else {
+        segments.addLast(segment);
+      }
+    }
+    // Only the last segment is appended to, so earlier ones that have been read are garbage
+    while (segments.size() > 1 && segments.peekFirst().unread == 0) {
+      Files.deleteIfExists(segments.removeFirst().path);
+    }
+    if (segments.isEmpty()) {
+      segments.addLast(Segment.create(path(0), 0, this.segmentSize));
+    }
+  }
+
+  private List<Path> segmentFiles() throws IOException {
+    final List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+      for (final Path path : stream) {
+        if (sequence(path) >= 0) {
+          paths.add(path);
+        }
+      }
+    }
+    paths.sort((a, b) -> Long.compare(sequence(a), sequence(b)));
+    return paths;
+  }
+
+  private static long sequence(final Path path) {
+    final String name = String.valueOf(path.getFileName());
+    try {
+      return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private Path path(final long sequence) {
+    return directory.resolve(String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+  }
+
+  /**
+   * Append a record, deleting the oldest segment if the buffer is full. Empty records are ignored.
+   *
+   * @return false if the record is larger than a segment, and was dropped
+   * @throws IOException if a new segment file can't be created
+   */
+  boolean append(final byte[] bytes, final int off, final int len) throws IOException {
+    if (len == 0) {
+      // A zero length marks the end of the records in a segment
+      return true;
+    }
+    if (RECORD_HEADER_SIZE + len > segmentSize - HEADER_SIZE) {
+      dropped++;
+      return false;
+    }
+    Segment segment = segments.peekLast();
+    if (!segment.hasRoom(len)) {
+      segment.buffer.force();
+      while (segments.size() >= maxSegments) {
+        final Segment evicted = segments.removeFirst();
+        dropped += evicted.unread;
+        Files.deleteIfExists(evicted.path);
+      }
+      segment = Segment.create(path(segment.sequence + 1), segment.sequence + 1, segmentSize);
+      segments.addLast(segment);
+    }
+    segment.append(bytes, off, len);
+    return true;
+  }
+
+  /** @return a copy of the oldest unread record, or an empty array if there is none */
+  byte[] peek() {
+    return peek(0);
+  }
+
+  /**
+   * @param index the number of unread records to skip
+   * @return a copy of the unread record, or an empty array if there are not that many
+   */
+  byte[] peek(final int index) {
+    int skip = index;
+    for (final Segment segment : segments) {
+      if (skip < segment.unread) {
+        return segment.peek(skip);
+      }
+      skip -= segment.unread;
+    }
+    return NO_RECORD;
+  }
+
+  /**
+   * Remove the oldest unread record, deleting its segment if it was the last one in it.
+   *
+   * @throws IOException if a segment file can't be deleted
+   */
+  void remove() throws IOException {
+    while (!segments.isEmpty()) {
+      final Segment head = segments.peekFirst();
+      if (head.unread > 0) {
+        head.remove();
+        if (head.unread == 0 && segments.size() > 1) {
+          Files.deleteIfExists(segments.removeFirst().path);
+        }
+        return;
+      }
+      if (segments.size() == 1) {
+        return;
+      }
+      Files.deleteIfExists(segments.removeFirst().path);
+    }
+  }
+
+  boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /** @return the number of unread records. */
+  long size() {
+    long size = 0;
+    for (final Segment segment : segments) {
+      size += segment.unread;
+    }
+    return size;
+  }
+
+  /** @return the number of records dropped because they were too large or evicted. */
+  long getDroppedCount() {
+    return dropped;
+  }
+
+  /** Force the segments to disk, and delete them if every record has been read. */
+  @Override
+  public void close() throws IOException {
+    final boolean empty = isEmpty();
+    for (final Segment segment : segments) {
+      segment.buffer.force();
+      if (empty) {
+        Files.deleteIfExists(segment.path);
+      }
+    }
+    segments.clear();
+  }
+
+  @Override
+  public String toString() {
+    return "MappedSpillBuffer{"
+        + "directory="
+        + directory
+        + ", segmentSize="
+        + segmentSize
+        + ", maxSegments="
+        + maxSegments
+        + '}';
+  }
+
+  private static final class Segment {
+    final Path path;
+    final long sequence;
+    final MappedByteBuffer buffer;
+    int readOffset = HEADER_SIZE;
+    int writeOffset = HEADER_SIZE;
+    int unread;
+
+    private Segment(final Path path, final long sequence, final MappedByteBuffer buffer) {
+      this.path = path;
+      this.sequence = sequence;
+      this.buffer = buffer;
+    }
+
+    static Segment create(final Path path, final long sequence, final int size) throws IOException {
+      final Segment segment = new Segment(path, sequence, map(path, size));
+      segment.buffer.putInt(0, MAGIC);
+      segment.buffer.putInt(4, VERSION);
+      segment.buffer.putLong(8, sequence);
+      segment.writeReadOffset();
+      return segment;
+    }
+
+    @Nullable
+    static Segment recover(final Path path) throws IOException {
+      final long size = Files.size(path);
+      if (size <= HEADER_SIZE + RECORD_HEADER_SIZE || size > Integer.MAX_VALUE) {
+        return null;
+      }
+      final MappedByteBuffer buffer = map(path, (int) size);
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        return null;
+      }
+      final Segment segment = new Segment(path, buffer.getLong(8), buffer);
+      int offset = HEADER_SIZE;
+      int readOffset = HEADER_SIZE;
+      final int storedReadOffset = buffer.getInt(READ_OFFSET_POSITION);
+      if (buffer.getInt(HEADER_CRC_POSITION) == segment.headerCrc()) {
+        readOffset = storedReadOffset;
+      }
+      while (true) {
+        final int len = segment.validRecordLength(offset);
+        if (len < 0) {
+          break;
+        }
+        if (offset >= readOffset) {
+          segment.unread++;
+        }
+        offset += RECORD_HEADER_SIZE + len;
+      }
+      segment.writeOffset = offset;
+      segment.readOffset = Math.min(Math.max(readOffset, HEADER_SIZE), offset);
+      return segment;
+    }
+
+    private static MappedByteBuffer map(final Path path, final int size) throws IOException {
+      try (FileChannel channel =
+          FileChannel.open(
+              path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    // The length of the complete, intact record at the offset, or -1
+    private int validRecordLength(final int offset) {
+      if (offset + RECORD_HEADER_SIZE > buffer.capacity()) {
+        return -1;
+      }
+      final int len = buffer.getInt(offset);
+      if (len <= 0 || len > buffer.capacity() - offset - RECORD_HEADER_SIZE) {
+        return -1;
+      }
+      return crc(offset + RECORD_HEADER_SIZE, len) == buffer.getInt(offset + 4) ? len : -1;
+    }
+
+    boolean hasRoom(final int len) {
+      return writeOffset + RECORD_HEADER_SIZE + len <= buffer.capacity();
+    }
+
+    void append(final byte[] bytes, final int off, final int len) {
+      final CRC32 crc = new CRC32();
+      crc.update(bytes, off, len);
+      final int offset = writeOffset;
+      final ByteBuffer record = buffer.duplicate();
+      record.position(offset + RECORD_HEADER_SIZE);
+      record.put(bytes, off, len);
+      buffer.putInt(offset + 4, (int) crc.getValue());
+      buffer.putInt(offset, len);
+      writeOffset = offset + RECORD_HEADER_SIZE + len;
+      // Ends the records, in case a torn record of an earlier run is still there
+      if (writeOffset + 4 <= buffer.capacity()) {
+        buffer.putInt(writeOffset, 0);
+      }
+      unread++;
+    }
+
+    byte[] peek(final int skip) {
+      int offset = readOffset;
+      for (int i = 0; i < skip; i++) {
+        offset += RECORD_HEADER_SIZE + buffer.getInt(offset);
+      }
+      final int len = buffer.getInt(offset);
+      final byte[] bytes = new byte[len];
+      final ByteBuffer record = buffer.duplicate();
+      record.position(offset + RECORD_HEADER_SIZE);
+      record.get(bytes);
+      return bytes;
+    }
+
+    void remove() {
+      readOffset += RECORD_HEADER_SIZE + buffer.getInt(readOffset);
+      unread--;
+      writeReadOffset();
+    }
+
+    private void writeReadOffset() {
+      buffer.putInt(READ_OFFSET_POSITION, readOffset);
+      buffer.putInt(HEADER_CRC_POSITION, headerCrc());
+    }
+
+    private int headerCrc() {
+      return crc(0, HEADER_CRC_POSITION);
+    }
+
+    private int crc(final int offset, final int len) {
+      final ByteBuffer bytes = buffer.duplicate();
+      bytes.limit(offset + len);
+      bytes.position(offset);
+      final CRC32 crc = new CRC32();
+      crc.update(bytes);
+      return (int) crc.getValue();
+    }
+  }
+}
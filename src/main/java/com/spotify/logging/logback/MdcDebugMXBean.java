@@ -0,0 +1,45 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.util.List;
+
+/**
+ * The MDC values a {@link MdcDebugTurboFilter} logs DEBUG for, registered as {@code
+ * com.spotify.logging:type=MdcDebug,name=<filter name>}. Changes made here last until the watched
+ * file, if any, changes.
+ */
+public interface MdcDebugMXBean {
+
+  String getMdcKey();
+
+  /** @return the level that events with a matching MDC value are logged down to */
+  String getLevel();
+
+  /** @return the MDC values to log DEBUG for, sorted */
+  List<String> getValues();
+
+  void addValue(String value);
+
+  void removeValue(String value);
+
+  void clearValues();
+}
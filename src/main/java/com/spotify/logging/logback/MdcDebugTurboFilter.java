@@ -0,0 +1,356 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import ch.qos.logback.core.util.Duration;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Marker;
+
+/**
+ * Logs DEBUG for some requests or customers only: events are accepted down to {@link
+ * #setLevel(String) DEBUG} when the MDC value of {@link #setMdcKey(String) mdcKey} is one of a set
+ * of values, whatever the level of their logger.
+ *
+ * <ul>
+ *   <li>The values can be changed at runtime through JMX, as {@code
+ *       com.spotify.logging:type=MdcDebug,name=<filter name>}, see {@link MdcDebugMXBean}.
+ *   <li>They can also be read from a {@link #setFile(String) file}, one value per line, with {@code
+ *       #} starting a comment. The file is checked for changes every {@link
+ *       #setPollInterval(Duration) 10 seconds}, and its values replace the current ones when it
+ *       changes. Polling rather than a {@link java.nio.file.WatchService} also notices Kubernetes
+ *       config maps, which are updated by swapping a symlink.
+ * </ul>
+ *
+ * <p>The values are kept in an immutable set that is replaced on every change, so while it is
+ * empty, deciding on an event takes a single volatile read.
+ */
+public class MdcDebugTurboFilter extends TurboFilter implements MdcDebugMXBean {
+
+  public static final String DEFAULT_MDC_KEY = "request-id";
+  public static final Duration DEFAULT_POLL_INTERVAL = Duration.buildBySeconds(10);
+
+  private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+  private String mdcKey = DEFAULT_MDC_KEY;
+  private Level level = Level.DEBUG;
+  private @Nullable String file;
+  private Duration pollInterval = DEFAULT_POLL_INTERVAL;
+  private boolean registerMBean = true;
+
+  private volatile Set<String> values = Collections.emptySet();
+  // The values set before the filter was started, e.g. in logback.xml
+  private final Set<String> configuredValues = new HashSet<>();
+  private final ReentrantLock updateLock = new ReentrantLock();
+
+  private volatile boolean running;
+  private volatile @Nullable Thread watcher;
+  private @Nullable FileTime lastModified;
+  private boolean readFailed;
+  private @Nullable ObjectName objectName;
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    replaceValues(configuredValues);
+    if (registerMBean) {
+      registerMBean();
+    }
+    final String file = this.file;
+    if (file != null && !file.isEmpty()) {
+      lastModified = null;
+      readFile(Paths.get(file));
+      running = true;
+      final Thread watcher =
+          new Thread(() -> runWatcher(Paths.get(file)), "MdcDebugTurboFilter-Watcher-" + getName());
+      watcher.setDaemon(true);
+      this.watcher = watcher;
+      watcher.start();
+    }
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+    values = Collections.emptySet();
+
+    running = false;
+    final Thread watcher = this.watcher;
+    if (watcher != null) {
+      LockSupport.unpark(watcher);
+      try {
+        watcher.join(CLOSE_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.watcher = null;
+    }
+    unregisterMBean();
+  }
+
+  @Override
+  public FilterReply decide(
+      final @Nullable Marker marker,
+      final Logger logger,
+      final Level level,
+      final @Nullable String format,
+      final @Nullable Object[] params,
+      final @Nullable Throwable t) {
+    final Set<String> values = this.values;
+    if (values.isEmpty()) {
+      return FilterReply.NEUTRAL;
+    }
+    if (!level.isGreaterOrEqual(this.level) || level.isGreaterOrEqual(logger.getEffectiveLevel())) {
+      return FilterReply.NEUTRAL;
+    }
+    final String value = logger.getLoggerContext().getMDCAdapter().get(mdcKey);
+    return value != null && values.contains(value) ? FilterReply.ACCEPT : FilterReply.NEUTRAL;
+  }
+
+  private void runWatcher(final Path path) {
+    final long parkNanos =
+        TimeUnit.MILLISECONDS.toNanos(Math.max(1, pollInterval.getMilliseconds()));
+    while (running) {
+      LockSupport.parkNanos(this, parkNanos);
+      if (running) {
+        readFile(path);
+      }
+    }
+  }
+
+  // Only called by start() and the watcher thread
+  private void readFile(final Path path) {
+    try {
+      final FileTime modified = Files.getLastModifiedTime(path);
+      if (modified.equals(lastModified)) {
+        return;
+      }
+      final Set<String> read = new HashSet<>();
+      for (final String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+        final int comment = line.indexOf('#');
+        final String value = (comment < 0 ? line : line.substring(0, comment)).trim();
+        if (!value.isEmpty()) {
+          read.add(value);
+        }
+      }
+      lastModified = modified;
+      replaceValues(read);
+      addInfo("Logging " + level + " for " + read.size() + " values of MDC key " + mdcKey + ".");
+      if (readFailed) {
+        readFailed = false;
+        addInfo("Reading " + path + " again.");
+      }
+    } catch (NoSuchFileException e) {
+      // A missing file means no values
+      if (lastModified != null) {
+        lastModified = null;
+        replaceValues(Collections.emptySet());
+      }
+    } catch (IOException | RuntimeException e) {
+      if (!readFailed) {
+        readFailed = true;
+        addWarn("Failed to read " + path + ", keeping the current values.", e);
+      }
+    }
+  }
+
+  private void replaceValues(final Set<String> values) {
+    updateLock.lock();
+    try {
+      this.values =
+          values.isEmpty()
+              ? Collections.emptySet()
+              : Collections.unmodifiableSet(new HashSet<>(values));
+    } finally {
+      updateLock.unlock();
+    }
+  }
+
+  @Override
+  public List<String> getValues() {
+    final List<String> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Log DEBUG for an MDC value. Before the filter is started, this sets the initial values, so that
+   * they can be listed in logback.xml.
+   *
+   * @param value the MDC value
+   */
+  @Override
+  public void addValue(final String value) {
+    if (!isStarted()) {
+      configuredValues.add(value);
+      return;
+    }
+    updateLock.lock();
+    try {
+      final Set<String> updated = new HashSet<>(values);
+      updated.add(value);
+      replaceValues(updated);
+    } finally {
+      updateLock.unlock();
+    }
+  }
+
+  @Override
+  public void removeValue(final String value) {
+    updateLock.lock();
+    try {
+      final Set<String> updated = new HashSet<>(values);
+      updated.remove(value);
+      replaceValues(updated);
+    } finally {
+      updateLock.unlock();
+    }
+  }
+
+  @Override
+  public void clearValues() {
+    replaceValues(Collections.emptySet());
+  }
+
+  private void registerMBean() {
+    try {
+      final ObjectName objectName =
+          ObjectName.getInstance("com.spotify.logging:type=MdcDebug,name=" + getName());
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      // Replace the filter of an earlier configuration
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(this, objectName);
+      this.objectName = objectName;
+    } catch (JMException e) {
+      addWarn("Failed to register MDC debug MBean.", e);
+    }
+  }
+
+  private void unregisterMBean() {
+    final ObjectName objectName = this.objectName;
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      addWarn("Failed to unregister MDC debug MBean.", e);
+    }
+    this.objectName = null;
+  }
+
+  @Override
+  public String getMdcKey() {
+    return mdcKey;
+  }
+
+  /**
+   * The MDC key to look up. Defaults to {@value #DEFAULT_MDC_KEY}.
+   *
+   * @param mdcKey the key
+   */
+  public void setMdcKey(final String mdcKey) {
+    this.mdcKey = mdcKey;
+  }
+
+  @Override
+  public String getLevel() {
+    return level.toString();
+  }
+
+  /**
+   * The level to log down to for matching MDC values. Defaults to DEBUG.
+   *
+   * @param level the level name
+   */
+  public void setLevel(final String level) {
+    this.level = Level.toLevel(level, Level.DEBUG);
+  }
+
+  public @Nullable String getFile() {
+    return file;
+  }
+
+  /**
+   * A file to read the MDC values from, one per line. Not set by default.
+   *
+   * @param file the path of the file
+   */
+  public void setFile(final @Nullable String file) {
+    this.file = file;
+  }
+
+  public Duration getPollInterval() {
+    return pollInterval;
+  }
+
+  /**
+   * How often to check the file for changes. Defaults to 10 seconds.
+   *
+   * @param pollInterval the interval
+   */
+  public void setPollInterval(final Duration pollInterval) {
+    this.pollInterval = pollInterval;
+  }
+
+  public boolean isRegisterMBean() {
+    return registerMBean;
+  }
+
+  /**
+   * Whether to register with the platform MBean server. Defaults to true.
+   *
+   * @param registerMBean false to not register
+   */
+  public void setRegisterMBean(final boolean registerMBean) {
+    this.registerMBean = registerMBean;
+  }
+}
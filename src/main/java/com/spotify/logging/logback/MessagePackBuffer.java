@@ -0,0 +1,283 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable buffer that MessagePack values are written into. Maps and arrays whose size isn't
+ * known up front are written with a 32-bit header that is filled in when they end, and strings with
+ * a header sized for the longest UTF-8 encoding of their chars, which is valid if not the most
+ * compact MessagePack. Not thread safe.
+ */
+final class MessagePackBuffer extends OutputStream {
+
+  private static final int EVENT_TIME_TYPE = 0;
+
+  private final int initialCapacity;
+  private byte[] buf;
+  private int size;
+
+  MessagePackBuffer(final int initialCapacity) {
+    this.initialCapacity = initialCapacity;
+    this.buf = new byte[initialCapacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  void reset() {
+    size = 0;
+  }
+
+  /**
+   * Empties the buffer, shrinking it back if it has grown past {@code maxRetainedCapacity}, so a
+   * single huge event doesn't pin memory for the lifetime of the buffer.
+   */
+  void reset(final int maxRetainedCapacity) {
+    size = 0;
+    if (buf.length > maxRetainedCapacity) {
+      buf = new byte[initialCapacity];
+    }
+  }
+
+  void writeTo(final OutputStream out) throws IOException {
+    out.write(buf, 0, size);
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buf, size);
+  }
+
+  @Override
+  public void write(final int b) {
+    ensureCapacity(1);
+    buf[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(final byte[] bytes, final int off, final int len) {
+    ensureCapacity(len);
+    System.arraycopy(bytes, off, buf, size, len);
+    size += len;
+  }
+
+  void writeNil() {
+    write(0xc0);
+  }
+
+  void writeBoolean(final boolean value) {
+    write(value ? 0xc3 : 0xc2);
+  }
+
+  void writeInt(final long value) {
+    if (value >= -32 && value < 128) {
+      // Positive or negative fixint
+      write((int) value);
+    } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+      ensureCapacity(5);
+      buf[size++] = (byte) 0xd2;
+      putInt((int) value);
+    } else {
+      ensureCapacity(9);
+      buf[size++] = (byte) 0xd3;
+      putLong(value);
+    }
+  }
+
+  void writeFloat(final float value) {
+    ensureCapacity(5);
+    buf[size++] = (byte) 0xca;
+    putInt(Float.floatToIntBits(value));
+  }
+
+  void writeDouble(final double value) {
+    ensureCapacity(9);
+    buf[size++] = (byte) 0xcb;
+    putLong(Double.doubleToLongBits(value));
+  }
+
+  void writeString(final CharSequence value) {
+    final int length = value.length();
+    final long maxBytes = 3L * length;
+    final int headerSize = maxBytes < 32 ? 1 : maxBytes < 256 ? 2 : maxBytes < 65536 ? 3 : 5;
+    ensureCapacity(headerSize + (int) Math.min(maxBytes, Integer.MAX_VALUE - 8));
+    final int start = size;
+    size += headerSize;
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        buf[size++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[size++] = (byte) (0xc0 | (c >> 6));
+        buf[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buf[size++] = (byte) (0xf0 | (codePoint >> 18));
+        buf[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buf[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buf[size++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        buf[size++] = (byte) '?';
+      } else {
+        buf[size++] = (byte) (0xe0 | (c >> 12));
+        buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    final int bytes = size - start - headerSize;
+    switch (headerSize) {
+      case 1:
+        buf[start] = (byte) (0xa0 | bytes);
+        break;
+      case 2:
+        buf[start] = (byte) 0xd9;
+        buf[start + 1] = (byte) bytes;
+        break;
+      case 3:
+        buf[start] = (byte) 0xda;
+        buf[start + 1] = (byte) (bytes >> 8);
+        buf[start + 2] = (byte) bytes;
+        break;
+      default:
+        buf[start] = (byte) 0xdb;
+        putInt(start + 1, bytes);
+    }
+  }
+
+  /** Write a string from bytes that are already UTF-8. */
+  void writeUtf8(final byte[] bytes, final int off, final int len) {
+    if (len < 32) {
+      write(0xa0 | len);
+    } else if (len < 256) {
+      write(0xd9);
+      write(len);
+    } else if (len < 65536) {
+      write(0xda);
+      write(len >> 8);
+      write(len);
+    } else {
+      ensureCapacity(5);
+      buf[size++] = (byte) 0xdb;
+      putInt(len);
+    }
+    write(bytes, off, len);
+  }
+
+  void writeBinaryHeader(final int len) {
+    if (len < 256) {
+      write(0xc4);
+      write(len);
+    } else if (len < 65536) {
+      write(0xc5);
+      write(len >> 8);
+      write(len);
+    } else {
+      ensureCapacity(5);
+      buf[size++] = (byte) 0xc6;
+      putInt(len);
+    }
+  }
+
+  void writeArrayHeader(final int count) {
+    if (count < 16) {
+      write(0x90 | count);
+    } else {
+      ensureCapacity(5);
+      buf[size++] = (byte) 0xdd;
+      putInt(count);
+    }
+  }
+
+  void writeMapHeader(final int count) {
+    if (count < 16) {
+      write(0x80 | count);
+    } else {
+      ensureCapacity(5);
+      buf[size++] = (byte) 0xdf;
+      putInt(count);
+    }
+  }
+
+  /** @return the position to pass to {@link #endMap(int, int)} */
+  int startMap() {
+    final int start = size;
+    ensureCapacity(5);
+    buf[size++] = (byte) 0xdf;
+    size += 4;
+    return start;
+  }
+
+  void endMap(final int start, final int count) {
+    putInt(start + 1, count);
+  }
+
+  /** @return the position to pass to {@link #endArray(int, int)} */
+  int startArray() {
+    final int start = size;
+    ensureCapacity(5);
+    buf[size++] = (byte) 0xdd;
+    size += 4;
+    return start;
+  }
+
+  void endArray(final int start, final int count) {
+    putInt(start + 1, count);
+  }
+
+  /** Write a Fluentd EventTime: extension type 0 with the seconds and nanoseconds. */
+  void writeEventTime(final long epochSecond, final int nanos) {
+    ensureCapacity(10);
+    buf[size++] = (byte) 0xd7;
+    buf[size++] = EVENT_TIME_TYPE;
+    putInt((int) epochSecond);
+    putInt(nanos);
+  }
+
+  private void putInt(final int value) {
+    putInt(size, value);
+    size += 4;
+  }
+
+  private void putInt(final int position, final int value) {
+    buf[position] = (byte) (value >>> 24);
+    buf[position + 1] = (byte) (value >>> 16);
+    buf[position + 2] = (byte) (value >>> 8);
+    buf[position + 3] = (byte) value;
+  }
+
+  private void putLong(final long value) {
+    putInt((int) (value >>> 32));
+    putInt((int) value);
+  }
+
+  private void ensureCapacity(final int extra) {
+    final int required = size + extra;
+    if (required > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.base.GeneratorBase;
+import com.fasterxml.jackson.core.json.JsonWriteContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import net.logstash.logback.decorate.JsonFactoryDecorator;
+
+/**
+ * A Jackson generator that writes MessagePack instead of JSON, so that the JSON providers of a
+ * {@link CustomLogstashEncoder} can write the same records in MessagePack. Each root value is
+ * buffered, as map and array sizes are only known when they end, and written to the output stream
+ * when the generator is flushed. Raw JSON can't be written.
+ */
+final class MessagePackGenerator extends GeneratorBase {
+
+  private final OutputStream out;
+  private final MessagePackBuffer buffer = new MessagePackBuffer(1024);
+  private int[] starts = new int[8];
+  private int depth;
+
+  MessagePackGenerator(final int features, final ObjectCodec codec, final OutputStream out) {
+    super(features, codec);
+    this.out = out;
+  }
+
+  @Override
+  public Object getOutputTarget() {
+    return out;
+  }
+
+  @Override
+  public boolean canWriteBinaryNatively() {
+    return true;
+  }
+
+  @Override
+  public void writeStartArray() throws IOException {
+    _verifyValueWrite("start an array");
+    _writeContext = _writeContext.createChildArrayContext();
+    push(buffer.startArray());
+  }
+
+  @Override
+  public void writeEndArray() throws IOException {
+    if (!_writeContext.inArray()) {
+      _reportError("Current context not Array but " + _writeContext.typeDesc());
+    }
+    final int count = _writeContext.getEntryCount();
+    _writeContext = _writeContext.clearAndGetParent();
+    buffer.endArray(pop(), count);
+  }
+
+  @Override
+  public void writeStartObject() throws IOException {
+    _verifyValueWrite("start an object");
+    _writeContext = _writeContext.createChildObjectContext();
+    push(buffer.startMap());
+  }
+
+  @Override
+  public void writeEndObject() throws IOException {
+    if (!_writeContext.inObject()) {
+      _reportError("Current context not Object but " + _writeContext.typeDesc());
+    }
+    final int count = _writeContext.getEntryCount();
+    _writeContext = _writeContext.clearAndGetParent();
+    buffer.endMap(pop(), count);
+  }
+
+  @Override
+  public void writeFieldName(final String name) throws IOException {
+    if (_writeContext.writeFieldName(name) == JsonWriteContext.STATUS_EXPECT_VALUE) {
+      _reportError("Can not write a field name, expecting a value");
+    }
+    buffer.writeString(name);
+  }
+
+  @Override
+  public void writeString(final String text) throws IOException {
+    _verifyValueWrite("write a string");
+    if (text == null) {
+      buffer.writeNil();
+    } else {
+      buffer.writeString(text);
+    }
+  }
+
+  @Override
+  public void writeString(final char[] text, final int offset, final int len) throws IOException {
+    _verifyValueWrite("write a string");
+    buffer.writeString(CharBuffer.wrap(text, offset, len));
+  }
+
+  @Override
+  public void writeRawUTF8String(final byte[] text, final int offset, final int length)
+      throws IOException {
+    writeUTF8String(text, offset, length);
+  }
+
+  @Override
+  public void writeUTF8String(final byte[] text, final int offset, final int length)
+      throws IOException {
+    _verifyValueWrite("write a string");
+    buffer.writeUtf8(text, offset, length);
+  }
+
+  @Override
+  public void writeRaw(final String text) {
+    _reportUnsupportedOperation();
+  }
+
+  @Override
+  public void writeRaw(final String text, final int offset, final int len) {
+    _reportUnsupportedOperation();
+  }
+
+  @Override
+  public void writeRaw(final char[] text, final int offset, final int len) {
+    _reportUnsupportedOperation();
+  }
+
+  @Override
+  public void writeRaw(final char c) {
+    _reportUnsupportedOperation();
+  }
+
+  @Override
+  public void writeBinary(
+      final Base64Variant variant, final byte[] data, final int offset, final int len)
+      throws IOException {
+    _verifyValueWrite("write a binary value");
+    buffer.writeBinaryHeader(len);
+    buffer.write(data, offset, len);
+  }
+
+  @Override
+  public void writeNumber(final int v) throws IOException {
+    _verifyValueWrite("write a number");
+    buffer.writeInt(v);
+  }
+
+  @Override
+  public void writeNumber(final long v) throws IOException {
+    _verifyValueWrite("write a number");
+    buffer.writeInt(v);
+  }
+
+  @Override
+  public void writeNumber(final BigInteger v) throws IOException {
+    if (v == null) {
+      writeNull();
+    } else if (v.bitLength() < 64) {
+      writeNumber(v.longValue());
+    } else {
+      writeString(v.toString());
+    }
+  }
+
+  @Override
+  public void writeNumber(final double v) throws IOException {
+    _verifyValueWrite("write a number");
+    buffer.writeDouble(v);
+  }
+
+  @Override
+  public void writeNumber(final float v) throws IOException {
+    _verifyValueWrite("write a number");
+    buffer.writeFloat(v);
+  }
+
+  @Override
+  public void writeNumber(final BigDecimal v) throws IOException {
+    if (v == null) {
+      writeNull();
+    } else {
+      writeNumber(v.doubleValue());
+    }
+  }
+
+  @Override
+  public void writeNumber(final String encodedValue) throws IOException {
+    writeString(encodedValue);
+  }
+
+  @Override
+  public void writeBoolean(final boolean state) throws IOException {
+    _verifyValueWrite("write a boolean value");
+    buffer.writeBoolean(state);
+  }
+
+  @Override
+  public void writeNull() throws IOException {
+    _verifyValueWrite("write a null");
+    buffer.writeNil();
+  }
+
+  /** Writes the buffered values to the output stream, once the root value is complete. */
+  @Override
+  public void flush() throws IOException {
+    if (_writeContext.inRoot() && buffer.size() > 0) {
+      buffer.writeTo(out);
+      buffer.reset();
+    }
+    if (isEnabled(Feature.FLUSH_PASSED_TO_STREAM)) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (isClosed()) {
+      return;
+    }
+    super.close();
+    flush();
+    if (isEnabled(Feature.AUTO_CLOSE_TARGET)) {
+      out.close();
+    }
+  }
+
+  @Override
+  protected void _releaseBuffers() {
+    // Nothing is pooled
+  }
+
+  @Override
+  protected void _verifyValueWrite(final String typeMsg) throws IOException {
+    if (_writeContext.writeValue() == JsonWriteContext.STATUS_EXPECT_NAME) {
+      _reportError("Can not " + typeMsg + ", expecting field name");
+    }
+  }
+
+  private void push(final int start) {
+    if (depth == starts.length) {
+      starts = Arrays.copyOf(starts, depth * 2);
+    }
+    starts[depth++] = start;
+  }
+
+  private int pop() {
+    return starts[--depth];
+  }
+
+  /** Replaces the JSON factory of an encoder with a {@link Factory}, keeping its object mapper. */
+  static final class FactoryDecorator implements JsonFactoryDecorator {
+    @Override
+    public JsonFactory decorate(final JsonFactory factory) {
+      return new Factory(factory.getCodec());
+    }
+  }
+
+  /** Creates {@link MessagePackGenerator}s for output streams. */
+  static final class Factory extends JsonFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    Factory(final ObjectCodec codec) {
+      super(codec);
+    }
+
+    @Override
+    public JsonGenerator createGenerator(final OutputStream out, final JsonEncoding encoding) {
+      return createGenerator(out);
+    }
+
+    @Override
+    public JsonGenerator createGenerator(final OutputStream out) {
+      return new MessagePackGenerator(_generatorFeatures, _objectCodec, out);
+    }
+
+    @Override
+    public JsonFactory copy() {
+      return new Factory(_objectCodec);
+    }
+
+    @Override
+    public boolean canHandleBinaryNatively() {
+      return true;
+    }
+
+    @Override
+    public String getFormatName() {
+      return "MessagePack";
+    }
+  }
+}
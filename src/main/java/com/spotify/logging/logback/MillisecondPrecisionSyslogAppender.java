@@ -44,54 +44,261 @@ import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.core.CoreConstants;
 import ch.qos.logback.core.Layout;
 import ch.qos.logback.core.net.SyslogAppenderBase;
+import ch.qos.logback.core.net.SyslogOutputStream;
+import ch.qos.logback.core.spi.FilterReply;
+import ch.qos.logback.core.util.Duration;
+import ch.qos.logback.core.util.FileSize;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.Nullable;
 
-/** A {@link SyslogAppender} with millisecond timestamp precision. */
+/**
+ * A {@link SyslogAppender} with millisecond timestamp precision.
+ *
+ * <p>Stack traces are sent line by line. Frames that a cause has in common with the enclosing
+ * throwable are left out, and frames of framework packages can be folded, see {@link
+ * StackFrameFolder}.
+ *
+ * <p>If a pipeline buffer size is set, events are laid out and encoded on the logging threads in
+ * parallel, and only the encoded datagrams are queued for a single writer thread that owns the
+ * socket, see {@link #setPipelineBufferSize(int)}.
+ *
+ * <p>Appending is serialized with a {@link ReentrantLock} instead of the {@code synchronized}
+ * {@link ch.qos.logback.core.AppenderBase#doAppend(Object)}, so virtual threads that log aren't
+ * pinned to their carrier thread while the datagrams are sent.
+ *
+ * <p>If a spill directory is set, datagrams are kept in memory-mapped files there while the syslog
+ * host is unreachable, and sent in order once it is reachable again, see {@link
+ * #setSpillDirectory(String)}.
+ */
 public class MillisecondPrecisionSyslogAppender extends SyslogAppender {
+  private static final int ALLOWED_REPEATS = 5;
+
   private Charset charset = StandardCharsets.UTF_8;
   private final PatternLayout stackTraceLayout = new PatternLayout();
   private @Nullable OutputStream sos;
+  private int throwableCacheSize = CachingThrowableProxyConverter.DEFAULT_CACHE_SIZE;
+  private @Nullable ThrowableRenderingCache<byte[][]> throwableCache;
+  private final ThrowableRenderingCache.Renderer<byte[][]> frameRenderer = this::renderFrameLines;
+  private @Nullable Duration stackTraceDeduplicationWindow;
+  private @Nullable StackTraceDeduplicator stackTraceDeduplicator;
+  private final List<String> foldedFramePrefixes = new ArrayList<>();
+  private int maxFramesPerThrowable;
+  private StackFrameFolder frameFolder = new StackFrameFolder(foldedFramePrefixes, 0);
+  private int pipelineBufferSize;
+  private boolean neverBlock;
+  private int maxFlushTime = RingBufferAppender.DEFAULT_MAX_FLUSH_TIME;
+  private volatile @Nullable SyslogPipeline pipeline;
+  private @Nullable String spillDirectory;
+  private FileSize spillMaxSize = new FileSize(64 * FileSize.MB_COEFFICIENT);
+  private FileSize spillSegmentSize = new FileSize(4 * FileSize.MB_COEFFICIENT);
+  private Duration spillRetryInterval = Duration.buildBySeconds(1);
+
+  private final LongAdder appended = new LongAdder();
+  private final SendCounter sendCounter = new SendCounter();
+
+  // Replaces the monitor, guard and status counters of AppenderBase.doAppend
+  private final ReentrantLock lock = new ReentrantLock();
+  private boolean guard;
+  private int statusRepeatCount;
+  private int exceptionCount;
 
   @Override
   public void start() {
     super.start();
     sos = getSyslogOutputStream();
     setupStackTraceLayout();
+    frameFolder = new StackFrameFolder(foldedFramePrefixes, maxFramesPerThrowable);
+    if (throwableCacheSize > 0) {
+      throwableCache =
+          new ThrowableRenderingCache<>(
+              throwableCacheSize, MillisecondPrecisionSyslogAppender::weighFrameLines);
+    }
+    if (stackTraceDeduplicationWindow != null
+        && stackTraceDeduplicationWindow.getMilliseconds() > 0) {
+      stackTraceDeduplicator =
+          new StackTraceDeduplicator(
+              StackTraceDeduplicator.DEFAULT_TABLE_SIZE,
+              stackTraceDeduplicationWindow.getMilliseconds());
+    }
+    if (pipelineBufferSize > 0 && isStarted()) {
+      assert sos != null;
+      pipeline = new SyslogPipeline(getName(), this, sos, pipelineBufferSize, neverBlock);
+    }
+    if (isStarted()) {
+      appended.reset();
+      FlightRecorderEvents.addStatistics(
+          this, appended::sum, this::getNumberOfElementsInQueue, this::getDroppedCount);
+    }
+  }
+
+  @Override
+  public void stop() {
+    final SyslogPipeline pipeline = this.pipeline;
+    if (pipeline != null) {
+      // Send what is already queued before the socket is closed
+      final long unsent = pipeline.stop(maxFlushTime);
+      if (unsent > 0) {
+        addWarn(
+            "Max flush time ("
+                + maxFlushTime
+                + " ms) exceeded, "
+                + unsent
+                + " queued events were possibly discarded.");
+      }
+      this.pipeline = null;
+    }
+    super.stop();
+    FlightRecorderEvents.removeStatistics(this);
+  }
+
+  @Override
+  public SyslogOutputStream createOutputStream() throws UnknownHostException, SocketException {
+    final String spillDirectory = this.spillDirectory;
+    if (spillDirectory == null || spillDirectory.isEmpty()) {
+      return super.createOutputStream();
+    }
+    final MappedSpillBuffer spill;
+    try {
+      spill =
+          new MappedSpillBuffer(
+              Paths.get(spillDirectory), spillSegmentSize.getSize(), spillMaxSize.getSize());
+    } catch (IOException | RuntimeException e) {
+      addError("Failed to open spill buffer in " + spillDirectory + ", not spilling.", e);
+      return super.createOutputStream();
+    }
+    try {
+      return new SpillingSyslogOutputStream(
+          getSyslogHost(), getPort(), spill, spillRetryInterval.getMilliseconds(), this);
+    } catch (UnknownHostException | SocketException | RuntimeException e) {
+      try {
+        spill.close();
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
+      }
+      throw e;
+    }
   }
 
   String getPrefixPattern() {
     return "%syslogStart{" + getFacility() + "}%nopex{}";
   }
 
+  /**
+   * Without a pipeline, events are appended under the appender lock like in {@link
+   * ch.qos.logback.core.AppenderBase}. With a pipeline, the logging thread encodes the event
+   * without taking the lock and queues the datagrams for the writer thread.
+   */
+  @Override
+  public void doAppend(final ILoggingEvent eventObject) {
+    final Object recording = FlightRecorderEvents.beginAppend();
+    try {
+      final SyslogPipeline pipeline = this.pipeline;
+      if (pipeline == null) {
+        lockedAppend(eventObject);
+        return;
+      }
+      if (!isStarted() || getFilterChainDecision(eventObject) == FilterReply.DENY) {
+        return;
+      }
+      appended.increment();
+      final SyslogDatagramBuffer buffer = pipeline.buffer();
+      try {
+        encode(eventObject, buffer);
+      } catch (IOException | RuntimeException e) {
+        addError("Failed to encode event for " + getSyslogHost(), e);
+        return;
+      }
+      pipeline.publish(buffer);
+    } finally {
+      FlightRecorderEvents.endAppend(recording, this, eventObject);
+    }
+  }
+
+  // code based on ch.qos.logback.core.AppenderBase.doAppend(), with a lock that doesn't pin
+  private void lockedAppend(final ILoggingEvent eventObject) {
+    lock.lock();
+    try {
+      // prevent re-entry
+      if (guard) {
+        return;
+      }
+      guard = true;
+      try {
+        if (!isStarted()) {
+          if (statusRepeatCount++ < ALLOWED_REPEATS) {
+            addWarn("Attempted to append to non started appender [" + getName() + "].");
+          }
+          return;
+        }
+        if (getFilterChainDecision(eventObject) == FilterReply.DENY) {
+          return;
+        }
+        append(eventObject);
+      } catch (RuntimeException e) {
+        if (exceptionCount++ < ALLOWED_REPEATS) {
+          addError("Appender [" + getName() + "] failed to append.", e);
+        }
+      } finally {
+        guard = false;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
   @Override
   protected void append(ILoggingEvent eventObject) {
     // code based on ch.qos.logback.core.net.SyslogAppenderBase.append()
     if (!isStarted()) {
       return;
     }
+    appended.increment();
 
+    final Object sending = FlightRecorderEvents.beginSend();
     try {
-      String msg = getLayout().doLayout(eventObject);
-      if (msg == null) {
-        return;
-      }
-      if (msg.length() > getMaxMessageSize()) {
-        msg = msg.substring(0, getMaxMessageSize());
-      }
       assert sos != null;
-      sos.write(msg.getBytes(charset));
-      sos.flush();
-      postProcess(eventObject, sos);
+      if (sending == null) {
+        encode(eventObject, sos);
+      } else {
+        // Only counted while recording; the stream is reused, as this is called under the lock
+        sendCounter.reset(sos);
+        try {
+          encode(eventObject, sendCounter);
+        } finally {
+          FlightRecorderEvents.endSend(sending, getName(), sendCounter.datagrams, sendCounter.bytes);
+        }
+      }
     } catch (IOException ioe) {
       addError("Failed to send diagram to " + getSyslogHost(), ioe);
     }
   }
 
+  // Writes the message and stack trace lines, flushing after each line to end its datagram
+  private void encode(final ILoggingEvent eventObject, final OutputStream out) throws IOException {
+    String msg = getLayout().doLayout(eventObject);
+    if (msg == null) {
+      return;
+    }
+    if (msg.length() > getMaxMessageSize()) {
+      msg = msg.substring(0, getMaxMessageSize());
+    }
+    out.write(msg.getBytes(charset));
+    out.flush();
+    postProcess(eventObject, out);
+  }
+
   @Override
   protected void postProcess(final Object eventObject, final OutputStream sw) {
     if (isThrowableExcluded()) {
@@ -105,25 +312,40 @@ public class MillisecondPrecisionSyslogAppender extends SyslogAppender {
       return;
     }
 
-    final String stackTracePrefix = stackTraceLayout.doLayout(event);
-    recursiveWrite(sw, stackTracePrefix, tp, 0, null);
+    final byte[] stackTracePrefix =
+        stackTraceLayout.doLayout(event).getBytes(StandardCharsets.UTF_8);
+
+    final StackTraceDeduplicator deduplicator = this.stackTraceDeduplicator;
+    if (deduplicator == null) {
+      recursiveWrite(sw, stackTracePrefix, tp, 0, null, null);
+      return;
+    }
+
+    final long fingerprint = StackTraceDeduplicator.fingerprint(tp);
+    final String hashSuffix = " stack_hash=" + StackTraceDeduplicator.hash(fingerprint);
+    if (deduplicator.isFirstInWindow(fingerprint, event.getTimeStamp())) {
+      recursiveWrite(sw, stackTracePrefix, tp, 0, null, hashSuffix);
+    } else {
+      try {
+        handleThrowableFirstLine(sw, tp, stackTracePrefix, 0, null, hashSuffix);
+      } catch (IOException e) {
+        // Ignored like the rest of the stack trace
+      }
+    }
   }
 
   private void recursiveWrite(
       final OutputStream sw,
-      final String stackTracePrefix,
+      final byte[] stackTracePrefix,
       final IThrowableProxy tp,
       final int indent,
-      final @Nullable String firstLinePrefix) {
-    final StackTraceElementProxy[] stepArray = tp.getStackTraceElementProxyArray();
+      final @Nullable String firstLinePrefix,
+      final @Nullable String firstLineSuffix) {
     try {
-      handleThrowableFirstLine(sw, tp, stackTracePrefix, indent, firstLinePrefix);
-      for (final StackTraceElementProxy step : stepArray) {
-        final StringBuilder sb = new StringBuilder();
-        sb.append(stackTracePrefix);
-        addIndent(sb, indent);
-        sb.append(step);
-        sw.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+      handleThrowableFirstLine(sw, tp, stackTracePrefix, indent, firstLinePrefix, firstLineSuffix);
+      for (final byte[] line : frameLines(tp, indent)) {
+        sw.write(stackTracePrefix);
+        sw.write(line);
         sw.flush();
       }
     } catch (IOException e) {
@@ -133,14 +355,48 @@ public class MillisecondPrecisionSyslogAppender extends SyslogAppender {
     final IThrowableProxy[] suppressed = tp.getSuppressed();
     if (suppressed != null) {
       for (final IThrowableProxy current : suppressed) {
-        recursiveWrite(sw, stackTracePrefix, current, indent + 1, CoreConstants.SUPPRESSED);
+        recursiveWrite(sw, stackTracePrefix, current, indent + 1, CoreConstants.SUPPRESSED, null);
       }
     }
 
     final IThrowableProxy cause = tp.getCause();
     if (cause != null) {
-      recursiveWrite(sw, stackTracePrefix, cause, indent, CoreConstants.CAUSED_BY);
+      recursiveWrite(sw, stackTracePrefix, cause, indent, CoreConstants.CAUSED_BY, null);
+    }
+  }
+
+  private byte[][] frameLines(final IThrowableProxy tp, final int indent) {
+    final ThrowableRenderingCache<byte[][]> cache = this.throwableCache;
+    return cache == null ? renderFrameLines(tp, indent) : cache.get(tp, indent, frameRenderer);
+  }
+
+  private byte[][] renderFrameLines(final IThrowableProxy tp, final int indent) {
+    final List<byte[]> lines = new ArrayList<>(tp.getStackTraceElementProxyArray().length);
+    frameFolder.fold(
+        tp,
+        new StackFrameFolder.Visitor() {
+          @Override
+          public void frame(final StackTraceElementProxy step) {
+            omitted(step.toString());
+          }
+
+          @Override
+          public void omitted(final String line) {
+            final StringBuilder sb = new StringBuilder();
+            addIndent(sb, indent);
+            sb.append(line);
+            lines.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+          }
+        });
+    return lines.toArray(new byte[0][]);
+  }
+
+  private static long weighFrameLines(final byte[][] lines) {
+    long weight = 16 + 4L * lines.length;
+    for (final byte[] line : lines) {
+      weight += 16 + line.length;
     }
+    return weight;
   }
 
   private void addIndent(final StringBuilder sb, final int indent) {
@@ -153,16 +409,21 @@ public class MillisecondPrecisionSyslogAppender extends SyslogAppender {
   private void handleThrowableFirstLine(
       final OutputStream sw,
       final IThrowableProxy tp,
-      final String stackTracePrefix,
+      final byte[] stackTracePrefix,
       final int indent,
-      final @Nullable String prefix)
+      final @Nullable String prefix,
+      final @Nullable String suffix)
       throws IOException {
-    StringBuilder sb = new StringBuilder().append(stackTracePrefix);
+    StringBuilder sb = new StringBuilder();
     addIndent(sb, indent);
     if (prefix != null) {
       sb.append(prefix);
     }
     sb.append(tp.getClassName()).append(": ").append(tp.getMessage());
+    if (suffix != null) {
+      sb.append(suffix);
+    }
+    sw.write(stackTracePrefix);
     sw.write(sb.toString().getBytes(StandardCharsets.UTF_8));
     sw.flush();
   }
@@ -173,6 +434,7 @@ public class MillisecondPrecisionSyslogAppender extends SyslogAppender {
     layout
         .getInstanceConverterMap()
         .put("syslogStart", MillisecondPrecisionSyslogStartConverter.class.getName());
+    NewLineStrippingMessageConverter.register(layout);
     if (suffixPattern == null) {
       suffixPattern = DEFAULT_SUFFIX_PATTERN;
     }
@@ -204,6 +466,194 @@ public class MillisecondPrecisionSyslogAppender extends SyslogAppender {
     }
   }
 
+  /**
+   * Get the cache of rendered stack frames, for monitoring its hit rate and memory use.
+   *
+   * @return the cache, or null if caching is disabled or the appender isn't started
+   */
+  public @Nullable ThrowableRenderingCache<byte[][]> getThrowableRenderingCache() {
+    return throwableCache;
+  }
+
+  /**
+   * Get the stack trace deduplicator, for monitoring.
+   *
+   * @return the deduplicator, or null if deduplication is disabled or the appender isn't started
+   */
+  public @Nullable StackTraceDeduplicator getStackTraceDeduplicator() {
+    return stackTraceDeduplicator;
+  }
+
+  public @Nullable Duration getStackTraceDeduplicationWindow() {
+    return stackTraceDeduplicationWindow;
+  }
+
+  /**
+   * Only send the first occurrence of a stack trace within this window in full, and only the
+   * exception line for later occurrences. The exception line is suffixed with {@code
+   * stack_hash=<hash>} in both cases, to match them up. Disabled by default.
+   *
+   * @param window the window, or null to disable deduplication
+   */
+  public void setStackTraceDeduplicationWindow(final @Nullable Duration window) {
+    this.stackTraceDeduplicationWindow = window;
+  }
+
+  public List<String> getFoldedFramePrefixes() {
+    return foldedFramePrefixes;
+  }
+
+  /**
+   * Fold runs of stack trace frames whose class name starts with this prefix, e.g. {@code
+   * io.netty.}, into a single line instead of sending one datagram per frame.
+   *
+   * @param prefix the class name prefix
+   */
+  public void addFoldedFramePrefix(final String prefix) {
+    foldedFramePrefixes.add(prefix);
+  }
+
+  public int getMaxFramesPerThrowable() {
+    return maxFramesPerThrowable;
+  }
+
+  /**
+   * The maximum number of frame lines to send for each throwable in a cause chain. Defaults to 0,
+   * meaning no limit.
+   *
+   * @param maxFramesPerThrowable the maximum number of lines
+   */
+  public void setMaxFramesPerThrowable(final int maxFramesPerThrowable) {
+    this.maxFramesPerThrowable = maxFramesPerThrowable;
+  }
+
+  public int getPipelineBufferSize() {
+    return pipelineBufferSize;
+  }
+
+  /**
+   * Lay out and encode events on the logging threads, and queue up to this many encoded events for
+   * a single writer thread that sends them. Layout then scales with the number of logging threads
+   * instead of being serialized by the appender lock, and the writer never waits for it. Defaults
+   * to 0, meaning events are encoded and sent on the logging thread under the lock.
+   *
+   * @param pipelineBufferSize the number of queued events, rounded up to a power of two
+   */
+  public void setPipelineBufferSize(final int pipelineBufferSize) {
+    this.pipelineBufferSize = pipelineBufferSize;
+  }
+
+  public boolean isNeverBlock() {
+    return neverBlock;
+  }
+
+  /**
+   * Drop events instead of waiting when the pipeline queue is full. Only used with a pipeline.
+   *
+   * @param neverBlock true to drop events
+   */
+  public void setNeverBlock(final boolean neverBlock) {
+    this.neverBlock = neverBlock;
+  }
+
+  public int getMaxFlushTime() {
+    return maxFlushTime;
+  }
+
+  /**
+   * How long {@link #stop()} waits for the pipeline writer to send queued events, in milliseconds.
+   *
+   * @param maxFlushTime the time to wait
+   */
+  public void setMaxFlushTime(final int maxFlushTime) {
+    this.maxFlushTime = maxFlushTime;
+  }
+
+  /** @return the number of events dropped because the pipeline queue was full. */
+  public long getDroppedCount() {
+    final SyslogPipeline pipeline = this.pipeline;
+    return pipeline == null ? 0 : pipeline.getDroppedCount();
+  }
+
+  /** @return the number of encoded events waiting to be sent by the pipeline writer. */
+  public int getNumberOfElementsInQueue() {
+    final SyslogPipeline pipeline = this.pipeline;
+    return pipeline == null ? 0 : pipeline.getNumberOfElementsInQueue();
+  }
+
+  public @Nullable String getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /**
+   * Keep datagrams in memory-mapped segment files in this directory while the syslog host is
+   * unreachable, and send them in order once it is reachable again. Spilled datagrams that are left
+   * when the appender is stopped are sent when it is started again. Disabled by default.
+   *
+   * <p>An unreachable host is detected by the ICMP unreachable reply to a datagram, so a host that
+   * is up but slow, or a network that drops packets silently, is not detected.
+   *
+   * @param spillDirectory the directory, or null to disable spilling
+   */
+  public void setSpillDirectory(final @Nullable String spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+
+  public FileSize getSpillMaxSize() {
+    return spillMaxSize;
+  }
+
+  /**
+   * The maximum total size of the spill files. When it is reached, the oldest segment file is
+   * deleted with its datagrams. Defaults to 64 MB.
+   *
+   * @param spillMaxSize the maximum size
+   */
+  public void setSpillMaxSize(final FileSize spillMaxSize) {
+    this.spillMaxSize = spillMaxSize;
+  }
+
+  public FileSize getSpillSegmentSize() {
+    return spillSegmentSize;
+  }
+
+  /**
+   * The size of each spill segment file. Defaults to 4 MB.
+   *
+   * @param spillSegmentSize the segment size
+   */
+  public void setSpillSegmentSize(final FileSize spillSegmentSize) {
+    this.spillSegmentSize = spillSegmentSize;
+  }
+
+  public Duration getSpillRetryInterval() {
+    return spillRetryInterval;
+  }
+
+  /**
+   * How often to try sending spilled datagrams while the syslog host is unreachable. A retry is
+   * made when the next event is sent. Defaults to 1 second.
+   *
+   * @param spillRetryInterval the interval
+   */
+  public void setSpillRetryInterval(final Duration spillRetryInterval) {
+    this.spillRetryInterval = spillRetryInterval;
+  }
+
+  public int getThrowableCacheSize() {
+    return throwableCacheSize;
+  }
+
+  /**
+   * The maximum number of throwables to keep rendered stack frames for, so that repeated exceptions
+   * only need their message lines formatted. Set to 0 to disable caching.
+   *
+   * @param throwableCacheSize the number of cache entries
+   */
+  public void setThrowableCacheSize(int throwableCacheSize) {
+    this.throwableCacheSize = throwableCacheSize;
+  }
+
   /** @return the charset used for encoding the output */
   public Charset getCharset() {
     return charset;
@@ -213,4 +663,46 @@ public class MillisecondPrecisionSyslogAppender extends SyslogAppender {
   public void setCharset(Charset charset) {
     this.charset = charset;
   }
+
+  // Counts the datagrams and bytes written to the syslog stream: each flush ends a datagram, and
+  // SyslogOutputStream doesn't send empty ones
+  private static final class SendCounter extends FilterOutputStream {
+    int datagrams;
+    long bytes;
+    private boolean pending;
+
+    SendCounter() {
+      super(OutputStream.nullOutputStream());
+    }
+
+    void reset(final OutputStream out) {
+      this.out = out;
+      datagrams = 0;
+      bytes = 0;
+      pending = false;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      out.write(b);
+      bytes++;
+      pending = true;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      out.write(b, off, len);
+      bytes += len;
+      pending |= len > 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+      if (pending) {
+        datagrams++;
+        pending = false;
+      }
+    }
+  }
 }
@@ -40,20 +40,34 @@ import ch.qos.logback.classic.pattern.SyslogStartConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.util.LevelToSyslogSeverity;
 import ch.qos.logback.core.net.SyslogAppenderBase;
-import java.text.DateFormatSymbols;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Locale;
 import java.util.Optional;
 import javax.annotation.Nullable;
 
-/** A {@link SyslogStartConverter} with millisecond timestamp precision. */
+/**
+ * A {@link SyslogStartConverter} with millisecond timestamp precision.
+ *
+ * <p>Unlike {@link SyslogStartConverter} it doesn't synchronize, so virtual threads aren't pinned
+ * to their carrier while converting. The last formatted timestamp is cached in an immutable holder
+ * instead.
+ */
 public class MillisecondPrecisionSyslogStartConverter extends SyslogStartConverter {
 
-  private long lastTimestamp = -1;
-  private @Nullable String timestampStr = null;
-  // TODO: use java.time.format
-  private @Nullable SimpleDateFormat simpleFormat;
+  private static final class FormattedTimestamp {
+    final long timestamp;
+    final String formatted;
+
+    FormattedTimestamp(final long timestamp, final String formatted) {
+      this.timestamp = timestamp;
+      this.formatted = formatted;
+    }
+  }
+
+  private volatile @Nullable FormattedTimestamp lastTimestamp;
+  private @Nullable DateTimeFormatter formatter;
   private @Nullable String localHostName;
   private int facility;
 
@@ -74,11 +88,9 @@ public class MillisecondPrecisionSyslogStartConverter extends SyslogStartConvert
         Optional.ofNullable(getContext().getProperty("hostname")).orElse(getLocalHostname());
 
     try {
-      synchronized (this) {
-        simpleFormat = createDateFormat();
-      }
+      formatter = createDateFormat();
     } catch (IllegalArgumentException e) {
-      addError("Could not instantiate SimpleDateFormat", e);
+      addError("Could not instantiate DateTimeFormatter", e);
       errorCount++;
     }
 
@@ -104,22 +116,19 @@ public class MillisecondPrecisionSyslogStartConverter extends SyslogStartConvert
   }
 
   private String computeTimeStampString(final long now) {
-    synchronized (this) {
-      if (now != lastTimestamp) {
-        assert simpleFormat != null;
-        lastTimestamp = now;
-        timestampStr = simpleFormat.format(new Date(now));
-      }
-      return timestampStr;
+    final FormattedTimestamp last = lastTimestamp;
+    if (last != null && last.timestamp == now) {
+      return last.formatted;
     }
+    assert formatter != null;
+    final String formatted = formatter.format(Instant.ofEpochMilli(now));
+    lastTimestamp = new FormattedTimestamp(now, formatted);
+    return formatted;
   }
 
-  private static SimpleDateFormat createDateFormat() {
+  private static DateTimeFormatter createDateFormat() {
     // ASL doesn't handle milliseconds.
-    if (os.equals("Mac OS X")) {
-      return new SimpleDateFormat("MMM dd HH:mm:ss", new DateFormatSymbols(Locale.US));
-    } else {
-      return new SimpleDateFormat("MMM dd HH:mm:ss.SSS", new DateFormatSymbols(Locale.US));
-    }
+    final String pattern = os.equals("Mac OS X") ? "MMM dd HH:mm:ss" : "MMM dd HH:mm:ss.SSS";
+    return DateTimeFormatter.ofPattern(pattern, Locale.US).withZone(ZoneId.systemDefault());
   }
 }
@@ -0,0 +1,107 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.pattern.ClassicConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.spotify.logging.LoggingConfigurator.ReplaceNewLines;
+import javax.annotation.Nullable;
+
+/**
+ * The formatted message without carriage returns and line feeds, like {@code
+ * %replace(%msg){'[\r\n]', ''}} but without a regular expression: messages without line breaks,
+ * which is nearly all of them, are returned as they are.
+ *
+ * <p>The conversion word {@value #CONVERSION_WORD} has to be registered with each {@link
+ * PatternLayout} that uses it, with {@link #register(PatternLayout)}, or in a configuration file
+ * with a {@code <conversionRule>}.
+ */
+public class NewLineStrippingMessageConverter extends ClassicConverter {
+
+  public static final String CONVERSION_WORD = "msgNoNewLines";
+
+  /** @return the pattern for the message without line breaks. */
+  public static String pattern() {
+    return "%" + CONVERSION_WORD;
+  }
+
+  /**
+   * Get the pattern for the message in a layout that the converter is registered with. Unlike
+   * {@link ReplaceNewLines#getMsgPattern(ReplaceNewLines)}, the pattern doesn't work in other
+   * layouts.
+   *
+   * @param replaceNewLines whether to remove line breaks
+   * @return the pattern
+   */
+  public static String msgPattern(final ReplaceNewLines replaceNewLines) {
+    return replaceNewLines == ReplaceNewLines.ON ? pattern() : "%msg";
+  }
+
+  /**
+   * Register the conversion word with a layout, before it is started.
+   *
+   * @param layout the layout
+   */
+  public static void register(final PatternLayout layout) {
+    layout
+        .getInstanceConverterMap()
+        .put(CONVERSION_WORD, NewLineStrippingMessageConverter.class.getName());
+  }
+
+  @Override
+  public String convert(final ILoggingEvent event) {
+    return strip(event.getFormattedMessage());
+  }
+
+  /**
+   * Remove carriage returns and line feeds.
+   *
+   * @param message the message
+   * @return the message itself if it has none
+   */
+  static @Nullable String strip(final @Nullable String message) {
+    if (message == null) {
+      return null;
+    }
+    final int length = message.length();
+    int i = 0;
+    while (i < length) {
+      final char c = message.charAt(i);
+      if (c == '\r' || c == '\n') {
+        break;
+      }
+      i++;
+    }
+    if (i == length) {
+      return message;
+    }
+    final StringBuilder sb = new StringBuilder(length - 1);
+    sb.append(message, 0, i);
+    for (; i < length; i++) {
+      final char c = message.charAt(i);
+      if (c != '\r' && c != '\n') {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,496 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import ch.qos.logback.core.util.Duration;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+
+/**
+ * An asynchronous appender that sheds events by level when the attached appenders can't keep up.
+ *
+ * <ul>
+ *   <li>TRACE and DEBUG events are dropped once the queue is {@link #setDebugSheddingPercent(int)
+ *       50%} full, and INFO events once it is {@link #setInfoSheddingPercent(int) 80%} full. WARN
+ *       events wait for room in the queue, unless {@link #setNeverBlock(boolean) neverBlock} is
+ *       set.
+ *   <li>ERROR events go through a separate express queue, which the worker thread always drains
+ *       first. They never wait behind queued events of lower levels, so they may be written before
+ *       events that were logged earlier.
+ *   <li>The number of dropped events by level is written to the attached appenders as a WARN event
+ *       every {@link #setDropSummaryInterval(Duration) 10 seconds}, if any events were dropped.
+ * </ul>
+ */
+public class PrioritizedAsyncAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+    implements AppenderAttachable<ILoggingEvent> {
+
+  public static final int DEFAULT_QUEUE_SIZE = 8192;
+  public static final int DEFAULT_EXPRESS_QUEUE_SIZE = 1024;
+  public static final int DEFAULT_DEBUG_SHEDDING_PERCENT = 50;
+  public static final int DEFAULT_INFO_SHEDDING_PERCENT = 80;
+  public static final Duration DEFAULT_DROP_SUMMARY_INTERVAL = Duration.buildBySeconds(10);
+  public static final int DEFAULT_MAX_FLUSH_TIME = 1000;
+
+  private static final Level[] LEVELS = {
+    Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR
+  };
+  private static final long OFFER_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+
+  private int queueSize = DEFAULT_QUEUE_SIZE;
+  private int expressQueueSize = DEFAULT_EXPRESS_QUEUE_SIZE;
+  private int debugSheddingPercent = DEFAULT_DEBUG_SHEDDING_PERCENT;
+  private int infoSheddingPercent = DEFAULT_INFO_SHEDDING_PERCENT;
+  private Duration dropSummaryInterval = DEFAULT_DROP_SUMMARY_INTERVAL;
+  private boolean neverBlock;
+  private boolean includeCallerData;
+  private int maxFlushTime = DEFAULT_MAX_FLUSH_TIME;
+
+  private BlockingQueue<ILoggingEvent> queue = new ArrayBlockingQueue<>(1);
+  private BlockingQueue<ILoggingEvent> express = new ArrayBlockingQueue<>(1);
+  private int debugLimit;
+  private int infoLimit;
+
+  private final LongAdder[] dropped = new LongAdder[LEVELS.length];
+  private final LongAdder appended = new LongAdder();
+  // The dropped counts in the last summary, only used by the worker thread
+  private final long[] summarized = new long[LEVELS.length];
+
+  private volatile boolean workerWaiting;
+  private volatile boolean running;
+  private volatile @Nullable Thread worker;
+
+  public PrioritizedAsyncAppender() {
+    for (int i = 0; i < dropped.length; i++) {
+      dropped[i] = new LongAdder();
+    }
+  }
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    if (!appenders.iteratorForAppenders().hasNext()) {
+      addError("No attached appenders found.");
+      return;
+    }
+    if (queueSize < 1 || expressQueueSize < 1) {
+      addError("Invalid queue size [" + queueSize + ", " + expressQueueSize + "]");
+      return;
+    }
+
+    queue = new ArrayBlockingQueue<>(queueSize);
+    express = new ArrayBlockingQueue<>(expressQueueSize);
+    debugLimit = limit(debugSheddingPercent);
+    infoLimit = limit(infoSheddingPercent);
+
+    running = true;
+    final Thread worker =
+        new Thread(this::runWorker, "PrioritizedAsyncAppender-Worker-" + getName());
+    worker.setDaemon(true);
+    this.worker = worker;
+    appended.reset();
+    FlightRecorderEvents.addStatistics(
+        this, appended::sum, this::getNumberOfElementsInQueue, this::getDroppedCount);
+    super.start();
+    worker.start();
+  }
+
+  // Like the discardingThreshold of AsyncAppender, 0 disables shedding
+  private int limit(final int percent) {
+    if (percent <= 0) {
+      return Integer.MAX_VALUE;
+    }
+    return (int) Math.min(queueSize, (long) queueSize * percent / 100);
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+    FlightRecorderEvents.removeStatistics(this);
+
+    // Let the worker write out what is already queued
+    running = false;
+    final Thread worker = this.worker;
+    if (worker != null) {
+      LockSupport.unpark(worker);
+      try {
+        worker.join(maxFlushTime);
+        if (worker.isAlive()) {
+          addWarn(
+              "Max flush time ("
+                  + maxFlushTime
+                  + " ms) exceeded, "
+                  + (queue.size() + express.size())
+                  + " queued events were possibly discarded.");
+          worker.interrupt();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        addError("Failed to join worker thread.", e);
+      }
+      this.worker = null;
+    }
+
+    // Like AsyncAppenderBase, so the attached appenders are flushed and closed on reset
+    appenders.detachAndStopAllAppenders();
+  }
+
+  @Override
+  protected void append(final ILoggingEvent event) {
+    appended.increment();
+    final Object recording = FlightRecorderEvents.beginAppend();
+    try {
+      final int level = event.getLevel().toInt();
+      final BlockingQueue<ILoggingEvent> target;
+      if (level >= Level.ERROR_INT) {
+        target = express;
+      } else {
+        final int size = queue.size();
+        if ((level <= Level.DEBUG_INT && size >= debugLimit)
+            || (level == Level.INFO_INT && size >= infoLimit)) {
+          drop(level);
+          return;
+        }
+        target = queue;
+      }
+
+      event.prepareForDeferredProcessing();
+      if (includeCallerData) {
+        event.getCallerData();
+      }
+      if (!enqueue(target, event)) {
+        drop(level);
+        return;
+      }
+
+      if (workerWaiting) {
+        final Thread worker = this.worker;
+        if (worker != null) {
+          LockSupport.unpark(worker);
+        }
+      }
+    } finally {
+      FlightRecorderEvents.endAppend(recording, this, event);
+    }
+  }
+
+  // Waits for room in the queue unless neverBlock is set, or the appender is stopped while waiting
+  private boolean enqueue(final BlockingQueue<ILoggingEvent> target, final ILoggingEvent event) {
+    if (target.offer(event)) {
+      return true;
+    }
+    if (neverBlock) {
+      return false;
+    }
+    boolean interrupted = false;
+    try {
+      while (isStarted()) {
+        try {
+          if (target.offer(event, OFFER_TIMEOUT_NANOS, TimeUnit.NANOSECONDS)) {
+            return true;
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      return false;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void drop(final int level) {
+    dropped[index(level)].increment();
+  }
+
+  private static int index(final int level) {
+    if (level <= Level.TRACE_INT) {
+      return 0;
+    } else if (level <= Level.DEBUG_INT) {
+      return 1;
+    } else if (level <= Level.INFO_INT) {
+      return 2;
+    } else if (level <= Level.WARN_INT) {
+      return 3;
+    } else {
+      return 4;
+    }
+  }
+
+  private void runWorker() {
+    final long summaryInterval = dropSummaryInterval.getMilliseconds();
+    long nextSummary = System.currentTimeMillis() + summaryInterval;
+    while (!Thread.currentThread().isInterrupted()) {
+      ILoggingEvent event = express.poll();
+      if (event == null) {
+        event = queue.poll();
+      }
+      if (event != null) {
+        appendLoop(event);
+      } else if (!running) {
+        break;
+      } else {
+        workerWaiting = true;
+        // Re-check after announcing that we're waiting, so an event can't be missed
+        if (express.isEmpty() && queue.isEmpty() && running) {
+          LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        workerWaiting = false;
+      }
+      if (summaryInterval > 0 && System.currentTimeMillis() >= nextSummary) {
+        writeDropSummary();
+        nextSummary = System.currentTimeMillis() + summaryInterval;
+      }
+    }
+    writeDropSummary();
+  }
+
+  private void appendLoop(final ILoggingEvent event) {
+    try {
+      appenders.appendLoopOnAppenders(event);
+    } catch (RuntimeException e) {
+      addError("Failed to append event.", e);
+    }
+  }
+
+  private void writeDropSummary() {
+    final StringBuilder counts = new StringBuilder();
+    long total = 0;
+    for (int i = 0; i < LEVELS.length; i++) {
+      final long count = dropped[i].sum();
+      final long delta = count - summarized[i];
+      summarized[i] = count;
+      if (delta > 0) {
+        if (total > 0) {
+          counts.append(", ");
+        }
+        counts.append(LEVELS[i]).append('=').append(delta);
+        total += delta;
+      }
+    }
+    if (total == 0 || !(getContext() instanceof LoggerContext)) {
+      return;
+    }
+    final Logger logger = ((LoggerContext) getContext()).getLogger(PrioritizedAsyncAppender.class);
+    final LoggingEvent summary =
+        new LoggingEvent(
+            Logger.FQCN,
+            logger,
+            Level.WARN,
+            "Dropped {} events because the queue of appender {} was full: {}",
+            null,
+            new Object[] {total, getName(), counts});
+    summary.setThreadName(Thread.currentThread().getName());
+    appendLoop(summary);
+  }
+
+  /** @return the total number of events that were dropped. */
+  public long getDroppedCount() {
+    long total = 0;
+    for (final LongAdder count : dropped) {
+      total += count.sum();
+    }
+    return total;
+  }
+
+  /**
+   * @param level the level
+   * @return the number of events of the level that were dropped
+   */
+  public long getDroppedCount(final Level level) {
+    return dropped[index(level.toInt())].sum();
+  }
+
+  /** @return the number of events waiting to be written, in both queues. */
+  public int getNumberOfElementsInQueue() {
+    return queue.size() + express.size();
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  /**
+   * The maximum number of queued events below ERROR. Defaults to {@link #DEFAULT_QUEUE_SIZE}.
+   *
+   * @param queueSize the queue size
+   */
+  public void setQueueSize(final int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  public int getExpressQueueSize() {
+    return expressQueueSize;
+  }
+
+  /**
+   * The maximum number of queued ERROR events. Defaults to {@link #DEFAULT_EXPRESS_QUEUE_SIZE}.
+   *
+   * @param expressQueueSize the express queue size
+   */
+  public void setExpressQueueSize(final int expressQueueSize) {
+    this.expressQueueSize = expressQueueSize;
+  }
+
+  public int getDebugSheddingPercent() {
+    return debugSheddingPercent;
+  }
+
+  /**
+   * Drop TRACE and DEBUG events when the queue is this full. Defaults to {@link
+   * #DEFAULT_DEBUG_SHEDDING_PERCENT}.
+   *
+   * @param debugSheddingPercent the fill level in percent, or 0 to never drop them, so they wait
+   *     for room like WARN events
+   */
+  public void setDebugSheddingPercent(final int debugSheddingPercent) {
+    this.debugSheddingPercent = debugSheddingPercent;
+  }
+
+  public int getInfoSheddingPercent() {
+    return infoSheddingPercent;
+  }
+
+  /**
+   * Drop INFO events when the queue is this full. Defaults to {@link
+   * #DEFAULT_INFO_SHEDDING_PERCENT}.
+   *
+   * @param infoSheddingPercent the fill level in percent, or 0 to never drop them, so they wait for
+   *     room like WARN events
+   */
+  public void setInfoSheddingPercent(final int infoSheddingPercent) {
+    this.infoSheddingPercent = infoSheddingPercent;
+  }
+
+  public Duration getDropSummaryInterval() {
+    return dropSummaryInterval;
+  }
+
+  /**
+   * How often to write the number of dropped events. Defaults to {@link
+   * #DEFAULT_DROP_SUMMARY_INTERVAL}. A summary is also written when the appender is stopped.
+   *
+   * @param dropSummaryInterval the interval, or 0 to only write a summary when stopped
+   */
+  public void setDropSummaryInterval(final Duration dropSummaryInterval) {
+    this.dropSummaryInterval = dropSummaryInterval;
+  }
+
+  public boolean isNeverBlock() {
+    return neverBlock;
+  }
+
+  /**
+   * Drop WARN and ERROR events instead of waiting when their queue is full. Defaults to false.
+   *
+   * @param neverBlock true to drop events when the queue is full
+   */
+  public void setNeverBlock(final boolean neverBlock) {
+    this.neverBlock = neverBlock;
+  }
+
+  public boolean isIncludeCallerData() {
+    return includeCallerData;
+  }
+
+  /**
+   * Extract caller data on the logging thread. This is expensive. Defaults to false.
+   *
+   * @param includeCallerData true to extract caller data
+   */
+  public void setIncludeCallerData(final boolean includeCallerData) {
+    this.includeCallerData = includeCallerData;
+  }
+
+  public int getMaxFlushTime() {
+    return maxFlushTime;
+  }
+
+  /**
+   * How long {@link #stop()} waits for queued events to be written, in milliseconds. Defaults to
+   * {@link #DEFAULT_MAX_FLUSH_TIME}.
+   *
+   * @param maxFlushTime the time to wait in milliseconds
+   */
+  public void setMaxFlushTime(final int maxFlushTime) {
+    this.maxFlushTime = maxFlushTime;
+  }
+
+  @Override
+  public void addAppender(final Appender<ILoggingEvent> newAppender) {
+    addInfo(
+        "Attaching appender named [" + newAppender.getName() + "] to PrioritizedAsyncAppender.");
+    appenders.addAppender(newAppender);
+  }
+
+  @Override
+  public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+    return appenders.iteratorForAppenders();
+  }
+
+  @Override
+  public Appender<ILoggingEvent> getAppender(final String name) {
+    return appenders.getAppender(name);
+  }
+
+  @Override
+  public boolean isAttached(final Appender<ILoggingEvent> appender) {
+    return appenders.isAttached(appender);
+  }
+
+  @Override
+  public void detachAndStopAllAppenders() {
+    appenders.detachAndStopAllAppenders();
+  }
+
+  @Override
+  public boolean detachAppender(final Appender<ILoggingEvent> appender) {
+    return appenders.detachAppender(appender);
+  }
+
+  @Override
+  public boolean detachAppender(final String name) {
+    return appenders.detachAppender(name);
+  }
+}
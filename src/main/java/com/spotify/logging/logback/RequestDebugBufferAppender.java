@@ -0,0 +1,503 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import org.slf4j.MDC;
+
+/**
+ * Holds back the DEBUG and TRACE events of a request, and only writes them to the attached
+ * appenders if the request logs an ERROR. Enable DEBUG on the loggers of interest and put this
+ * appender in front of the real ones, and failed requests come with their debug history while
+ * successful ones cost little more than at INFO.
+ *
+ * <ul>
+ *   <li>A request is identified by the MDC value of {@link #setMdcKey(String) mdcKey}. Events below
+ *       INFO of a request are kept in a buffer of that request; other events are appended right
+ *       away. Events below INFO outside of a request are dropped, unless {@link
+ *       #setDiscardUntagged(boolean) discardUntagged} is turned off.
+ *   <li>When a request logs an ERROR, its buffered events are appended first, in the order they
+ *       were logged, and then the error.
+ *   <li>The buffers of a request are discarded by {@link #endRequest(String)}, or by closing the
+ *       {@link RequestScope} that {@link #openRequest(String)} returns.
+ *   <li>Memory is bounded twice: each request keeps its {@link #setMaxEventsPerRequest(int) latest
+ *       100} events, and when all requests together have {@link #setMaxBufferedEvents(int) 10000}
+ *       the request that started buffering first is discarded.
+ * </ul>
+ *
+ * <p>Buffered events are appended later than they were logged, so like with an {@link
+ * ch.qos.logback.classic.AsyncAppender} caller data is only right if {@link
+ * #setIncludeCallerData(boolean) includeCallerData} is set. Messages, the thread name and the MDC
+ * are captured when an event is held back, so later changes to the arguments don't show up.
+ */
+public class RequestDebugBufferAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+    implements AppenderAttachable<ILoggingEvent> {
+
+  public static final String DEFAULT_MDC_KEY = "request-id";
+  public static final int DEFAULT_MAX_EVENTS_PER_REQUEST = 100;
+  public static final int DEFAULT_MAX_BUFFERED_EVENTS = 10_000;
+
+  private static final int INITIAL_BUFFER_CAPACITY = 8;
+  private static final int MIN_CLOSED_TO_SWEEP = 64;
+
+  private static final ILoggingEvent[] NO_EVENTS = new ILoggingEvent[0];
+
+  private static final Set<RequestDebugBufferAppender> STARTED = ConcurrentHashMap.newKeySet();
+
+  private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+
+  private String mdcKey = DEFAULT_MDC_KEY;
+  private int maxEventsPerRequest = DEFAULT_MAX_EVENTS_PER_REQUEST;
+  private int maxBufferedEvents = DEFAULT_MAX_BUFFERED_EVENTS;
+  private boolean discardUntagged = true;
+  private boolean includeCallerData;
+
+  private final Map<String, RequestBuffer> buffers = new ConcurrentHashMap<>();
+  // Buffers in the order they were created, for evicting the oldest. Closed buffers are left in
+  // place, since removing them is linear, and are skipped when evicting or swept out in bulk.
+  private final Queue<RequestBuffer> order = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger closedInOrder = new AtomicInteger();
+  private final AtomicInteger buffered = new AtomicInteger();
+  private final LongAdder flushed = new LongAdder();
+  private final LongAdder discarded = new LongAdder();
+
+  /**
+   * Put a request id in the MDC under the {@link #setMdcKey(String) mdcKey} of every started
+   * appender of this class, or under {@link #DEFAULT_MDC_KEY} if none is started, until the
+   * returned scope is closed. Closing it puts back the values the keys had before, and discards the
+   * events buffered for the request.
+   *
+   * @param requestId the id of the request
+   * @return the scope of the request
+   */
+  public static RequestScope openRequest(final String requestId) {
+    final Set<String> keys = new HashSet<>();
+    for (final RequestDebugBufferAppender appender : STARTED) {
+      keys.add(appender.mdcKey);
+    }
+    if (keys.isEmpty()) {
+      keys.add(DEFAULT_MDC_KEY);
+    }
+    final Map<String, String> previous = new HashMap<>();
+    for (final String key : keys) {
+      previous.put(key, MDC.get(key));
+      MDC.put(key, requestId);
+    }
+    return new RequestScope(requestId, previous);
+  }
+
+  /**
+   * Discard the events buffered for a request by all started appenders of this class, since the
+   * request didn't fail.
+   *
+   * @param requestId the id of the request
+   */
+  public static void endRequest(final String requestId) {
+    for (final RequestDebugBufferAppender appender : STARTED) {
+      appender.discard(requestId);
+    }
+  }
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    if (!appenders.iteratorForAppenders().hasNext()) {
+      addError("No attached appenders found.");
+      return;
+    }
+    if (maxEventsPerRequest < 1 || maxBufferedEvents < 1) {
+      addError("Invalid buffer size [" + maxEventsPerRequest + ", " + maxBufferedEvents + "]");
+      return;
+    }
+    STARTED.add(this);
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+    STARTED.remove(this);
+    for (final RequestBuffer buffer : buffers.values()) {
+      discard(buffer);
+    }
+    order.clear();
+    closedInOrder.set(0);
+    appenders.detachAndStopAllAppenders();
+  }
+
+  @Override
+  protected void append(final ILoggingEvent event) {
+    final boolean debug = event.getLevel().toInt() < Level.INFO_INT;
+    final String requestId = event.getMDCPropertyMap().get(mdcKey);
+    if (requestId == null) {
+      if (!debug || !discardUntagged) {
+        appendLoop(event);
+      }
+      return;
+    }
+    if (debug) {
+      buffer(requestId, event);
+      return;
+    }
+    if (event.getLevel().toInt() >= Level.ERROR_INT) {
+      flush(requestId);
+    }
+    appendLoop(event);
+  }
+
+  private void buffer(final String requestId, final ILoggingEvent event) {
+    // Capture what would otherwise be taken from the thread that appends the event later, and
+    // format the message before its arguments change
+    event.prepareForDeferredProcessing();
+    if (includeCallerData) {
+      event.getCallerData();
+    }
+    while (true) {
+      final RequestBuffer buffer = buffers.computeIfAbsent(requestId, this::newBuffer);
+      final int added = buffer.add(event, maxEventsPerRequest);
+      if (added < 0) {
+        // Flushed or discarded in the meantime, start a new one
+        buffers.remove(requestId, buffer);
+        continue;
+      }
+      if (added > 0 && buffered.addAndGet(added) > maxBufferedEvents) {
+        evictUntilUnderLimit();
+      }
+      return;
+    }
+  }
+
+  private RequestBuffer newBuffer(final String requestId) {
+    final RequestBuffer buffer =
+        new RequestBuffer(requestId, Math.min(INITIAL_BUFFER_CAPACITY, maxEventsPerRequest));
+    order.add(buffer);
+    return buffer;
+  }
+
+  private void evictUntilUnderLimit() {
+    while (buffered.get() > maxBufferedEvents) {
+      final RequestBuffer oldest = order.poll();
+      if (oldest == null) {
+        return;
+      }
+      if (!oldest.isClosed()) {
+        discard(oldest);
+      }
+      closedInOrder.decrementAndGet();
+    }
+  }
+
+  private void flush(final String requestId) {
+    final RequestBuffer buffer = buffers.remove(requestId);
+    if (buffer == null) {
+      return;
+    }
+    final ILoggingEvent[] events = close(buffer);
+    buffered.addAndGet(-events.length);
+    for (final ILoggingEvent event : events) {
+      appendLoop(event);
+    }
+    flushed.add(events.length);
+  }
+
+  private void discard(final String requestId) {
+    final RequestBuffer buffer = buffers.get(requestId);
+    if (buffer != null) {
+      discard(buffer);
+    }
+  }
+
+  private void discard(final RequestBuffer buffer) {
+    buffers.remove(buffer.requestId, buffer);
+    final int count = close(buffer).length;
+    buffered.addAndGet(-count);
+    discarded.add(count);
+  }
+
+  private ILoggingEvent[] close(final RequestBuffer buffer) {
+    final ILoggingEvent[] events = buffer.close();
+    if (events == null) {
+      return NO_EVENTS;
+    }
+    // Sweep once most of the queue is closed buffers, so each close costs constant time on average
+    final int closed = closedInOrder.incrementAndGet();
+    if (closed > MIN_CLOSED_TO_SWEEP
+        && closed > buffers.size()
+        && closedInOrder.compareAndSet(closed, 0)) {
+      order.removeIf(RequestBuffer::isClosed);
+    }
+    return events;
+  }
+
+  private void appendLoop(final ILoggingEvent event) {
+    try {
+      appenders.appendLoopOnAppenders(event);
+    } catch (RuntimeException e) {
+      addError("Failed to append event.", e);
+    }
+  }
+
+  /** @return the number of events currently held back, for all requests. */
+  public int getBufferedCount() {
+    return Math.max(0, buffered.get());
+  }
+
+  /** @return the number of held back events appended because their request logged an error. */
+  public long getFlushedCount() {
+    return flushed.sum();
+  }
+
+  /**
+   * @return the number of held back events discarded, because their request ended or was evicted.
+   */
+  public long getDiscardedCount() {
+    return discarded.sum();
+  }
+
+  public String getMdcKey() {
+    return mdcKey;
+  }
+
+  /**
+   * The MDC key whose value identifies a request. Defaults to {@value #DEFAULT_MDC_KEY}.
+   *
+   * @param mdcKey the key
+   */
+  public void setMdcKey(final String mdcKey) {
+    this.mdcKey = mdcKey;
+  }
+
+  public int getMaxEventsPerRequest() {
+    return maxEventsPerRequest;
+  }
+
+  /**
+   * The number of events to hold back per request; older ones are dropped to make room. Defaults to
+   * {@value #DEFAULT_MAX_EVENTS_PER_REQUEST}.
+   *
+   * @param maxEventsPerRequest the number of events
+   */
+  public void setMaxEventsPerRequest(final int maxEventsPerRequest) {
+    this.maxEventsPerRequest = maxEventsPerRequest;
+  }
+
+  public int getMaxBufferedEvents() {
+    return maxBufferedEvents;
+  }
+
+  /**
+   * The number of events to hold back for all requests together. Defaults to {@value
+   * #DEFAULT_MAX_BUFFERED_EVENTS}.
+   *
+   * @param maxBufferedEvents the number of events
+   */
+  public void setMaxBufferedEvents(final int maxBufferedEvents) {
+    this.maxBufferedEvents = maxBufferedEvents;
+  }
+
+  public boolean isDiscardUntagged() {
+    return discardUntagged;
+  }
+
+  /**
+   * Whether to drop DEBUG and TRACE events that aren't part of a request. Defaults to true.
+   *
+   * @param discardUntagged false to append them right away
+   */
+  public void setDiscardUntagged(final boolean discardUntagged) {
+    this.discardUntagged = discardUntagged;
+  }
+
+  public boolean isIncludeCallerData() {
+    return includeCallerData;
+  }
+
+  /**
+   * Capture the caller data of held back events on the logging thread. Defaults to false.
+   *
+   * @param includeCallerData true if the attached appenders use caller data
+   */
+  public void setIncludeCallerData(final boolean includeCallerData) {
+    this.includeCallerData = includeCallerData;
+  }
+
+  @Override
+  public void addAppender(final Appender<ILoggingEvent> newAppender) {
+    addInfo(
+        "Attaching appender named [" + newAppender.getName() + "] to RequestDebugBufferAppender.");
+    appenders.addAppender(newAppender);
+  }
+
+  @Override
+  public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+    return appenders.iteratorForAppenders();
+  }
+
+  @Override
+  public Appender<ILoggingEvent> getAppender(final String name) {
+    return appenders.getAppender(name);
+  }
+
+  @Override
+  public boolean isAttached(final Appender<ILoggingEvent> appender) {
+    return appenders.isAttached(appender);
+  }
+
+  @Override
+  public void detachAndStopAllAppenders() {
+    appenders.detachAndStopAllAppenders();
+  }
+
+  @Override
+  public boolean detachAppender(final Appender<ILoggingEvent> appender) {
+    return appenders.detachAppender(appender);
+  }
+
+  @Override
+  public boolean detachAppender(final String name) {
+    return appenders.detachAppender(name);
+  }
+
+  /** The MDC entries of a request, see {@link #openRequest(String)}. */
+  public static final class RequestScope implements AutoCloseable {
+
+    private final String requestId;
+    // The values the MDC keys had before the request, null if they weren't set
+    private final Map<String, String> previous;
+
+    private RequestScope(final String requestId, final Map<String, String> previous) {
+      this.requestId = requestId;
+      this.previous = previous;
+    }
+
+    public String getRequestId() {
+      return requestId;
+    }
+
+    /**
+     * Put back the MDC values from before the request and discard the events buffered for the
+     * request.
+     */
+    @Override
+    public void close() {
+      previous.forEach(
+          (key, value) -> {
+            if (value == null) {
+              MDC.remove(key);
+            } else {
+              MDC.put(key, value);
+            }
+          });
+      endRequest(requestId);
+    }
+  }
+
+  // The latest events of a request, in a ring that grows up to the per-request limit
+  private static final class RequestBuffer {
+
+    final String requestId;
+    private final ReentrantLock lock = new ReentrantLock();
+    private ILoggingEvent[] events;
+    private int start;
+    private int size;
+    private volatile boolean closed;
+
+    RequestBuffer(final String requestId, final int initialCapacity) {
+      this.requestId = requestId;
+      this.events = new ILoggingEvent[initialCapacity];
+    }
+
+    /** @return 1 if the buffer grew, 0 if the oldest event was replaced, -1 if it is closed */
+    int add(final ILoggingEvent event, final int maxEvents) {
+      lock.lock();
+      try {
+        if (closed) {
+          return -1;
+        }
+        if (size == events.length && size < maxEvents) {
+          final ILoggingEvent[] grown = new ILoggingEvent[Math.min(maxEvents, events.length * 2)];
+          for (int i = 0; i < size; i++) {
+            grown[i] = events[(start + i) % events.length];
+          }
+          events = grown;
+          start = 0;
+        }
+        if (size < events.length) {
+          events[(start + size) % events.length] = event;
+          size++;
+          return 1;
+        }
+        events[start] = event;
+        start = (start + 1) % events.length;
+        return 0;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    boolean isClosed() {
+      return closed;
+    }
+
+    /** Close the buffer and take out its events, oldest first, or null if it was closed already. */
+    @Nullable ILoggingEvent[] close() {
+      lock.lock();
+      try {
+        if (closed) {
+          return null;
+        }
+        final ILoggingEvent[] taken = new ILoggingEvent[size];
+        for (int i = 0; i < size; i++) {
+          taken[i] = events[(start + i) % events.length];
+        }
+        Arrays.fill(events, null);
+        size = 0;
+        closed = true;
+        return taken;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,418 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+
+/**
+ * An asynchronous appender backed by a ring buffer of preallocated, mutable event slots, in the
+ * style of the LMAX Disruptor. Logging threads claim a slot with a single compare-and-set, copy the
+ * fields of the event into it and publish it; a single worker thread hands the slots to the
+ * attached appenders.
+ *
+ * <p>Compared to {@link ch.qos.logback.classic.AsyncAppender}, no lock is taken and no event object
+ * is put on a queue, and only the fields that are needed are copied on the logging thread: caller
+ * data only if {@link #setIncludeCallerData(boolean) enabled}, MDC only unless {@link
+ * #setIncludeMdc(boolean) disabled}, and the message is formatted on the worker thread unless
+ * {@link #setFormatMessageOnCaller(boolean) enabled}. Formatting on the worker thread is only safe
+ * if message arguments aren't modified after they have been logged.
+ *
+ * <p>The events passed to the attached appenders are reused as soon as the appenders return, so
+ * appenders that keep events around, such as another async appender, must not be attached.
+ */
+public class RingBufferAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+    implements AppenderAttachable<ILoggingEvent> {
+
+  /** How the worker thread waits for events, trading latency against CPU use. */
+  public enum WaitStrategy {
+    /** Park until a logging thread signals a new event. Uses the least CPU. */
+    BLOCKING,
+    /** Spin, then yield, then park for short periods. Low latency without signalling overhead. */
+    SLEEPING,
+    /** Spin, then yield. Low latency, but keeps a core busy while idle. */
+    YIELDING,
+    /** Spin. Lowest latency, but keeps a core fully busy. */
+    BUSY_SPIN
+  }
+
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+  public static final int DEFAULT_MAX_FLUSH_TIME = 1000;
+
+  private static final int SPIN_TRIES = 100;
+  private static final int YIELD_TRIES = 100;
+  private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final long BLOCKING_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+
+  private int bufferSize = DEFAULT_BUFFER_SIZE;
+  private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+  private boolean neverBlock;
+  private boolean includeCallerData;
+  private boolean includeMdc = true;
+  private boolean formatMessageOnCaller;
+  private int maxFlushTime = DEFAULT_MAX_FLUSH_TIME;
+
+  private RingBufferLoggingEvent[] slots = new RingBufferLoggingEvent[0];
+  private int mask;
+
+  // The next sequence to be claimed by a logging thread
+  private final AtomicLong claimed = new AtomicLong();
+  // The next sequence to be handed to the appenders by the worker
+  private final AtomicLong consumed = new AtomicLong();
+
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder appended = new LongAdder();
+
+  private volatile boolean workerWaiting;
+  private volatile boolean running;
+  private volatile @Nullable Thread worker;
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    if (!appenders.iteratorForAppenders().hasNext()) {
+      addError("No attached appenders found.");
+      return;
+    }
+    if (bufferSize < 1) {
+      addError("Invalid buffer size [" + bufferSize + "]");
+      return;
+    }
+
+    final int size = Integer.highestOneBit(Math.min(bufferSize, 1 << 30) * 2 - 1);
+    slots = new RingBufferLoggingEvent[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new RingBufferLoggingEvent();
+    }
+    mask = size - 1;
+    claimed.set(0);
+    consumed.set(0);
+
+    running = true;
+    final Thread worker = new Thread(this::runWorker, "RingBufferAppender-Worker-" + getName());
+    worker.setDaemon(true);
+    this.worker = worker;
+    appended.reset();
+    FlightRecorderEvents.addStatistics(
+        this, appended::sum, () -> (int) (claimed.get() - consumed.get()), this::getDroppedCount);
+    super.start();
+    worker.start();
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+    FlightRecorderEvents.removeStatistics(this);
+
+    // Let the worker write out what is already in the buffer
+    running = false;
+    final Thread worker = this.worker;
+    if (worker != null) {
+      LockSupport.unpark(worker);
+      try {
+        worker.join(maxFlushTime);
+        if (worker.isAlive()) {
+          addWarn(
+              "Max flush time ("
+                  + maxFlushTime
+                  + " ms) exceeded, "
+                  + (claimed.get() - consumed.get())
+                  + " queued events were possibly discarded.");
+          worker.interrupt();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        addError("Failed to join worker thread.", e);
+      }
+      this.worker = null;
+    }
+
+    // Like AsyncAppenderBase, so the attached appenders are flushed and closed on reset
+    appenders.detachAndStopAllAppenders();
+  }
+
+  @Override
+  protected void append(final ILoggingEvent event) {
+    appended.increment();
+    final Object recording = FlightRecorderEvents.beginAppend();
+    try {
+      final long sequence = claim();
+      if (sequence < 0) {
+        dropped.increment();
+        return;
+      }
+      final RingBufferLoggingEvent slot = slots[(int) sequence & mask];
+      slot.copyFrom(event, includeCallerData, includeMdc, formatMessageOnCaller);
+      slot.sequence = sequence;
+
+      if (workerWaiting) {
+        final Thread worker = this.worker;
+        if (worker != null) {
+          LockSupport.unpark(worker);
+        }
+      }
+    } finally {
+      FlightRecorderEvents.endAppend(recording, this, event);
+    }
+  }
+
+  // Claims the next free slot, waiting for the worker to free one if the buffer is full. Returns
+  // -1 if the buffer is full and neverBlock is set, or the appender is stopped while waiting.
+  private long claim() {
+    int tries = 0;
+    while (true) {
+      final long sequence = claimed.get();
+      if (sequence - consumed.get() >= slots.length) {
+        if (neverBlock || !isStarted()) {
+          return -1;
+        }
+        tries = backOff(tries);
+        continue;
+      }
+      if (claimed.compareAndSet(sequence, sequence + 1)) {
+        return sequence;
+      }
+    }
+  }
+
+  private static int backOff(final int tries) {
+    if (tries < SPIN_TRIES) {
+      // Spin
+    } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(SLEEP_NANOS);
+      return tries;
+    }
+    return tries + 1;
+  }
+
+  private void runWorker() {
+    long sequence = consumed.get();
+    int tries = 0;
+    while (true) {
+      final RingBufferLoggingEvent slot = slots[(int) sequence & mask];
+      if (slot.sequence == sequence) {
+        try {
+          appenders.appendLoopOnAppenders(slot);
+        } catch (RuntimeException e) {
+          addError("Failed to append event.", e);
+        }
+        slot.clear();
+        sequence++;
+        consumed.lazySet(sequence);
+        tries = 0;
+      } else if (!running && sequence == claimed.get()) {
+        break;
+      } else if (Thread.currentThread().isInterrupted()) {
+        break;
+      } else {
+        tries = await(tries, sequence);
+      }
+    }
+    if (sequence != claimed.get()) {
+      addWarn("Worker thread interrupted, " + (claimed.get() - sequence) + " events not written.");
+    }
+  }
+
+  private int await(final int tries, final long sequence) {
+    switch (waitStrategy) {
+      case BUSY_SPIN:
+        return tries;
+      case YIELDING:
+        if (tries >= SPIN_TRIES) {
+          Thread.yield();
+        }
+        return tries + 1;
+      case SLEEPING:
+        return backOff(tries);
+      case BLOCKING:
+      default:
+        if (tries < SPIN_TRIES) {
+          return tries + 1;
+        }
+        workerWaiting = true;
+        // Re-check after announcing that we're waiting, so a publish can't be missed. The timeout
+        // covers the stop() race and bounds the wait if an unpark is lost anyway.
+        if (slots[(int) sequence & mask].sequence != sequence && running) {
+          LockSupport.parkNanos(this, BLOCKING_PARK_NANOS);
+        }
+        workerWaiting = false;
+        return tries;
+    }
+  }
+
+  /** @return the number of events that were dropped because the buffer was full. */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /** @return the number of events waiting to be handed to the attached appenders. */
+  public int getNumberOfElementsInBuffer() {
+    return (int) Math.max(0, claimed.get() - consumed.get());
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * The number of preallocated event slots, rounded up to a power of two. Defaults to {@link
+   * #DEFAULT_BUFFER_SIZE}.
+   *
+   * @param bufferSize the number of slots
+   */
+  public void setBufferSize(final int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  public WaitStrategy getWaitStrategy() {
+    return waitStrategy;
+  }
+
+  /**
+   * How the worker thread waits for events. Defaults to {@link WaitStrategy#BLOCKING}.
+   *
+   * @param waitStrategy the wait strategy
+   */
+  public void setWaitStrategy(final WaitStrategy waitStrategy) {
+    this.waitStrategy = waitStrategy;
+  }
+
+  public boolean isNeverBlock() {
+    return neverBlock;
+  }
+
+  /**
+   * Drop events instead of waiting when the buffer is full. Defaults to false.
+   *
+   * @param neverBlock true to drop events when the buffer is full
+   */
+  public void setNeverBlock(final boolean neverBlock) {
+    this.neverBlock = neverBlock;
+  }
+
+  public boolean isIncludeCallerData() {
+    return includeCallerData;
+  }
+
+  /**
+   * Copy caller data on the logging thread. This is expensive. Defaults to false.
+   *
+   * @param includeCallerData true to copy caller data
+   */
+  public void setIncludeCallerData(final boolean includeCallerData) {
+    this.includeCallerData = includeCallerData;
+  }
+
+  public boolean isIncludeMdc() {
+    return includeMdc;
+  }
+
+  /**
+   * Copy the MDC on the logging thread. Defaults to true.
+   *
+   * @param includeMdc false if the attached appenders don't use the MDC
+   */
+  public void setIncludeMdc(final boolean includeMdc) {
+    this.includeMdc = includeMdc;
+  }
+
+  public boolean isFormatMessageOnCaller() {
+    return formatMessageOnCaller;
+  }
+
+  /**
+   * Format the message on the logging thread, for message arguments that may be modified after
+   * logging. Defaults to false.
+   *
+   * @param formatMessageOnCaller true to format the message on the logging thread
+   */
+  public void setFormatMessageOnCaller(final boolean formatMessageOnCaller) {
+    this.formatMessageOnCaller = formatMessageOnCaller;
+  }
+
+  public int getMaxFlushTime() {
+    return maxFlushTime;
+  }
+
+  /**
+   * How long {@link #stop()} waits for buffered events to be written, in milliseconds. Defaults to
+   * {@link #DEFAULT_MAX_FLUSH_TIME}.
+   *
+   * @param maxFlushTime the time to wait in milliseconds
+   */
+  public void setMaxFlushTime(final int maxFlushTime) {
+    this.maxFlushTime = maxFlushTime;
+  }
+
+  @Override
+  public void addAppender(final Appender<ILoggingEvent> newAppender) {
+    addInfo("Attaching appender named [" + newAppender.getName() + "] to RingBufferAppender.");
+    appenders.addAppender(newAppender);
+  }
+
+  @Override
+  public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+    return appenders.iteratorForAppenders();
+  }
+
+  @Override
+  public Appender<ILoggingEvent> getAppender(final String name) {
+    return appenders.getAppender(name);
+  }
+
+  @Override
+  public boolean isAttached(final Appender<ILoggingEvent> appender) {
+    return appenders.isAttached(appender);
+  }
+
+  @Override
+  public void detachAndStopAllAppenders() {
+    appenders.detachAndStopAllAppenders();
+  }
+
+  @Override
+  public boolean detachAppender(final Appender<ILoggingEvent> appender) {
+    return appenders.detachAppender(appender);
+  }
+
+  @Override
+  public boolean detachAppender(final String name) {
+    return appenders.detachAppender(name);
+  }
+}
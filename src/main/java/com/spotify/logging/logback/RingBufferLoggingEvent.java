@@ -0,0 +1,221 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.slf4j.Marker;
+import org.slf4j.event.KeyValuePair;
+import org.slf4j.helpers.MessageFormatter;
+
+/**
+ * A preallocated, reusable slot of a {@link RingBufferAppender}. The fields of an event are copied
+ * into it on the logging thread, and it is handed to the downstream appenders on the worker thread.
+ * It must not be used after the downstream appenders return, as the slot will be overwritten.
+ */
+final class RingBufferLoggingEvent implements ILoggingEvent {
+
+  private static final StackTraceElement[] NO_CALLER_DATA = new StackTraceElement[0];
+
+  // Written by the producer after the other fields, read by the consumer before them
+  volatile long sequence = -1;
+
+  private @Nullable String threadName;
+  private @Nullable Level level;
+  private @Nullable String message;
+  private @Nullable Object[] argumentArray;
+  private @Nullable String formattedMessage;
+  private @Nullable String loggerName;
+  private @Nullable LoggerContextVO loggerContextVO;
+  private @Nullable IThrowableProxy throwableProxy;
+  private @Nullable StackTraceElement[] callerData;
+  private @Nullable List<Marker> markerList;
+  private Map<String, String> mdc = Collections.emptyMap();
+  private @Nullable List<KeyValuePair> keyValuePairs;
+  private @Nullable Instant instant;
+  private long timeStamp;
+  private int nanoseconds;
+  private long sequenceNumber;
+
+  /**
+   * Copy the fields of an event. This is called on the logging thread, so anything that depends on
+   * the thread, such as the thread name, MDC and caller data, is read here.
+   */
+  void copyFrom(
+      final ILoggingEvent event,
+      final boolean includeCallerData,
+      final boolean includeMdc,
+      final boolean formatMessage) {
+    threadName = event.getThreadName();
+    level = event.getLevel();
+    message = event.getMessage();
+    argumentArray = event.getArgumentArray();
+    formattedMessage = formatMessage ? event.getFormattedMessage() : null;
+    loggerName = event.getLoggerName();
+    loggerContextVO = event.getLoggerContextVO();
+    throwableProxy = event.getThrowableProxy();
+    callerData = includeCallerData ? event.getCallerData() : NO_CALLER_DATA;
+    markerList = event.getMarkerList();
+    if (includeMdc) {
+      final Map<String, String> mdc = event.getMDCPropertyMap();
+      this.mdc = mdc == null ? Collections.emptyMap() : mdc;
+    } else {
+      this.mdc = Collections.emptyMap();
+    }
+    keyValuePairs = event.getKeyValuePairs();
+    instant = event.getInstant();
+    timeStamp = event.getTimeStamp();
+    nanoseconds = event.getNanoseconds();
+    sequenceNumber = event.getSequenceNumber();
+  }
+
+  /** Drop the references to the copied event, so they can be garbage collected. */
+  void clear() {
+    threadName = null;
+    level = null;
+    message = null;
+    argumentArray = null;
+    formattedMessage = null;
+    loggerName = null;
+    loggerContextVO = null;
+    throwableProxy = null;
+    callerData = null;
+    markerList = null;
+    mdc = Collections.emptyMap();
+    keyValuePairs = null;
+    instant = null;
+  }
+
+  @Override
+  public String getThreadName() {
+    return threadName;
+  }
+
+  @Override
+  public Level getLevel() {
+    return level;
+  }
+
+  @Override
+  public String getMessage() {
+    return message;
+  }
+
+  @Override
+  public Object[] getArgumentArray() {
+    return argumentArray;
+  }
+
+  @Override
+  public String getFormattedMessage() {
+    if (formattedMessage == null) {
+      formattedMessage =
+          argumentArray == null
+              ? message
+              : MessageFormatter.arrayFormat(message, argumentArray).getMessage();
+    }
+    return formattedMessage;
+  }
+
+  @Override
+  public String getLoggerName() {
+    return loggerName;
+  }
+
+  @Override
+  public LoggerContextVO getLoggerContextVO() {
+    return loggerContextVO;
+  }
+
+  @Override
+  public IThrowableProxy getThrowableProxy() {
+    return throwableProxy;
+  }
+
+  @Override
+  public StackTraceElement[] getCallerData() {
+    return callerData == null ? NO_CALLER_DATA : callerData;
+  }
+
+  @Override
+  public boolean hasCallerData() {
+    return callerData != null && callerData.length > 0;
+  }
+
+  @Override
+  public List<Marker> getMarkerList() {
+    return markerList;
+  }
+
+  @Override
+  public Map<String, String> getMDCPropertyMap() {
+    return mdc;
+  }
+
+  /** @deprecated Replaced by {@link #getMDCPropertyMap()} */
+  @Deprecated
+  @Override
+  public Map<String, String> getMdc() {
+    return mdc;
+  }
+
+  @Override
+  public long getTimeStamp() {
+    return timeStamp;
+  }
+
+  @Override
+  public int getNanoseconds() {
+    return nanoseconds;
+  }
+
+  @Override
+  public Instant getInstant() {
+    return instant;
+  }
+
+  @Override
+  public long getSequenceNumber() {
+    return sequenceNumber;
+  }
+
+  @Override
+  public List<KeyValuePair> getKeyValuePairs() {
+    return keyValuePairs;
+  }
+
+  @Override
+  public void prepareForDeferredProcessing() {
+    // Everything that needs the logging thread was copied in copyFrom
+  }
+
+  @Override
+  public String toString() {
+    return '[' + String.valueOf(level) + "] " + getFormattedMessage();
+  }
+}
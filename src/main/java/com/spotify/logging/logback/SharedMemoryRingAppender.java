@@ -0,0 +1,300 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static com.spotify.logging.logback.SharedMemoryRingReader.DROPPED_OFFSET;
+import static com.spotify.logging.logback.SharedMemoryRingReader.HEADER_SIZE;
+import static com.spotify.logging.logback.SharedMemoryRingReader.MAGIC;
+import static com.spotify.logging.logback.SharedMemoryRingReader.READER_SEQUENCE_OFFSET;
+import static com.spotify.logging.logback.SharedMemoryRingReader.SLOT_COUNT_OFFSET;
+import static com.spotify.logging.logback.SharedMemoryRingReader.SLOT_CRC_OFFSET;
+import static com.spotify.logging.logback.SharedMemoryRingReader.SLOT_HEADER_SIZE;
+import static com.spotify.logging.logback.SharedMemoryRingReader.SLOT_LENGTH_OFFSET;
+import static com.spotify.logging.logback.SharedMemoryRingReader.SLOT_SIZE_OFFSET;
+import static com.spotify.logging.logback.SharedMemoryRingReader.VERSION;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * Writes encoded events into a ring of fixed-size slots in a memory-mapped file, by default under
+ * {@code /dev/shm}, for a log shipper in another process to read with a {@link
+ * SharedMemoryRingReader}. Compared to logging to stdout and having the shipper parse the container
+ * runtime's log files, each event is encoded once and then read straight from shared memory.
+ *
+ * <p>Logging threads encode the event themselves, claim the next sequence with a compare-and-set
+ * and write the event into its slot, so each slot has a single producer at a time. The layout of
+ * the file is documented in {@link SharedMemoryRingReader}. The appender never waits for the
+ * reader: events are dropped if the ring is full or if they don't fit in a slot.
+ *
+ * <p>If the file already has the same layout, for example after a restart, the appender continues
+ * after the last record in it, so a reader can keep reading. Otherwise it is replaced, and readers
+ * have to open it again. The file is left in place when the appender is stopped.
+ */
+public class SharedMemoryRingAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+  public static final int DEFAULT_SLOT_COUNT = 4096;
+  public static final int DEFAULT_SLOT_SIZE = 4096;
+
+  private @Nullable Encoder<ILoggingEvent> encoder;
+  private @Nullable String file;
+  private int slotCount = DEFAULT_SLOT_COUNT;
+  private int slotSize = DEFAULT_SLOT_SIZE;
+
+  private @Nullable FileChannel channel;
+  private @Nullable MappedByteBuffer buffer;
+  private long mask;
+
+  // The next sequence to be claimed by a logging thread
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final LongAdder appended = new LongAdder();
+  private final ThreadLocal<CRC32> crcs = ThreadLocal.withInitial(CRC32::new);
+  private final ThreadLocal<byte[]> scratches = ThreadLocal.withInitial(() -> new byte[8]);
+
+  @Override
+  public void start() {
+    if (isStarted()) {
+      return;
+    }
+    if (encoder == null) {
+      addError("No encoder set for the appender named [" + name + "].");
+      return;
+    }
+    if (Integer.bitCount(slotCount) != 1) {
+      addError("Slot count must be a power of two [" + slotCount + "]");
+      return;
+    }
+    if (slotSize <= SLOT_HEADER_SIZE || slotSize % 8 != 0) {
+      addError("Slot size must be a multiple of 8 larger than 16 [" + slotSize + "]");
+      return;
+    }
+    final long size = HEADER_SIZE + (long) slotCount * slotSize;
+    if (size > Integer.MAX_VALUE) {
+      addError("Ring larger than 2 GB [" + slotCount + " * " + slotSize + "]");
+      return;
+    }
+    final Path path = Paths.get(getFile());
+
+    try {
+      if (Files.exists(path) && !hasLayout(path, size)) {
+        // Readers may still have the old file mapped, so it isn't truncated in place
+        Files.delete(path);
+      }
+      final FileChannel channel =
+          FileChannel.open(
+              path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      final MappedByteBuffer buffer;
+      try {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      long next = 0;
+      for (int i = 0; i < slotCount; i++) {
+        next = Math.max(next, buffer.getLong(HEADER_SIZE + i * slotSize));
+      }
+      buffer.putInt(4, VERSION);
+      buffer.putInt(SLOT_COUNT_OFFSET, slotCount);
+      buffer.putInt(SLOT_SIZE_OFFSET, slotSize);
+      buffer.putInt(0, MAGIC);
+      dropped.set(buffer.getLong(DROPPED_OFFSET));
+      claimed.set(next);
+      mask = slotCount - 1;
+      this.channel = channel;
+      this.buffer = buffer;
+    } catch (IOException e) {
+      addError("Failed to map ring file " + path + ".", e);
+      return;
+    }
+    appended.reset();
+    FlightRecorderEvents.addStatistics(this, appended::sum, () -> 0, this::getDroppedCount);
+    super.start();
+  }
+
+  private boolean hasLayout(final Path path, final long size) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() != size) {
+        return false;
+      }
+      final ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // Read the whole header
+      }
+      return header.getInt(0) == MAGIC
+          && header.getInt(4) == VERSION
+          && header.getInt(SLOT_COUNT_OFFSET) == slotCount
+          && header.getInt(SLOT_SIZE_OFFSET) == slotSize;
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (!isStarted()) {
+      return;
+    }
+    super.stop();
+    FlightRecorderEvents.removeStatistics(this);
+    final MappedByteBuffer buffer = this.buffer;
+    if (buffer != null) {
+      buffer.putLong(DROPPED_OFFSET, dropped.get());
+    }
+    final FileChannel channel = this.channel;
+    if (channel != null) {
+      try {
+        // The mapping itself is released when the buffer is garbage collected
+        channel.close();
+      } catch (IOException e) {
+        addWarn("Failed to close ring file.", e);
+      }
+    }
+    this.channel = null;
+  }
+
+  @Override
+  protected void append(final ILoggingEvent event) {
+    appended.increment();
+    final Encoder<ILoggingEvent> encoder = this.encoder;
+    final MappedByteBuffer buffer = this.buffer;
+    if (encoder == null || buffer == null) {
+      return;
+    }
+    final byte[] bytes = encoder.encode(event);
+    if (bytes == null || bytes.length == 0) {
+      return;
+    }
+    if (bytes.length > slotSize - SLOT_HEADER_SIZE) {
+      drop(buffer);
+      return;
+    }
+    final long sequence = claim(buffer);
+    if (sequence < 0) {
+      drop(buffer);
+      return;
+    }
+
+    final CRC32 crc = crcs.get();
+    crc.reset();
+    SharedMemoryRingReader.updateSequence(crc, sequence + 1, scratches.get());
+    crc.update(bytes, 0, bytes.length);
+    final int slot = HEADER_SIZE + (int) (sequence & mask) * slotSize;
+    final ByteBuffer target = buffer.duplicate();
+    target.position(slot + SLOT_HEADER_SIZE);
+    target.put(bytes);
+    buffer.putInt(slot + SLOT_LENGTH_OFFSET, bytes.length);
+    buffer.putInt(slot + SLOT_CRC_OFFSET, (int) crc.getValue());
+    // Publishes the record
+    buffer.putLong(slot, sequence + 1);
+  }
+
+  private long claim(final MappedByteBuffer buffer) {
+    while (true) {
+      final long sequence = claimed.get();
+      if (sequence - buffer.getLong(READER_SEQUENCE_OFFSET) >= slotCount) {
+        return -1;
+      }
+      if (claimed.compareAndSet(sequence, sequence + 1)) {
+        return sequence;
+      }
+    }
+  }
+
+  private void drop(final MappedByteBuffer buffer) {
+    // Racing writers may leave a slightly lower count in the file, which is fine for monitoring
+    buffer.putLong(DROPPED_OFFSET, dropped.incrementAndGet());
+  }
+
+  /**
+   * @return the number of events that were dropped because the ring was full or they were too
+   *     large.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  public @Nullable Encoder<ILoggingEvent> getEncoder() {
+    return encoder;
+  }
+
+  /**
+   * The encoder is called on the logging threads, concurrently, so it must be thread safe. The
+   * pattern and logstash encoders are.
+   *
+   * @param encoder the encoder
+   */
+  public void setEncoder(final Encoder<ILoggingEvent> encoder) {
+    this.encoder = encoder;
+  }
+
+  /** @return the ring file, by default {@code /dev/shm/<appender name>.ring} */
+  public String getFile() {
+    final String file = this.file;
+    return file == null || file.isEmpty() ? "/dev/shm/" + getName() + ".ring" : file;
+  }
+
+  public void setFile(final String file) {
+    this.file = file;
+  }
+
+  public int getSlotCount() {
+    return slotCount;
+  }
+
+  /**
+   * The number of slots in the ring, which is how many events can be waiting for the reader.
+   * Defaults to {@value #DEFAULT_SLOT_COUNT}.
+   *
+   * @param slotCount the number of slots, a power of two
+   */
+  public void setSlotCount(final int slotCount) {
+    this.slotCount = slotCount;
+  }
+
+  public int getSlotSize() {
+    return slotSize;
+  }
+
+  /**
+   * The size of each slot, including a 16 byte header. Larger events are dropped. Defaults to
+   * {@value #DEFAULT_SLOT_SIZE}.
+   *
+   * @param slotSize the slot size in bytes, a multiple of 8
+   */
+  public void setSlotSize(final int slotSize) {
+    this.slotSize = slotSize;
+  }
+}
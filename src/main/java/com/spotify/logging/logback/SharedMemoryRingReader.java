@@ -0,0 +1,192 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records that a {@link SharedMemoryRingAppender} writes, for a log shipper running next
+ * to the application. The ring file is memory-mapped, and each record is handed to the caller as a
+ * view of the mapped memory, so it is never copied.
+ *
+ * <p>The file is laid out as follows, with all numbers little-endian:
+ *
+ * <pre>
+ * Header, 256 bytes
+ *   0    int   magic, 0x52494e47 ("RING")
+ *   4    int   version, 1
+ *   8    int   slot count, a power of two
+ *   12   int   slot size in bytes, a multiple of 8
+ *   64   long  reader sequence: the sequence of the next record to read, written by the reader
+ *   128  long  the number of records the appender dropped, approximately
+ * Slots, each at 256 + index * slot size
+ *   0    long  the sequence of the record in the slot plus one, or 0 if the slot is unused
+ *   8    int   payload length
+ *   12   int   CRC32 of the slot's sequence, as 8 little-endian bytes, followed by the payload
+ *   16   the payload: one encoded event
+ * </pre>
+ *
+ * <p>Sequences start at 0, and the record with sequence s is in slot s modulo the slot count. A
+ * record is published by writing its sequence last. As the slot is not written with any particular
+ * memory ordering, a reader must check the CRC before it trusts the payload; if it doesn't match
+ * yet, the record is still being written. The sequence is part of the CRC so that the previous
+ * record in the slot isn't mistaken for the new one. The appender never overwrites a slot the
+ * reader hasn't passed: when the ring is full, it drops events instead.
+ *
+ * <p>Not thread safe: there should be one reader per ring.
+ */
+public final class SharedMemoryRingReader implements AutoCloseable {
+
+  static final int MAGIC = 0x52494e47;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 256;
+  static final int SLOT_COUNT_OFFSET = 8;
+  static final int SLOT_SIZE_OFFSET = 12;
+  static final int READER_SEQUENCE_OFFSET = 64;
+  static final int DROPPED_OFFSET = 128;
+  static final int SLOT_HEADER_SIZE = 16;
+  static final int SLOT_LENGTH_OFFSET = 8;
+  static final int SLOT_CRC_OFFSET = 12;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final ByteBuffer view;
+  private final CRC32 crc = new CRC32();
+  private final byte[] scratch = new byte[8];
+  private final int slotSize;
+  private final long mask;
+  private long sequence;
+
+  private SharedMemoryRingReader(final FileChannel channel, final MappedByteBuffer buffer) {
+    this.channel = channel;
+    this.buffer = buffer;
+    this.view = buffer.asReadOnlyBuffer();
+    this.slotSize = buffer.getInt(SLOT_SIZE_OFFSET);
+    this.mask = buffer.getInt(SLOT_COUNT_OFFSET) - 1;
+    this.sequence = buffer.getLong(READER_SEQUENCE_OFFSET);
+  }
+
+  /**
+   * Open a ring file written by a {@link SharedMemoryRingAppender}. Reading continues after the
+   * last record that a previous reader consumed.
+   *
+   * @param path the ring file
+   * @return the reader
+   * @throws IOException if the file can't be mapped or isn't a ring file
+   */
+  public static SharedMemoryRingReader open(final Path path) throws IOException {
+    final FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      final long size = channel.size();
+      if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+        throw new IOException("Not a ring file: " + path);
+      }
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        throw new IOException("Not a ring file: " + path);
+      }
+      final int slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+      final int slotSize = buffer.getInt(SLOT_SIZE_OFFSET);
+      if (Integer.bitCount(slotCount) != 1
+          || slotSize <= SLOT_HEADER_SIZE
+          || HEADER_SIZE + (long) slotCount * slotSize != size) {
+        throw new IOException("Invalid ring layout in " + path);
+      }
+      return new SharedMemoryRingReader(channel, buffer);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Hand the published records, in order, to a handler. The record is a read-only view of the
+   * mapped memory from its position to its limit, and is only valid until the handler returns: the
+   * slot may be reused as soon as the reader has moved past it.
+   *
+   * @param handler called with each record
+   * @param maxRecords the maximum number of records to read
+   * @return the number of records read, 0 if none have been published
+   */
+  public int poll(final Consumer<ByteBuffer> handler, final int maxRecords) {
+    int read = 0;
+    while (read < maxRecords) {
+      final int slot = HEADER_SIZE + (int) (sequence & mask) * slotSize;
+      if (buffer.getLong(slot) != sequence + 1) {
+        break;
+      }
+      final int length = buffer.getInt(slot + SLOT_LENGTH_OFFSET);
+      if (length < 0 || length > slotSize - SLOT_HEADER_SIZE) {
+        break;
+      }
+      final int start = slot + SLOT_HEADER_SIZE;
+      view.clear();
+      view.position(start);
+      view.limit(start + length);
+      crc.reset();
+      updateSequence(crc, sequence + 1, scratch);
+      crc.update(view);
+      if ((int) crc.getValue() != buffer.getInt(slot + SLOT_CRC_OFFSET)) {
+        // Still being written
+        break;
+      }
+      view.position(start);
+      handler.accept(view);
+      sequence++;
+      buffer.putLong(READER_SEQUENCE_OFFSET, sequence);
+      read++;
+    }
+    return read;
+  }
+
+  static void updateSequence(final CRC32 crc, final long sequence, final byte[] scratch) {
+    for (int i = 0; i < 8; i++) {
+      scratch[i] = (byte) (sequence >>> (8 * i));
+    }
+    crc.update(scratch, 0, 8);
+  }
+
+  /** @return the sequence of the next record to read. */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /** @return the number of records the appender dropped, approximately. */
+  public long getDroppedCount() {
+    return buffer.getLong(DROPPED_OFFSET);
+  }
+
+  /** Close the file. The mapping itself is released when the reader is garbage collected. */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
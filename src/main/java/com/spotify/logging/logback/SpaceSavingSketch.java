@@ -0,0 +1,209 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * The space-saving algorithm of Metwally et al. for finding the most frequent keys in a stream with
+ * a bounded number of counters. While there is room, each key gets a counter of its own. Once all
+ * counters are taken, a new key takes over the counter with the lowest count and adds one to it,
+ * remembering the count it inherited as its maximum overestimation. Any key that occurs more often
+ * than the stream length divided by the capacity is guaranteed to have a counter. Not thread safe.
+ *
+ * <p>Counters are kept in the stream-summary structure of the paper: a list of buckets in ascending
+ * order of count, each holding the counters with that count. Counting an occurrence moves a counter
+ * to the next bucket, and the counter to take over is in the first one, so both take constant time
+ * however many counters there are.
+ */
+final class SpaceSavingSketch {
+
+  /** A copy of a counter. */
+  static final class Counter {
+    final String key;
+    final String label;
+    final long count;
+    final long error;
+
+    Counter(final String key, final String label, final long count, final long error) {
+      this.key = key;
+      this.label = label;
+      this.count = count;
+      this.error = error;
+    }
+  }
+
+  private static final class Node {
+    String key;
+    String label;
+    long error;
+    @Nullable Bucket bucket;
+    @Nullable Node prev;
+    @Nullable Node next;
+
+    Node(final String key, final String label) {
+      this.key = key;
+      this.label = label;
+    }
+  }
+
+  private static final class Bucket {
+    final long count;
+    @Nullable Bucket prev;
+    @Nullable Bucket next;
+    @Nullable Node head;
+
+    Bucket(final long count) {
+      this.count = count;
+    }
+  }
+
+  private final int capacity;
+  private final Map<String, Node> nodes;
+  // The bucket with the lowest count
+  private @Nullable Bucket first;
+
+  SpaceSavingSketch(final int capacity) {
+    this.capacity = capacity;
+    this.nodes = new HashMap<>(capacity * 2);
+  }
+
+  /**
+   * Count an occurrence of a key.
+   *
+   * @param key the key
+   * @param label extra information about the key, kept from the occurrence that took the counter
+   */
+  void offer(final String key, final String label) {
+    Node node = nodes.get(key);
+    if (node != null) {
+      increment(node);
+      return;
+    }
+    final Bucket first = this.first;
+    final Node victim = first == null ? null : first.head;
+    if (nodes.size() < capacity || first == null || victim == null) {
+      node = new Node(key, label);
+      nodes.put(key, node);
+      Bucket bucket = first;
+      if (bucket == null || bucket.count != 1) {
+        bucket = new Bucket(1);
+        insertAfter(null, bucket);
+      }
+      link(node, bucket);
+      return;
+    }
+    // Take over a counter with the lowest count
+    nodes.remove(victim.key);
+    victim.key = key;
+    victim.label = label;
+    victim.error = first.count;
+    nodes.put(key, victim);
+    increment(victim);
+  }
+
+  /** @return copies of the counters, in no particular order. */
+  List<Counter> counters() {
+    final List<Counter> copies = new ArrayList<>(nodes.size());
+    for (final Node node : nodes.values()) {
+      final Bucket bucket = node.bucket;
+      copies.add(new Counter(node.key, node.label, bucket == null ? 0 : bucket.count, node.error));
+    }
+    return copies;
+  }
+
+  void clear() {
+    nodes.clear();
+    first = null;
+  }
+
+  private void increment(final Node node) {
+    final Bucket bucket = node.bucket;
+    if (bucket == null) {
+      return;
+    }
+    final long count = bucket.count + 1;
+    Bucket next = bucket.next;
+    if (next == null || next.count != count) {
+      next = new Bucket(count);
+      insertAfter(bucket, next);
+    }
+    unlink(node);
+    link(node, next);
+    if (bucket.head == null) {
+      remove(bucket);
+    }
+  }
+
+  private static void link(final Node node, final Bucket bucket) {
+    node.bucket = bucket;
+    node.prev = null;
+    node.next = bucket.head;
+    if (bucket.head != null) {
+      bucket.head.prev = node;
+    }
+    bucket.head = node;
+  }
+
+  private static void unlink(final Node node) {
+    final Bucket bucket = node.bucket;
+    if (node.prev != null) {
+      node.prev.next = node.next;
+    } else if (bucket != null) {
+      bucket.head = node.next;
+    }
+    if (node.next != null) {
+      node.next.prev = node.prev;
+    }
+    node.bucket = null;
+    node.prev = null;
+    node.next = null;
+  }
+
+  // Inserts a bucket after another one, or first if that is null
+  private void insertAfter(final @Nullable Bucket previous, final Bucket bucket) {
+    bucket.prev = previous;
+    bucket.next = previous == null ? first : previous.next;
+    if (bucket.next != null) {
+      bucket.next.prev = bucket;
+    }
+    if (previous == null) {
+      first = bucket;
+    } else {
+      previous.next = bucket;
+    }
+  }
+
+  private void remove(final Bucket bucket) {
+    if (bucket.prev != null) {
+      bucket.prev.next = bucket.next;
+    } else {
+      first = bucket.next;
+    }
+    if (bucket.next != null) {
+      bucket.next.prev = bucket.prev;
+    }
+  }
+}
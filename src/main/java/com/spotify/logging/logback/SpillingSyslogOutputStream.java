@@ -0,0 +1,205 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.core.net.SyslogOutputStream;
+import ch.qos.logback.core.spi.ContextAware;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link SyslogOutputStream} that keeps datagrams in a {@link MappedSpillBuffer} while the syslog
+ * host is unreachable, and replays them in order once it is reachable again.
+ *
+ * <p>Datagrams are sent on a connected socket, so that an ICMP port or host unreachable reply makes
+ * the next send fail. The failure is about the datagram sent before, so a datagram is only known to
+ * have arrived when the next send succeeds: the previous datagram is spilled too when a send fails,
+ * and a replayed record is only removed from the spill buffer once the one after it has been sent.
+ * While the host is unreachable, every datagram goes to the spill buffer, and a replay is attempted
+ * at most once per retry interval, when the next datagram is sent. A datagram sent to a host that
+ * has gone down before the unreachable reply to an earlier one arrives is lost, as UDP doesn't
+ * acknowledge anything.
+ *
+ * <p>Not thread safe, like {@link SyslogOutputStream}.
+ */
+final class SpillingSyslogOutputStream extends SyslogOutputStream {
+
+  private final DatagramSocket socket;
+  private final MappedSpillBuffer spill;
+  private final long retryIntervalMillis;
+  private final ContextAware status;
+
+  private byte[] buf = new byte[512];
+  private int size;
+  // Sent, but not known to have arrived until the next send succeeds
+  private @Nullable byte[] lastSent;
+  private boolean healthy;
+  private long nextRetry;
+  private long replayed;
+
+  SpillingSyslogOutputStream(
+      final String host,
+      final int port,
+      final MappedSpillBuffer spill,
+      final long retryIntervalMillis,
+      final ContextAware status)
+      throws UnknownHostException, SocketException {
+    super(host, port);
+    this.status = status;
+    this.socket = inheritedSocket();
+    this.spill = spill;
+    this.retryIntervalMillis = retryIntervalMillis;
+    socket.connect(InetAddress.getByName(host), port);
+    // Replay what was left from a previous run with the first datagram
+    this.healthy = spill.isEmpty();
+  }
+
+  // Horrible hack to send on the socket that SyslogOutputStream opens, since it can't be reached
+  // otherwise and SyslogOutputStream.close() doesn't close it
+  private DatagramSocket inheritedSocket() throws SocketException {
+    try {
+      final Field f = SyslogOutputStream.class.getDeclaredField("ds");
+      f.setAccessible(true);
+      return (DatagramSocket) f.get(this);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      status.addWarn("Failed to reuse the socket of SyslogOutputStream, opening another one.", e);
+      return new DatagramSocket();
+    }
+  }
+
+  @Override
+  public void write(final int b) {
+    ensureCapacity(1);
+    buf[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(final byte[] bytes, final int off, final int len) {
+    ensureCapacity(len);
+    System.arraycopy(bytes, off, buf, size, len);
+    size += len;
+  }
+
+  /** Sends the bytes written since the last flush as a datagram, or spills them. */
+  @Override
+  public void flush() {
+    if (size == 0) {
+      return;
+    }
+    final byte[] datagram = Arrays.copyOf(buf, size);
+    size = 0;
+
+    if (!healthy && System.currentTimeMillis() >= nextRetry) {
+      replay();
+    }
+    if (healthy) {
+      if (transmit(datagram)) {
+        return;
+      }
+      // The previous datagram didn't arrive either
+      if (lastSent != null) {
+        spill(lastSent);
+        lastSent = null;
+      }
+    }
+    spill(datagram);
+  }
+
+  private void replay() {
+    final byte[] head = spill.peek();
+    if (head.length > 0) {
+      if (!transmit(head)) {
+        return;
+      }
+      byte[] next;
+      while ((next = spill.peek(1)).length > 0) {
+        // The head stays first in the spill buffer if it didn't arrive
+        if (!transmit(next)) {
+          return;
+        }
+        remove();
+      }
+      // Not known to have arrived yet, but kept as the last sent datagram
+      remove();
+    }
+    healthy = true;
+    status.addInfo("Syslog host reachable again, replayed " + replayed + " spilled datagrams.");
+    replayed = 0;
+  }
+
+  private void remove() {
+    try {
+      spill.remove();
+    } catch (IOException e) {
+      status.addError("Failed to remove replayed datagram from spill buffer.", e);
+    }
+    replayed++;
+  }
+
+  // Returns false if the datagram wasn't sent because the previous one didn't arrive
+  private boolean transmit(final byte[] datagram) {
+    try {
+      socket.send(new DatagramPacket(datagram, datagram.length));
+      lastSent = datagram;
+      return true;
+    } catch (IOException e) {
+      if (healthy) {
+        status.addWarn("Syslog host unreachable, spilling datagrams to " + spill + ".", e);
+      }
+      healthy = false;
+      nextRetry = System.currentTimeMillis() + retryIntervalMillis;
+      return false;
+    }
+  }
+
+  private void spill(final byte[] datagram) {
+    try {
+      spill.append(datagram, 0, datagram.length);
+    } catch (IOException e) {
+      status.addError("Failed to spill datagram.", e);
+    }
+  }
+
+  private void ensureCapacity(final int extra) {
+    final int required = size + extra;
+    if (required > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+    }
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    socket.close();
+    try {
+      spill.close();
+    } catch (IOException e) {
+      status.addError("Failed to close spill buffer.", e);
+    }
+  }
+}
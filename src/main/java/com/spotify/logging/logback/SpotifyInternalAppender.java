@@ -62,7 +62,7 @@ public class SpotifyInternalAppender extends MillisecondPrecisionSyslogAppender
     setSuffixPattern(
         serviceAndPid
             + ": "
-            + LoggingConfigurator.ReplaceNewLines.getMsgPattern(this.replaceNewLines));
+            + NewLineStrippingMessageConverter.msgPattern(this.replaceNewLines));
     setStackTracePattern(serviceAndPid + ": " + CoreConstants.TAB);
 
     if (getSyslogHost() == null) {
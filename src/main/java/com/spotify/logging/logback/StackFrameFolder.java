@@ -0,0 +1,143 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Shortens the frames of a single throwable in a cause chain:
+ *
+ * <ul>
+ *   <li>Runs of two or more consecutive frames whose class name starts with one of the folded
+ *       prefixes (e.g. {@code io.netty.}, {@code sun.reflect.}) are collapsed into a single {@code
+ *       ... N framework frames omitted} line.
+ *   <li>If a maximum depth is set, frames after that many lines are replaced with a {@code ... N
+ *       frames truncated} line.
+ *   <li>Frames that a cause or suppressed throwable has in common with the enclosing throwable are
+ *       replaced with a {@code ... N common frames omitted} line.
+ * </ul>
+ *
+ * <p>The prefixes are compiled into a sorted array with redundant prefixes removed, so matching a
+ * class name is a single binary search.
+ */
+public final class StackFrameFolder {
+
+  /** Receives the frames and the lines replacing omitted frames. */
+  public interface Visitor {
+    void frame(StackTraceElementProxy step);
+
+    void omitted(String line);
+  }
+
+  private final String[] prefixes;
+  private final int maxDepth;
+
+  /**
+   * Create a folder.
+   *
+   * @param prefixes class name prefixes of frames to fold
+   * @param maxDepth the maximum number of lines to write per throwable, or 0 for no limit
+   */
+  public StackFrameFolder(final Collection<String> prefixes, final int maxDepth) {
+    this.prefixes = compile(prefixes);
+    this.maxDepth = maxDepth;
+  }
+
+  // Sorts the prefixes and drops the ones that are covered by a shorter prefix, so that the only
+  // prefix that can match a name is the greatest one that is not greater than the name
+  private static String[] compile(final Collection<String> prefixes) {
+    final String[] sorted =
+        prefixes.stream().filter(p -> !p.isEmpty()).sorted().toArray(String[]::new);
+    final List<String> compiled = new ArrayList<>(sorted.length);
+    for (final String prefix : sorted) {
+      if (compiled.isEmpty() || !prefix.startsWith(compiled.get(compiled.size() - 1))) {
+        compiled.add(prefix);
+      }
+    }
+    return compiled.toArray(new String[0]);
+  }
+
+  /** @return true if frames are folded or truncated, and not just trimmed of common frames. */
+  public boolean isFolding() {
+    return prefixes.length > 0 || maxDepth > 0;
+  }
+
+  boolean isFolded(final String className) {
+    final int index = Arrays.binarySearch(prefixes, className);
+    if (index >= 0) {
+      return true;
+    }
+    final int floor = -index - 2;
+    return floor >= 0 && className.startsWith(prefixes[floor]);
+  }
+
+  /**
+   * Pass the frames of a throwable to a visitor, with omitted frames replaced by a line saying so.
+   *
+   * @param tp the throwable
+   * @param visitor receives the frames and lines
+   */
+  public void fold(final IThrowableProxy tp, final Visitor visitor) {
+    final StackTraceElementProxy[] steps = tp.getStackTraceElementProxyArray();
+    final int commonFrames = Math.min(Math.max(tp.getCommonFrames(), 0), steps.length);
+    final int end = steps.length - commonFrames;
+
+    int lines = 0;
+    int i = 0;
+    while (i < end) {
+      if (maxDepth > 0 && lines == maxDepth) {
+        visitor.omitted("... " + (end - i) + " frames truncated");
+        break;
+      }
+      int runEnd = i;
+      while (runEnd < end && isFolded(steps[runEnd].getStackTraceElement().getClassName())) {
+        runEnd++;
+      }
+      if (runEnd - i >= 2) {
+        visitor.omitted("... " + (runEnd - i) + " framework frames omitted");
+        i = runEnd;
+      } else {
+        visitor.frame(steps[i]);
+        i++;
+      }
+      lines++;
+    }
+
+    if (commonFrames > 0) {
+      visitor.omitted("... " + commonFrames + " common frames omitted");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "StackFrameFolder{"
+        + "prefixes="
+        + Arrays.toString(prefixes)
+        + ", maxDepth="
+        + maxDepth
+        + '}';
+  }
+}
@@ -0,0 +1,161 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which stack traces are worth writing in full. The first time a stack trace is seen in a
+ * time window it is written in full, along with its hash; for the rest of the window only the
+ * exception line and the hash are written, so the full trace can be looked up by its hash.
+ *
+ * <p>Stack traces are identified by a fingerprint of the whole cause chain that leaves out the
+ * messages, see {@link #fingerprint(IThrowableProxy)}. Fingerprints are kept in a bounded,
+ * direct-mapped table. When two fingerprints compete for the same slot, the loser is written in
+ * full again; nothing is ever dropped because the table is full.
+ */
+public final class StackTraceDeduplicator {
+
+  static final int DEFAULT_TABLE_SIZE = 1024;
+
+  private final AtomicReferenceArray<Window> windows;
+  private final int mask;
+  private final long windowMillis;
+
+  private final LongAdder full = new LongAdder();
+  private final LongAdder deduplicated = new LongAdder();
+
+  /**
+   * Create a deduplicator.
+   *
+   * @param tableSize the number of fingerprints to track, rounded up to a power of two
+   * @param windowMillis how long after writing a stack trace in full to only write its hash
+   */
+  public StackTraceDeduplicator(final int tableSize, final long windowMillis) {
+    if (tableSize <= 0) {
+      throw new IllegalArgumentException("tableSize must be positive: " + tableSize);
+    }
+    if (windowMillis <= 0) {
+      throw new IllegalArgumentException("windowMillis must be positive: " + windowMillis);
+    }
+    final int size = Integer.highestOneBit(Math.min(tableSize, 1 << 20) * 2 - 1);
+    this.windows = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Check whether a stack trace should be written in full, and start a new window for it if so.
+   *
+   * @param fingerprint the fingerprint of the stack trace
+   * @param timestamp the time of the event, in milliseconds
+   * @return true if this is the first time the stack trace is seen in the current window
+   */
+  public boolean isFirstInWindow(final long fingerprint, final long timestamp) {
+    final int index = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    while (true) {
+      final Window window = windows.get(index);
+      if (window != null
+          && window.fingerprint == fingerprint
+          && timestamp >= window.start
+          && timestamp - window.start < windowMillis) {
+        deduplicated.increment();
+        return false;
+      }
+      if (windows.compareAndSet(index, window, new Window(fingerprint, timestamp))) {
+        full.increment();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Compute the fingerprint of a throwable, its suppressed throwables and its causes. Class names
+   * and frames are part of the fingerprint, messages are not.
+   *
+   * @param tp the throwable
+   * @return the fingerprint
+   */
+  public static long fingerprint(final IThrowableProxy tp) {
+    return fingerprint(tp, 0);
+  }
+
+  private static long fingerprint(final IThrowableProxy tp, final int indent) {
+    long h = ThrowableRenderingCache.fingerprint(tp, tp.getStackTraceElementProxyArray(), indent);
+    final IThrowableProxy[] suppressed = tp.getSuppressed();
+    if (suppressed != null) {
+      for (final IThrowableProxy current : suppressed) {
+        h = h * 31 + fingerprint(current, indent + 1);
+      }
+    }
+    final IThrowableProxy cause = tp.getCause();
+    if (cause != null) {
+      h = h * 31 + fingerprint(cause, indent);
+    }
+    return h;
+  }
+
+  /**
+   * Format a fingerprint as the hash that is written with stack traces.
+   *
+   * @param fingerprint the fingerprint
+   * @return the fingerprint as 16 hex digits
+   */
+  public static String hash(final long fingerprint) {
+    final String hex = Long.toHexString(fingerprint);
+    return "0000000000000000".substring(hex.length()) + hex;
+  }
+
+  /** @return the number of stack traces that were written in full. */
+  public long getFullCount() {
+    return full.sum();
+  }
+
+  /** @return the number of stack traces that were reduced to their exception line and hash. */
+  public long getDeduplicatedCount() {
+    return deduplicated.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "StackTraceDeduplicator{"
+        + "windowMillis="
+        + windowMillis
+        + ", full="
+        + getFullCount()
+        + ", deduplicated="
+        + getDeduplicatedCount()
+        + '}';
+  }
+
+  private static final class Window {
+
+    private final long fingerprint;
+    private final long start;
+
+    private Window(final long fingerprint, final long start) {
+      this.fingerprint = fingerprint;
+      this.start = start;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import javax.annotation.Nullable;
+import net.logstash.logback.composite.AbstractFieldJsonProvider;
+
+/**
+ * Writes the {@link StackTraceDeduplicator#hash(long) hash} of the stack trace of an event, so that
+ * deduplicated stack traces can be matched with the full stack trace written earlier. The
+ * fingerprint that the {@link CachingThrowableProxyConverter} computed for the stack trace is
+ * reused, if there is one.
+ */
+public class StackTraceHashJsonProvider extends AbstractFieldJsonProvider<ILoggingEvent> {
+
+  public static final String FIELD_NAME = "stack_hash";
+
+  private @Nullable CachingThrowableProxyConverter throwableConverter;
+
+  public StackTraceHashJsonProvider() {
+    setFieldName(FIELD_NAME);
+  }
+
+  public @Nullable CachingThrowableProxyConverter getThrowableConverter() {
+    return throwableConverter;
+  }
+
+  /**
+   * The converter that writes the stack trace, to take the fingerprint of the stack trace from.
+   *
+   * @param throwableConverter the converter, or null to compute the fingerprint here
+   */
+  public void setThrowableConverter(
+      final @Nullable CachingThrowableProxyConverter throwableConverter) {
+    this.throwableConverter = throwableConverter;
+  }
+
+  @Override
+  public void writeTo(final JsonGenerator generator, final ILoggingEvent event) throws IOException {
+    final IThrowableProxy tp = event.getThrowableProxy();
+    if (tp != null) {
+      final CachingThrowableProxyConverter converter = this.throwableConverter;
+      final long fingerprint =
+          converter == null
+              ? StackTraceDeduplicator.fingerprint(tp)
+              : converter.takeFingerprint(tp);
+      generator.writeStringField(getFieldName(), StackTraceDeduplicator.hash(fingerprint));
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.EncoderBase;
+import ch.qos.logback.core.util.Duration;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+import net.logstash.logback.composite.loggingevent.LoggingEventFormattedTimestampJsonProvider;
+import net.logstash.logback.encoder.StreamingEncoder;
+
+/**
+ * A JSON encoder for the fixed field set of {@link CustomLogstashEncoder#setupStackdriver()}:
+ * {@code time}, {@code message}, {@code logger_name}, {@code thread_name}, {@code severity}, {@code
+ * stack_trace}, MDC entries, {@code stack_hash} if stack traces are deduplicated, and context
+ * properties. Events are written straight into a reusable per-thread byte buffer instead of going
+ * through Jackson and the provider chain.
+ *
+ * <p>For these fields the output is byte for byte the same as that of {@link
+ * CustomLogstashEncoder}. Structured arguments, key/value pairs and markers are not written; use
+ * {@link CustomLogstashEncoder} if you need them.
+ */
+public class StackdriverJsonEncoder extends EncoderBase<ILoggingEvent>
+    implements StreamingEncoder<ILoggingEvent> {
+
+  private static final byte[] EMPTY_BYTES = new byte[0];
+
+  private static final byte[] TIME = bytes("{\"time\":\"");
+  private static final byte[] MESSAGE = bytes(",\"message\":");
+  private static final byte[] LOGGER_NAME = bytes(",\"logger_name\":");
+  private static final byte[] THREAD_NAME = bytes(",\"thread_name\":");
+  private static final byte[] SEVERITY = bytes(",\"severity\":\"");
+  private static final byte[] STACK_TRACE = bytes(",\"stack_trace\":");
+  private static final byte[] STACK_HASH = bytes(",\"stack_hash\":\"");
+
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private int minBufferSize = 1024;
+
+  private final ThreadLocal<JsonByteBuffer> buffers =
+      ThreadLocal.withInitial(() -> new JsonByteBuffer(minBufferSize));
+
+  private final CachingThrowableProxyConverter throwableConverter =
+      new CachingThrowableProxyConverter();
+
+  private final TimestampFormatter timestampFormatter = new TimestampFormatter();
+
+  private final byte[] lineSeparator = bytes(System.lineSeparator());
+
+  private final AtomicReference<byte[]> contextFields = new AtomicReference<>();
+
+  @Override
+  public void start() {
+    throwableConverter.setContext(getContext());
+    throwableConverter.start();
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    throwableConverter.stop();
+    contextFields.set(null);
+  }
+
+  @Override
+  public byte[] headerBytes() {
+    return EMPTY_BYTES;
+  }
+
+  @Override
+  public byte[] footerBytes() {
+    return EMPTY_BYTES;
+  }
+
+  @Override
+  public byte[] encode(final ILoggingEvent event) {
+    final JsonByteBuffer buffer = buffers.get();
+    try {
+      write(buffer, event);
+      return buffer.toByteArray();
+    } finally {
+      buffer.reset(MAX_RETAINED_BUFFER_SIZE);
+    }
+  }
+
+  @Override
+  public void encode(final ILoggingEvent event, final OutputStream outputStream)
+      throws IOException {
+    final JsonByteBuffer buffer = buffers.get();
+    try {
+      write(buffer, event);
+      buffer.writeTo(outputStream);
+    } finally {
+      buffer.reset(MAX_RETAINED_BUFFER_SIZE);
+    }
+  }
+
+  private void write(final JsonByteBuffer buffer, final ILoggingEvent event) {
+    buffer.writeRaw(TIME);
+    buffer.writeAscii(timestampFormatter.format(event));
+    buffer.writeRaw((byte) '"');
+    writeField(buffer, MESSAGE, event.getFormattedMessage());
+    writeField(buffer, LOGGER_NAME, event.getLoggerName());
+    writeField(buffer, THREAD_NAME, event.getThreadName());
+    buffer.writeRaw(SEVERITY);
+    buffer.writeAscii(event.getLevel().toString());
+    buffer.writeRaw((byte) '"');
+    if (event.getThrowableProxy() != null) {
+      writeField(buffer, STACK_TRACE, throwableConverter.convert(event));
+    }
+
+    final Map<String, String> mdc = event.getMDCPropertyMap();
+    if (mdc != null) {
+      for (final Map.Entry<String, String> entry : mdc.entrySet()) {
+        if (entry.getKey() != null && entry.getValue() != null) {
+          writeField(buffer, entry.getKey(), entry.getValue());
+        }
+      }
+    }
+
+    if (event.getThrowableProxy() != null && throwableConverter.getDeduplicator() != null) {
+      buffer.writeRaw(STACK_HASH);
+      buffer.writeAscii(
+          StackTraceDeduplicator.hash(
+              throwableConverter.takeFingerprint(event.getThrowableProxy())));
+      buffer.writeRaw((byte) '"');
+    }
+
+    byte[] context = contextFields.get();
+    if (context == null) {
+      context = renderContextFields();
+      contextFields.set(context);
+    }
+    buffer.writeRaw(context);
+
+    buffer.writeRaw((byte) '}');
+    buffer.writeRaw(lineSeparator);
+  }
+
+  // Context properties are set up once by LoggingConfigurator, so render them on the first event
+  private byte[] renderContextFields() {
+    final JsonByteBuffer buffer = new JsonByteBuffer(256);
+    for (final Map.Entry<String, String> entry : getContext().getCopyOfPropertyMap().entrySet()) {
+      if (entry.getKey() != null && entry.getValue() != null) {
+        writeField(buffer, entry.getKey(), entry.getValue());
+      }
+    }
+    return buffer.toByteArray();
+  }
+
+  private static void writeField(
+      final JsonByteBuffer buffer, final String name, final String value) {
+    buffer.writeRaw((byte) ',');
+    buffer.writeString(name);
+    buffer.writeRaw((byte) ':');
+    buffer.writeString(value);
+  }
+
+  private static void writeField(
+      final JsonByteBuffer buffer, final byte[] prefix, final @Nullable String value) {
+    if (value != null) {
+      buffer.writeRaw(prefix);
+      buffer.writeString(value);
+    }
+  }
+
+  private static byte[] bytes(final String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the frame cache of the stack trace converter, for monitoring its hit rate and memory use.
+   *
+   * @return the cache, or null if the encoder isn't started
+   */
+  public @Nullable ThrowableRenderingCache<String> getThrowableRenderingCache() {
+    return throwableConverter.getCache();
+  }
+
+  /**
+   * Get the stack trace deduplicator, for monitoring.
+   *
+   * @return the deduplicator, or null if deduplication is disabled or the encoder isn't started
+   */
+  public @Nullable StackTraceDeduplicator getStackTraceDeduplicator() {
+    return throwableConverter.getDeduplicator();
+  }
+
+  public @Nullable Duration getStackTraceDeduplicationWindow() {
+    return throwableConverter.getDeduplicationWindow();
+  }
+
+  /**
+   * Only write the first occurrence of a stack trace within this window in full, and only the
+   * exception line for later occurrences. A {@code stack_hash} field is added to all events with a
+   * stack trace, to match them up. Disabled by default.
+   *
+   * @param window the window, or null to disable deduplication
+   */
+  public void setStackTraceDeduplicationWindow(final @Nullable Duration window) {
+    throwableConverter.setDeduplicationWindow(window);
+  }
+
+  /**
+   * Fold runs of stack trace frames whose class name starts with this prefix, e.g. {@code
+   * io.netty.}, into a single line.
+   *
+   * @param prefix the class name prefix
+   */
+  public void addFoldedFramePrefix(final String prefix) {
+    throwableConverter.addFoldedFramePrefix(prefix);
+  }
+
+  public int getMaxFramesPerThrowable() {
+    return throwableConverter.getMaxFramesPerThrowable();
+  }
+
+  /**
+   * The maximum number of frame lines to write for each throwable in a cause chain. Defaults to 0,
+   * meaning no limit.
+   *
+   * @param maxFramesPerThrowable the maximum number of lines
+   */
+  public void setMaxFramesPerThrowable(final int maxFramesPerThrowable) {
+    throwableConverter.setMaxFramesPerThrowable(maxFramesPerThrowable);
+  }
+
+  public int getMinBufferSize() {
+    return minBufferSize;
+  }
+
+  /**
+   * The initial size of the per-thread buffer. Buffers grow as needed for larger events, and are
+   * shrunk back to this size after events larger than 64 KiB.
+   *
+   * @param minBufferSize the initial buffer size in bytes
+   */
+  public void setMinBufferSize(final int minBufferSize) {
+    this.minBufferSize = minBufferSize;
+  }
+
+  /** Exposes the timestamp formatting of the logstash encoder, to get the exact same output. */
+  private static class TimestampFormatter extends LoggingEventFormattedTimestampJsonProvider {
+    String format(final ILoggingEvent event) {
+      return getFormattedTimestamp(event);
+    }
+  }
+}
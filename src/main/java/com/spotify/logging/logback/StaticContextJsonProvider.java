@@ -0,0 +1,97 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import javax.annotation.Nullable;
+import net.logstash.logback.composite.ContextJsonProvider;
+import net.logstash.logback.composite.JsonFactoryAware;
+
+/**
+ * A {@link ContextJsonProvider} that renders the context properties (ident, pid, hostname, ...)
+ * once and splices the pre-rendered, escaped UTF-8 JSON into every event, instead of copying and
+ * serializing the property map per event.
+ *
+ * <p>The properties are captured when the first event is written, and again after the provider has
+ * been restarted. Properties added to the context after that are not picked up.
+ */
+public class StaticContextJsonProvider extends ContextJsonProvider<ILoggingEvent>
+    implements JsonFactoryAware {
+
+  private @Nullable JsonFactory jsonFactory;
+  private volatile @Nullable SerializedString fields;
+
+  @Override
+  public void writeTo(final JsonGenerator generator, final ILoggingEvent event) throws IOException {
+    // The raw fields are spliced in with a leading comma, which only works when some other field
+    // has already been written and the generator writes JSON text without whitespace of its own.
+    if (jsonFactory == null
+        || generator.canWriteBinaryNatively()
+        || generator.getPrettyPrinter() != null
+        || generator.getOutputContext().getEntryCount() == 0) {
+      super.writeTo(generator, event);
+      return;
+    }
+
+    SerializedString fields = this.fields;
+    if (fields == null) {
+      fields = render(jsonFactory, event);
+      this.fields = fields;
+    }
+    if (fields.charLength() > 0) {
+      generator.writeRaw(fields);
+    }
+  }
+
+  private SerializedString render(final JsonFactory jsonFactory, final ILoggingEvent event)
+      throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+      generator.writeStartObject();
+      super.writeTo(generator, event);
+      generator.writeEndObject();
+    }
+    final String object = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    final String content = object.substring(1, object.length() - 1);
+    final SerializedString fields = new SerializedString(content.isEmpty() ? "" : "," + content);
+    // Encode the UTF-8 bytes up front rather than on the first write
+    fields.asUnquotedUTF8();
+    return fields;
+  }
+
+  @Override
+  public void setJsonFactory(final JsonFactory jsonFactory) {
+    this.jsonFactory = jsonFactory;
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    fields = null;
+  }
+}
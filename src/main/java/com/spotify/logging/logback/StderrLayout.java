@@ -0,0 +1,192 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.LayoutBase;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * A layout for the default stderr format of {@link com.spotify.logging.LoggingConfigurator}, the
+ * pattern {@value #PATTERN}, written out by hand instead of interpreted by a {@link
+ * ch.qos.logback.classic.PatternLayout}. The output is the same as that of the pattern, including
+ * the stack trace that the pattern layout adds for events with an exception.
+ *
+ * <p>The {@code ident[pid]: } prefix is rendered once, when the layout starts. Level names are
+ * padded from a table, the last component of each logger name is cached, and the {@code HH:mm:ss.}
+ * part of the time is only formatted again when the second changes. Stack traces are rendered by a
+ * {@link CachingThrowableProxyConverter}.
+ */
+public class StderrLayout extends LayoutBase<ILoggingEvent> {
+
+  public static final String PATTERN =
+      "%date{HH:mm:ss.SSS} %property{ident}[%property{pid}]: %-5level [%thread] %logger{0}: %msg%n";
+
+  private static final int MAX_CACHED_LOGGER_NAMES = 4096;
+  private static final int MAX_RETAINED_BUILDER_CAPACITY = 16 * 1024;
+
+  private boolean replaceNewLines;
+
+  private final ThreadLocal<StringBuilder> builders =
+      ThreadLocal.withInitial(() -> new StringBuilder(256));
+  private final CachingThrowableProxyConverter throwableConverter =
+      new CachingThrowableProxyConverter();
+  private final Map<String, String> simpleLoggerNames = new ConcurrentHashMap<>();
+  private ZoneId zone = ZoneId.systemDefault();
+  private volatile Second second = new Second(Long.MIN_VALUE, "");
+  private String prefix = "";
+
+  @Override
+  public void start() {
+    prefix = property("ident") + "[" + property("pid") + "]: ";
+    zone = ZoneId.systemDefault();
+    throwableConverter.setContext(getContext());
+    throwableConverter.start();
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    throwableConverter.stop();
+  }
+
+  // Like %property: the context property, or else the system property
+  private @Nullable String property(final String key) {
+    final String value = getContext() == null ? null : getContext().getProperty(key);
+    return value != null ? value : System.getProperty(key);
+  }
+
+  @Override
+  public String doLayout(final ILoggingEvent event) {
+    StringBuilder sb = builders.get();
+    if (sb.capacity() > MAX_RETAINED_BUILDER_CAPACITY) {
+      sb = new StringBuilder(256);
+      builders.set(sb);
+    }
+    sb.setLength(0);
+
+    final long timeStamp = event.getTimeStamp();
+    sb.append(secondOf(Math.floorDiv(timeStamp, 1000)));
+    final int millis = Math.floorMod(timeStamp, 1000);
+    sb.append((char) ('0' + millis / 100))
+        .append((char) ('0' + millis / 10 % 10))
+        .append((char) ('0' + millis % 10));
+    sb.append(' ').append(prefix);
+    sb.append(paddedLevel(event.getLevel()));
+    sb.append(" [").append(event.getThreadName()).append("] ");
+    sb.append(simpleLoggerName(event.getLoggerName())).append(": ");
+    final String message = event.getFormattedMessage();
+    sb.append(replaceNewLines ? NewLineStrippingMessageConverter.strip(message) : message);
+    sb.append(CoreConstants.LINE_SEPARATOR);
+    if (event.getThrowableProxy() != null) {
+      sb.append(throwableConverter.convert(event));
+    }
+    return sb.toString();
+  }
+
+  // The "HH:mm:ss." of a second since the epoch
+  private String secondOf(final long epochSecond) {
+    final Second cached = second;
+    if (cached.epochSecond == epochSecond) {
+      return cached.formatted;
+    }
+    final ZoneOffset offset = zone.getRules().getOffset(Instant.ofEpochSecond(epochSecond));
+    final int secondOfDay = (int) Math.floorMod(epochSecond + offset.getTotalSeconds(), 86400L);
+    final char[] chars = new char[9];
+    twoDigits(chars, 0, secondOfDay / 3600);
+    chars[2] = ':';
+    twoDigits(chars, 3, secondOfDay / 60 % 60);
+    chars[5] = ':';
+    twoDigits(chars, 6, secondOfDay % 60);
+    chars[8] = '.';
+    final String formatted = new String(chars);
+    second = new Second(epochSecond, formatted);
+    return formatted;
+  }
+
+  private static void twoDigits(final char[] chars, final int offset, final int value) {
+    chars[offset] = (char) ('0' + value / 10);
+    chars[offset + 1] = (char) ('0' + value % 10);
+  }
+
+  private static String paddedLevel(final Level level) {
+    switch (level.levelInt) {
+      case Level.ERROR_INT:
+        return "ERROR";
+      case Level.WARN_INT:
+        return "WARN ";
+      case Level.INFO_INT:
+        return "INFO ";
+      case Level.DEBUG_INT:
+        return "DEBUG";
+      case Level.TRACE_INT:
+        return "TRACE";
+      default:
+        final String name = level.toString();
+        return name.length() >= 5 ? name : (name + "     ").substring(0, 5);
+    }
+  }
+
+  // Like %logger{0}: the part after the last dot
+  private String simpleLoggerName(final String loggerName) {
+    final String cached = simpleLoggerNames.get(loggerName);
+    if (cached != null) {
+      return cached;
+    }
+    final String simpleName = loggerName.substring(loggerName.lastIndexOf('.') + 1);
+    if (simpleLoggerNames.size() < MAX_CACHED_LOGGER_NAMES) {
+      simpleLoggerNames.put(loggerName, simpleName);
+    }
+    return simpleName;
+  }
+
+  public boolean isReplaceNewLines() {
+    return replaceNewLines;
+  }
+
+  /**
+   * Remove carriage returns and line feeds from messages, like {@link
+   * NewLineStrippingMessageConverter}. Off by default.
+   *
+   * @param replaceNewLines whether to remove them
+   */
+  public void setReplaceNewLines(final boolean replaceNewLines) {
+    this.replaceNewLines = replaceNewLines;
+  }
+
+  private static final class Second {
+    final long epochSecond;
+    final String formatted;
+
+    Second(final long epochSecond, final String formatted) {
+      this.epochSecond = epochSecond;
+      this.formatted = formatted;
+    }
+  }
+}
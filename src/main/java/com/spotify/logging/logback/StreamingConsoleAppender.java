@@ -0,0 +1,89 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.ConsoleAppender;
+import java.io.IOException;
+import java.io.OutputStream;
+import net.logstash.logback.encoder.StreamingEncoder;
+
+/**
+ * A {@link ConsoleAppender} that lets a {@link StreamingEncoder} (such as {@link
+ * CustomLogstashEncoder} or {@link StackdriverJsonEncoder}) write each event into a reusable
+ * per-thread buffer, which is then written to the console as is. This avoids the new byte array
+ * that {@link ch.qos.logback.core.encoder.Encoder#encode(Object)} returns for every event.
+ *
+ * <p>Encoding still happens outside of the stream lock, so threads don't wait on each other while
+ * encoding. Other encoders are handled exactly like in {@link ConsoleAppender}.
+ */
+public class StreamingConsoleAppender extends ConsoleAppender<ILoggingEvent> {
+
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private final ThreadLocal<JsonByteBuffer> buffers =
+      ThreadLocal.withInitial(() -> new JsonByteBuffer(INITIAL_BUFFER_SIZE));
+
+  @Override
+  protected void writeOut(final ILoggingEvent event) throws IOException {
+    final Object recording = FlightRecorderEvents.beginAppend();
+    try {
+      if (!(encoder instanceof StreamingEncoder)) {
+        super.writeOut(event);
+        return;
+      }
+
+      @SuppressWarnings("unchecked")
+      final StreamingEncoder<ILoggingEvent> streamingEncoder =
+          (StreamingEncoder<ILoggingEvent>) encoder;
+      final JsonByteBuffer buffer = buffers.get();
+      try {
+        try {
+          streamingEncoder.encode(event, buffer);
+        } catch (IOException e) {
+          // Only the buffer was written to, so this is an encoding problem and not a broken stream
+          addWarn("Error encountered while encoding log event. Event: " + event, e);
+          return;
+        }
+
+        streamWriteLock.lock();
+        try {
+          // stop() closes the stream under the same lock
+          if (!isStarted()) {
+            return;
+          }
+          final OutputStream out = getOutputStream();
+          buffer.writeTo(out);
+          if (isImmediateFlush()) {
+            out.flush();
+          }
+        } finally {
+          streamWriteLock.unlock();
+        }
+      } finally {
+        buffer.reset(MAX_RETAINED_BUFFER_SIZE);
+      }
+    } finally {
+      FlightRecorderEvents.endAppend(recording, this, event);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The encoded syslog datagrams of one event. It takes the place of the syslog output stream while
+ * an event is encoded: like {@link ch.qos.logback.core.net.SyslogOutputStream}, each {@link
+ * #flush()} ends a datagram, but the bytes are kept until {@link #writeTo(OutputStream)} sends
+ * them. Not synchronized, it is handed between threads through a {@link SyslogPipeline}.
+ */
+final class SyslogDatagramBuffer extends OutputStream {
+
+  private final int initialCapacity;
+  private byte[] buf;
+  private int size;
+  private int[] ends = new int[8];
+  private int count;
+
+  // The sequence of the pipeline slot this buffer was published to
+  volatile long sequence = -1;
+
+  SyslogDatagramBuffer(final int initialCapacity) {
+    this.initialCapacity = initialCapacity;
+    this.buf = new byte[initialCapacity];
+  }
+
+  /**
+   * Empties the buffer. If it has grown past {@code maxRetainedCapacity} it is shrunk back, so a
+   * single huge stack trace doesn't pin memory for the lifetime of the buffer.
+   */
+  void reset(final int maxRetainedCapacity) {
+    size = 0;
+    count = 0;
+    if (buf.length > maxRetainedCapacity) {
+      buf = new byte[initialCapacity];
+    }
+  }
+
+  /** @return the number of complete datagrams in the buffer. */
+  int datagrams() {
+    return count;
+  }
+
+  /** @return the number of bytes in the buffer. */
+  int size() {
+    return size;
+  }
+
+  /** Sends each datagram by writing it to the syslog output stream and flushing it. */
+  void writeTo(final OutputStream out) throws IOException {
+    int start = 0;
+    for (int i = 0; i < count; i++) {
+      out.write(buf, start, ends[i] - start);
+      out.flush();
+      start = ends[i];
+    }
+  }
+
+  @Override
+  public void write(final int b) {
+    ensureCapacity(1);
+    buf[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(final byte[] bytes, final int off, final int len) {
+    ensureCapacity(len);
+    System.arraycopy(bytes, off, buf, size, len);
+    size += len;
+  }
+
+  /** Ends the current datagram. Like the syslog output stream, empty datagrams are not sent. */
+  @Override
+  public void flush() {
+    final int start = count == 0 ? 0 : ends[count - 1];
+    if (size == start) {
+      return;
+    }
+    if (count == ends.length) {
+      ends = Arrays.copyOf(ends, count * 2);
+    }
+    ends[count++] = size;
+  }
+
+  private void ensureCapacity(final int extra) {
+    final int required = size + extra;
+    if (required > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.core.spi.ContextAware;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands encoded events from any number of logging threads to a single writer thread that owns the
+ * syslog socket.
+ *
+ * <p>The queue is a ring of {@link SyslogDatagramBuffer}s, claimed with a CAS like in {@link
+ * RingBufferAppender}. Each logging thread encodes into a buffer of its own, and publishing swaps
+ * it with the buffer in the claimed slot, which the writer is done with. The buffers are therefore
+ * pooled between the ring and the logging threads, and the bytes are never copied on the way to the
+ * writer. The writer sends everything that has been published before it waits again.
+ */
+final class SyslogPipeline {
+
+  private static final int INITIAL_BUFFER_CAPACITY = 512;
+  private static final int MAX_RETAINED_BUFFER_CAPACITY = 16 * 1024;
+  private static final int SPIN_TRIES = 100;
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final String name;
+  private final ContextAware status;
+  private final OutputStream out;
+  private final boolean neverBlock;
+  private final AtomicReferenceArray<SyslogDatagramBuffer> slots;
+  private final int mask;
+  private final ThreadLocal<SyslogDatagramBuffer> buffers =
+      ThreadLocal.withInitial(() -> new SyslogDatagramBuffer(INITIAL_BUFFER_CAPACITY));
+
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLong consumed = new AtomicLong();
+  private final LongAdder dropped = new LongAdder();
+  private volatile boolean writerWaiting;
+  private volatile boolean running = true;
+  private final Thread writer;
+
+  /**
+   * Create a pipeline and start its writer thread.
+   *
+   * @param name the name of the appender, for the writer thread name
+   * @param status where to report errors
+   * @param out the syslog output stream, which is only used by the writer thread from now on
+   * @param bufferSize the number of events that can be queued, rounded up to a power of two
+   * @param neverBlock drop events instead of waiting when the queue is full
+   */
+  SyslogPipeline(
+      final String name,
+      final ContextAware status,
+      final OutputStream out,
+      final int bufferSize,
+      final boolean neverBlock) {
+    this.name = name;
+    this.status = status;
+    this.out = out;
+    this.neverBlock = neverBlock;
+    final int size = Integer.highestOneBit(Math.min(bufferSize, 1 << 30) * 2 - 1);
+    this.slots = new AtomicReferenceArray<>(size);
+    for (int i = 0; i < size; i++) {
+      slots.set(i, new SyslogDatagramBuffer(INITIAL_BUFFER_CAPACITY));
+    }
+    this.mask = size - 1;
+    this.writer = new Thread(this::runWriter, "SyslogPipeline-Writer-" + name);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Get the calling thread's buffer to encode an event into, emptied.
+   *
+   * @return the buffer, to be passed to {@link #publish(SyslogDatagramBuffer)}
+   */
+  SyslogDatagramBuffer buffer() {
+    final SyslogDatagramBuffer buffer = buffers.get();
+    buffer.reset(MAX_RETAINED_BUFFER_CAPACITY);
+    return buffer;
+  }
+
+  /**
+   * Queue an encoded event for the writer thread. Waits for a free slot if the queue is full,
+   * unless neverBlock is set or the pipeline is stopped, in which case the event is dropped.
+   *
+   * @param buffer the buffer from {@link #buffer()}
+   */
+  void publish(final SyslogDatagramBuffer buffer) {
+    if (buffer.datagrams() == 0) {
+      return;
+    }
+    final long sequence = claim();
+    if (sequence < 0) {
+      dropped.increment();
+      return;
+    }
+    final int index = (int) sequence & mask;
+    buffers.set(slots.get(index));
+    buffer.sequence = sequence;
+    slots.set(index, buffer);
+
+    if (writerWaiting) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  private long claim() {
+    int tries = 0;
+    while (true) {
+      final long sequence = claimed.get();
+      if (sequence - consumed.get() >= slots.length()) {
+        if (neverBlock || !running) {
+          return -1;
+        }
+        if (tries < SPIN_TRIES) {
+          tries++;
+        } else {
+          Thread.yield();
+        }
+        continue;
+      }
+      if (claimed.compareAndSet(sequence, sequence + 1)) {
+        return sequence;
+      }
+    }
+  }
+
+  private void runWriter() {
+    long sequence = 0;
+    int tries = 0;
+    while (true) {
+      final SyslogDatagramBuffer buffer = slots.get((int) sequence & mask);
+      if (buffer.sequence == sequence) {
+        final Object recording = FlightRecorderEvents.beginSend();
+        try {
+          buffer.writeTo(out);
+        } catch (IOException | RuntimeException e) {
+          status.addError("Failed to send syslog datagram.", e);
+        }
+        FlightRecorderEvents.endSend(recording, name, buffer.datagrams(), buffer.size());
+        buffer.reset(MAX_RETAINED_BUFFER_CAPACITY);
+        sequence++;
+        consumed.lazySet(sequence);
+        tries = 0;
+      } else if (!running && sequence == claimed.get()) {
+        break;
+      } else if (Thread.currentThread().isInterrupted()) {
+        break;
+      } else if (tries < SPIN_TRIES) {
+        tries++;
+      } else {
+        writerWaiting = true;
+        // Re-check after announcing that we're waiting, so a publish can't be missed
+        if (slots.get((int) sequence & mask).sequence != sequence && running) {
+          LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        writerWaiting = false;
+      }
+    }
+  }
+
+  /**
+   * Stop accepting events and wait for the writer to send the ones already queued.
+   *
+   * @param maxFlushTime how long to wait, in milliseconds
+   * @return the number of queued events that were not sent
+   */
+  long stop(final long maxFlushTime) {
+    running = false;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(maxFlushTime);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (writer.isAlive()) {
+      writer.interrupt();
+    }
+    return Math.max(0, claimed.get() - consumed.get());
+  }
+
+  /** @return the number of events that were dropped because the queue was full. */
+  long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /** @return the number of events waiting to be sent. */
+  int getNumberOfElementsInQueue() {
+    return (int) Math.max(0, claimed.get() - consumed.get());
+  }
+
+  @Override
+  public String toString() {
+    return "SyslogPipeline{" + "size=" + slots.length() + ", neverBlock=" + neverBlock + '}';
+  }
+}
@@ -0,0 +1,223 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of rendered stack frames. Entries are keyed by a structural fingerprint of a
+ * single throwable in a cause chain: its class name, its frames, the number of frames it has in
+ * common with the enclosing throwable, and the indentation it is rendered with. Messages are not
+ * part of the key, so an exception thrown over and over from the same place only needs its message
+ * line formatted; each throwable in the cause chain is looked up on its own.
+ *
+ * <p>The cache is direct mapped: a fingerprint can only live in one slot, and a new entry simply
+ * replaces whatever was in its slot. Entries keep the class name and frames they were rendered
+ * from, which are compared on a hit, so a fingerprint collision is just a miss. This keeps lookups
+ * lock-free and the size strictly bounded.
+ *
+ * @param <V> the rendered form of the frames
+ */
+public final class ThrowableRenderingCache<V> {
+
+  /** Renders the frames of a throwable on a cache miss. */
+  public interface Renderer<V> {
+    V render(IThrowableProxy tp, int indent);
+  }
+
+  /** Estimates the memory used by a rendered value, in bytes. */
+  public interface Weigher<V> {
+    long weigh(V value);
+  }
+
+  // Don't keep huge renderings (e.g. runaway recursion) around
+  private static final long MAX_ENTRY_WEIGHT = 64 * 1024;
+
+  private final AtomicReferenceArray<Entry<V>> entries;
+  private final int mask;
+  private final Weigher<V> weigher;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final AtomicInteger entryCount = new AtomicInteger();
+  private final AtomicLong weight = new AtomicLong();
+
+  /**
+   * Create a cache.
+   *
+   * @param maxEntries the maximum number of entries, rounded up to a power of two
+   * @param weigher estimates the memory used by rendered values
+   */
+  public ThrowableRenderingCache(final int maxEntries, final Weigher<V> weigher) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    }
+    final int size = Integer.highestOneBit(Math.min(maxEntries, 1 << 20) * 2 - 1);
+    this.entries = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.weigher = weigher;
+  }
+
+  /**
+   * Get the rendered frames of a throwable, rendering and caching them if needed.
+   *
+   * @param tp the throwable to get the frames of
+   * @param indent the indentation the frames are rendered with
+   * @param renderer renders the frames on a cache miss
+   * @return the rendered frames
+   */
+  public V get(final IThrowableProxy tp, final int indent, final Renderer<V> renderer) {
+    final StackTraceElementProxy[] steps = tp.getStackTraceElementProxyArray();
+    final long key = fingerprint(tp, steps, indent);
+    final int index = (int) (key ^ (key >>> 32)) & mask;
+
+    final Entry<V> entry = entries.get(index);
+    if (entry != null && entry.key == key && entry.matches(tp, steps, indent)) {
+      hits.increment();
+      return entry.value;
+    }
+
+    misses.increment();
+    final V value = renderer.render(tp, indent);
+    final long valueWeight = weigher.weigh(value);
+    if (valueWeight <= MAX_ENTRY_WEIGHT) {
+      final Entry<V> previous =
+          entries.getAndSet(index, new Entry<>(key, tp, steps, indent, value, valueWeight));
+      if (previous == null) {
+        entryCount.incrementAndGet();
+        weight.addAndGet(valueWeight);
+      } else {
+        weight.addAndGet(valueWeight - previous.weight);
+      }
+    }
+    return value;
+  }
+
+  static long fingerprint(
+      final IThrowableProxy tp, final StackTraceElementProxy[] steps, final int indent) {
+    long h = mix(tp.getClassName().hashCode(), indent);
+    h = mix(h, tp.getCommonFrames());
+    for (final StackTraceElementProxy step : steps) {
+      h = mix(h, step.getStackTraceElement().hashCode());
+    }
+    return h;
+  }
+
+  private static long mix(final long h, final int value) {
+    final long x = (h ^ value) * 0x9E3779B97F4A7C15L;
+    return x ^ (x >>> 29);
+  }
+
+  /** @return the number of lookups that were served from the cache. */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /** @return the number of lookups that had to render the frames. */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /** @return the fraction of lookups served from the cache, or 0 if there were no lookups. */
+  public double getHitRate() {
+    final long hits = getHitCount();
+    final long total = hits + getMissCount();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /** @return the number of cached renderings. */
+  public int getEntryCount() {
+    return entryCount.get();
+  }
+
+  /** @return the estimated memory used by the cached renderings, in bytes. */
+  public long getEstimatedMemoryUsage() {
+    return weight.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ThrowableRenderingCache{"
+        + "entries="
+        + getEntryCount()
+        + ", hitRate="
+        + getHitRate()
+        + ", estimatedMemoryUsage="
+        + getEstimatedMemoryUsage()
+        + '}';
+  }
+
+  static final class Entry<V> {
+
+    private final long key;
+    private final String className;
+    private final int commonFrames;
+    private final int indent;
+    private final StackTraceElement[] frames;
+    private final V value;
+    private final long weight;
+
+    Entry(
+        final long key,
+        final IThrowableProxy tp,
+        final StackTraceElementProxy[] steps,
+        final int indent,
+        final V value,
+        final long weight) {
+      this.key = key;
+      this.className = tp.getClassName();
+      this.commonFrames = tp.getCommonFrames();
+      this.indent = indent;
+      this.frames = new StackTraceElement[steps.length];
+      for (int i = 0; i < steps.length; i++) {
+        frames[i] = steps[i].getStackTraceElement();
+      }
+      this.value = value;
+      this.weight = weight;
+    }
+
+    /**
+     * Compare the key fields, so that two throwables with the same fingerprint can't get each
+     * other's frames.
+     */
+    boolean matches(
+        final IThrowableProxy tp, final StackTraceElementProxy[] steps, final int indent) {
+      if (this.indent != indent
+          || commonFrames != tp.getCommonFrames()
+          || frames.length != steps.length
+          || !className.equals(tp.getClassName())) {
+        return false;
+      }
+      for (int i = 0; i < steps.length; i++) {
+        final StackTraceElement frame = steps[i].getStackTraceElement();
+        if (frame != frames[i] && !frame.equals(frames[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
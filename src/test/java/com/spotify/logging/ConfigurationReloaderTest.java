@@ -0,0 +1,399 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.read.ListAppender;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConfigurationReloaderTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private LoggerContext context;
+  private Logger root;
+  private File file;
+  private ConfigurationReloader reloader;
+
+  @Before
+  public void setUp() throws IOException {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+    file = folder.newFile("logback.xml");
+  }
+
+  @After
+  public void tearDown() {
+    if (reloader != null) {
+      reloader.stop();
+    }
+    context.stop();
+  }
+
+  @Test
+  public void shouldApplyLevelChangesWithoutReplacingAppenders() throws IOException {
+    start(config("INFO", "WARN", "INFO", ""));
+    final ListAppender<ILoggingEvent> all = appender("all");
+    final ListAppender<ILoggingEvent> changing = appender("changing");
+
+    write(config("DEBUG", "ERROR", "INFO", ""));
+    reloader.reload();
+
+    assertEquals(Level.DEBUG, root.getLevel());
+    assertEquals(Level.ERROR, context.getLogger("noisy").getLevel());
+    assertSame(all, appender("all"));
+    assertSame(changing, appender("changing"));
+    assertTrue(changing.isStarted());
+    assertEquals(1, reloader.getFullReloadCount());
+    assertEquals(1, reloader.getIncrementalReloadCount());
+  }
+
+  @Test
+  public void shouldReplaceOnlyChangedAppenders() throws IOException {
+    start(config("INFO", "WARN", "INFO", ""));
+    final ListAppender<ILoggingEvent> all = appender("all");
+    final ListAppender<ILoggingEvent> changing = appender("changing");
+
+    write(config("INFO", "WARN", "DEBUG", ""));
+    reloader.reload();
+
+    assertSame(all, appender("all"));
+    assertTrue(all.isStarted());
+    assertNotSame(changing, appender("changing"));
+    assertTrue(appender("changing").isStarted());
+    assertFalse(changing.isStarted());
+    final List<Appender<ILoggingEvent>> attached = new ArrayList<>();
+    root.iteratorForAppenders().forEachRemaining(attached::add);
+    assertEquals(2, attached.size());
+    assertEquals(1, reloader.getIncrementalReloadCount());
+
+    final Logger staging = context.getLogger(ConfigurationReloader.STAGING_LOGGER);
+    assertNull(staging.getLevel());
+    assertTrue(staging.isAdditive());
+    assertFalse(staging.iteratorForAppenders().hasNext());
+  }
+
+  @Test
+  public void shouldRemoveLoggersAndAppendersThatAreGone() throws IOException {
+    start(
+        config(
+            "INFO",
+            "WARN",
+            "INFO",
+            "<appender name='extra' class='ch.qos.logback.core.read.ListAppender'/>"
+                + "<logger name='extra' level='TRACE' additivity='false'>"
+                + "<appender-ref ref='extra'/></logger>"));
+    final Logger extraLogger = context.getLogger("extra");
+    final ListAppender<ILoggingEvent> extra =
+        (ListAppender<ILoggingEvent>) extraLogger.getAppender("extra");
+
+    write(config("INFO", "WARN", "INFO", ""));
+    reloader.reload();
+
+    assertNull(extraLogger.getLevel());
+    assertTrue(extraLogger.isAdditive());
+    assertNull(extraLogger.getAppender("extra"));
+    assertFalse(extra.isStarted());
+    assertEquals(1, reloader.getIncrementalReloadCount());
+  }
+
+  @Test
+  public void shouldResetContextWhenPropertiesChange() throws IOException {
+    start(config("INFO", "WARN", "INFO", "<property scope='context' name='a' value='1'/>"));
+    final ListAppender<ILoggingEvent> all = appender("all");
+
+    write(config("INFO", "WARN", "INFO", "<property scope='context' name='a' value='2'/>"));
+    reloader.reload();
+
+    assertNotSame(all, appender("all"));
+    assertEquals("2", context.getProperty("a"));
+    assertEquals(2, reloader.getFullReloadCount());
+    assertEquals(0, reloader.getIncrementalReloadCount());
+  }
+
+  @Test
+  public void shouldKeepConfigurationWhenFileIsBroken() throws IOException {
+    start(config("INFO", "WARN", "INFO", ""));
+    final ListAppender<ILoggingEvent> all = appender("all");
+
+    write("<configuration><root level='DEBUG'>");
+    reloader.reload();
+
+    assertSame(all, appender("all"));
+    assertEquals(Level.INFO, root.getLevel());
+    assertEquals(1, reloader.getFullReloadCount());
+  }
+
+  @Test(expected = IOException.class)
+  public void shouldFailToParseMalformedFile() throws IOException {
+    ConfigurationSnapshot.parse(
+        "<configuration><root level='DEBUG'>".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void shouldKeepConfigurationWhenFileCannotBeApplied() throws IOException {
+    start(config("INFO", "WARN", "INFO", "<property scope='context' name='a' value='1'/>"));
+    final ListAppender<ILoggingEvent> all = appender("all");
+
+    write(
+        config(
+            "DEBUG",
+            "WARN",
+            "INFO",
+            "<property scope='context' name='a' value='2'/>"
+                + "<appender name='bad' class='com.spotify.logging.NoSuchAppender'/>"));
+    reloader.reload();
+
+    assertSame(all, appender("all"));
+    assertTrue(all.isStarted());
+    assertEquals(Level.INFO, root.getLevel());
+    assertEquals("1", context.getProperty("a"));
+    assertEquals(1, reloader.getFullReloadCount());
+  }
+
+  @Test
+  public void shouldNotLoseEventsDuringReload() throws Exception {
+    start(gatedConfig("INFO"), TimeUnit.MINUTES.toMillis(1));
+    final GateAppender gate = (GateAppender) root.getAppender("gate");
+    final ListAppender<ILoggingEvent> old = appender("changing");
+
+    // Hold a logging thread between the appenders of the root logger, so it has picked up the
+    // appenders from before the reload but not appended to the one being replaced yet
+    gate.armed = true;
+    final Thread thread = new Thread(() -> context.getLogger("service").info("event"));
+    thread.start();
+    assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+
+    write(gatedConfig("DEBUG"));
+    reloader.reload();
+    assertNotSame(old, appender("changing"));
+
+    gate.open.countDown();
+    thread.join();
+
+    assertEquals(1, reloader.getIncrementalReloadCount());
+    assertEquals(1, old.list.size());
+    assertEquals("event", old.list.get(0).getMessage());
+    assertTrue(appender("changing").list.isEmpty());
+
+    // Stopping the reloader stops the appenders still in their grace period
+    assertTrue(old.isStarted());
+    reloader.stop();
+    assertFalse(old.isStarted());
+  }
+
+  @Test
+  public void shouldNotLoseEventsWhileLoggingContinuouslyThroughReloads() throws Exception {
+    start(config("INFO", "WARN", "INFO", ""), TimeUnit.MINUTES.toMillis(1));
+    final ListAppender<ILoggingEvent> all = appender("all");
+    final List<ListAppender<ILoggingEvent>> changing = new ArrayList<>();
+    changing.add(appender("changing"));
+
+    final Logger logger = context.getLogger("service");
+    final AtomicBoolean logging = new AtomicBoolean(true);
+    final AtomicInteger sequence = new AtomicInteger();
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final Thread thread =
+          new Thread(
+              () -> {
+                while (logging.get()) {
+                  logger.info(Integer.toString(sequence.getAndIncrement()));
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+
+    // Replace one appender and change levels back and forth, letting events through in between
+    for (int i = 0; i < 10; i++) {
+      awaitProgress(sequence);
+      write(config(i % 2 == 0 ? "DEBUG" : "INFO", "WARN", i % 2 == 0 ? "DEBUG" : "INFO", ""));
+      reloader.reload();
+      changing.add(appender("changing"));
+    }
+    awaitProgress(sequence);
+    logging.set(false);
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    final int logged = sequence.get();
+    assertEquals(10, reloader.getIncrementalReloadCount());
+    assertEquals(logged, all.list.size());
+    assertEquals(0, longestGap(List.of(all), logged));
+    assertEquals(0, longestGap(changing, logged));
+  }
+
+  @Test
+  public void shouldReloadWhenFileChanges() throws Exception {
+    start(config("INFO", "WARN", "INFO", ""));
+
+    write(config("INFO", "DEBUG", "INFO", ""));
+    assertTrue(file.setLastModified(file.lastModified() + TimeUnit.SECONDS.toMillis(2)));
+
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (reloader.getIncrementalReloadCount() == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, reloader.getIncrementalReloadCount());
+    assertEquals(Level.DEBUG, context.getLogger("noisy").getLevel());
+  }
+
+  // Wait until the logging threads have logged some more events
+  private static void awaitProgress(final AtomicInteger sequence) {
+    final int target = sequence.get() + 1000;
+    while (sequence.get() < target) {
+      Thread.yield();
+    }
+  }
+
+  // The longest run of sequence numbers that none of the appenders got
+  private static int longestGap(final List<ListAppender<ILoggingEvent>> appenders, final int n) {
+    final BitSet seen = new BitSet(n);
+    for (final ListAppender<ILoggingEvent> appender : appenders) {
+      for (final ILoggingEvent event : appender.list) {
+        seen.set(Integer.parseInt(event.getMessage()));
+      }
+    }
+    int longest = 0;
+    for (int i = seen.nextClearBit(0); i < n; ) {
+      final int next = seen.nextSetBit(i);
+      final int end = next < 0 ? n : next;
+      longest = Math.max(longest, end - i);
+      i = seen.nextClearBit(end);
+    }
+    return longest;
+  }
+
+  private void start(final String config) throws IOException {
+    start(config, 0);
+  }
+
+  private void start(final String config, final long stopGraceMillis) throws IOException {
+    write(config);
+    reloader = new ConfigurationReloader(context, file, "test", 10, stopGraceMillis);
+    reloader.start();
+  }
+
+  private void write(final String config) throws IOException {
+    Files.write(file.toPath(), config.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @SuppressWarnings("unchecked")
+  private ListAppender<ILoggingEvent> appender(final String name) {
+    return (ListAppender<ILoggingEvent>) root.getAppender(name);
+  }
+
+  private static String gatedConfig(final String thresholdLevel) {
+    return "<configuration>"
+        + "<appender name='gate' class='"
+        + GateAppender.class.getName()
+        + "'/>"
+        + "<appender name='changing' class='ch.qos.logback.core.read.ListAppender'>"
+        + "  <filter class='ch.qos.logback.classic.filter.ThresholdFilter'>"
+        + "    <level>"
+        + thresholdLevel
+        + "</level>"
+        + "  </filter>"
+        + "</appender>"
+        + "<root level='INFO'>"
+        + "  <appender-ref ref='gate'/>"
+        + "  <appender-ref ref='changing'/>"
+        + "</root>"
+        + "</configuration>";
+  }
+
+  private static String config(
+      final String rootLevel,
+      final String noisyLevel,
+      final String thresholdLevel,
+      final String extra) {
+    return "<configuration>"
+        + extra
+        + "<appender name='all' class='ch.qos.logback.core.read.ListAppender'/>"
+        + "<appender name='changing' class='ch.qos.logback.core.read.ListAppender'>"
+        + "  <filter class='ch.qos.logback.classic.filter.ThresholdFilter'>"
+        + "    <level>"
+        + thresholdLevel
+        + "</level>"
+        + "  </filter>"
+        + "</appender>"
+        + "<logger name='noisy' level='"
+        + noisyLevel
+        + "'/>"
+        + "<root level='"
+        + rootLevel
+        + "'>"
+        + "  <appender-ref ref='all'/>"
+        + "  <appender-ref ref='changing'/>"
+        + "</root>"
+        + "</configuration>";
+  }
+
+  /** Once armed, blocks the first logging thread that appends to it until opened. */
+  public static class GateAppender extends ListAppender<ILoggingEvent> {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch open = new CountDownLatch(1);
+    volatile boolean armed;
+
+    @Override
+    protected void append(final ILoggingEvent event) {
+      if (armed) {
+        entered.countDown();
+        try {
+          open.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      super.append(event);
+    }
+  }
+}
@@ -38,28 +38,49 @@ package com.spotify.logging;
 
 import static com.spotify.logging.LoggingConfigurator.addSentryAppender;
 import static com.spotify.logging.LoggingConfigurator.getSyslogAppender;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import ch.qos.logback.classic.AsyncAppender;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
-import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.net.SyslogAppender;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.ConsoleAppender;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import ch.qos.logback.core.read.ListAppender;
 import ch.qos.logback.core.status.Status;
+import com.spotify.logging.LoggingConfigurator.AsyncOptions;
 import com.spotify.logging.logback.CustomLogstashEncoder;
+import com.spotify.logging.logback.FileChannelConsoleAppender;
+import com.spotify.logging.logback.LogBudgetTurboFilter;
+import com.spotify.logging.logback.LogVolumeAppender;
+import com.spotify.logging.logback.MappedFileAppender;
+import com.spotify.logging.logback.MdcDebugTurboFilter;
+import com.spotify.logging.logback.PrioritizedAsyncAppender;
+import com.spotify.logging.logback.StderrLayout;
 import io.sentry.logback.SentryAppender;
+import java.io.File;
+import java.nio.file.Files;
 import net.logstash.logback.composite.loggingevent.ArgumentsJsonProvider;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.EnvironmentVariables;
+import org.junit.rules.TemporaryFolder;
 import org.slf4j.LoggerFactory;
 
 public class LoggingConfiguratorTest {
 
   @Rule public final EnvironmentVariables environmentVariables = new EnvironmentVariables();
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
 
   @Test
   public void testGetSyslogAppender() {
@@ -104,9 +125,7 @@ public class LoggingConfiguratorTest {
 
     appender =
         (SyslogAppender) getSyslogAppender(context, "", -1, LoggingConfigurator.ReplaceNewLines.ON);
-    assertEquals(
-        "%property{ident}[%property{pid}]: %replace(%msg){'[\\r\\n]', ''}",
-        appender.getSuffixPattern());
+    assertEquals("%property{ident}[%property{pid}]: %msgNoNewLines", appender.getSuffixPattern());
   }
 
   @Test
@@ -205,6 +224,227 @@ public class LoggingConfiguratorTest {
     assertDefault("MyService", Level.INFO);
   }
 
+  @Test
+  public void shouldLogSynchronouslyByDefault() {
+    assertFalse(AsyncOptions.fromEnvironment().isEnabled());
+  }
+
+  @Test
+  public void shouldReadAsyncOptionsFromEnvironment() {
+    environmentVariables.set(LoggingConfigurator.USE_ASYNC_LOGGING, "true");
+    environmentVariables.set(LoggingConfigurator.ASYNC_LOGGING_QUEUE_SIZE, "100");
+    environmentVariables.set(LoggingConfigurator.ASYNC_LOGGING_NEVER_BLOCK, "true");
+    environmentVariables.set(LoggingConfigurator.ASYNC_LOGGING_DISCARD_BELOW_WARN, "false");
+    environmentVariables.set(LoggingConfigurator.ASYNC_LOGGING_SHUTDOWN_DEADLINE_MS, "5000");
+
+    final AsyncOptions options = AsyncOptions.fromEnvironment();
+
+    assertTrue(options.isEnabled());
+    assertEquals(100, options.getQueueSize());
+    assertTrue(options.isNeverBlock());
+    assertFalse(options.isDiscardBelowWarn());
+    assertEquals(5000, options.getShutdownDeadlineMillis());
+  }
+
+  @Test
+  public void shouldConfigureAsyncDefaultsWhenEnvVarIsSet() {
+    environmentVariables.set(LoggingConfigurator.USE_ASYNC_LOGGING, "true");
+    LoggingConfigurator.configureService("MyService");
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final AsyncAppender async = (AsyncAppender) rootLogger.getAppender("stderr-async");
+    assertTrue(async.isStarted());
+    assertEquals(AsyncOptions.DEFAULT_QUEUE_SIZE, async.getQueueSize());
+    assertTrue(async.getAppender("stderr") instanceof ConsoleAppender);
+  }
+
+  @Test
+  public void shouldConfigureAsyncLogstashEncoder() {
+    LoggingConfigurator.configureLogstashEncoderDefaults(
+        LoggingConfigurator.Level.INFO,
+        AsyncOptions.async().withQueueSize(10).withNeverBlock(true).withDiscardBelowWarn(false));
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final AsyncAppender async = (AsyncAppender) rootLogger.getAppender("stdout-async");
+    assertEquals(10, async.getQueueSize());
+    assertTrue(async.isNeverBlock());
+    assertEquals(0, async.getDiscardingThreshold());
+    final ConsoleAppender<?> stdout = (ConsoleAppender<?>) async.getAppender("stdout");
+    assertTrue(stdout.getEncoder() instanceof CustomLogstashEncoder);
+  }
+
+  @Test
+  public void shouldConfigureAsyncSyslog() {
+    LoggingConfigurator.configureSyslogDefaults(
+        "ident",
+        LoggingConfigurator.Level.INFO,
+        "localhost",
+        514,
+        Logger.ROOT_LOGGER_NAME,
+        LoggingConfigurator.ReplaceNewLines.OFF,
+        AsyncOptions.async());
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final AsyncAppender async = (AsyncAppender) rootLogger.getAppender("syslog-async");
+    assertTrue(async.getAppender("syslog") instanceof SyslogAppender);
+  }
+
+  @Test
+  public void shouldConfigurePrioritizedAsyncAppenderFromEnvironment() {
+    environmentVariables.set(LoggingConfigurator.USE_ASYNC_LOGGING, "true");
+    environmentVariables.set(LoggingConfigurator.ASYNC_LOGGING_PRIORITIZED, "true");
+    environmentVariables.set(LoggingConfigurator.ASYNC_LOGGING_DISCARD_BELOW_WARN, "false");
+    LoggingConfigurator.configureService("MyService");
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final PrioritizedAsyncAppender async =
+        (PrioritizedAsyncAppender) rootLogger.getAppender("stderr-async");
+    assertTrue(async.isStarted());
+    assertEquals(AsyncOptions.DEFAULT_QUEUE_SIZE, async.getQueueSize());
+    assertEquals(0, async.getDebugSheddingPercent());
+    assertEquals(0, async.getInfoSheddingPercent());
+    assertTrue(async.getAppender("stderr") instanceof ConsoleAppender);
+  }
+
+  @Test
+  public void shouldConfigureDirectConsoleOutputWhenEnvVarIsSet() {
+    environmentVariables.set(LoggingConfigurator.USE_DIRECT_CONSOLE_OUTPUT, "true");
+    LoggingConfigurator.configureLogstashEncoderDefaults(
+        LoggingConfigurator.Level.INFO, AsyncOptions.sync());
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final FileChannelConsoleAppender stdout =
+        (FileChannelConsoleAppender) rootLogger.getAppender("stdout");
+    assertTrue(stdout.isStarted());
+    assertEquals("System.out", stdout.getTarget());
+    assertTrue(stdout.getEncoder() instanceof CustomLogstashEncoder);
+    rootLogger.getLoggerContext().reset();
+  }
+
+  @Test
+  public void shouldAddLogVolumeAppenderWhenEnvVarIsSet() {
+    environmentVariables.set(LoggingConfigurator.LOG_VOLUME_ACCOUNTING, "true");
+    LoggingConfigurator.configureDefaults("some-ident", LoggingConfigurator.Level.INFO);
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final LogVolumeAppender volume = (LogVolumeAppender) rootLogger.getAppender("volume");
+    assertTrue(volume.isStarted());
+    LoggerFactory.getLogger("com.spotify.Foo").info("counted");
+    assertEquals(1L, (long) volume.getEventCountsByLogger().get("com.spotify.Foo"));
+    rootLogger.getLoggerContext().reset();
+  }
+
+  @Test
+  public void shouldAddLogBudgetFilterWhenEnvVarIsSet() {
+    environmentVariables.set(LoggingConfigurator.LOG_BUDGET_EVENTS_PER_MINUTE, "600");
+    LoggingConfigurator.configureDefaults("some-ident", LoggingConfigurator.Level.INFO);
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final LoggerContext context = rootLogger.getLoggerContext();
+    assertEquals(1, context.getTurboFilterList().size());
+    final LogBudgetTurboFilter filter = (LogBudgetTurboFilter) context.getTurboFilterList().get(0);
+    assertTrue(filter.isStarted());
+    assertEquals(600, filter.getMaxEventsPerMinute());
+    assertEquals(0, filter.getMaxCharsPerMinute());
+    context.reset();
+  }
+
+  @Test
+  public void shouldAddLogBudgetFilterForJsonLogging() {
+    environmentVariables.set(LoggingConfigurator.LOG_BUDGET_CHARS_PER_MINUTE, "10000");
+    LoggingConfigurator.configureLogstashEncoderDefaults(LoggingConfigurator.Level.INFO);
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final LoggerContext context = rootLogger.getLoggerContext();
+    assertEquals(1, context.getTurboFilterList().size());
+    final LogBudgetTurboFilter filter = (LogBudgetTurboFilter) context.getTurboFilterList().get(0);
+    assertEquals(10000, filter.getMaxCharsPerMinute());
+    context.reset();
+  }
+
+  @Test
+  public void shouldAddLogBudgetFilterWhenConfiguringFromFile() throws Exception {
+    environmentVariables.set(LoggingConfigurator.LOG_BUDGET_EVENTS_PER_MINUTE, "600");
+    final File file = folder.newFile("logback.xml");
+    Files.write(
+        file.toPath(), "<configuration><root level='INFO'/></configuration>".getBytes(UTF_8));
+    LoggingConfigurator.configure(file);
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final LoggerContext context = rootLogger.getLoggerContext();
+    assertEquals(1, context.getTurboFilterList().size());
+    final LogBudgetTurboFilter filter = (LogBudgetTurboFilter) context.getTurboFilterList().get(0);
+    assertEquals(600, filter.getMaxEventsPerMinute());
+    context.reset();
+  }
+
+  @Test
+  public void shouldAddMdcDebugFilterToService() {
+    environmentVariables.set(LoggingConfigurator.DEBUG_MDC_KEY, "customer");
+    LoggingConfigurator.configureService("MyService");
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final LoggerContext context = rootLogger.getLoggerContext();
+    final MdcDebugTurboFilter filter = (MdcDebugTurboFilter) context.getTurboFilterList().get(0);
+    assertTrue(filter.isStarted());
+    assertEquals("customer", filter.getMdcKey());
+    assertTrue(filter.getValues().isEmpty());
+    context.reset();
+  }
+
+  @Test
+  public void shouldConfigureFileDefaults() {
+    final File file = new File(folder.getRoot(), "app.log");
+    LoggingConfigurator.configureFileDefaults(
+        "some-ident",
+        file,
+        LoggingConfigurator.Level.DEBUG,
+        LoggingConfigurator.ReplaceNewLines.OFF,
+        AsyncOptions.sync());
+
+    final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    final MappedFileAppender appender = (MappedFileAppender) rootLogger.getAppender("file");
+    assertTrue(appender.isStarted());
+    assertEquals(file.getPath(), appender.getFile());
+    assertTrue(
+        ((LayoutWrappingEncoder<?>) appender.getEncoder()).getLayout() instanceof PatternLayout);
+    assertEquals(Level.DEBUG, rootLogger.getLevel());
+    assertEquals("some-ident", rootLogger.getLoggerContext().getProperty("ident"));
+    rootLogger.getLoggerContext().reset();
+  }
+
+  @Test
+  public void shouldDrainQueueWhenStopped() {
+    final LoggerContext context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    final ListAppender<ILoggingEvent> slow =
+        new ListAppender<ILoggingEvent>() {
+          @Override
+          protected void append(final ILoggingEvent event) {
+            try {
+              Thread.sleep(5);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            super.append(event);
+          }
+        };
+    slow.setName("slow");
+    slow.setContext(context);
+    slow.start();
+
+    final Appender<ILoggingEvent> async =
+        LoggingConfigurator.wrapAsync(
+            context, slow, AsyncOptions.async().withShutdownDeadlineMillis(10_000));
+    final Logger logger = context.getLogger("test");
+    for (int i = 0; i < 50; i++) {
+      async.doAppend(new LoggingEvent(Logger.FQCN, logger, Level.WARN, "event " + i, null, null));
+    }
+    async.stop();
+
+    assertEquals(50, slow.list.size());
+  }
+
   private void assertLogstashEncoder(final Level level) {
     final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
     final ConsoleAppender<?> stdout = (ConsoleAppender<?>) rootLogger.getAppender("stdout");
@@ -221,7 +461,8 @@ public class LoggingConfiguratorTest {
   private void assertDefault(final String ident, final Level level) {
     final Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
     final ConsoleAppender<?> stderr = (ConsoleAppender<?>) rootLogger.getAppender("stderr");
-    assertTrue(stderr.getEncoder() instanceof PatternLayoutEncoder);
+    final LayoutWrappingEncoder<?> encoder = (LayoutWrappingEncoder<?>) stderr.getEncoder();
+    assertTrue(encoder.getLayout() instanceof StderrLayout);
     assertEquals(level, rootLogger.getLevel());
     final LoggerContext context = rootLogger.getLoggerContext();
     assertEquals(ident, context.getProperty("ident"));
@@ -0,0 +1,130 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import com.spotify.logging.logback.CustomLogstashEncoder;
+import com.spotify.logging.logback.StackdriverJsonEncoder;
+import java.util.concurrent.TimeUnit;
+import net.logstash.logback.composite.loggingevent.ArgumentsJsonProvider;
+import net.logstash.logback.encoder.LogstashEncoder;
+import net.logstash.logback.fieldnames.LogstashFieldNames;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Encode throughput and allocation rate of the Stackdriver preset, compared to a plain
+ * LogstashEncoder with the same field names and to the hand-written StackdriverJsonEncoder. Run the
+ * main method and look at the gc.alloc.rate.norm column for bytes allocated per event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CustomLogstashEncoderBenchmark {
+
+  private LogstashEncoder logstashEncoder;
+  private CustomLogstashEncoder customEncoder;
+  private StackdriverJsonEncoder stackdriverEncoder;
+  private LoggingEvent event;
+
+  @Setup
+  public void setUp() {
+    final LoggerContext context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    context.putProperty("ident", "benchmark");
+    context.putProperty("pid", "4711");
+    context.putProperty("hostname", "benchmark-host.example.com");
+
+    logstashEncoder = new LogstashEncoder();
+    final LogstashFieldNames fieldNames = new LogstashFieldNames();
+    fieldNames.setLevelValue("[ignore]");
+    fieldNames.setVersion("[ignore]");
+    fieldNames.setTimestamp("time");
+    fieldNames.setLevel("severity");
+    logstashEncoder.setFieldNames(fieldNames);
+    logstashEncoder.addProvider(new ArgumentsJsonProvider());
+    logstashEncoder.setContext(context);
+    logstashEncoder.start();
+
+    customEncoder = new CustomLogstashEncoder().setupStackdriver();
+    customEncoder.addProvider(new ArgumentsJsonProvider());
+    customEncoder.setContext(context);
+    customEncoder.start();
+
+    stackdriverEncoder = new StackdriverJsonEncoder();
+    stackdriverEncoder.setContext(context);
+    stackdriverEncoder.start();
+
+    final Logger logger = context.getLogger(CustomLogstashEncoderBenchmark.class);
+    event =
+        new LoggingEvent(
+            Logger.FQCN,
+            logger,
+            Level.INFO,
+            "Handled request {} in {} ms",
+            null,
+            new Object[] {"GET /v1/users", 17});
+    event.setThreadName("request-handler-1");
+  }
+
+  @Benchmark
+  public byte[] logstashEncoder() {
+    return logstashEncoder.encode(event);
+  }
+
+  @Benchmark
+  public byte[] customLogstashEncoder() {
+    return customEncoder.encode(event);
+  }
+
+  @Benchmark
+  public byte[] stackdriverJsonEncoder() {
+    return stackdriverEncoder.encode(event);
+  }
+
+  public static void main(final String... args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(CustomLogstashEncoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
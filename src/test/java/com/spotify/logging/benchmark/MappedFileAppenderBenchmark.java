@@ -0,0 +1,160 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.benchmark;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.rolling.FixedWindowRollingPolicy;
+import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.rolling.SizeBasedTriggeringPolicy;
+import ch.qos.logback.core.util.FileSize;
+import com.spotify.logging.logback.MappedFileAppender;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Logging throughput of four threads writing to files through logback's RollingFileAppender and
+ * through the MappedFileAppender, both rolling at 64 MB and with the same pattern. Run the main
+ * method; the files are written to a temporary directory that is deleted afterwards.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class MappedFileAppenderBenchmark {
+
+  private static final String PATTERN = "%date{ISO8601} %-5level [%thread] %logger{0}: %msg%n";
+  private static final FileSize SEGMENT_SIZE = new FileSize(64 * FileSize.MB_COEFFICIENT);
+
+  @Param({"rollingFileAppender", "mappedFileAppender"})
+  public String appenderType;
+
+  private Path directory;
+  private LoggerContext context;
+  private Logger logger;
+  private Appender<ILoggingEvent> appender;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("logging-benchmark");
+    final String file = new File(directory.toFile(), "app.log").getPath();
+
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+
+    final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+    encoder.setContext(context);
+    encoder.setPattern(PATTERN);
+    encoder.start();
+
+    if (appenderType.equals("rollingFileAppender")) {
+      final RollingFileAppender<ILoggingEvent> rollingFileAppender = new RollingFileAppender<>();
+      rollingFileAppender.setContext(context);
+      rollingFileAppender.setFile(file);
+      rollingFileAppender.setEncoder(encoder);
+
+      final FixedWindowRollingPolicy rollingPolicy = new FixedWindowRollingPolicy();
+      rollingPolicy.setContext(context);
+      rollingPolicy.setParent(rollingFileAppender);
+      rollingPolicy.setFileNamePattern(file + ".%i");
+      rollingPolicy.setMinIndex(1);
+      rollingPolicy.setMaxIndex(10);
+      rollingPolicy.start();
+
+      final SizeBasedTriggeringPolicy<ILoggingEvent> triggeringPolicy =
+          new SizeBasedTriggeringPolicy<>();
+      triggeringPolicy.setContext(context);
+      triggeringPolicy.setMaxFileSize(SEGMENT_SIZE);
+      triggeringPolicy.start();
+
+      rollingFileAppender.setRollingPolicy(rollingPolicy);
+      rollingFileAppender.setTriggeringPolicy(triggeringPolicy);
+      appender = rollingFileAppender;
+    } else {
+      final MappedFileAppender mappedFileAppender = new MappedFileAppender();
+      mappedFileAppender.setContext(context);
+      mappedFileAppender.setFile(file);
+      mappedFileAppender.setEncoder(encoder);
+      mappedFileAppender.setSegmentSize(SEGMENT_SIZE);
+      appender = mappedFileAppender;
+    }
+    appender.setName(appenderType);
+    appender.start();
+
+    logger = context.getLogger(MappedFileAppenderBenchmark.class);
+    logger.addAppender(appender);
+    logger.setAdditive(false);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    appender.stop();
+    context.stop();
+    try (Stream<Path> files = Files.list(directory)) {
+      for (final Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  @Benchmark
+  public void log() {
+    logger.info("Handled request {} in {} ms", "GET /v1/users", 17);
+  }
+
+  public static void main(final String... args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(MappedFileAppenderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
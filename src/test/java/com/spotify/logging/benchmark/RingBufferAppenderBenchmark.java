@@ -0,0 +1,133 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.benchmark;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import com.spotify.logging.logback.RingBufferAppender;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Logging throughput of four producer threads through logback's AsyncAppender and through the
+ * RingBufferAppender, both blocking when full and in front of an appender that only reads the
+ * formatted message. Run the main method; gc.alloc.rate.norm shows the bytes allocated per event on
+ * the logging threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RingBufferAppenderBenchmark {
+
+  @Param({"asyncAppender", "ringBufferAppender"})
+  public String appenderType;
+
+  private LoggerContext context;
+  private Logger logger;
+  private Appender<ILoggingEvent> appender;
+
+  @Setup
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    context.getMDCAdapter().put("request_id", "4711");
+
+    final MessageReadingAppender sink = new MessageReadingAppender();
+    sink.setContext(context);
+    sink.start();
+
+    if (appenderType.equals("asyncAppender")) {
+      final AsyncAppender asyncAppender = new AsyncAppender();
+      asyncAppender.setQueueSize(8192);
+      asyncAppender.setDiscardingThreshold(0);
+      asyncAppender.addAppender(sink);
+      appender = asyncAppender;
+    } else {
+      final RingBufferAppender ringBufferAppender = new RingBufferAppender();
+      ringBufferAppender.setBufferSize(8192);
+      ringBufferAppender.addAppender(sink);
+      appender = ringBufferAppender;
+    }
+    appender.setName(appenderType);
+    appender.setContext(context);
+    appender.start();
+
+    logger = context.getLogger(RingBufferAppenderBenchmark.class);
+    logger.addAppender(appender);
+    logger.setAdditive(false);
+  }
+
+  @TearDown
+  public void tearDown() {
+    appender.stop();
+    context.stop();
+  }
+
+  @Benchmark
+  public void log() {
+    logger.info("Handled request {} in {} ms", "GET /v1/users", 17);
+  }
+
+  /** Stands in for an encoder, so messages are formatted on the worker thread. */
+  private static class MessageReadingAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+    @SuppressWarnings("unused")
+    private int length;
+
+    @Override
+    protected void append(final ILoggingEvent event) {
+      length += event.getFormattedMessage().length() + event.getMDCPropertyMap().size();
+    }
+  }
+
+  public static void main(final String... args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(RingBufferAppenderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,120 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import com.spotify.logging.logback.StderrLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Encode throughput of the default stderr format, interpreted by a PatternLayoutEncoder and written
+ * by the StderrLayout. Run the main method and look at the gc.alloc.rate.norm column for bytes
+ * allocated per event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StderrLayoutBenchmark {
+
+  @Param({"patternLayoutEncoder", "stderrLayout"})
+  public String encoderType;
+
+  private Encoder<ILoggingEvent> encoder;
+  private LoggingEvent event;
+
+  @Setup
+  public void setUp() {
+    final LoggerContext context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    context.putProperty("ident", "benchmark");
+    context.putProperty("pid", "4711");
+
+    if (encoderType.equals("patternLayoutEncoder")) {
+      final PatternLayoutEncoder patternEncoder = new PatternLayoutEncoder();
+      patternEncoder.setPattern(StderrLayout.PATTERN);
+      encoder = patternEncoder;
+    } else {
+      final StderrLayout layout = new StderrLayout();
+      layout.setContext(context);
+      layout.start();
+      final LayoutWrappingEncoder<ILoggingEvent> layoutEncoder = new LayoutWrappingEncoder<>();
+      layoutEncoder.setLayout(layout);
+      encoder = layoutEncoder;
+    }
+    ((LayoutWrappingEncoder<ILoggingEvent>) encoder).setCharset(StandardCharsets.UTF_8);
+    encoder.setContext(context);
+    encoder.start();
+
+    final Logger logger = context.getLogger(StderrLayoutBenchmark.class);
+    event =
+        new LoggingEvent(
+            Logger.FQCN,
+            logger,
+            Level.INFO,
+            "Handled request {} in {} ms",
+            null,
+            new Object[] {"GET /v1/users", 17});
+    event.setThreadName("http-worker-7");
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    // A new timestamp every call, like real events, which keeps the second cache honest
+    event.setTimeStamp(System.currentTimeMillis());
+    return encoder.encode(event);
+  }
+
+  public static void main(final String... args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(StderrLayoutBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,113 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.benchmark;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import com.spotify.logging.logback.MillisecondPrecisionSyslogAppender;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Logging throughput of four threads through the syslog appender, sending to a local socket that is
+ * never read. With a pipeline buffer size of 0 events are laid out and sent under the appender
+ * lock, otherwise they are laid out on the logging threads and sent by the pipeline writer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SyslogAppenderBenchmark {
+
+  @Param({"0", "8192"})
+  public int pipelineBufferSize;
+
+  private DatagramSocket receiver;
+  private LoggerContext context;
+  private Logger logger;
+  private MillisecondPrecisionSyslogAppender appender;
+
+  @Setup
+  public void setUp() throws SocketException {
+    receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+
+    appender = new MillisecondPrecisionSyslogAppender();
+    appender.setName("syslog");
+    appender.setContext(context);
+    appender.setSyslogHost(receiver.getLocalAddress().getHostAddress());
+    appender.setPort(receiver.getLocalPort());
+    appender.setFacility("LOCAL0");
+    appender.setSuffixPattern("benchmark[%thread]: %date{HH:mm:ss.SSS} %-5level %logger{36} %msg");
+    appender.setPipelineBufferSize(pipelineBufferSize);
+    appender.start();
+
+    logger = context.getLogger(SyslogAppenderBenchmark.class);
+    logger.addAppender(appender);
+    logger.setAdditive(false);
+  }
+
+  @TearDown
+  public void tearDown() {
+    appender.stop();
+    context.stop();
+    receiver.close();
+  }
+
+  @Benchmark
+  public void log() {
+    logger.info("Handled request {} in {} ms", "GET /v1/users", 17);
+  }
+
+  public static void main(final String... args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(SyslogAppenderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,128 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import net.logstash.logback.encoder.LogstashEncoder;
+import net.logstash.logback.fieldnames.LogstashFieldNames;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CustomLogstashEncoderTest {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private LoggerContext context;
+  private Logger logger;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    context.putProperty("ident", "my-service");
+    context.putProperty("pid", "4711");
+    context.putProperty("hostname", "host \"quoted\" åäö\n");
+    logger = context.getLogger("com.spotify.Foo");
+  }
+
+  @Test
+  public void shouldWriteContextPropertiesLikeLogstashEncoder() throws Exception {
+    final CustomLogstashEncoder encoder = new CustomLogstashEncoder().setupStackdriver();
+    encoder.setContext(context);
+    encoder.start();
+
+    final LogstashEncoder reference = new LogstashEncoder();
+    final LogstashFieldNames fieldNames = new LogstashFieldNames();
+    fieldNames.setLevelValue("[ignore]");
+    fieldNames.setVersion("[ignore]");
+    fieldNames.setTimestamp("time");
+    fieldNames.setLevel("severity");
+    reference.setFieldNames(fieldNames);
+    reference.setContext(context);
+    reference.start();
+
+    for (int i = 0; i < 3; i++) {
+      final LoggingEvent event = event("message " + i);
+      assertEquals(json(reference.encode(event)), json(encoder.encode(event)));
+    }
+  }
+
+  @Test
+  public void shouldWriteContextPropertiesAsFirstField() throws Exception {
+    final CustomLogstashEncoder encoder = new CustomLogstashEncoder().setupStackdriver();
+    encoder.getFieldNames().setTimestamp("[ignore]");
+    encoder.getFieldNames().setMessage("[ignore]");
+    encoder.getFieldNames().setLogger("[ignore]");
+    encoder.getFieldNames().setThread("[ignore]");
+    encoder.getFieldNames().setLevel("[ignore]");
+    encoder.setContext(context);
+    encoder.start();
+
+    final JsonNode json = json(encoder.encode(event("foo")));
+    assertEquals("my-service", json.get("ident").asText());
+    assertEquals("4711", json.get("pid").asText());
+    assertEquals(3, json.size());
+  }
+
+  @Test
+  public void shouldSnapshotContextPropertiesOnFirstEvent() throws Exception {
+    final CustomLogstashEncoder encoder = new CustomLogstashEncoder().setupStackdriver();
+    encoder.setContext(context);
+    encoder.start();
+
+    context.putProperty("late", "value");
+    assertEquals("value", json(encoder.encode(event("foo"))).get("late").asText());
+  }
+
+  @Test
+  public void shouldNotWriteContextPropertiesWhenExcluded() throws Exception {
+    final CustomLogstashEncoder encoder = new CustomLogstashEncoder().setupStackdriver();
+    encoder.setIncludeContext(false);
+    encoder.setContext(context);
+    encoder.start();
+
+    assertFalse(encoder.isIncludeContext());
+    assertNull(json(encoder.encode(event("foo"))).get("ident"));
+  }
+
+  private LoggingEvent event(final String message) {
+    final LoggingEvent event =
+        new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, null);
+    event.setTimeStamp(1600000000000L);
+    event.setThreadName("main");
+    return event;
+  }
+
+  private JsonNode json(final byte[] bytes) throws Exception {
+    return mapper.readTree(new String(bytes, StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,193 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.util.Duration;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileChannelConsoleAppenderTest {
+
+  private LoggerContext context;
+  private Logger logger;
+  private RecordingChannel channel;
+  private FileChannelConsoleAppender appender;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+
+    channel = new RecordingChannel();
+    appender =
+        new FileChannelConsoleAppender() {
+          @Override
+          WritableByteChannel openChannel() {
+            return channel;
+          }
+        };
+    appender.setContext(context);
+    appender.setName("stdout");
+    appender.setMaxFlushDelay(Duration.buildByDays(1));
+  }
+
+  @After
+  public void tearDown() {
+    appender.stop();
+  }
+
+  @Test
+  public void shouldGatherEventsIntoOneWrite() {
+    appender.setEncoder(patternEncoder());
+    appender.start();
+    for (int i = 0; i < 10; i++) {
+      appender.doAppend(event("event " + i));
+    }
+    assertEquals(0, channel.writes().size());
+
+    appender.flush();
+    final List<String> writes = channel.writes();
+    assertEquals(1, writes.size());
+    assertEquals(10, writes.get(0).split("\n").length);
+    assertTrue(writes.get(0), writes.get(0).startsWith("INFO event 0\nINFO event 1\n"));
+  }
+
+  @Test
+  public void shouldWriteWhenBufferIsFull() {
+    appender.setEncoder(patternEncoder());
+    appender.setBufferSize(40);
+    appender.start();
+    // 13 bytes each, so three fit in the buffer
+    for (int i = 0; i < 7; i++) {
+      appender.doAppend(event("event " + i));
+    }
+
+    assertEquals(
+        Arrays.asList(
+            "INFO event 0\nINFO event 1\nINFO event 2\n",
+            "INFO event 3\nINFO event 4\nINFO event 5\n"),
+        channel.writes());
+    appender.stop();
+    assertEquals("INFO event 6\n", channel.writes().get(2));
+  }
+
+  @Test
+  public void shouldWriteLargeEventsOnTheirOwn() {
+    appender.setEncoder(patternEncoder());
+    appender.setBufferSize(20);
+    appender.start();
+    appender.doAppend(event("small"));
+    appender.doAppend(event("larger than the buffer"));
+    appender.doAppend(event("small"));
+    appender.stop();
+
+    assertEquals(
+        Arrays.asList("INFO small\n", "INFO larger than the buffer\n", "INFO small\n"),
+        channel.writes());
+  }
+
+  @Test
+  public void shouldFlushAfterDelay() throws Exception {
+    appender.setEncoder(patternEncoder());
+    appender.setMaxFlushDelay(Duration.buildByMilliseconds(10));
+    appender.start();
+    appender.doAppend(event("delayed"));
+
+    final long deadline = System.currentTimeMillis() + 10_000;
+    while (channel.writes().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(Arrays.asList("INFO delayed\n"), channel.writes());
+  }
+
+  @Test
+  public void shouldStreamJsonEvents() throws Exception {
+    final CustomLogstashEncoder encoder = new CustomLogstashEncoder().setupStackdriver();
+    encoder.setContext(context);
+    encoder.start();
+    appender.setEncoder(encoder);
+    appender.start();
+    final LoggingEvent event = event("first");
+    appender.doAppend(event);
+    appender.doAppend(event("second"));
+    appender.flush();
+
+    final String[] lines = channel.writes().get(0).split(System.lineSeparator());
+    assertEquals(2, lines.length);
+    assertEquals(new String(encoder.encode(event), StandardCharsets.UTF_8).trim(), lines[0]);
+    assertEquals("second", new ObjectMapper().readTree(lines[1]).get("message").asText());
+  }
+
+  private PatternLayoutEncoder patternEncoder() {
+    final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+    encoder.setContext(context);
+    encoder.setPattern("%level %msg\n");
+    encoder.start();
+    return encoder;
+  }
+
+  private LoggingEvent event(final String message) {
+    return new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, null);
+  }
+
+  /** Records each write call. */
+  private static class RecordingChannel implements WritableByteChannel {
+    private final List<String> writes = new ArrayList<>();
+
+    synchronized List<String> writes() {
+      return new ArrayList<>(writes);
+    }
+
+    @Override
+    public synchronized int write(final ByteBuffer src) {
+      final byte[] bytes = new byte[src.remaining()];
+      src.get(bytes);
+      writes.add(new String(bytes, StandardCharsets.UTF_8));
+      return bytes.length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
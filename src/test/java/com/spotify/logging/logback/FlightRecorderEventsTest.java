@@ -0,0 +1,227 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.read.ListAppender;
+import java.io.FileDescriptor;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FlightRecorderEventsTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private LoggerContext context;
+  private Logger logger;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+  }
+
+  @Test
+  public void shouldRecordAppendsAndSends() throws Exception {
+    final JournaldAppender appender = new JournaldAppender();
+    appender.setContext(context);
+    appender.setName("journald");
+    appender.setTransport(new DiscardingTransport());
+    appender.start();
+
+    final List<RecordedEvent> events =
+        record(
+            () -> appender.doAppend(event(Level.WARN, null)),
+            "com.spotify.logging.Append",
+            "com.spotify.logging.DatagramSend");
+    appender.stop();
+
+    final RecordedEvent append = only(events, "com.spotify.logging.Append");
+    assertEquals("journald", append.getString("appender"));
+    assertEquals("com.spotify.Foo", append.getString("logger"));
+    assertEquals("WARN", append.getString("level"));
+    final RecordedEvent send = only(events, "com.spotify.logging.DatagramSend");
+    assertEquals("journald", send.getString("appender"));
+    assertEquals(1, send.getInt("datagrams"));
+    assertTrue(send.getLong("bytes") > 0);
+  }
+
+  @Test
+  public void shouldRecordThrowableRendering() throws Exception {
+    final CachingThrowableProxyConverter converter = new CachingThrowableProxyConverter();
+    converter.start();
+    final ILoggingEvent event = event(Level.ERROR, new IllegalStateException("oops"));
+
+    final List<RecordedEvent> events =
+        record(() -> converter.convert(event), "com.spotify.logging.ThrowableRender");
+
+    final RecordedEvent render = only(events, "com.spotify.logging.ThrowableRender");
+    assertEquals(IllegalStateException.class.getName(), render.getString("throwableClass"));
+    assertEquals(converter.convert(event).length(), render.getInt("length"));
+  }
+
+  @Test
+  public void shouldRecordAppenderStatistics() throws Exception {
+    final RingBufferAppender appender = new RingBufferAppender();
+    appender.setContext(context);
+    appender.setName("ring");
+    final ListAppender<ILoggingEvent> list = new ListAppender<>();
+    list.start();
+    appender.addAppender(list);
+    appender.start();
+    for (int i = 0; i < 3; i++) {
+      appender.doAppend(event(Level.INFO, null));
+    }
+
+    final List<RecordedEvent> events =
+        record(() -> {}, "com.spotify.logging.AppenderStatistics").stream()
+            .filter(e -> "ring".equals(e.getString("appender")))
+            .collect(Collectors.toList());
+    appender.stop();
+
+    assertTrue(events.size() > 0);
+    assertEquals(3L, events.get(0).getLong("appended"));
+    assertEquals(0L, events.get(0).getLong("dropped"));
+
+    assertTrue(
+        record(() -> {}, "com.spotify.logging.AppenderStatistics").stream()
+            .noneMatch(e -> "ring".equals(e.getString("appender"))));
+  }
+
+  @Test
+  public void shouldNotRecordByDefault() throws Exception {
+    final CachingThrowableProxyConverter converter = new CachingThrowableProxyConverter();
+    converter.start();
+    final ILoggingEvent event = event(Level.ERROR, new IllegalStateException("oops"));
+
+    try (Recording recording = new Recording()) {
+      recording.start();
+      converter.convert(event);
+      recording.stop();
+      final Path file = folder.newFile().toPath();
+      recording.dump(file);
+      assertTrue(
+          RecordingFile.readAllEvents(file).stream()
+              .noneMatch(e -> e.getEventType().getName().startsWith("com.spotify.logging.")));
+    }
+  }
+
+  @Test
+  public void shouldEnableEventsWithBundledSettings() throws Exception {
+    final Configuration configuration;
+    try (Reader reader =
+        new InputStreamReader(
+            getClass().getResourceAsStream("/com/spotify/logging/logging.jfc"),
+            StandardCharsets.UTF_8)) {
+      configuration = Configuration.create(reader);
+    }
+    final Map<String, String> settings = configuration.getSettings();
+    assertEquals("true", settings.get("com.spotify.logging.Append#enabled"));
+    assertEquals("1 ms", settings.get("com.spotify.logging.Append#threshold"));
+    assertEquals("true", settings.get("com.spotify.logging.AppenderStatistics#enabled"));
+  }
+
+  @Test
+  public void shouldCombineSampleSettingsToTheMostFrequent() {
+    final FlightRecorderSupport.SampleSetting setting = new FlightRecorderSupport.SampleSetting();
+    assertEquals("10", setting.combine(new HashSet<>(Arrays.asList("1000", "10", "nonsense"))));
+    setting.setValue("1");
+    assertTrue(setting.sample());
+  }
+
+  private List<RecordedEvent> record(final Runnable action, final String... eventNames)
+      throws Exception {
+    try (Recording recording = new Recording()) {
+      for (final String name : eventNames) {
+        recording.enable(name).withThreshold(java.time.Duration.ZERO);
+        recording.enable(name).with("period", "everyChunk");
+      }
+      recording.start();
+      action.run();
+      recording.stop();
+      final Path file = folder.newFile().toPath();
+      recording.dump(file);
+      final List<RecordedEvent> events = new ArrayList<>();
+      for (final RecordedEvent event : RecordingFile.readAllEvents(file)) {
+        if (Arrays.asList(eventNames).contains(event.getEventType().getName())) {
+          events.add(event);
+        }
+      }
+      return events;
+    }
+  }
+
+  private static RecordedEvent only(final List<RecordedEvent> events, final String name) {
+    final List<RecordedEvent> matching =
+        events.stream()
+            .filter(e -> e.getEventType().getName().equals(name))
+            .collect(Collectors.toList());
+    assertEquals(1, matching.size());
+    return matching.get(0);
+  }
+
+  private ILoggingEvent event(final Level level, final Throwable throwable) {
+    final LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, level, "message", null, null);
+    if (throwable != null) {
+      event.setThrowableProxy(new ThrowableProxy(throwable));
+    }
+    return event;
+  }
+
+  private static class DiscardingTransport implements JournaldTransport {
+
+    @Override
+    public void send(final ByteBuffer entry) {}
+
+    @Override
+    public void send(final FileDescriptor fd) {}
+
+    @Override
+    public void close() {}
+  }
+}
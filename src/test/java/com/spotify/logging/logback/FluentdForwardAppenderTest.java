@@ -0,0 +1,416 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.util.Duration;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import net.logstash.logback.marker.Markers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FluentdForwardAppenderTest {
+
+  private LoggerContext context;
+  private Logger logger;
+  private FakeForwardServer server;
+  private FluentdForwardAppender appender;
+
+  @Before
+  public void setUp() throws IOException {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    context.putProperty("ident", "my-service");
+    logger = context.getLogger("com.spotify.Foo");
+
+    server = new FakeForwardServer(new ServerSocket(0));
+    appender = newAppender(server.port());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    appender.stop();
+    server.close();
+  }
+
+  private FluentdForwardAppender newAppender(final int port) {
+    final FluentdForwardAppender appender = new FluentdForwardAppender();
+    appender.setContext(context);
+    appender.setName("fluentd");
+    appender.setPort(port);
+    appender.setTag("my.service");
+    appender.setReconnectionDelay(Duration.buildByMilliseconds(50));
+    return appender;
+  }
+
+  @Test
+  public void shouldWriteSameRecordAsJsonEncoder() throws Exception {
+    appender.start();
+    final LoggingEvent event = event("Handled request {}", "GET /");
+    event.setMDCPropertyMap(Collections.singletonMap("request_id", "4711"));
+    event.setThrowableProxy(
+        new ch.qos.logback.classic.spi.ThrowableProxy(new IllegalStateException("boom")));
+    event.addMarker(Markers.append("latency_ms", 17));
+    appender.doAppend(event);
+
+    final Message message = server.take();
+    assertEquals("my.service", message.tag);
+    assertEquals(1L, message.option.get("size"));
+    assertEquals(1, message.entries.size());
+    final List<?> entry = message.entries.get(0);
+    assertArrayEquals(
+        eventTime(event.getInstant().getEpochSecond(), event.getInstant().getNano()),
+        (byte[]) entry.get(0));
+
+    final CustomLogstashEncoder json = new CustomLogstashEncoder().setupStackdriver();
+    json.setContext(context);
+    json.start();
+    final Map<?, ?> expected = new ObjectMapper().readValue(json.encode(event), Map.class);
+    assertEquals(normalize(expected), normalize(entry.get(1)));
+    assertEquals("my-service", expected.get("ident"));
+    assertEquals("4711", expected.get("request_id"));
+  }
+
+  @Test
+  public void shouldBatchQueuedEventsAndReconnect() throws Exception {
+    // Nothing is listening until the events have been queued
+    final int port = server.port();
+    server.close();
+    appender.stop();
+    appender = newAppender(port);
+    appender.start();
+    for (int i = 0; i < 100; i++) {
+      appender.doAppend(event("event {}", i));
+    }
+    server = new FakeForwardServer(new ServerSocket(port));
+
+    final List<String> messages = new ArrayList<>();
+    int largestBatch = 0;
+    while (messages.size() < 100) {
+      final Message message = server.take();
+      largestBatch = Math.max(largestBatch, message.entries.size());
+      assertEquals((long) message.entries.size(), message.option.get("size"));
+      for (final List<?> entry : message.entries) {
+        messages.add((String) ((Map<?, ?>) entry.get(1)).get("message"));
+      }
+    }
+    for (int i = 0; i < 100; i++) {
+      assertEquals("event " + i, messages.get(i));
+    }
+    assertTrue("largest batch " + largestBatch, largestBatch > 1);
+    assertEquals(100, appender.getSentCount());
+  }
+
+  @Test
+  public void shouldStopWorkerBlockedOnCollectorThatStoppedReading() throws Exception {
+    // Connections are queued in the backlog but never accepted, so nothing is read
+    server.close();
+    appender.stop();
+    try (ServerSocket stalled = new ServerSocket(0)) {
+      appender = newAppender(stalled.getLocalPort());
+      appender.setMaxFlushTime(100);
+      appender.start();
+      final Thread worker = workerThread();
+
+      // Far more than the socket buffers hold
+      final char[] large = new char[256 * 1024];
+      Arrays.fill(large, 'x');
+      for (int i = 0; i < 100; i++) {
+        appender.doAppend(event("{}", new String(large)));
+      }
+      appender.stop();
+
+      worker.join(TimeUnit.SECONDS.toMillis(10));
+      assertFalse(worker.isAlive());
+      assertEquals(0, appender.getSentCount());
+    }
+  }
+
+  @Test
+  public void shouldEncodeValuesOfAllTypes() throws Exception {
+    final MessagePackBuffer buffer = new MessagePackBuffer(4);
+    final char[] chars = new char[300];
+    Arrays.fill(chars, '\u00e5');
+    final String longString = new String(chars);
+    buffer.writeArrayHeader(9);
+    buffer.writeInt(-1);
+    buffer.writeInt(1 << 20);
+    buffer.writeInt(1L << 40);
+    buffer.writeDouble(1.5);
+    buffer.writeBoolean(true);
+    buffer.writeNil();
+    buffer.writeString("caf\u00e9 \ud83d\ude00");
+    buffer.writeString(longString);
+    final int map = buffer.startMap();
+    for (int i = 0; i < 20; i++) {
+      buffer.writeString("key" + i);
+      buffer.writeInt(i);
+    }
+    buffer.endMap(map, 20);
+
+    final List<?> values =
+        (List<?>) read(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+    assertEquals(-1L, values.get(0));
+    assertEquals(1L << 20, values.get(1));
+    assertEquals(1L << 40, values.get(2));
+    assertEquals(1.5, values.get(3));
+    assertEquals(true, values.get(4));
+    assertEquals(null, values.get(5));
+    assertEquals("caf\u00e9 \ud83d\ude00", values.get(6));
+    assertEquals(longString, values.get(7));
+    assertEquals(20, ((Map<?, ?>) values.get(8)).size());
+    assertEquals(19L, ((Map<?, ?>) values.get(8)).get("key19"));
+  }
+
+  private Thread workerThread() {
+    final String name = "FluentdForwardAppender-Worker-" + appender.getName();
+    for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals(name)) {
+        return thread;
+      }
+    }
+    throw new AssertionError("No worker thread " + name);
+  }
+
+  private LoggingEvent event(final String message, final Object argument) {
+    final LoggingEvent event =
+        new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, new Object[] {argument});
+    event.setThreadName("main");
+    return event;
+  }
+
+  private static byte[] eventTime(final long seconds, final int nanos) {
+    return new byte[] {
+      (byte) (seconds >>> 24),
+      (byte) (seconds >>> 16),
+      (byte) (seconds >>> 8),
+      (byte) seconds,
+      (byte) (nanos >>> 24),
+      (byte) (nanos >>> 16),
+      (byte) (nanos >>> 8),
+      (byte) nanos
+    };
+  }
+
+  // JSON numbers are read as ints where they fit, MessagePack integers as longs
+  private static Object normalize(final Object value) {
+    if (value instanceof Integer) {
+      return ((Integer) value).longValue();
+    } else if (value instanceof Map) {
+      final Map<Object, Object> map = new LinkedHashMap<>();
+      ((Map<?, ?>) value).forEach((k, v) -> map.put(k, normalize(v)));
+      return map;
+    } else if (value instanceof List) {
+      final List<Object> list = new ArrayList<>();
+      ((List<?>) value).forEach(v -> list.add(normalize(v)));
+      return list;
+    }
+    return value;
+  }
+
+  private static class Message {
+    String tag;
+    List<List<?>> entries = new ArrayList<>();
+    Map<?, ?> option;
+  }
+
+  /** Accepts connections and decodes PackedForward messages. */
+  private static class FakeForwardServer {
+    private final ServerSocket serverSocket;
+    private final BlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+
+    FakeForwardServer(final ServerSocket serverSocket) {
+      this.serverSocket = serverSocket;
+      final Thread acceptor = new Thread(this::accept);
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    int port() {
+      return serverSocket.getLocalPort();
+    }
+
+    Message take() throws InterruptedException {
+      final Message message = messages.poll(10, TimeUnit.SECONDS);
+      if (message == null) {
+        throw new AssertionError("No message received");
+      }
+      return message;
+    }
+
+    private void accept() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          sockets.add(socket);
+          final Thread reader = new Thread(() -> read(socket));
+          reader.setDaemon(true);
+          reader.start();
+        }
+      } catch (IOException e) {
+        // Closed
+      }
+    }
+
+    private void read(final Socket socket) {
+      try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
+        while (true) {
+          final List<?> forward = (List<?>) FluentdForwardAppenderTest.read(in);
+          final Message message = new Message();
+          message.tag = (String) forward.get(0);
+          final DataInputStream entries =
+              new DataInputStream(new ByteArrayInputStream((byte[]) forward.get(1)));
+          while (entries.available() > 0) {
+            message.entries.add((List<?>) FluentdForwardAppenderTest.read(entries));
+          }
+          message.option = (Map<?, ?>) forward.get(2);
+          messages.add(message);
+        }
+      } catch (EOFException e) {
+        // Disconnected
+      } catch (IOException e) {
+        // Closed
+      }
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+      synchronized (sockets) {
+        for (final Socket socket : sockets) {
+          socket.close();
+        }
+      }
+    }
+  }
+
+  /** Decodes a MessagePack value; EventTime extensions are returned as their 8 bytes. */
+  private static Object read(final DataInputStream in) throws IOException {
+    final int b = in.readUnsignedByte();
+    if (b <= 0x7f) {
+      return (long) b;
+    } else if (b >= 0xe0) {
+      return (long) (byte) b;
+    } else if ((b & 0xf0) == 0x80) {
+      return readMap(in, b & 0x0f);
+    } else if ((b & 0xf0) == 0x90) {
+      return readArray(in, b & 0x0f);
+    } else if ((b & 0xe0) == 0xa0) {
+      return readString(in, b & 0x1f);
+    }
+    switch (b) {
+      case 0xc0:
+        return null;
+      case 0xc2:
+        return false;
+      case 0xc3:
+        return true;
+      case 0xc4:
+        return readBytes(in, in.readUnsignedByte());
+      case 0xc5:
+        return readBytes(in, in.readUnsignedShort());
+      case 0xc6:
+        return readBytes(in, in.readInt());
+      case 0xca:
+        return (double) in.readFloat();
+      case 0xcb:
+        return in.readDouble();
+      case 0xd0:
+        return (long) in.readByte();
+      case 0xd1:
+        return (long) in.readShort();
+      case 0xd2:
+        return (long) in.readInt();
+      case 0xd3:
+        return in.readLong();
+      case 0xd7:
+        assertEquals(0, in.readByte());
+        return readBytes(in, 8);
+      case 0xd9:
+        return readString(in, in.readUnsignedByte());
+      case 0xda:
+        return readString(in, in.readUnsignedShort());
+      case 0xdb:
+        return readString(in, in.readInt());
+      case 0xdd:
+        return readArray(in, in.readInt());
+      case 0xdf:
+        return readMap(in, in.readInt());
+      default:
+        throw new IOException("Unexpected MessagePack type " + Integer.toHexString(b));
+    }
+  }
+
+  private static Map<Object, Object> readMap(final DataInputStream in, final int size)
+      throws IOException {
+    final Map<Object, Object> map = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      map.put(read(in), read(in));
+    }
+    return map;
+  }
+
+  private static List<Object> readArray(final DataInputStream in, final int size)
+      throws IOException {
+    final List<Object> list = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      list.add(read(in));
+    }
+    return list;
+  }
+
+  private static String readString(final DataInputStream in, final int length) throws IOException {
+    return new String(readBytes(in, length), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readBytes(final InputStream in, final int length) throws IOException {
+    final byte[] bytes = new byte[length];
+    new DataInputStream(in).readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,248 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournaldAppenderTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private LoggerContext context;
+  private Logger logger;
+  private InMemoryJournal journal;
+  private JournaldAppender appender;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    context.putProperty("ident", "my-service");
+    logger = context.getLogger("com.spotify.Foo");
+
+    journal = new InMemoryJournal();
+    appender = new JournaldAppender();
+    appender.setContext(context);
+    appender.setName("journald");
+    appender.setTransport(journal);
+    appender.setLargeEntryDirectory(folder.getRoot().getPath());
+  }
+
+  @After
+  public void tearDown() {
+    appender.stop();
+  }
+
+  @Test
+  public void shouldWriteEventFields() {
+    appender.start();
+    final LoggingEvent event = event(Level.WARN, "Handled request {}", "GET /");
+    final Map<String, String> mdc = new HashMap<>();
+    mdc.put("request-id", "4711");
+    mdc.put("_trusted", "no");
+    mdc.put("2fa", "yes");
+    event.setMDCPropertyMap(mdc);
+    appender.doAppend(event);
+
+    assertEquals(1, journal.entries.size());
+    final Map<String, String> entry = journal.entries.get(0);
+    assertEquals("Handled request GET /", entry.get("MESSAGE"));
+    assertEquals("4", entry.get("PRIORITY"));
+    assertEquals("my-service", entry.get("SYSLOG_IDENTIFIER"));
+    assertEquals("com.spotify.Foo", entry.get("LOGGER_NAME"));
+    assertEquals("main", entry.get("THREAD_NAME"));
+    assertNull(entry.get("STACK_TRACE"));
+    assertEquals("4711", entry.get("REQUEST_ID"));
+    assertEquals("no", entry.get("MDC__TRUSTED"));
+    assertEquals("yes", entry.get("MDC_2FA"));
+    assertEquals(0, journal.files);
+  }
+
+  @Test
+  public void shouldLengthPrefixValuesWithNewlines() {
+    appender.setSyslogIdentifier("other");
+    appender.start();
+    final LoggingEvent event = event(Level.ERROR, "first line\nsecond line \u00e5", null);
+    event.setThrowableProxy(new ThrowableProxy(new IllegalStateException("boom")));
+    appender.doAppend(event);
+
+    final Map<String, String> entry = journal.entries.get(0);
+    assertEquals("first line\nsecond line \u00e5", entry.get("MESSAGE"));
+    assertEquals("3", entry.get("PRIORITY"));
+    assertEquals("other", entry.get("SYSLOG_IDENTIFIER"));
+    assertTrue(
+        entry.get("STACK_TRACE"),
+        entry.get("STACK_TRACE").startsWith("java.lang.IllegalStateException: boom\n"));
+
+    final byte[] datagram = journal.datagrams.get(0);
+    final byte[] expected = new byte[8 + 8 + 26];
+    final ByteBuffer buffer = ByteBuffer.wrap(expected).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put("MESSAGE\n".getBytes(StandardCharsets.US_ASCII));
+    buffer.putLong(25);
+    buffer.put("first line\nsecond line \u00e5\n".getBytes(StandardCharsets.UTF_8));
+    assertArrayEquals(expected, Arrays.copyOf(datagram, expected.length));
+  }
+
+  @Test
+  public void shouldPassLargeEntriesInFile() {
+    appender.setMaxDatagramSize(1024);
+    appender.start();
+    final char[] chars = new char[4000];
+    Arrays.fill(chars, 'x');
+    final String message = new String(chars);
+    appender.doAppend(event(Level.INFO, message, null));
+    appender.doAppend(event(Level.INFO, "small", null));
+
+    assertEquals(1, journal.files);
+    assertEquals(1, journal.datagrams.size());
+    assertEquals(message, journal.entries.get(0).get("MESSAGE"));
+    assertEquals("small", journal.entries.get(1).get("MESSAGE"));
+    assertEquals(0, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void shouldCountDroppedEvents() {
+    appender.start();
+    journal.fail = true;
+    appender.doAppend(event(Level.INFO, "lost", null));
+    appender.doAppend(event(Level.INFO, "lost", null));
+    journal.fail = false;
+    appender.doAppend(event(Level.INFO, "sent", null));
+
+    assertEquals(2, appender.getDroppedCount());
+    assertEquals(1, journal.entries.size());
+    assertEquals("sent", journal.entries.get(0).get("MESSAGE"));
+  }
+
+  @Test
+  public void shouldNotStartWithoutTransport() {
+    final JournaldAppender appender = new JournaldAppender();
+    appender.setContext(context);
+    appender.setSocket(folder.getRoot().getPath() + "/socket");
+    appender.start();
+    assertFalse(appender.isStarted());
+  }
+
+  private LoggingEvent event(final Level level, final String message, final Object argument) {
+    final LoggingEvent event =
+        new LoggingEvent(Logger.FQCN, logger, level, message, null, new Object[] {argument});
+    event.setThreadName("main");
+    return event;
+  }
+
+  /** Stands in for journald's socket, parsing the native protocol. */
+  private static class InMemoryJournal implements JournaldTransport {
+    final List<byte[]> datagrams = new ArrayList<>();
+    final List<Map<String, String>> entries = new ArrayList<>();
+    int files;
+    boolean fail;
+
+    @Override
+    public synchronized void send(final ByteBuffer entry) throws IOException {
+      if (fail) {
+        throw new IOException("No such file or directory");
+      }
+      final byte[] datagram = new byte[entry.remaining()];
+      entry.get(datagram);
+      datagrams.add(datagram);
+      entries.add(parse(ByteBuffer.wrap(datagram)));
+    }
+
+    @Override
+    public synchronized void send(final FileDescriptor entry) throws IOException {
+      files++;
+      // The descriptor shares the appender's file position, so read from the start
+      final FileInputStream in = new FileInputStream(entry);
+      final ByteBuffer contents = ByteBuffer.allocate((int) in.getChannel().size());
+      in.getChannel().read(contents, 0);
+      contents.flip();
+      entries.add(parse(contents));
+    }
+
+    @Override
+    public void close() {}
+
+    private static Map<String, String> parse(final ByteBuffer entry) {
+      entry.order(ByteOrder.LITTLE_ENDIAN);
+      final Map<String, String> fields = new LinkedHashMap<>();
+      while (entry.hasRemaining()) {
+        final int start = entry.position();
+        byte b;
+        while ((b = entry.get()) != '=' && b != '\n') {
+          // Scan the key
+        }
+        final String key = string(entry, start, entry.position() - 1 - start);
+        final String value;
+        if (b == '=') {
+          final int valueStart = entry.position();
+          while (entry.get() != '\n') {
+            // Scan the value
+          }
+          value = string(entry, valueStart, entry.position() - 1 - valueStart);
+        } else {
+          final int length = (int) entry.getLong();
+          value = string(entry, entry.position(), length);
+          entry.position(entry.position() + length);
+          assertEquals('\n', entry.get());
+        }
+        assertTrue(key, key.matches("[A-Z][A-Z0-9_]{0,63}"));
+        fields.put(key, value);
+      }
+      return fields;
+    }
+
+    private static String string(final ByteBuffer buffer, final int offset, final int length) {
+      final byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++) {
+        bytes[i] = buffer.get(offset + i);
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+}
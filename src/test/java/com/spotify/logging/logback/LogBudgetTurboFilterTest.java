@@ -0,0 +1,211 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.read.ListAppender;
+import ch.qos.logback.core.util.Duration;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogBudgetTurboFilterTest {
+
+  private LoggerContext context;
+  private ListAppender<ILoggingEvent> appender;
+  private LogBudgetTurboFilter filter;
+  private long now = 1_000_000;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    appender = new ListAppender<>();
+    appender.setContext(context);
+    appender.start();
+    final Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+    root.setLevel(Level.INFO);
+    root.addAppender(appender);
+
+    filter = new LogBudgetTurboFilter();
+    filter.setContext(context);
+    filter.setName("budget-test");
+    filter.setMaxEventsPerMinute(10);
+    filter.setCooldown(Duration.buildByMinutes(5));
+    filter.clock = () -> now;
+  }
+
+  @After
+  public void tearDown() {
+    filter.stop();
+  }
+
+  @Test
+  public void shouldDemoteLoggerOverBudgetUntilCooldownEnds() {
+    start();
+    final Logger logger = context.getLogger("com.spotify.Noisy");
+    for (int i = 0; i < 20; i++) {
+      logger.info("info {}", i);
+    }
+    logger.warn("still logged");
+
+    assertEquals(10 + 1, messages("com.spotify.Noisy").size());
+    assertEquals("still logged", last("com.spotify.Noisy"));
+    final List<ILoggingEvent> notices = events(LogBudgetTurboFilter.class.getName());
+    assertEquals(1, notices.size());
+    assertEquals(Level.WARN, notices.get(0).getLevel());
+    assertTrue(
+        notices.get(0).getFormattedMessage(),
+        notices.get(0).getFormattedMessage().contains("com.spotify.Noisy logged 11 events"));
+    assertFalse(logger.isInfoEnabled());
+    assertTrue(logger.isWarnEnabled());
+
+    now += Duration.buildByMinutes(5).getMilliseconds();
+    logger.info("restored");
+
+    assertEquals("restored", last("com.spotify.Noisy"));
+    final List<ILoggingEvent> restored = events(LogBudgetTurboFilter.class.getName());
+    assertEquals(2, restored.size());
+    assertTrue(
+        restored.get(1).getFormattedMessage(),
+        restored.get(1).getFormattedMessage().contains("10 events were dropped"));
+  }
+
+  @Test
+  public void shouldOnlyCountEventsAtEffectiveLevel() {
+    start();
+    final Logger logger = context.getLogger("com.spotify.Quiet");
+    for (int i = 0; i < 100; i++) {
+      logger.debug("debug {}", i);
+    }
+    for (int i = 0; i < 10; i++) {
+      logger.info("info {}", i);
+    }
+
+    assertEquals(10, messages("com.spotify.Quiet").size());
+    assertEquals(0, filter.getDemotionCount());
+  }
+
+  @Test
+  public void shouldStartNewBudgetEveryMinute() {
+    start();
+    final Logger logger = context.getLogger("com.spotify.Steady");
+    for (int minute = 0; minute < 3; minute++) {
+      for (int i = 0; i < 10; i++) {
+        logger.info("info {}", i);
+      }
+      now += 60_000;
+    }
+
+    assertEquals(30, messages("com.spotify.Steady").size());
+    assertEquals(0, filter.getDemotionCount());
+  }
+
+  @Test
+  public void shouldDemoteOnChars() {
+    filter.setMaxEventsPerMinute(0);
+    filter.setMaxCharsPerMinute(100);
+    start();
+    final Logger logger = context.getLogger("com.spotify.Verbose");
+    final String message = "0123456789012345678901234567890123456789";
+    for (int i = 0; i < 5; i++) {
+      logger.info(message);
+    }
+
+    assertEquals(2, messages("com.spotify.Verbose").size());
+    assertEquals(1, filter.getDemotionCount());
+  }
+
+  @Test
+  public void shouldNeverDemoteErrors() {
+    start();
+    final Logger logger = context.getLogger("com.spotify.Failing");
+    logger.setLevel(Level.WARN);
+    for (int i = 0; i < 20; i++) {
+      logger.warn("warn {}", i);
+      logger.error("error {}", i);
+    }
+
+    // Five of each make up the budget, after which only errors get through
+    assertEquals(5 + 20, messages("com.spotify.Failing").size());
+    assertEquals(1, filter.getDemotionCount());
+  }
+
+  @Test
+  public void shouldShowDemotedLoggersThroughJmx() throws Exception {
+    start();
+    final Logger logger = context.getLogger("com.spotify.Noisy");
+    for (int i = 0; i < 15; i++) {
+      logger.info("info {}", i);
+    }
+
+    final List<LogBudgetTurboFilter.DemotedLogger> demoted = filter.getDemotedLoggers();
+    assertEquals(1, demoted.size());
+    assertEquals("com.spotify.Noisy", demoted.get(0).getLoggerName());
+    assertEquals("WARN", demoted.get(0).getLevel());
+    assertEquals(5, demoted.get(0).getDroppedCount());
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName("com.spotify.logging:type=LogBudget,name=budget-test");
+    assertEquals(1, ((Object[]) server.getAttribute(name, "DemotedLoggers")).length);
+
+    server.invoke(name, "restoreAll", null, null);
+    assertTrue(filter.getDemotedLoggers().isEmpty());
+    assertTrue(logger.isInfoEnabled());
+
+    filter.stop();
+    assertFalse(server.isRegistered(name));
+  }
+
+  private void start() {
+    filter.start();
+    context.addTurboFilter(filter);
+  }
+
+  private List<ILoggingEvent> events(final String loggerName) {
+    return appender.list.stream()
+        .filter(e -> e.getLoggerName().equals(loggerName))
+        .collect(Collectors.toList());
+  }
+
+  private List<String> messages(final String loggerName) {
+    return events(loggerName).stream()
+        .map(ILoggingEvent::getFormattedMessage)
+        .collect(Collectors.toList());
+  }
+
+  private String last(final String loggerName) {
+    final List<String> messages = messages(loggerName);
+    return messages.get(messages.size() - 1);
+  }
+}
@@ -0,0 +1,185 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.read.ListAppender;
+import ch.qos.logback.core.util.Duration;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogVolumeAppenderTest {
+
+  private LoggerContext context;
+  private LogVolumeAppender appender;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    appender = new LogVolumeAppender();
+    appender.setContext(context);
+    appender.setName("volume-test");
+    appender.setSummaryInterval(Duration.buildByMilliseconds(0));
+  }
+
+  @After
+  public void tearDown() {
+    appender.stop();
+  }
+
+  @Test
+  public void shouldCountEventsAndBytesPerLoggerAndLevel() {
+    appender.start();
+    log("com.spotify.Foo", Level.INFO, "hello {}", "world");
+    log("com.spotify.Foo", Level.INFO, "hello {}", "you");
+    log("com.spotify.Foo", Level.ERROR, "failed", null);
+    log("com.spotify.Bar", Level.DEBUG, "debug", null);
+
+    assertEquals(4, appender.getEventCount());
+    assertEquals(11 + 9 + 6 + 5, appender.getByteCount());
+    final Map<String, Long> byLevel = appender.getEventCountsByLevel();
+    assertEquals(0L, (long) byLevel.get("TRACE"));
+    assertEquals(1L, (long) byLevel.get("DEBUG"));
+    assertEquals(2L, (long) byLevel.get("INFO"));
+    assertEquals(1L, (long) byLevel.get("ERROR"));
+    assertEquals(3L, (long) appender.getEventCountsByLogger().get("com.spotify.Foo"));
+    assertEquals(26L, (long) appender.getByteCountsByLogger().get("com.spotify.Foo"));
+    assertEquals(1L, (long) appender.getEventCountsByLogger().get("com.spotify.Bar"));
+
+    appender.reset();
+    assertEquals(0, appender.getEventCount());
+  }
+
+  @Test
+  public void shouldCountUtf8Bytes() {
+    final String[] strings = {"", "ascii", "h\u00e9", "\u20ac 1", "\uD83D\uDE00", "lone \uD83D"};
+    for (final String s : strings) {
+      assertEquals(s.getBytes(StandardCharsets.UTF_8).length, LogVolumeAppender.utf8Length(s));
+    }
+  }
+
+  @Test
+  public void shouldCountLoggersBeyondMaxAsOther() {
+    appender.setMaxLoggers(2);
+    appender.start();
+    for (int i = 0; i < 5; i++) {
+      log("logger" + i, Level.INFO, "message", null);
+    }
+
+    final Map<String, Long> byLogger = appender.getEventCountsByLogger();
+    assertEquals(3, byLogger.size());
+    assertEquals(3L, (long) byLogger.get(LogVolumeAppender.OTHER_LOGGERS));
+  }
+
+  @Test
+  public void shouldFindMostFrequentTemplates() {
+    appender.setSketchCapacity(16);
+    appender.setTopSize(3);
+    appender.start();
+    for (int i = 0; i < 10_000; i++) {
+      // Two frequent templates among many rare ones
+      if (i % 3 == 0) {
+        log("com.spotify.Spammer", Level.INFO, "spam {}", i);
+      } else if (i % 5 == 0) {
+        log("com.spotify.Chatty", Level.INFO, "chat {}", i);
+      } else {
+        log("com.spotify.Foo", Level.INFO, "rare " + i, null);
+      }
+    }
+
+    final List<LogVolumeAppender.HeavyHitter> top = appender.getTopMessageTemplates();
+    assertEquals(3, top.size());
+    assertEquals("spam {}", top.get(0).getTemplate());
+    assertEquals("com.spotify.Spammer", top.get(0).getLoggerName());
+    assertTrue(top.get(0).getCount() >= 3334);
+    assertTrue(top.get(0).getCount() - top.get(0).getMaxError() <= 3334);
+    assertEquals("chat {}", top.get(1).getTemplate());
+  }
+
+  @Test
+  public void shouldRegisterMBean() throws Exception {
+    appender.start();
+    log("com.spotify.Foo", Level.WARN, "warning", null);
+
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName("com.spotify.logging:type=LogVolume,name=volume-test");
+    assertEquals(1L, server.getAttribute(name, "EventCount"));
+    assertEquals(1, ((Object[]) server.getAttribute(name, "TopMessageTemplates")).length);
+
+    appender.stop();
+    assertFalse(server.isRegistered(name));
+  }
+
+  @Test
+  public void shouldLogSummaryOfInterval() {
+    final ListAppender<ILoggingEvent> summaries = new ListAppender<>();
+    summaries.setContext(context);
+    summaries.start();
+    context.getLogger(LogVolumeAppender.class).addAppender(summaries);
+    appender.start();
+
+    log("com.spotify.Foo", Level.INFO, "foo", null);
+    log("com.spotify.Foo", Level.INFO, "foo", null);
+    log("com.spotify.Bar", Level.INFO, "bar", null);
+    appender.writeSummary();
+    log("com.spotify.Bar", Level.INFO, "bar", null);
+    appender.writeSummary();
+    appender.writeSummary();
+
+    assertEquals(2, summaries.list.size());
+    final String first = summaries.list.get(0).getFormattedMessage();
+    assertTrue(first, first.startsWith("Logged 3 events in the last 0 milliseconds, "));
+    assertTrue(first, first.contains("busiest loggers: com.spotify.Foo=2, com.spotify.Bar=1;"));
+    assertTrue(first, first.contains("\"foo\"=2"));
+    final String second = summaries.list.get(1).getFormattedMessage();
+    assertTrue(second, second.contains("busiest loggers: com.spotify.Bar=1;"));
+  }
+
+  private void log(
+      final String loggerName, final Level level, final String message, final Object argument) {
+    final Logger logger = context.getLogger(loggerName);
+    appender.doAppend(
+        new LoggingEvent(
+            Logger.FQCN,
+            logger,
+            level,
+            message,
+            null,
+            argument == null ? null : new Object[] {argument}));
+  }
+}
@@ -0,0 +1,231 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.util.FileSize;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFileAppenderTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private LoggerContext context;
+  private Logger logger;
+  private Path file;
+  private MappedFileAppender appender;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+    file = folder.getRoot().toPath().resolve("app.log");
+
+    final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+    encoder.setContext(context);
+    encoder.setPattern("%level %msg%n");
+    encoder.start();
+
+    appender = new MappedFileAppender();
+    appender.setContext(context);
+    appender.setFile(file.toString());
+    appender.setEncoder(encoder);
+  }
+
+  @Test
+  public void shouldWriteEventsAndTruncateSegmentOnStop() throws Exception {
+    appender.start();
+    assertTrue(appender.isStarted());
+
+    appender.doAppend(event("first"));
+    appender.doAppend(event("second"));
+    appender.stop();
+
+    assertEquals(Arrays.asList("INFO first", "INFO second"), lines(segment(1)));
+    assertEquals(Arrays.asList("app.log.1"), segmentNames());
+  }
+
+  @Test
+  public void shouldRollBySize() throws Exception {
+    appender.setSegmentSize(new FileSize(64));
+    appender.setMaxSegments(0);
+    appender.start();
+
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      appender.doAppend(event("event " + i));
+      expected.add("INFO event " + i);
+    }
+    appender.stop();
+
+    final List<String> names = segmentNames();
+    assertTrue(names.size() > 1);
+    final List<String> actual = new ArrayList<>();
+    for (int i = 1; i <= names.size(); i++) {
+      assertTrue(Files.size(segment(i)) <= 64);
+      actual.addAll(lines(segment(i)));
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void shouldDeleteOldestSegments() throws Exception {
+    appender.setSegmentSize(new FileSize(64));
+    appender.setMaxSegments(2);
+    appender.start();
+
+    for (int i = 0; i < 20; i++) {
+      appender.doAppend(event("event " + i));
+    }
+    appender.stop();
+
+    final List<String> names = segmentNames();
+    assertEquals(2, names.size());
+    final List<String> newest = lines(file.resolveSibling(names.get(1)));
+    assertEquals("INFO event 19", newest.get(newest.size() - 1));
+  }
+
+  @Test
+  public void shouldGiveLargeEventItsOwnSegment() throws Exception {
+    appender.setSegmentSize(new FileSize(64));
+    appender.start();
+
+    final char[] large = new char[200];
+    Arrays.fill(large, 'x');
+    appender.doAppend(event("small"));
+    appender.doAppend(event(new String(large)));
+    appender.doAppend(event("after"));
+    appender.stop();
+
+    assertEquals(Arrays.asList("INFO small"), lines(segment(1)));
+    assertEquals(Arrays.asList("INFO " + new String(large)), lines(segment(2)));
+    assertEquals(Arrays.asList("INFO after"), lines(segment(3)));
+  }
+
+  @Test
+  public void shouldContinueAfterExistingSegments() throws Exception {
+    // Left at its full size by a process that died while writing it
+    final byte[] crashed = new byte[64];
+    final byte[] content = "INFO before\n".getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(content, 0, crashed, 0, content.length);
+    Files.write(file.resolveSibling("app.log.3"), crashed);
+    Files.write(file.resolveSibling("app.log.unrelated"), content);
+
+    appender.start();
+    appender.doAppend(event("after"));
+    appender.stop();
+
+    assertEquals(content.length, Files.size(segment(3)));
+    assertEquals(Arrays.asList("INFO after"), lines(segment(4)));
+  }
+
+  @Test
+  public void shouldKeepConcurrentEventsIntact() throws Exception {
+    appender.setSegmentSize(new FileSize(4096));
+    appender.setMaxSegments(0);
+    appender.start();
+
+    final int threads = 4;
+    final int events = 500;
+    final List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int writer = t;
+      writers.add(
+          new Thread(
+              () -> {
+                for (int i = 0; i < events; i++) {
+                  appender.doAppend(event("writer " + writer + " event " + i));
+                }
+              }));
+    }
+    writers.forEach(Thread::start);
+    for (final Thread writer : writers) {
+      writer.join();
+    }
+    appender.stop();
+
+    final Set<String> actual = new HashSet<>();
+    for (int i = 1; i <= segmentNames().size(); i++) {
+      for (final String line : lines(segment(i))) {
+        assertTrue(line, line.matches("INFO writer \\d event \\d+"));
+        assertTrue(line, actual.add(line));
+      }
+    }
+    assertEquals(threads * events, actual.size());
+  }
+
+  @Test
+  public void shouldNotStartWithoutFile() {
+    appender.setFile("");
+    appender.start();
+    assertFalse(appender.isStarted());
+  }
+
+  private LoggingEvent event(final String message) {
+    return new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, null);
+  }
+
+  private Path segment(final int index) {
+    return file.resolveSibling("app.log." + index);
+  }
+
+  private List<String> segmentNames() {
+    final List<String> names = new ArrayList<>();
+    for (final File f : folder.getRoot().listFiles()) {
+      if (f.getName().matches("app\\.log\\.\\d+")) {
+        names.add(f.getName());
+      }
+    }
+    names.sort((a, b) -> Integer.compare(index(a), index(b)));
+    return names;
+  }
+
+  private static int index(final String name) {
+    return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+  }
+
+  private static List<String> lines(final Path path) throws IOException {
+    return Files.readAllLines(path, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,181 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedSpillBufferTest {
+
+  private static final int SEGMENT_SIZE = 256;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+
+  @Before
+  public void setUp() {
+    directory = folder.getRoot().toPath().resolve("spill");
+  }
+
+  @Test
+  public void shouldReturnRecordsInOrderAcrossSegments() throws Exception {
+    try (MappedSpillBuffer buffer = open(10 * SEGMENT_SIZE)) {
+      for (int i = 0; i < 20; i++) {
+        assertTrue(buffer.append(record(i), 0, record(i).length));
+      }
+      assertTrue(segments().size() > 1);
+      assertEquals(20, buffer.size());
+      for (int i = 0; i < 20; i++) {
+        assertArrayEquals(record(i), buffer.peek());
+        buffer.remove();
+      }
+      assertEquals(0, buffer.peek().length);
+      assertTrue(buffer.isEmpty());
+      assertEquals(1, segments().size());
+    }
+    assertEquals(0, segments().size());
+  }
+
+  @Test
+  public void shouldRecoverUnreadRecordsWhenReopened() throws Exception {
+    try (MappedSpillBuffer buffer = open(10 * SEGMENT_SIZE)) {
+      for (int i = 0; i < 20; i++) {
+        buffer.append(record(i), 0, record(i).length);
+      }
+      for (int i = 0; i < 12; i++) {
+        buffer.remove();
+      }
+    }
+    try (MappedSpillBuffer buffer = open(10 * SEGMENT_SIZE)) {
+      assertEquals(8, buffer.size());
+      for (int i = 12; i < 20; i++) {
+        assertArrayEquals(record(i), buffer.peek());
+        buffer.remove();
+      }
+      buffer.append(record(20), 0, record(20).length);
+      assertArrayEquals(record(20), buffer.peek());
+    }
+  }
+
+  @Test
+  public void shouldEvictOldestSegmentWhenFull() throws Exception {
+    try (MappedSpillBuffer buffer = open(2 * SEGMENT_SIZE)) {
+      for (int i = 0; i < 40; i++) {
+        buffer.append(record(i), 0, record(i).length);
+      }
+      assertEquals(2, segments().size());
+      assertEquals(40, buffer.size() + buffer.getDroppedCount());
+      assertTrue(buffer.getDroppedCount() > 0);
+      // The newest records are kept
+      long expected = buffer.getDroppedCount();
+      byte[] record;
+      while ((record = buffer.peek()).length > 0) {
+        assertArrayEquals(record((int) expected++), record);
+        buffer.remove();
+      }
+      assertEquals(40, expected);
+    }
+  }
+
+  @Test
+  public void shouldDropRecordsLargerThanASegment() throws Exception {
+    try (MappedSpillBuffer buffer = open(10 * SEGMENT_SIZE)) {
+      assertFalse(buffer.append(new byte[SEGMENT_SIZE], 0, SEGMENT_SIZE));
+      assertEquals(1, buffer.getDroppedCount());
+      assertTrue(buffer.isEmpty());
+    }
+  }
+
+  @Test
+  public void shouldIgnoreTornRecord() throws Exception {
+    try (MappedSpillBuffer buffer = open(10 * SEGMENT_SIZE)) {
+      buffer.append(record(0), 0, record(0).length);
+      buffer.append(record(1), 0, record(1).length);
+    }
+    // Corrupt the last byte of the second record, as if the process died while writing it
+    final Path segment = segments().get(0);
+    try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+      final long offset = MappedSpillBuffer.HEADER_SIZE + 2 * 8 + record(0).length * 2L - 1;
+      file.seek(offset);
+      final int b = file.read();
+      file.seek(offset);
+      file.write(b ^ 0xff);
+    }
+    try (MappedSpillBuffer buffer = open(10 * SEGMENT_SIZE)) {
+      assertEquals(1, buffer.size());
+      assertArrayEquals(record(0), buffer.peek());
+      buffer.remove();
+      buffer.append(record(2), 0, record(2).length);
+      assertArrayEquals(record(2), buffer.peek());
+    }
+  }
+
+  @Test
+  public void shouldReplayFromStartOfSegmentIfHeaderIsCorrupt() throws Exception {
+    try (MappedSpillBuffer buffer = open(10 * SEGMENT_SIZE)) {
+      for (int i = 0; i < 3; i++) {
+        buffer.append(record(i), 0, record(i).length);
+      }
+      buffer.remove();
+    }
+    try (RandomAccessFile file = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+      file.seek(20);
+      file.writeInt(0);
+    }
+    try (MappedSpillBuffer buffer = open(10 * SEGMENT_SIZE)) {
+      assertEquals(3, buffer.size());
+      assertArrayEquals(record(0), buffer.peek());
+    }
+  }
+
+  private MappedSpillBuffer open(final long maxSize) throws Exception {
+    return new MappedSpillBuffer(directory, SEGMENT_SIZE, maxSize);
+  }
+
+  private List<Path> segments() throws Exception {
+    if (!Files.exists(directory)) {
+      return Collections.emptyList();
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted().collect(Collectors.toList());
+    }
+  }
+
+  private static byte[] record(final int i) {
+    return String.format("record %05d", i).getBytes(StandardCharsets.UTF_8);
+  }
+}
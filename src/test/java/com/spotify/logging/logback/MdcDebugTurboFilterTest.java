@@ -0,0 +1,181 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.read.ListAppender;
+import ch.qos.logback.core.util.Duration;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MdcDebugTurboFilterTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private LoggerContext context;
+  private Logger logger;
+  private ListAppender<ILoggingEvent> appender;
+  private MdcDebugTurboFilter filter;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    appender = new ListAppender<>();
+    appender.setContext(context);
+    appender.start();
+    final Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+    root.setLevel(Level.INFO);
+    root.addAppender(appender);
+    logger = context.getLogger("com.spotify.Foo");
+
+    filter = new MdcDebugTurboFilter();
+    filter.setContext(context);
+    filter.setName("debug-test");
+    context.addTurboFilter(filter);
+  }
+
+  @After
+  public void tearDown() {
+    filter.stop();
+  }
+
+  @Test
+  public void shouldLogDebugForMatchingMdcValues() {
+    filter.start();
+    logDebug("customer-1");
+    assertTrue(messages().isEmpty());
+
+    filter.addValue("customer-1");
+    logDebug("customer-1");
+    logDebug("customer-2");
+    logDebug(null);
+    context.getMDCAdapter().put("request-id", "customer-1");
+    logger.trace("trace is still below the level");
+
+    assertEquals(Arrays.asList("debug for customer-1"), messages());
+    assertTrue(logger.isDebugEnabled());
+
+    filter.removeValue("customer-1");
+    assertFalse(logger.isDebugEnabled());
+  }
+
+  @Test
+  public void shouldUseConfiguredKeyLevelAndValues() {
+    filter.setMdcKey("customer");
+    filter.setLevel("TRACE");
+    filter.addValue("vip");
+    filter.start();
+
+    context.getMDCAdapter().put("customer", "vip");
+    logger.trace("trace");
+    logger.debug("debug");
+
+    assertEquals(Arrays.asList("trace", "debug"), messages());
+    assertEquals(Collections.singletonList("vip"), filter.getValues());
+  }
+
+  @Test
+  public void shouldReadValuesFromWatchedFile() throws Exception {
+    final Path file = folder.newFile("debug-values").toPath();
+    Files.write(
+        file, "# customers\ncustomer-1\n  customer-2 # vip\n\n".getBytes(StandardCharsets.UTF_8));
+    filter.setFile(file.toString());
+    filter.setPollInterval(Duration.buildByMilliseconds(10));
+    filter.start();
+    assertEquals(Arrays.asList("customer-1", "customer-2"), filter.getValues());
+
+    Files.write(file, "customer-3\n".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+    final long deadline = System.currentTimeMillis() + 10_000;
+    while (!filter.getValues().equals(Collections.singletonList("customer-3"))
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(Collections.singletonList("customer-3"), filter.getValues());
+    logDebug("customer-3");
+    assertEquals(Arrays.asList("debug for customer-3"), messages());
+
+    Files.delete(file);
+    final long deleted = System.currentTimeMillis() + 10_000;
+    while (!filter.getValues().isEmpty() && System.currentTimeMillis() < deleted) {
+      Thread.sleep(10);
+    }
+    assertTrue(filter.getValues().isEmpty());
+  }
+
+  @Test
+  public void shouldChangeValuesThroughJmx() throws Exception {
+    filter.start();
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName("com.spotify.logging:type=MdcDebug,name=debug-test");
+
+    server.invoke(
+        name, "addValue", new Object[] {"customer-1"}, new String[] {String.class.getName()});
+    assertArrayEquals(new String[] {"customer-1"}, (String[]) server.getAttribute(name, "Values"));
+    logDebug("customer-1");
+    assertEquals(Arrays.asList("debug for customer-1"), messages());
+
+    server.invoke(name, "clearValues", null, null);
+    assertTrue(filter.getValues().isEmpty());
+
+    filter.stop();
+    assertFalse(server.isRegistered(name));
+  }
+
+  private void logDebug(final String requestId) {
+    if (requestId == null) {
+      context.getMDCAdapter().remove("request-id");
+    } else {
+      context.getMDCAdapter().put("request-id", requestId);
+    }
+    logger.debug("debug for {}", requestId);
+  }
+
+  private List<String> messages() {
+    return appender.list.stream()
+        .map(ILoggingEvent::getFormattedMessage)
+        .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,328 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.util.Duration;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MillisecondPrecisionSyslogAppenderTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private DatagramSocket receiver;
+  private LoggerContext context;
+  private Logger logger;
+  private MillisecondPrecisionSyslogAppender appender;
+
+  @Before
+  public void setUp() throws Exception {
+    receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    receiver.setSoTimeout(200);
+    receiver.setReceiveBufferSize(1 << 20);
+
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+
+    appender = new MillisecondPrecisionSyslogAppender();
+    appender.setContext(context);
+    appender.setSyslogHost(receiver.getLocalAddress().getHostAddress());
+    appender.setPort(receiver.getLocalPort());
+    appender.setFacility("LOCAL0");
+    appender.setSuffixPattern("foo: %msg");
+    appender.setStackTracePattern("foo: ");
+  }
+
+  @After
+  public void tearDown() {
+    appender.stop();
+    receiver.close();
+  }
+
+  @Test
+  public void shouldSendStackTraceLineByLine() throws Exception {
+    appender.start();
+
+    final Exception e = new IllegalStateException("outer", new IOException("inner"));
+    appender.doAppend(event("oops", e));
+
+    final List<String> lines = receive();
+    assertTrue(lines.get(0).endsWith("foo: oops"));
+    assertTrue(lines.get(1).endsWith("foo: java.lang.IllegalStateException: outer"));
+    assertTrue(lines.get(2).contains("foo: at " + getClass().getName()));
+    final int commonFrames = new ThrowableProxy(e).getCause().getCommonFrames();
+    assertTrue(commonFrames > 0);
+    assertTrue(
+        lines
+            .get(lines.size() - 1)
+            .endsWith("foo: ... " + commonFrames + " common frames omitted"));
+    assertEquals(
+        e.getStackTrace().length + e.getCause().getStackTrace().length - commonFrames + 4,
+        lines.size());
+  }
+
+  @Test
+  public void shouldOnlySendExceptionLineOfDuplicateStackTraces() throws Exception {
+    appender.setStackTraceDeduplicationWindow(Duration.buildBySeconds(60));
+    appender.start();
+
+    for (int i = 0; i < 3; i++) {
+      appender.doAppend(event("oops " + i, exception("message " + i)));
+    }
+
+    final List<String> lines = receive();
+    final String hash = lines.get(1).substring(lines.get(1).indexOf("stack_hash="));
+    assertTrue(lines.get(1).contains("java.lang.IllegalStateException: message 0"));
+    assertTrue(lines.get(2).contains(" at "));
+
+    final List<String> duplicates = lines.subList(lines.size() - 4, lines.size());
+    assertTrue(duplicates.get(0).endsWith("foo: oops 1"));
+    assertTrue(
+        duplicates.get(1).endsWith("foo: java.lang.IllegalStateException: message 1 " + hash));
+    assertTrue(duplicates.get(2).endsWith("foo: oops 2"));
+    assertTrue(
+        duplicates.get(3).endsWith("foo: java.lang.IllegalStateException: message 2 " + hash));
+
+    final StackTraceDeduplicator deduplicator = appender.getStackTraceDeduplicator();
+    assertNotNull(deduplicator);
+    assertEquals(1, deduplicator.getFullCount());
+    assertEquals(2, deduplicator.getDeduplicatedCount());
+  }
+
+  @Test
+  public void shouldSendFullStackTraceAgainAfterWindow() throws Exception {
+    appender.setStackTraceDeduplicationWindow(Duration.buildBySeconds(60));
+    appender.start();
+
+    final LoggingEvent first = event("first", exception("a"));
+    final LoggingEvent second = event("second", exception("a"));
+    second.setTimeStamp(first.getTimeStamp() + 60_000);
+    appender.doAppend(first);
+    appender.doAppend(second);
+
+    final List<String> lines = receive();
+    final int index =
+        lines.size() - 2 - second.getThrowableProxy().getStackTraceElementProxyArray().length;
+    assertTrue(lines.get(index).endsWith("foo: second"));
+    assertTrue(lines.get(index + 1).contains("stack_hash="));
+    assertTrue(lines.get(index + 2).contains(" at "));
+  }
+
+  @Test
+  public void shouldFoldFrameworkFrames() throws Exception {
+    appender.addFoldedFramePrefix("org.junit.");
+    appender.addFoldedFramePrefix("sun.reflect.");
+    appender.addFoldedFramePrefix("jdk.internal.");
+    appender.addFoldedFramePrefix("java.lang.reflect.");
+    appender.start();
+
+    appender.doAppend(event("oops", exception("a")));
+
+    final List<String> lines = receive();
+    assertTrue(lines.get(2).contains(" at " + getClass().getName() + ".exception("));
+    assertTrue(
+        lines.get(3).contains(" at " + getClass().getName() + ".shouldFoldFrameworkFrames("));
+    assertTrue(lines.get(4).matches(".*foo: \\.\\.\\. \\d+ framework frames omitted"));
+    assertTrue(lines.stream().noneMatch(line -> line.contains(" at org.junit.")));
+  }
+
+  @Test
+  public void shouldTruncateFrames() throws Exception {
+    appender.setMaxFramesPerThrowable(2);
+    appender.start();
+
+    final Exception e = exception("a");
+    appender.doAppend(event("oops", e));
+
+    final List<String> lines = receive();
+    assertEquals(5, lines.size());
+    assertTrue(
+        lines.get(4).endsWith("foo: ... " + (e.getStackTrace().length - 2) + " frames truncated"));
+  }
+
+  @Test
+  public void shouldSendSameLinesThroughPipeline() throws Exception {
+    final LoggingEvent event =
+        event("oops", new IllegalStateException("outer", new IOException("inner")));
+    appender.start();
+    appender.doAppend(event);
+    final List<String> direct = receive();
+    appender.stop();
+
+    appender.setPipelineBufferSize(16);
+    appender.start();
+    appender.doAppend(event);
+    appender.stop();
+
+    assertEquals(direct, receive());
+  }
+
+  @Test
+  public void shouldNotInterleaveLinesOfConcurrentEvents() throws Exception {
+    appender.setPipelineBufferSize(4);
+    appender.start();
+
+    final int threads = 4;
+    final int events = 10;
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> producers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final String name = "t" + t;
+      final Thread producer =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException ignored) {
+                  return;
+                }
+                for (int i = 0; i < events; i++) {
+                  appender.doAppend(event(name + "-" + i, exception(name + "-" + i)));
+                }
+              });
+      producer.start();
+      producers.add(producer);
+    }
+    start.countDown();
+    for (final Thread producer : producers) {
+      producer.join();
+    }
+    appender.stop();
+
+    final List<String> lines = receive();
+    int exceptions = 0;
+    for (int i = 1; i < lines.size(); i++) {
+      final String line = lines.get(i);
+      final int index = line.indexOf("IllegalStateException: ");
+      if (index >= 0) {
+        exceptions++;
+        final String message = line.substring(index + "IllegalStateException: ".length());
+        assertTrue(lines.get(i - 1).endsWith("foo: " + message));
+      } else if (!line.contains("foo: at ")) {
+        assertTrue(lines.get(i + 1).contains("IllegalStateException: "));
+      }
+    }
+    assertEquals(threads * events, exceptions);
+    assertEquals(0, appender.getDroppedCount());
+  }
+
+  @Test
+  public void shouldSpillWhileReceiverIsDownAndReplayInOrder() throws Exception {
+    appender.setSpillDirectory(folder.getRoot().getPath());
+    appender.setSpillRetryInterval(Duration.buildByMilliseconds(10));
+    appender.start();
+
+    appender.doAppend(event("before", null));
+    assertEquals(1, receive().size());
+
+    final int port = receiver.getLocalPort();
+    receiver.close();
+    for (int i = 0; i < 10; i++) {
+      appender.doAppend(event("during " + i, null));
+      // Let the unreachable reply arrive before the next datagram is sent
+      Thread.sleep(20);
+    }
+    receiver = new DatagramSocket(port, InetAddress.getLoopbackAddress());
+    receiver.setSoTimeout(200);
+    Thread.sleep(20);
+    appender.doAppend(event("after", null));
+
+    final List<String> lines = receive();
+    assertEquals(11, lines.size());
+    for (int i = 0; i < 10; i++) {
+      assertTrue(lines.get(i).endsWith("foo: during " + i));
+    }
+    assertTrue(lines.get(10).endsWith("foo: after"));
+  }
+
+  @Test
+  public void shouldReplaySpilledDatagramsAfterRestart() throws Exception {
+    appender.setSpillDirectory(folder.getRoot().getPath());
+    appender.start();
+
+    final int port = receiver.getLocalPort();
+    receiver.close();
+    for (int i = 0; i < 3; i++) {
+      appender.doAppend(event("during " + i, null));
+      Thread.sleep(20);
+    }
+    appender.stop();
+
+    receiver = new DatagramSocket(port, InetAddress.getLoopbackAddress());
+    receiver.setSoTimeout(200);
+    appender.start();
+    appender.doAppend(event("after", null));
+
+    final List<String> lines = receive();
+    assertEquals(4, lines.size());
+    for (int i = 0; i < 3; i++) {
+      assertTrue(lines.get(i).endsWith("foo: during " + i));
+    }
+    assertTrue(lines.get(3).endsWith("foo: after"));
+  }
+
+  private LoggingEvent event(final String message, final Throwable t) {
+    final LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, Level.ERROR, message, t, null);
+    event.setThreadName("main");
+    return event;
+  }
+
+  private static Exception exception(final String message) {
+    return new IllegalStateException(message);
+  }
+
+  private List<String> receive() throws IOException {
+    final List<String> lines = new ArrayList<>();
+    final byte[] buf = new byte[65536];
+    while (true) {
+      final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+      try {
+        receiver.receive(packet);
+      } catch (SocketTimeoutException e) {
+        return lines;
+      }
+      lines.add(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+    }
+  }
+}
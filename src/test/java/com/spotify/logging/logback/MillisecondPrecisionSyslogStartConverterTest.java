@@ -37,11 +37,16 @@
 package com.spotify.logging.logback;
 
 import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.LoggingEvent;
+import java.text.DateFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import org.junit.Test;
 
 public class MillisecondPrecisionSyslogStartConverterTest {
@@ -65,4 +70,30 @@ public class MillisecondPrecisionSyslogStartConverterTest {
 
     assertTrue(message.contains(HOSTNAME));
   }
+
+  @Test
+  public void shouldFormatTimestampLikeSimpleDateFormat() {
+    LoggerContext context = new LoggerContext();
+    context.putProperty("hostname", HOSTNAME);
+
+    MillisecondPrecisionSyslogStartConverter converter =
+        new MillisecondPrecisionSyslogStartConverter();
+    converter.setContext(context);
+    converter.setOptionList(asList("LOCAL0"));
+    converter.start();
+
+    final String pattern =
+        System.getProperty("os.name").equals("Mac OS X")
+            ? "MMM dd HH:mm:ss"
+            : "MMM dd HH:mm:ss.SSS";
+    final SimpleDateFormat format = new SimpleDateFormat(pattern, new DateFormatSymbols(Locale.US));
+    for (final long timestamp : new long[] {1_577_836_800_007L, 1_602_000_000_123L}) {
+      LoggingEvent event = new LoggingEvent();
+      event.setLevel(Level.INFO);
+      event.setTimeStamp(timestamp);
+      assertEquals(
+          "<134>" + format.format(new Date(timestamp)) + " " + HOSTNAME + " ",
+          converter.convert(event));
+    }
+  }
 }
@@ -0,0 +1,80 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import com.spotify.logging.LoggingConfigurator.ReplaceNewLines;
+import org.junit.Test;
+
+public class NewLineStrippingMessageConverterTest {
+
+  @Test
+  public void shouldReturnMessagesWithoutNewLinesAsIs() {
+    final String message = "nothing to strip here";
+    assertSame(message, NewLineStrippingMessageConverter.strip(message));
+  }
+
+  @Test
+  public void shouldStripLikeReplacePattern() {
+    final LoggerContext context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    final Logger logger = context.getLogger("com.spotify.Foo");
+    // The public pattern works without registering the converter
+    final PatternLayout replace = new PatternLayout();
+    replace.setContext(context);
+    replace.setPattern(ReplaceNewLines.getMsgPattern(ReplaceNewLines.ON));
+    replace.start();
+    final PatternLayout strip =
+        layout(context, NewLineStrippingMessageConverter.msgPattern(ReplaceNewLines.ON));
+
+    final String[] messages = {
+      "", "plain", "\n", "\r\n", "first\r\nsecond\nthird\r", "\ntrailing and leading\r", "a\n\n\nb"
+    };
+    for (final String message : messages) {
+      final LoggingEvent event =
+          new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, null);
+      assertEquals(message.replaceAll("[\r\n]", ""), replace.doLayout(event));
+      assertEquals(replace.doLayout(event), strip.doLayout(event));
+    }
+    // Registered with the layout only, not with every layout in the JVM
+    assertFalse(
+        PatternLayout.DEFAULT_CONVERTER_MAP.containsKey(
+            NewLineStrippingMessageConverter.CONVERSION_WORD));
+  }
+
+  private static PatternLayout layout(final LoggerContext context, final String pattern) {
+    final PatternLayout layout = new PatternLayout();
+    layout.setContext(context);
+    NewLineStrippingMessageConverter.register(layout);
+    layout.setPattern(pattern);
+    layout.start();
+    return layout;
+  }
+}
@@ -0,0 +1,203 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.read.ListAppender;
+import ch.qos.logback.core.util.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrioritizedAsyncAppenderTest {
+
+  private LoggerContext context;
+  private Logger logger;
+  private GatedAppender downstream;
+  private PrioritizedAsyncAppender appender;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+
+    downstream = new GatedAppender();
+    downstream.setContext(context);
+    downstream.start();
+
+    appender = new PrioritizedAsyncAppender();
+    appender.setName("prioritized");
+    appender.setContext(context);
+    appender.setQueueSize(10);
+    appender.setDropSummaryInterval(Duration.buildByMilliseconds(0));
+    appender.addAppender(downstream);
+    logger.addAppender(appender);
+    logger.setAdditive(false);
+    logger.setLevel(Level.TRACE);
+  }
+
+  @After
+  public void tearDown() {
+    downstream.open.countDown();
+    appender.stop();
+  }
+
+  @Test
+  public void shouldShedLowerLevelsFirstAndWriteErrorsFirst() throws Exception {
+    appender.start();
+    blockWorker();
+
+    for (int i = 0; i < 10; i++) {
+      logger.debug("debug {}", i);
+    }
+    for (int i = 0; i < 10; i++) {
+      logger.info("info {}", i);
+    }
+    logger.warn("warn 0");
+    logger.warn("warn 1");
+    logger.error("error");
+
+    assertEquals(5, appender.getDroppedCount(Level.DEBUG));
+    assertEquals(7, appender.getDroppedCount(Level.INFO));
+    assertEquals(0, appender.getDroppedCount(Level.WARN));
+    assertEquals(11, appender.getNumberOfElementsInQueue());
+
+    downstream.open.countDown();
+    appender.stop();
+
+    final List<String> messages = messages();
+    assertEquals("blocker", messages.get(0));
+    assertEquals("error", messages.get(1));
+    assertEquals("debug 0", messages.get(2));
+    assertEquals("debug 4", messages.get(6));
+    assertEquals("info 0", messages.get(7));
+    assertEquals("info 2", messages.get(9));
+    assertEquals("warn 0", messages.get(10));
+    assertEquals("warn 1", messages.get(11));
+    assertEquals(
+        "Dropped 12 events because the queue of appender prioritized was full: DEBUG=5, INFO=7",
+        messages.get(12));
+    assertEquals(Level.WARN, downstream.list.get(12).getLevel());
+    assertEquals(13, messages.size());
+  }
+
+  @Test
+  public void shouldDropWarnAndErrorWhenFullIfNeverBlock() throws Exception {
+    appender.setNeverBlock(true);
+    appender.setExpressQueueSize(1);
+    appender.setDebugSheddingPercent(0);
+    appender.setInfoSheddingPercent(0);
+    appender.start();
+    blockWorker();
+
+    for (int i = 0; i < 12; i++) {
+      logger.info("info {}", i);
+    }
+    logger.warn("warn");
+    logger.error("error 0");
+    logger.error("error 1");
+
+    assertEquals(2, appender.getDroppedCount(Level.INFO));
+    assertEquals(1, appender.getDroppedCount(Level.WARN));
+    assertEquals(1, appender.getDroppedCount(Level.ERROR));
+    assertEquals(4, appender.getDroppedCount());
+  }
+
+  @Test
+  public void shouldWriteDropSummaryPeriodically() throws Exception {
+    appender.setDropSummaryInterval(Duration.buildByMilliseconds(50));
+    appender.start();
+    blockWorker();
+
+    for (int i = 0; i < 10; i++) {
+      logger.debug("debug {}", i);
+    }
+    downstream.open.countDown();
+
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (System.currentTimeMillis() < deadline
+        && messages().stream().noneMatch(m -> m.startsWith("Dropped 5 events"))) {
+      Thread.sleep(10);
+    }
+    assertTrue(
+        messages()
+            .contains(
+                "Dropped 5 events because the queue of appender prioritized was full: DEBUG=5"));
+  }
+
+  @Test
+  public void shouldStopAttachedAppendersWhenContextIsStopped() {
+    appender.start();
+    logger.info("info");
+    downstream.open.countDown();
+
+    context.stop();
+
+    assertFalse(appender.isStarted());
+    assertFalse(downstream.isStarted());
+    assertFalse(appender.isAttached(downstream));
+    assertEquals(Collections.singletonList("info"), messages());
+  }
+
+  // Logs an event and waits for the worker to block on it in the downstream appender
+  private void blockWorker() throws InterruptedException {
+    logger.warn("blocker");
+    assertTrue(downstream.entered.await(5, TimeUnit.SECONDS));
+  }
+
+  private List<String> messages() {
+    synchronized (downstream) {
+      return downstream.list.stream()
+          .map(ILoggingEvent::getFormattedMessage)
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static class GatedAppender extends ListAppender<ILoggingEvent> {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch open = new CountDownLatch(1);
+
+    @Override
+    protected void append(final ILoggingEvent event) {
+      entered.countDown();
+      try {
+        open.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      super.append(event);
+    }
+  }
+}
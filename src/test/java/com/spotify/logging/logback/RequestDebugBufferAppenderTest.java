@@ -0,0 +1,240 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+public class RequestDebugBufferAppenderTest {
+
+  private LoggerContext context;
+  private Logger logger;
+  private ListAppender<ILoggingEvent> list;
+  private RequestDebugBufferAppender appender;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    // Share the MDC of org.slf4j.MDC, which openRequest uses
+    context.setMDCAdapter(MDC.getMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+    logger.setLevel(Level.DEBUG);
+
+    list = new ListAppender<>();
+    list.setContext(context);
+    list.start();
+    appender = new RequestDebugBufferAppender();
+    appender.setContext(context);
+    appender.setName("request-debug");
+    appender.addAppender(list);
+  }
+
+  @After
+  public void tearDown() {
+    appender.stop();
+    MDC.clear();
+  }
+
+  @Test
+  public void shouldAppendDebugHistoryOfFailedRequest() {
+    appender.start();
+    logger.addAppender(appender);
+
+    final RequestDebugBufferAppender.RequestScope scope =
+        RequestDebugBufferAppender.openRequest("r1");
+    logger.debug("debug 1");
+    logger.info("info");
+    logger.trace("trace is below the logger level");
+    logger.debug("debug 2");
+    assertEquals(Arrays.asList("info"), messages());
+
+    logger.error("failed");
+    scope.close();
+
+    assertEquals(Arrays.asList("info", "debug 1", "debug 2", "failed"), messages());
+    assertEquals(2, appender.getFlushedCount());
+    assertEquals(0, appender.getBufferedCount());
+  }
+
+  @Test
+  public void shouldDiscardDebugHistoryOfSuccessfulRequest() {
+    appender.start();
+    logger.addAppender(appender);
+
+    final RequestDebugBufferAppender.RequestScope scope =
+        RequestDebugBufferAppender.openRequest("r1");
+    logger.debug("debug 1");
+    logger.warn("warning");
+    logger.debug("debug 2");
+    assertEquals(2, appender.getBufferedCount());
+
+    scope.close();
+    assertEquals(Arrays.asList("warning"), messages());
+    assertEquals(2, appender.getDiscardedCount());
+    assertEquals(0, appender.getBufferedCount());
+
+    // A later error of the same request id doesn't bring them back
+    MDC.put(RequestDebugBufferAppender.DEFAULT_MDC_KEY, "r1");
+    logger.error("failed");
+    assertEquals(Arrays.asList("warning", "failed"), messages());
+  }
+
+  @Test
+  public void shouldOpenRequestUnderConfiguredKeyAndRestorePreviousValue() {
+    appender.setMdcKey("rid");
+    appender.start();
+    logger.addAppender(appender);
+    MDC.put("rid", "outer");
+
+    final RequestDebugBufferAppender.RequestScope scope =
+        RequestDebugBufferAppender.openRequest("r1");
+    assertEquals(scope.getRequestId(), MDC.get("rid"));
+    assertNull(MDC.get(RequestDebugBufferAppender.DEFAULT_MDC_KEY));
+    logger.debug("debug");
+    assertEquals(1, appender.getBufferedCount());
+
+    scope.close();
+    assertEquals("outer", MDC.get("rid"));
+    assertEquals(0, appender.getBufferedCount());
+  }
+
+  @Test
+  public void shouldFormatHeldBackEventsWhenLogged() {
+    appender.start();
+    logger.addAppender(appender);
+
+    MDC.put("request-id", "r1");
+    final StringBuilder argument = new StringBuilder("before");
+    logger.debug("debug {}", argument);
+    argument.setLength(0);
+    argument.append("after");
+    logger.error("failed");
+
+    assertEquals(Arrays.asList("debug before", "failed"), messages());
+  }
+
+  @Test
+  public void shouldDropUntaggedDebugEvents() {
+    appender.start();
+    logger.addAppender(appender);
+    logger.debug("dropped");
+    logger.info("info");
+
+    appender.setDiscardUntagged(false);
+    logger.debug("kept");
+
+    assertEquals(Arrays.asList("info", "kept"), messages());
+  }
+
+  @Test
+  public void shouldKeepLatestEventsOfRequest() {
+    appender.setMaxEventsPerRequest(3);
+    appender.start();
+    logger.addAppender(appender);
+
+    MDC.put("request-id", "r1");
+    for (int i = 0; i < 10; i++) {
+      logger.debug("debug {}", i);
+    }
+    assertEquals(3, appender.getBufferedCount());
+    logger.error("failed");
+
+    assertEquals(Arrays.asList("debug 7", "debug 8", "debug 9", "failed"), messages());
+  }
+
+  @Test
+  public void shouldEvictOldestRequestWhenFull() {
+    appender.setMdcKey("rid");
+    appender.setMaxBufferedEvents(4);
+    appender.start();
+    logger.addAppender(appender);
+
+    for (final String request : new String[] {"r1", "r2", "r3"}) {
+      MDC.put("rid", request);
+      logger.debug("{} a", request);
+      logger.debug("{} b", request);
+    }
+    assertEquals(4, appender.getBufferedCount());
+    assertEquals(2, appender.getDiscardedCount());
+
+    MDC.put("rid", "r1");
+    logger.error("r1 failed");
+    MDC.put("rid", "r2");
+    logger.error("r2 failed");
+
+    assertEquals(Arrays.asList("r1 failed", "r2 a", "r2 b", "r2 failed"), messages());
+  }
+
+  @Test
+  public void shouldSkipEndedRequestsWhenEvicting() {
+    appender.setMdcKey("rid");
+    appender.setMaxBufferedEvents(3);
+    appender.start();
+    logger.addAppender(appender);
+
+    for (int i = 0; i < 100; i++) {
+      MDC.put("rid", "ended " + i);
+      logger.debug("debug");
+      RequestDebugBufferAppender.endRequest("ended " + i);
+    }
+    MDC.put("rid", "r1");
+    logger.debug("r1 a");
+    logger.debug("r1 b");
+    MDC.put("rid", "r2");
+    logger.debug("r2 a");
+    logger.debug("r2 b");
+    assertEquals(2, appender.getBufferedCount());
+    assertEquals(102, appender.getDiscardedCount());
+
+    logger.error("r2 failed");
+    assertEquals(Arrays.asList("r2 a", "r2 b", "r2 failed"), messages());
+  }
+
+  @Test
+  public void shouldStopAttachedAppendersWhenStopped() {
+    appender.start();
+    logger.addAppender(appender);
+
+    context.stop();
+
+    assertFalse(appender.isStarted());
+    assertFalse(list.isStarted());
+    assertFalse(appender.isAttached(list));
+  }
+
+  private List<String> messages() {
+    return list.list.stream().map(ILoggingEvent::getFormattedMessage).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,220 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.AppenderBase;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RingBufferAppenderTest {
+
+  private LoggerContext context;
+  private Logger logger;
+  private RecordingAppender recorder;
+  private RingBufferAppender appender;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+
+    recorder = new RecordingAppender();
+    recorder.setContext(context);
+    recorder.start();
+
+    appender = new RingBufferAppender();
+    appender.setName("ring");
+    appender.setContext(context);
+    appender.addAppender(recorder);
+    logger.addAppender(appender);
+    logger.setAdditive(false);
+  }
+
+  @After
+  public void tearDown() {
+    appender.stop();
+  }
+
+  @Test
+  public void shouldDeliverEventsFromManyThreadsInOrder() throws Exception {
+    for (final RingBufferAppender.WaitStrategy waitStrategy :
+        RingBufferAppender.WaitStrategy.values()) {
+      // Stopping detaches and stops the recorder
+      appender.stop();
+      recorder.records.clear();
+      recorder.start();
+      appender.addAppender(recorder);
+      appender.setWaitStrategy(waitStrategy);
+      appender.setBufferSize(64);
+      appender.start();
+
+      final int threads = 4;
+      final int eventsPerThread = 2000;
+      final List<Thread> producers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        producers.add(
+            new Thread(
+                () -> {
+                  for (int i = 0; i < eventsPerThread; i++) {
+                    logger.info("{} {}", thread, i);
+                  }
+                },
+                "producer-" + t));
+      }
+      producers.forEach(Thread::start);
+      for (final Thread producer : producers) {
+        producer.join();
+      }
+      appender.stop();
+
+      assertEquals(waitStrategy.name(), threads * eventsPerThread, recorder.records.size());
+      final int[] next = new int[threads];
+      for (final Record record : recorder.records) {
+        final String[] parts = record.message.split(" ");
+        final int thread = Integer.parseInt(parts[0]);
+        assertEquals("producer-" + thread, record.threadName);
+        assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+      }
+      assertEquals(0, appender.getDroppedCount());
+    }
+  }
+
+  @Test
+  public void shouldCopyMdcOnLoggingThread() {
+    appender.start();
+
+    context.getMDCAdapter().put("request", "r1");
+    logger.info("first");
+    context.getMDCAdapter().put("request", "r2");
+    logger.info("second");
+    context.getMDCAdapter().clear();
+    appender.stop();
+
+    assertEquals("r1", recorder.records.get(0).mdc.get("request"));
+    assertEquals("r2", recorder.records.get(1).mdc.get("request"));
+    assertEquals(Thread.currentThread().getName(), recorder.records.get(0).threadName);
+    assertFalse(recorder.records.get(0).hasCallerData);
+  }
+
+  @Test
+  public void shouldSkipMdcAndIncludeCallerDataWhenConfigured() {
+    appender.setIncludeMdc(false);
+    appender.setIncludeCallerData(true);
+    appender.start();
+
+    context.getMDCAdapter().put("request", "r1");
+    logger.info("first");
+    context.getMDCAdapter().clear();
+    appender.stop();
+
+    assertTrue(recorder.records.get(0).mdc.isEmpty());
+    assertTrue(recorder.records.get(0).hasCallerData);
+  }
+
+  @Test
+  public void shouldDropEventsWhenFullAndNeverBlock() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    recorder.blocker = release;
+    appender.setBufferSize(4);
+    appender.setNeverBlock(true);
+    appender.start();
+
+    for (int i = 0; i < 20; i++) {
+      logger.info("event {}", i);
+    }
+    release.countDown();
+    appender.stop();
+
+    assertTrue(appender.getDroppedCount() > 0);
+    assertEquals(20, recorder.records.size() + appender.getDroppedCount());
+  }
+
+  @Test
+  public void shouldStopAttachedAppendersWhenContextIsStopped() {
+    appender.start();
+    logger.info("event");
+
+    context.stop();
+
+    assertFalse(appender.isStarted());
+    assertFalse(recorder.isStarted());
+    assertFalse(appender.isAttached(recorder));
+    assertEquals("event", recorder.records.get(0).message);
+  }
+
+  @Test
+  public void shouldNotStartWithoutAppenders() {
+    final RingBufferAppender empty = new RingBufferAppender();
+    empty.setContext(context);
+    empty.start();
+    assertFalse(empty.isStarted());
+  }
+
+  private static class Record {
+    final String message;
+    final String threadName;
+    final Map<String, String> mdc;
+    final boolean hasCallerData;
+
+    Record(final ILoggingEvent event) {
+      this.message = event.getFormattedMessage();
+      this.threadName = event.getThreadName();
+      this.mdc = new HashMap<>(event.getMDCPropertyMap());
+      this.hasCallerData = event.hasCallerData();
+    }
+  }
+
+  /** Copies the fields of events, as the events themselves are reused. */
+  private static class RecordingAppender extends AppenderBase<ILoggingEvent> {
+    final List<Record> records = Collections.synchronizedList(new ArrayList<>());
+    volatile CountDownLatch blocker;
+
+    @Override
+    protected void append(final ILoggingEvent event) {
+      final CountDownLatch blocker = this.blocker;
+      if (blocker != null) {
+        try {
+          blocker.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      records.add(new Record(event));
+    }
+  }
+}
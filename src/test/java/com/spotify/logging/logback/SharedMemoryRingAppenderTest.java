@@ -0,0 +1,257 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedMemoryRingAppenderTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private LoggerContext context;
+  private Logger logger;
+  private Path file;
+  private SharedMemoryRingAppender appender;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+    file = folder.getRoot().toPath().resolve("app.ring");
+    appender = newAppender();
+  }
+
+  @After
+  public void tearDown() {
+    appender.stop();
+  }
+
+  private SharedMemoryRingAppender newAppender() {
+    final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+    encoder.setContext(context);
+    encoder.setPattern("%level %msg");
+    encoder.start();
+
+    final SharedMemoryRingAppender appender = new SharedMemoryRingAppender();
+    appender.setContext(context);
+    appender.setName("ring");
+    appender.setFile(file.toString());
+    appender.setSlotCount(8);
+    appender.setSlotSize(64);
+    appender.setEncoder(encoder);
+    return appender;
+  }
+
+  @Test
+  public void shouldDefaultToDevShm() {
+    final SharedMemoryRingAppender appender = new SharedMemoryRingAppender();
+    appender.setName("service");
+    assertEquals("/dev/shm/service.ring", appender.getFile());
+  }
+
+  @Test
+  public void shouldReadRecordsInOrder() throws Exception {
+    appender.start();
+    assertTrue(appender.isStarted());
+    for (int i = 0; i < 20; i++) {
+      appender.doAppend(event("event " + i));
+    }
+
+    try (SharedMemoryRingReader reader = SharedMemoryRingReader.open(file)) {
+      final List<String> records = new ArrayList<>();
+      assertEquals(8, reader.poll(record -> records.add(string(record)), 100));
+      assertEquals(12, reader.getDroppedCount());
+      assertEquals(0, reader.poll(record -> records.add(string(record)), 100));
+
+      for (int i = 20; i < 25; i++) {
+        appender.doAppend(event("event " + i));
+      }
+      assertEquals(2, reader.poll(record -> records.add(string(record)), 2));
+      assertEquals(3, reader.poll(record -> records.add(string(record)), 100));
+
+      assertEquals(
+          Arrays.asList(
+              "INFO event 0",
+              "INFO event 1",
+              "INFO event 2",
+              "INFO event 3",
+              "INFO event 4",
+              "INFO event 5",
+              "INFO event 6",
+              "INFO event 7",
+              "INFO event 20",
+              "INFO event 21",
+              "INFO event 22",
+              "INFO event 23",
+              "INFO event 24"),
+          records);
+    }
+  }
+
+  @Test
+  public void shouldDropRecordsLargerThanSlot() throws Exception {
+    appender.start();
+    final char[] large = new char[64];
+    Arrays.fill(large, 'x');
+    appender.doAppend(event(new String(large)));
+    appender.doAppend(event("small"));
+
+    assertEquals(1, appender.getDroppedCount());
+    try (SharedMemoryRingReader reader = SharedMemoryRingReader.open(file)) {
+      final List<String> records = new ArrayList<>();
+      reader.poll(record -> records.add(string(record)), 100);
+      assertEquals(Arrays.asList("INFO small"), records);
+    }
+  }
+
+  @Test
+  public void shouldContinueAfterRestart() throws Exception {
+    appender.start();
+    appender.doAppend(event("before"));
+
+    try (SharedMemoryRingReader reader = SharedMemoryRingReader.open(file)) {
+      final List<String> records = new ArrayList<>();
+      reader.poll(record -> records.add(string(record)), 100);
+
+      appender.stop();
+      appender = newAppender();
+      appender.start();
+      appender.doAppend(event("after"));
+
+      reader.poll(record -> records.add(string(record)), 100);
+      assertEquals(Arrays.asList("INFO before", "INFO after"), records);
+      assertEquals(2, reader.getSequence());
+    }
+  }
+
+  @Test
+  public void shouldReplaceFileWithOtherLayout() throws Exception {
+    appender.start();
+    appender.doAppend(event("old"));
+    appender.stop();
+
+    appender = newAppender();
+    appender.setSlotCount(16);
+    appender.start();
+    appender.doAppend(event("new"));
+
+    try (SharedMemoryRingReader reader = SharedMemoryRingReader.open(file)) {
+      final List<String> records = new ArrayList<>();
+      reader.poll(record -> records.add(string(record)), 100);
+      assertEquals(Arrays.asList("INFO new"), records);
+    }
+  }
+
+  @Test
+  public void shouldReadConcurrentProducers() throws Exception {
+    // Room for all events, so that nothing is dropped however the threads are scheduled
+    appender.setSlotCount(2048);
+    appender.start();
+
+    final int threads = 4;
+    final int events = 500;
+    final Set<String> expected = new HashSet<>();
+    final List<Thread> producers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int producer = t;
+      producers.add(
+          new Thread(
+              () -> {
+                for (int i = 0; i < events; i++) {
+                  appender.doAppend(event("producer " + producer + " event " + i));
+                }
+              }));
+      for (int i = 0; i < events; i++) {
+        expected.add("INFO producer " + t + " event " + i);
+      }
+    }
+
+    final Set<String> records = new HashSet<>();
+    try (SharedMemoryRingReader reader = SharedMemoryRingReader.open(file)) {
+      producers.forEach(Thread::start);
+      final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      while (records.size() < threads * events && System.nanoTime() < deadline) {
+        if (reader.poll(record -> assertTrue(records.add(string(record))), 16) == 0) {
+          Thread.yield();
+        }
+      }
+    }
+    for (final Thread producer : producers) {
+      producer.join();
+    }
+    assertEquals(expected, records);
+    assertEquals(0, appender.getDroppedCount());
+  }
+
+  @Test
+  public void shouldRejectOtherFiles() throws Exception {
+    Files.write(file, new byte[512]);
+    try (SharedMemoryRingReader reader = SharedMemoryRingReader.open(file)) {
+      fail("Opened " + reader);
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Not a ring file"));
+    }
+  }
+
+  @Test
+  public void shouldNotStartWithInvalidSlotCount() {
+    appender.setSlotCount(10);
+    appender.start();
+    assertFalse(appender.isStarted());
+  }
+
+  private LoggingEvent event(final String message) {
+    return new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, null);
+  }
+
+  private static String string(final ByteBuffer record) {
+    final byte[] bytes = new byte[record.remaining()];
+    record.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,87 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+public class SpaceSavingSketchTest {
+
+  @Test
+  public void shouldCountKeysWhileThereIsRoom() {
+    final SpaceSavingSketch sketch = new SpaceSavingSketch(3);
+    sketch.offer("a", "la");
+    sketch.offer("b", "lb");
+    sketch.offer("a", "la");
+
+    final Map<String, SpaceSavingSketch.Counter> counters = counters(sketch);
+    assertEquals(2, counters.size());
+    assertEquals(2, counters.get("a").count);
+    assertEquals(1, counters.get("b").count);
+    assertEquals(0, counters.get("a").error);
+    assertEquals("lb", counters.get("b").label);
+  }
+
+  @Test
+  public void shouldTakeOverCounterWithLowestCount() {
+    final SpaceSavingSketch sketch = new SpaceSavingSketch(2);
+    for (int i = 0; i < 3; i++) {
+      sketch.offer("frequent", "l");
+    }
+    sketch.offer("rare", "l");
+    sketch.offer("new", "l");
+
+    final Map<String, SpaceSavingSketch.Counter> counters = counters(sketch);
+    assertEquals(2, counters.size());
+    assertEquals(3, counters.get("frequent").count);
+    assertEquals(2, counters.get("new").count);
+    assertEquals(1, counters.get("new").error);
+  }
+
+  @Test
+  public void shouldKeepFrequentKeysInLongTail() {
+    final SpaceSavingSketch sketch = new SpaceSavingSketch(8);
+    for (int i = 0; i < 10_000; i++) {
+      sketch.offer(i % 4 == 0 ? "frequent" : "rare " + i, "l");
+    }
+
+    final SpaceSavingSketch.Counter frequent = counters(sketch).get("frequent");
+    assertEquals(8, counters(sketch).size());
+    // The count is an upper bound, and the count minus the error a lower bound
+    assertTrue(frequent.count >= 2500);
+    assertTrue(frequent.count - frequent.error <= 2500);
+    assertEquals(
+        10_000, counters(sketch).values().stream().mapToLong(counter -> counter.count).sum());
+
+    sketch.clear();
+    assertEquals(0, counters(sketch).size());
+  }
+
+  private static Map<String, SpaceSavingSketch.Counter> counters(final SpaceSavingSketch sketch) {
+    return sketch.counters().stream()
+        .collect(Collectors.toMap(counter -> counter.key, Function.identity()));
+  }
+}
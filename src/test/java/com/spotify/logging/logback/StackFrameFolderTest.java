@@ -0,0 +1,161 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.CoreConstants;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class StackFrameFolderTest {
+
+  @Test
+  public void shouldMatchPrefixes() {
+    final StackFrameFolder folder =
+        new StackFrameFolder(asList("io.netty.", "io.grpc.", "io.netty.channel.", "sun."), 0);
+
+    assertTrue(folder.isFolded("io.netty.channel.Foo"));
+    assertTrue(folder.isFolded("io.netty.util.Bar"));
+    assertTrue(folder.isFolded("io.grpc.Foo"));
+    assertTrue(folder.isFolded("sun.reflect.Foo"));
+    assertTrue(folder.isFolded("sun."));
+    assertFalse(folder.isFolded("io.nettyx.Foo"));
+    assertFalse(folder.isFolded("io.Foo"));
+    assertFalse(folder.isFolded("com.spotify.Foo"));
+    assertFalse(folder.isFolded("a"));
+    assertFalse(folder.isFolded("z"));
+  }
+
+  @Test
+  public void shouldFoldRunsOfFrameworkFrames() {
+    final StackFrameFolder folder = new StackFrameFolder(asList("io.netty."), 0);
+
+    final List<String> lines =
+        fold(
+            folder,
+            proxy(
+                "com.spotify.A",
+                "io.netty.B",
+                "io.netty.C",
+                "io.netty.D",
+                "com.spotify.E",
+                "io.netty.F",
+                "com.spotify.G"));
+
+    assertEquals(
+        asList(
+            "com.spotify.A",
+            "... 3 framework frames omitted",
+            "com.spotify.E",
+            "io.netty.F",
+            "com.spotify.G"),
+        lines);
+  }
+
+  @Test
+  public void shouldTruncateAfterMaxDepth() {
+    final StackFrameFolder folder = new StackFrameFolder(asList("io.netty."), 2);
+
+    final List<String> lines =
+        fold(folder, proxy("io.netty.A", "io.netty.B", "com.spotify.C", "com.spotify.D"));
+
+    assertEquals(
+        asList("... 2 framework frames omitted", "com.spotify.C", "... 1 frames truncated"), lines);
+  }
+
+  @Test
+  public void shouldTrimCommonFrames() {
+    final Exception e = new IllegalStateException("outer", new IllegalArgumentException("inner"));
+    final IThrowableProxy cause = new ThrowableProxy(e).getCause();
+    final int commonFrames = cause.getCommonFrames();
+    assertTrue(commonFrames > 0);
+
+    final List<String> lines = fold(new StackFrameFolder(emptyList(), 0), cause);
+
+    assertEquals(cause.getStackTraceElementProxyArray().length - commonFrames + 1, lines.size());
+    assertEquals("... " + commonFrames + " common frames omitted", lines.get(lines.size() - 1));
+  }
+
+  @Test
+  public void converterShouldFoldFrames() {
+    final LoggerContext context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    final Logger logger = context.getLogger("com.spotify.Foo");
+    final CachingThrowableProxyConverter converter = new CachingThrowableProxyConverter();
+    converter.addFoldedFramePrefix("org.junit.");
+    converter.setContext(context);
+    converter.start();
+
+    final String output =
+        converter.convert(
+            new LoggingEvent(
+                Logger.FQCN, logger, Level.ERROR, "oops", new IllegalStateException("a"), null));
+
+    final String[] lines = output.split(CoreConstants.LINE_SEPARATOR);
+    assertEquals("java.lang.IllegalStateException: a", lines[0]);
+    assertTrue(lines[1].startsWith("\tat " + getClass().getName() + ".converterShouldFoldFrames("));
+    assertTrue(output.contains("\t... "));
+    assertTrue(output.contains(" framework frames omitted"));
+    assertFalse(output.contains("\tat org.junit."));
+  }
+
+  private static List<String> fold(final StackFrameFolder folder, final IThrowableProxy tp) {
+    final List<String> lines = new ArrayList<>();
+    folder.fold(
+        tp,
+        new StackFrameFolder.Visitor() {
+          @Override
+          public void frame(final StackTraceElementProxy step) {
+            lines.add(step.getStackTraceElement().getClassName());
+          }
+
+          @Override
+          public void omitted(final String line) {
+            lines.add(line);
+          }
+        });
+    return lines;
+  }
+
+  private static IThrowableProxy proxy(final String... classNames) {
+    final Exception e = new Exception();
+    final StackTraceElement[] trace = new StackTraceElement[classNames.length];
+    for (int i = 0; i < classNames.length; i++) {
+      trace[i] = new StackTraceElement(classNames[i], "run", "Foo.java", i + 1);
+    }
+    e.setStackTrace(trace);
+    return new ThrowableProxy(e);
+  }
+}
@@ -0,0 +1,162 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.util.Duration;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import javax.annotation.Nullable;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StackTraceDeduplicatorTest {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private LoggerContext context;
+  private Logger logger;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+  }
+
+  @Test
+  public void shouldOnlyReportFirstOccurrenceInWindow() {
+    final StackTraceDeduplicator deduplicator = new StackTraceDeduplicator(16, 1000);
+
+    assertTrue(deduplicator.isFirstInWindow(42, 0));
+    assertFalse(deduplicator.isFirstInWindow(42, 1));
+    assertFalse(deduplicator.isFirstInWindow(42, 999));
+    assertTrue(deduplicator.isFirstInWindow(42, 1000));
+    assertFalse(deduplicator.isFirstInWindow(42, 1500));
+    assertTrue(deduplicator.isFirstInWindow(43, 1500));
+
+    assertEquals(3, deduplicator.getFullCount());
+    assertEquals(3, deduplicator.getDeduplicatedCount());
+  }
+
+  @Test
+  public void fingerprintShouldIgnoreMessages() {
+    // Exceptions need to be created on the same line to have the same frames
+    final long[] fingerprints = new long[3];
+    for (int i = 0; i < 3; i++) {
+      fingerprints[i] = fingerprint(exception("m" + i, i < 2 ? cause("c" + i) : null));
+    }
+    final long first = fingerprints[0];
+
+    assertEquals(first, fingerprints[1]);
+    assertNotEquals(first, fingerprints[2]);
+    assertEquals(16, StackTraceDeduplicator.hash(first).length());
+    assertEquals("000000000000002a", StackTraceDeduplicator.hash(42));
+  }
+
+  @Test
+  public void converterShouldOnlyRenderExceptionLineOfDuplicates() {
+    final CachingThrowableProxyConverter converter = new CachingThrowableProxyConverter();
+    converter.setDeduplicationWindow(Duration.buildBySeconds(60));
+    converter.setContext(context);
+    converter.start();
+
+    final String[] output = new String[2];
+    for (int i = 0; i < 2; i++) {
+      final ILoggingEvent event = event(exception("message " + i, null));
+      output[i] = converter.convert(event);
+      // The fingerprint used for deduplicating is handed over for the stack hash
+      final IThrowableProxy tp = event.getThrowableProxy();
+      assertEquals(StackTraceDeduplicator.fingerprint(tp), converter.takeFingerprint(tp));
+    }
+
+    assertTrue(
+        output[0].startsWith(
+            "java.lang.IllegalStateException: message 0" + CoreConstants.LINE_SEPARATOR + "\tat "));
+    assertEquals(
+        "java.lang.IllegalStateException: message 1" + CoreConstants.LINE_SEPARATOR, output[1]);
+  }
+
+  @Test
+  public void encodersShouldWriteStackHash() throws Exception {
+    final CustomLogstashEncoder logstashEncoder = new CustomLogstashEncoder().setupStackdriver();
+    logstashEncoder.setStackTraceDeduplicationWindow(Duration.buildBySeconds(60));
+    logstashEncoder.setContext(context);
+    logstashEncoder.start();
+    final StackdriverJsonEncoder stackdriverEncoder = new StackdriverJsonEncoder();
+    stackdriverEncoder.setStackTraceDeduplicationWindow(Duration.buildBySeconds(60));
+    stackdriverEncoder.setContext(context);
+    stackdriverEncoder.start();
+
+    final String hash = StackTraceDeduplicator.hash(fingerprint(exception("message", null)));
+    for (int i = 0; i < 2; i++) {
+      final ILoggingEvent event = event(exception("message " + i, null));
+      final String json = new String(logstashEncoder.encode(event), StandardCharsets.UTF_8);
+      assertEquals(json, new String(stackdriverEncoder.encode(event), StandardCharsets.UTF_8));
+
+      final JsonNode node = mapper.readTree(json);
+      assertNotEquals(hash, node.get("stack_hash").asText());
+      assertEquals(
+          StackTraceDeduplicator.hash(
+              StackTraceDeduplicator.fingerprint(event.getThrowableProxy())),
+          node.get("stack_hash").asText());
+      assertEquals(i == 0, node.get("stack_trace").asText().contains("\tat "));
+    }
+
+    final StackTraceDeduplicator deduplicator = logstashEncoder.getStackTraceDeduplicator();
+    assertNotNull(deduplicator);
+    assertEquals(1, deduplicator.getDeduplicatedCount());
+  }
+
+  private ILoggingEvent event(final Throwable t) {
+    final LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, Level.ERROR, "oops", t, null);
+    event.setThreadName("main");
+    event.setTimeStamp(1000);
+    return event;
+  }
+
+  private static long fingerprint(final Throwable t) {
+    return StackTraceDeduplicator.fingerprint(new ThrowableProxy(t));
+  }
+
+  private static Exception exception(final String message, final @Nullable Throwable cause) {
+    return new IllegalStateException(message, cause);
+  }
+
+  private static Exception cause(final String message) {
+    return new IllegalArgumentException(message);
+  }
+}
@@ -0,0 +1,128 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StackdriverJsonEncoderTest {
+
+  private LoggerContext context;
+  private Logger logger;
+  private CustomLogstashEncoder reference;
+  private StackdriverJsonEncoder encoder;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    context.putProperty("ident", "my-service");
+    context.putProperty("pid", "4711");
+    context.putProperty("hostname", "host.example.com");
+    logger = context.getLogger("com.spotify.Foo");
+
+    reference = new CustomLogstashEncoder().setupStackdriver();
+    reference.setContext(context);
+    reference.start();
+
+    encoder = new StackdriverJsonEncoder();
+    encoder.setContext(context);
+    encoder.start();
+  }
+
+  @Test
+  public void shouldEncodeLikeCustomLogstashEncoder() {
+    assertSameOutput(event("hello world", null));
+  }
+
+  @Test
+  public void shouldEscapeLikeCustomLogstashEncoder() {
+    assertSameOutput(event("quote \" backslash \\ slash / tab \t newline \n cr \r", null));
+    assertSameOutput(event("control \u0000 \u0001 \u001f \b \f del \u007f", null));
+    assertSameOutput(event("latin åäö, cjk 日本, separator  ", null));
+    assertSameOutput(event("emoji 😀 lone \ud83d surrogate", null));
+  }
+
+  @Test
+  public void shouldEncodeStackTraceLikeCustomLogstashEncoder() {
+    final Exception cause = new IllegalStateException("cause \"quoted\"");
+    assertSameOutput(event("failed", new RuntimeException("outer", cause)));
+  }
+
+  @Test
+  public void shouldEncodeMdcLikeCustomLogstashEncoder() {
+    final LoggingEvent event = event("with mdc", null);
+    final Map<String, String> mdc = new HashMap<>();
+    mdc.put("request_id", "abc-123");
+    mdc.put("user", "\"someone\"");
+    event.setMDCPropertyMap(mdc);
+    assertSameOutput(event);
+  }
+
+  @Test
+  public void shouldOmitNullMessageLikeCustomLogstashEncoder() {
+    assertSameOutput(event(null, null));
+  }
+
+  @Test
+  public void shouldEncodeLargeEvents() {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100_000; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    assertSameOutput(event(sb.toString(), null));
+    assertSameOutput(event("small again", null));
+  }
+
+  @Test
+  public void shouldStreamSameBytes() throws Exception {
+    final LoggingEvent event = event("streamed", null);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoder.encode(event, out);
+    assertEquals(
+        new String(encoder.encode(event), StandardCharsets.UTF_8),
+        new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private void assertSameOutput(final LoggingEvent event) {
+    assertEquals(
+        new String(reference.encode(event), StandardCharsets.UTF_8),
+        new String(encoder.encode(event), StandardCharsets.UTF_8));
+  }
+
+  private LoggingEvent event(final @Nullable String message, final @Nullable Throwable t) {
+    final LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, Level.WARN, message, t, null);
+    event.setThreadName("main");
+    return event;
+  }
+}
@@ -0,0 +1,110 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StderrLayoutTest {
+
+  private LoggerContext context;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    context.putProperty("ident", "my-service");
+    context.putProperty("pid", "4711");
+  }
+
+  @Test
+  public void shouldFormatLikePattern() {
+    assertSameAsPattern(StderrLayout.PATTERN, new StderrLayout(), events());
+  }
+
+  @Test
+  public void shouldReplaceNewLinesLikePattern() {
+    final StderrLayout layout = new StderrLayout();
+    layout.setReplaceNewLines(true);
+    assertSameAsPattern(
+        "%date{HH:mm:ss.SSS} %property{ident}[%property{pid}]: %-5level [%thread] %logger{0}: "
+            + "%replace(%msg){'[\\r\\n]', ''}%n",
+        layout, events());
+  }
+
+  @Test
+  public void shouldFallBackToSystemPropertiesLikePattern() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    assertSameAsPattern(StderrLayout.PATTERN, new StderrLayout(), events());
+  }
+
+  private void assertSameAsPattern(
+      final String pattern, final StderrLayout layout, final List<LoggingEvent> events) {
+    final PatternLayout patternLayout = new PatternLayout();
+    patternLayout.setContext(context);
+    patternLayout.setPattern(pattern);
+    patternLayout.start();
+    layout.setContext(context);
+    layout.start();
+    for (final LoggingEvent event : events) {
+      assertEquals(patternLayout.doLayout(event), layout.doLayout(event));
+    }
+  }
+
+  private List<LoggingEvent> events() {
+    final List<LoggingEvent> events = new ArrayList<>();
+    final Level[] levels = {Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR};
+    final String[] loggers = {"com.spotify.Foo", "Root", "com.spotify.Foo$Bar", "a.b."};
+    final long start = System.currentTimeMillis();
+    for (int i = 0; i < 200; i++) {
+      final Logger logger = context.getLogger(loggers[i % loggers.length]);
+      final LoggingEvent event =
+          new LoggingEvent(
+              Logger.FQCN,
+              logger,
+              levels[i % levels.length],
+              "event {} with\r\nnew lines \u00e5",
+              null,
+              new Object[] {i});
+      event.setThreadName("thread-" + i % 3);
+      // Spread over a few days, to cross seconds, minutes and midnight
+      event.setTimeStamp(start + i * 1234567L + i % 7);
+      if (i % 10 == 0) {
+        event.setThrowableProxy(
+            new ThrowableProxy(new IllegalStateException("boom " + i, new Exception("cause"))));
+      }
+      events.add(event);
+    }
+    return events;
+  }
+}
@@ -0,0 +1,162 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import ch.qos.logback.core.encoder.EncoderBase;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import net.logstash.logback.encoder.StreamingEncoder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.contrib.java.lang.system.SystemOutRule;
+
+public class StreamingConsoleAppenderTest {
+
+  @Rule public final SystemOutRule systemOutRule = new SystemOutRule().enableLog().mute();
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private LoggerContext context;
+  private Logger logger;
+  private StreamingConsoleAppender appender;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+
+    appender = new StreamingConsoleAppender();
+    appender.setTarget("System.out");
+    appender.setContext(context);
+  }
+
+  @Test
+  public void shouldStreamJsonEvents() throws Exception {
+    final CustomLogstashEncoder encoder = new CustomLogstashEncoder().setupStackdriver();
+    encoder.setContext(context);
+    encoder.start();
+    appender.setEncoder(encoder);
+    appender.start();
+
+    appender.doAppend(event("first"));
+    appender.doAppend(event("second"));
+
+    final String[] lines = systemOutRule.getLog().split(System.lineSeparator());
+    assertEquals(2, lines.length);
+    assertEquals("first", mapper.readTree(lines[0]).get("message").asText());
+    final JsonNode second = mapper.readTree(lines[1]);
+    assertEquals("second", second.get("message").asText());
+    assertEquals("INFO", second.get("severity").asText());
+  }
+
+  @Test
+  public void shouldNotWriteAfterStop() throws Exception {
+    final CustomLogstashEncoder encoder = new CustomLogstashEncoder().setupStackdriver();
+    encoder.setContext(context);
+    encoder.start();
+    appender.setEncoder(encoder);
+    appender.start();
+    appender.stop();
+
+    // An event that got past doAppend's check before stop() closed the stream
+    appender.writeOut(event("late"));
+
+    assertEquals("", systemOutRule.getLog());
+  }
+
+  @Test
+  public void shouldFallBackForOtherEncoders() {
+    final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+    encoder.setContext(context);
+    encoder.setPattern("%level %msg%n");
+    encoder.start();
+    appender.setEncoder(encoder);
+    appender.start();
+
+    appender.doAppend(event("plain"));
+
+    assertEquals("INFO plain" + System.lineSeparator(), systemOutRule.getLog());
+  }
+
+  @Test
+  public void shouldKeepRunningWhenEncodingFails() {
+    appender.setEncoder(new FailingEncoder());
+    appender.start();
+
+    appender.doAppend(event("fail"));
+    appender.doAppend(event("ok"));
+
+    assertTrue(appender.isStarted());
+    assertEquals("ok", systemOutRule.getLog());
+  }
+
+  private LoggingEvent event(final String message) {
+    final LoggingEvent event =
+        new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, null);
+    event.setThreadName("main");
+    return event;
+  }
+
+  /** Writes half of the message and then fails for messages starting with "fail". */
+  private static class FailingEncoder extends EncoderBase<ILoggingEvent>
+      implements StreamingEncoder<ILoggingEvent> {
+
+    @Override
+    public void encode(final ILoggingEvent event, final OutputStream out) throws IOException {
+      final byte[] bytes = event.getFormattedMessage().getBytes(StandardCharsets.UTF_8);
+      if (event.getFormattedMessage().startsWith("fail")) {
+        out.write(bytes, 0, bytes.length / 2);
+        throw new IOException("failed to encode");
+      }
+      out.write(bytes);
+    }
+
+    @Override
+    public byte[] headerBytes() {
+      return null;
+    }
+
+    @Override
+    public byte[] encode(final ILoggingEvent event) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] footerBytes() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.pattern.ExtendedThrowableProxyConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThrowableRenderingCacheTest {
+
+  private LoggerContext context;
+  private Logger logger;
+
+  @Before
+  public void setUp() {
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    logger = context.getLogger("com.spotify.Foo");
+  }
+
+  @Test
+  public void shouldHitForSameSiteWithDifferentMessages() {
+    final ThrowableRenderingCache<String> cache = new ThrowableRenderingCache<>(16, String::length);
+    final ThrowableRenderingCache.Renderer<String> renderer = (tp, indent) -> tp.getClassName();
+
+    for (int i = 0; i < 10; i++) {
+      cache.get(new ThrowableProxy(fail("message " + i)), 0, renderer);
+    }
+
+    assertEquals(1, cache.getMissCount());
+    assertEquals(9, cache.getHitCount());
+    assertEquals(0.9, cache.getHitRate(), 0.0001);
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(
+        IllegalArgumentException.class.getName().length(), cache.getEstimatedMemoryUsage());
+  }
+
+  @Test
+  public void shouldCompareEntriesOnHit() {
+    final ThrowableProxy[] proxies = new ThrowableProxy[2];
+    for (int i = 0; i < proxies.length; i++) {
+      proxies[i] = new ThrowableProxy(fail("message " + i));
+    }
+    final ThrowableProxy cached = proxies[0];
+    final ThrowableRenderingCache.Entry<String> entry =
+        new ThrowableRenderingCache.Entry<>(
+            0, cached, cached.getStackTraceElementProxyArray(), 0, "x", 1);
+
+    final ThrowableProxy same = proxies[1];
+    final ThrowableProxy other = new ThrowableProxy(new IllegalStateException("a"));
+    assertTrue(entry.matches(same, same.getStackTraceElementProxyArray(), 0));
+    assertFalse(entry.matches(same, same.getStackTraceElementProxyArray(), 1));
+    assertFalse(entry.matches(other, other.getStackTraceElementProxyArray(), 0));
+  }
+
+  @Test
+  public void shouldMissForDifferentIndentOrSite() {
+    final ThrowableRenderingCache<String> cache = new ThrowableRenderingCache<>(16, String::length);
+    final ThrowableRenderingCache.Renderer<String> renderer = (tp, indent) -> "x";
+
+    cache.get(new ThrowableProxy(fail("a")), 0, renderer);
+    cache.get(new ThrowableProxy(fail("a")), 1, renderer);
+    cache.get(new ThrowableProxy(new IllegalStateException("a")), 0, renderer);
+
+    assertEquals(3, cache.getMissCount());
+    assertEquals(0, cache.getHitCount());
+  }
+
+  @Test
+  public void shouldStayBounded() {
+    final ThrowableRenderingCache<String> cache = new ThrowableRenderingCache<>(4, String::length);
+    final ThrowableRenderingCache.Renderer<String> renderer = (tp, indent) -> "frames";
+
+    for (int i = 0; i < 100; i++) {
+      cache.get(new ThrowableProxy(fail("a")), i, renderer);
+    }
+
+    assertTrue(cache.getEntryCount() <= 4);
+    assertEquals(cache.getEntryCount() * 6L, cache.getEstimatedMemoryUsage());
+  }
+
+  @Test
+  public void shouldNotCacheHugeRenderings() {
+    final ThrowableRenderingCache<String> cache = new ThrowableRenderingCache<>(4, String::length);
+    final String huge = new String(new char[128 * 1024]);
+
+    cache.get(new ThrowableProxy(fail("a")), 0, (tp, indent) -> huge);
+    cache.get(new ThrowableProxy(fail("a")), 0, (tp, indent) -> huge);
+
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void converterShouldMatchExtendedThrowableProxyConverter() {
+    final ExtendedThrowableProxyConverter expected = new ExtendedThrowableProxyConverter();
+    expected.setContext(context);
+    expected.start();
+    final CachingThrowableProxyConverter converter = new CachingThrowableProxyConverter();
+    converter.setContext(context);
+    converter.start();
+
+    for (int i = 0; i < 3; i++) {
+      final Exception cause = fail("cause " + i);
+      final Exception e = new RuntimeException("wrapper " + i, cause);
+      e.addSuppressed(fail("suppressed " + i));
+      final ILoggingEvent event = event(e);
+      assertEquals(expected.convert(event), converter.convert(event));
+    }
+
+    final ThrowableRenderingCache<String> cache = converter.getCache();
+    assertNotNull(cache);
+    assertEquals(3, cache.getMissCount());
+    assertEquals(6, cache.getHitCount());
+  }
+
+  @Test
+  public void converterShouldNotCacheWhenDisabled() {
+    final CachingThrowableProxyConverter converter = new CachingThrowableProxyConverter();
+    converter.setCacheSize(0);
+    converter.setContext(context);
+    converter.start();
+
+    assertTrue(converter.convert(event(fail("a"))).contains("fail"));
+    assertNull(converter.getCache());
+  }
+
+  private ILoggingEvent event(final Throwable t) {
+    return new LoggingEvent(Logger.FQCN, logger, Level.ERROR, "oops", t, null);
+  }
+
+  private static IllegalArgumentException fail(final String message) {
+    return new IllegalArgumentException(message);
+  }
+}
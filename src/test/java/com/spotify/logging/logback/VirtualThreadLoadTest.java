@@ -0,0 +1,182 @@
+/*-
+ * -\-\-
+ * logging
+ * --
+ * Copyright (C) 2016 - 2020 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.logging.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LogbackMDCAdapter;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Logs from thousands of virtual threads at once through the syslog appender, with a simulated slow
+ * send, and fails with the stacks where a virtual thread was pinned to its carrier, or if the
+ * throughput falls below a loose floor. The throughput is part of each assertion message. Skipped
+ * on JDKs without virtual threads; the project is compiled for Java 11, so they are created through
+ * reflection.
+ */
+public class VirtualThreadLoadTest {
+
+  private static final int THREADS = 2000;
+  private static final int EVENTS_PER_THREAD = 10;
+  // Far below what the simulated sends allow, so only a regression like serialized carriers fails
+  private static final long MIN_EVENTS_PER_SECOND = 1000;
+
+  private final PrintStream originalOut = System.out;
+  private final ByteArrayOutputStream pinningTrace = new ByteArrayOutputStream();
+  private @Nullable ExecutorService executor;
+  private DatagramSocket receiver;
+  private LoggerContext context;
+
+  @BeforeClass
+  public static void tracePinnedThreads() {
+    // Read once, when the first virtual thread is created
+    System.setProperty("jdk.tracePinnedThreads", "short");
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    executor = newVirtualThreadPerTaskExecutor();
+    assumeNotNull(executor);
+
+    receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    context = new LoggerContext();
+    context.setMDCAdapter(new LogbackMDCAdapter());
+    System.setOut(new PrintStream(pinningTrace, true, "UTF-8"));
+  }
+
+  @After
+  public void tearDown() {
+    System.setOut(originalOut);
+    if (executor != null) {
+      executor.shutdownNow();
+      receiver.close();
+      context.stop();
+    }
+  }
+
+  @Test
+  public void shouldNotPinCarrierThreads() throws Exception {
+    assert executor != null;
+    // Make sure pinning is actually traced, it isn't if virtual threads were used before
+    final Object monitor = new Object();
+    executor
+        .submit(
+            () -> {
+              synchronized (monitor) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+              }
+            })
+        .get();
+    assumeTrue("pinned threads are not traced", pinnedStacks() > 0);
+    pinningTrace.reset();
+
+    final AtomicInteger sent = new AtomicInteger();
+    final MillisecondPrecisionSyslogAppender appender =
+        new MillisecondPrecisionSyslogAppender() {
+          @Override
+          protected void append(final ILoggingEvent eventObject) {
+            super.append(eventObject);
+            sent.incrementAndGet();
+            // A slow send, which parks while holding the appender lock
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+          }
+        };
+    appender.setContext(context);
+    appender.setSyslogHost(receiver.getLocalAddress().getHostAddress());
+    appender.setPort(receiver.getLocalPort());
+    appender.setFacility("LOCAL0");
+    appender.setSuffixPattern("load: %msg");
+    appender.start();
+    final Logger logger = context.getLogger("com.spotify.Load");
+    logger.addAppender(appender);
+
+    final long start = System.nanoTime();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      executor.execute(
+          () -> {
+            for (int i = 0; i < EVENTS_PER_THREAD; i++) {
+              logger.info("thread {} event {}", thread, i);
+            }
+          });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    final long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    appender.stop();
+
+    final long eventsPerSecond = sent.get() * 1000L / millis;
+    final String throughput =
+        THREADS
+            + " virtual threads logged "
+            + sent.get()
+            + " events in "
+            + millis
+            + " ms ("
+            + eventsPerSecond
+            + " events/s)";
+    assertEquals(throughput, THREADS * EVENTS_PER_THREAD, sent.get());
+    final String trace = new String(pinningTrace.toByteArray(), StandardCharsets.UTF_8);
+    assertEquals(throughput + ", pinned:\n" + trace, 0, pinnedStacks());
+    assertTrue(throughput, eventsPerSecond >= MIN_EVENTS_PER_SECOND);
+  }
+
+  // Each distinct pinned stack is printed once, marking the frames that hold a monitor
+  private int pinnedStacks() {
+    final String trace = new String(pinningTrace.toByteArray(), StandardCharsets.UTF_8);
+    int count = 0;
+    for (final String line : trace.split("\n")) {
+      if (line.startsWith("Thread[")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static @Nullable ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}